@@ -99,6 +99,22 @@ public class StrestHttpException extends StrestException {
 		return new StrestHttpException(500, message);
 	}
 	
+	public static final StrestHttpException SERVICE_UNAVAILABLE() {
+		return new StrestHttpException(503, "Service Unavailable");
+	}
+	
+	public static final StrestHttpException SERVICE_UNAVAILABLE(String message) {
+		return new StrestHttpException(503, message);
+	}
+	
+	public static final StrestHttpException GATEWAY_TIMEOUT() {
+		return new StrestHttpException(504, "Gateway Timeout");
+	}
+	
+	public static final StrestHttpException GATEWAY_TIMEOUT(String message) {
+		return new StrestHttpException(504, message);
+	}
+	
 	public static final StrestHttpException MOVED() {
 		return new StrestHttpException(301, "Moved");
 	}
@@ -152,6 +152,16 @@ public class StrestServerBuilder {
 		return this;
 	}
 	
+	/**
+	 * type of the worker pool, see ExecutorConfig.  memory_aware, ordered, fixed, cached or virtual
+	 * @param type
+	 * @return
+	 */
+	public StrestServerBuilder workerExecutor(String type) {
+		this.config.putWithDot("threads.executor", type);
+		return this;
+	}
+	
 	private DynMap dynMapFromFile(String filename) throws Exception {
 		if (filename.endsWith("yaml")) {
 			Yaml yaml = new Yaml();
@@ -13,6 +13,11 @@ import org.apache.commons.logging.LogFactory;
 
 
 /**
+ * Marks a handle method as async.  The response is not sent when the handle method
+ * returns, the handler (or whatever it hands the work to) finishes the request with 
+ * getAsyncCompletion().complete() or fail(), or hands it a CompletionStage with 
+ * getAsyncCompletion().complete(stage).  See AsyncCompletion.
+ * 
  * @author Dustin Norlander
  * @created Feb 29, 2012
  * 
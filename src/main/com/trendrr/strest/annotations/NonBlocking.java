@@ -0,0 +1,27 @@
+/**
+ * 
+ */
+package com.trendrr.strest.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+/**
+ * Marks a handle method (ex: handleGET) as never blocking, so it is run directly on 
+ * the netty io thread instead of being handed to the worker pool.  On a controller 
+ * class it applies to every handle method.
+ * 
+ * Only for cheap handlers: no database or network calls, no locks, no waiting on 
+ * slow consumers.  While the handler runs, no other connection on that io thread is served.
+ * 
+ * Ignored for @StreamingBody handlers and on listeners with ordered execution.
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface NonBlocking {
+
+}
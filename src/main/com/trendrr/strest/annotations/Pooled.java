@@ -0,0 +1,29 @@
+/**
+ * 
+ */
+package com.trendrr.strest.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+/**
+ * Marks a controller as safe to reuse between requests.  
+ * 
+ * Instances are reset and returned to a pool once the response has been sent, so 
+ * the controller must not keep any state in its own fields, or hold a reference to 
+ * itself (ex: in a thread or callback) after the request is finished.
+ * 
+ * Requests that go async (see @Async) never return their controller to the pool.
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Pooled {
+	/**
+	 * max number of idle instances kept around.
+	 */
+	int max() default 256;
+}
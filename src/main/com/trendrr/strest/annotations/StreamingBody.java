@@ -0,0 +1,27 @@
+/**
+ * 
+ */
+package com.trendrr.strest.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+/**
+ * Marks a handle method (ex: handlePOST) as reading the request body as it arrives,
+ * rather than after the whole body has been buffered.
+ * 
+ * The handler is called as soon as the headers are in, the body is read from 
+ * StrestController.getRequestBody().  Reading is flow controlled, the connection stops
+ * reading from the socket while the controller falls behind.
+ * 
+ * The body must be read before the handle method returns, anything left unread is discarded. 
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface StreamingBody {
+
+}
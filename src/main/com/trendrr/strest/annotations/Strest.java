@@ -19,4 +19,9 @@ public @interface Strest {
 	String[] route() default "";
 	Class[] filters() default {};
 	String[] requiredParams() default {};
+	/**
+	 * millis a request may wait for a worker before it is no longer worth running, 
+	 * used when the request has no Strest-Deadline header.  0 for the server default.
+	 */
+	long deadline() default 0;
 }
@@ -9,6 +9,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
 
 import com.trendrr.oss.Timeframe;
 import com.trendrr.oss.exceptions.TrendrrException;
@@ -97,6 +98,25 @@ public class StrestZMQChannel extends StrestConnectionChannel{
 		return null;
 	}
 
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.connections.StrestConnectionChannel#isEncodedSupported()
+	 */
+	@Override
+	public boolean isEncodedSupported() {
+		return true;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.connections.StrestConnectionChannel#doSendEncoded(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	protected Object doSendEncoded(ChannelBuffer buffer) throws Exception {
+		byte[] bytes = new byte[buffer.readableBytes()];
+		buffer.getBytes(buffer.readerIndex(), bytes);
+		channel.send(bytes);
+		return null;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.trendrr.strest.server.connections.StrestConnectionChannel#getRemoteAddress()
 	 */
@@ -3,13 +3,13 @@
  */
 package com.trendrr.strest.contrib.zmq;
 
-import java.io.UnsupportedEncodingException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
 
-import com.trendrr.oss.DynMap;
 import com.trendrr.strest.server.StrestServer;
+import com.trendrr.strest.server.v2.JsonFrameParser;
 import com.trendrr.strest.server.v2.models.json.StrestJsonRequest;
 import com.trendrr.zmq.server.ZMQChannel;
 
@@ -26,6 +26,7 @@ public class StrestZMQIncomingRunnable implements Runnable {
 	StrestServer server = null;
 	StrestZMQChannel channel = null;
 	byte[] requestBytes = null;
+	long arrivalTime = System.currentTimeMillis();
 	
 	public StrestZMQIncomingRunnable(StrestServer server, StrestZMQChannel channel, byte[] requestBytes) {
 		this.server = server;
@@ -39,12 +40,12 @@ public class StrestZMQIncomingRunnable implements Runnable {
 	@Override
 	public void run() {
 		try {
-			String json = new String(requestBytes, "utf8");
-			StrestJsonRequest request = new StrestJsonRequest(DynMap.instance(json));
+			StrestJsonRequest request = new StrestJsonRequest(JsonFrameParser.parse(requestBytes));
 			channel.setLastIncoming();
 			request.setConnectionChannel(channel);
+			request.setArrivalTime(this.arrivalTime);
 			this.server.getRouter().incoming(request);
-		} catch (UnsupportedEncodingException e) {
+		} catch (CorruptedFrameException e) {
 			channel.cleanup();//bad message
 		}
 	}
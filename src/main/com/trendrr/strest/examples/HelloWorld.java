@@ -9,6 +9,7 @@ import org.jboss.netty.handler.codec.http.HttpMethod;
 
 import com.trendrr.oss.DynMap;
 import com.trendrr.strest.ContentTypes;
+import com.trendrr.strest.annotations.NonBlocking;
 import com.trendrr.strest.annotations.Strest;
 import com.trendrr.strest.server.StrestController;
 
@@ -30,6 +31,7 @@ public class HelloWorld extends StrestController {
 	 * @see com.trendrr.strest.server.StrestController#action(com.trendrr.oss.DynMap)
 	 */
 	@Override
+	@NonBlocking
 	public void handleGET(DynMap params) throws Exception {
 		String val = params.getString("param", "world");
 		System.out.println(params.toJSONString());
@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package com.trendrr.strest.server;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import com.trendrr.strest.StrestHttpException;
+import com.trendrr.strest.server.connections.StrestConnectionChannel;
+import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
+
+
+/**
+ *
+ * Completes an async request (see StrestController.startAsync()).
+ *
+ * The handle method returns without a response, and the worker thread is free for
+ * other requests.  Whoever finishes the work (a callback, another pool, a netty client..)
+ * sets the response on the controller then calls complete(), or fail() with the error.
+ * The router then runs the after (or error) filters and sends the response, on the
+ * calling thread.
+ *
+ * Only the first complete / fail counts.  If neither happens within the timeout the
+ * request fails with a 504.
+ *
+ */
+public class AsyncCompletion {
+
+	protected static Log log = LogFactory.getLog(AsyncCompletion.class);
+
+	protected final StrestRouter router;
+	protected final StrestController controller;
+	protected final ResponseBuilder response;
+
+	//guarded by this
+	private boolean done = false;
+	private Timeout timeout = null;
+
+	AsyncCompletion(StrestRouter router, StrestController controller, ResponseBuilder response) {
+		this.router = router;
+		this.controller = controller;
+		this.response = response;
+	}
+
+	/**
+	 * sends the controller's response.
+	 * @return false if the request was already completed (or timed out)
+	 */
+	public boolean complete() {
+		return this.finish(null);
+	}
+
+	/**
+	 * completes the request when the stage completes, or fails it if the stage fails.
+	 * The stage's value is not used, set the response on the controller before the stage
+	 * completes (ex: in a thenAccept).
+	 * @param stage
+	 */
+	public void complete(CompletionStage<?> stage) {
+		stage.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object value, Throwable cause) {
+				if (cause == null) {
+					complete();
+					return;
+				}
+				if ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+					cause = cause.getCause();
+				}
+				fail(cause);
+			}
+		});
+	}
+
+	/**
+	 * fails the request. A StrestHttpException is sent as is, anything else as a 500.
+	 * @param cause
+	 * @return false if the request was already completed (or timed out)
+	 */
+	public boolean fail(Throwable cause) {
+		if (cause == null) {
+			cause = StrestHttpException.INTERNAL_SERVER_ERROR();
+		}
+		return this.finish(cause);
+	}
+
+	/**
+	 * true once complete, fail or the timeout has happened.
+	 * @return
+	 */
+	public synchronized boolean isDone() {
+		return this.done;
+	}
+
+	public StrestController getController() {
+		return controller;
+	}
+
+	/**
+	 * fails the request with a 504 if it is not done within the timeout.  Replaces any
+	 * earlier timeout, <= 0 for none.
+	 * @param millis
+	 */
+	public void setTimeout(long millis) {
+		synchronized(this) {
+			if (this.done) {
+				return;
+			}
+			if (this.timeout != null) {
+				this.timeout.cancel();
+				this.timeout = null;
+			}
+			if (millis <= 0) {
+				return;
+			}
+			this.timeout = StrestServer.getTimer().newTimeout(new TimerTask() {
+				@Override
+				public void run(Timeout t) throws Exception {
+					if (!t.isCancelled()) {
+						fail(StrestHttpException.GATEWAY_TIMEOUT());
+					}
+				}
+			}, millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	protected boolean finish(Throwable cause) {
+		synchronized(this) {
+			if (this.done) {
+				return false;
+			}
+			this.done = true;
+			if (this.timeout != null) {
+				this.timeout.cancel();
+				this.timeout = null;
+			}
+		}
+		//read before finishing, the controller may be released for reuse.
+		StrestConnectionChannel connection = this.controller.getChannelConnection();
+		try {
+			this.router.finishAsync(this.controller, this.response, cause);
+		} finally {
+			//we are outside of the request handler, flush any coalesced writes ourselves.
+			StrestNettyConnectionChannel.flush(connection);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ *
+ */
+package com.trendrr.strest.server;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.trendrr.oss.DynMap;
+
+
+/**
+ *
+ * Limits the number of requests in flight, with a limit that adjusts itself from
+ * the observed latency (TCP Vegas style).
+ *
+ * The lowest latency seen is taken as the no-load latency, the ratio of it to the
+ * latency of each finished request estimates how many requests are queued rather
+ * than being worked on.  While that queue is short the limit grows, once it gets long
+ * the limit shrinks.  Timeouts shrink the limit right away.  The no-load latency is
+ * re-measured every probe_interval samples, so the limit can recover if the service
+ * gets faster.
+ *
+ * Only requests that reach the controller are sampled (see Permit.executing), requests 
+ * answered by a filter (429s, cache hits, skipExecution) take a slot but say nothing 
+ * about the controller's latency.
+ *
+ * Requests over the limit are rejected, the caller should answer them with a 503.
+ *
+ * config:
+ * 	initial_limit - default 20
+ * 	min_limit - default 4
+ * 	max_limit - default 1000
+ * 	probe_interval - samples between no-load latency resets.  default 1000
+ *
+ */
+public class ConcurrencyLimiter {
+
+	protected static Log log = LogFactory.getLog(ConcurrencyLimiter.class);
+
+	protected final String name;
+	protected final int minLimit;
+	protected final int maxLimit;
+	protected final int probeInterval;
+
+	//guarded by this
+	private double limit;
+	private int inFlight = 0;
+	private long rttNoLoad = 0;
+	private long samples = 0;
+	private long rejected = 0;
+
+	/**
+	 * a slot held by one request, released when its response is sent.
+	 */
+	public static final class Permit {
+		private final ConcurrencyLimiter limiter;
+		private volatile long start = 0;
+		private boolean released = false;
+
+		private Permit(ConcurrencyLimiter limiter) {
+			this.limiter = limiter;
+		}
+
+		/**
+		 * called when the controller starts working on the request, the latency is measured
+		 * from here.  Requests that never get here are not sampled.
+		 */
+		public void executing() {
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * @param dropped true if the request timed out or was shed, rather than completed.
+		 */
+		public void release(boolean dropped) {
+			synchronized(this) {
+				if (this.released) {
+					return;
+				}
+				this.released = true;
+			}
+			long start = this.start;
+			this.limiter.release(start == 0 ? 0 : System.nanoTime() - start, dropped, start != 0);
+		}
+
+		public ConcurrencyLimiter getLimiter() {
+			return limiter;
+		}
+	}
+
+	public static ConcurrencyLimiter instance(String name, DynMap config) {
+		if (config == null) {
+			config = new DynMap();
+		}
+		return new ConcurrencyLimiter(name,
+				config.getInteger("initial_limit", 20),
+				config.getInteger("min_limit", 4),
+				config.getInteger("max_limit", 1000),
+				config.getInteger("probe_interval", 1000));
+	}
+
+	public ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit, int probeInterval) {
+		this.name = name;
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.probeInterval = Math.max(1, probeInterval);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+	}
+
+	/**
+	 * takes a slot if one is free.
+	 * @return the permit, or null if the limit is reached.
+	 */
+	public Permit tryAcquire() {
+		synchronized(this) {
+			if (this.inFlight >= (int)this.limit) {
+				this.rejected++;
+				return null;
+			}
+			this.inFlight++;
+		}
+		return new Permit(this);
+	}
+
+	/**
+	 * gives back a slot.
+	 * @param rtt nanos the request took
+	 * @param dropped true if the request timed out or was shed
+	 * @param sample false if the latency says nothing about the controller (it never ran)
+	 */
+	protected synchronized void release(long rtt, boolean dropped, boolean sample) {
+		int inFlight = this.inFlight--;
+		double step = Math.max(1, Math.log10(this.limit));
+		if (dropped) {
+			//whatever the latency, a timeout means we are over capacity
+			this.limit = Math.max(this.minLimit, this.limit - step);
+			return;
+		}
+		if (!sample) {
+			return;
+		}
+		rtt = Math.max(1, rtt);
+		if (++this.samples % this.probeInterval == 0) {
+			//forget the old minimum, it may be stale
+			this.rttNoLoad = rtt;
+			return;
+		}
+		if (this.rttNoLoad == 0 || rtt < this.rttNoLoad) {
+			this.rttNoLoad = rtt;
+			return;
+		}
+		double newLimit;
+		if (inFlight * 2 < this.limit) {
+			//not using the limit we have, latency says nothing about it
+			return;
+		} else {
+			double queue = Math.ceil(this.limit * (1 - (double)this.rttNoLoad / rtt));
+			if (queue <= step) {
+				newLimit = this.limit + 6 * step;
+			} else if (queue < 3 * step) {
+				newLimit = this.limit + step;
+			} else if (queue > 6 * step) {
+				newLimit = this.limit - step;
+			} else {
+				return;
+			}
+		}
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, newLimit));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized int getLimit() {
+		return (int)this.limit;
+	}
+
+	public synchronized int getInFlight() {
+		return this.inFlight;
+	}
+
+	/**
+	 * number of requests turned away since startup
+	 * @return
+	 */
+	public synchronized long getRejected() {
+		return this.rejected;
+	}
+
+	public String toString() {
+		return "ConcurrencyLimiter " + this.name + ": limit " + this.getLimit() + ", in flight " + this.getInFlight();
+	}
+}
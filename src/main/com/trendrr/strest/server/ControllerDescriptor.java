@@ -0,0 +1,170 @@
+/**
+ *
+ */
+package com.trendrr.strest.server;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.trendrr.strest.annotations.AnnotationHelper;
+import com.trendrr.strest.annotations.Async;
+import com.trendrr.strest.annotations.NonBlocking;
+import com.trendrr.strest.annotations.StreamingBody;
+import com.trendrr.strest.server.v2.models.StrestHeader;
+
+
+/**
+ *
+ * Everything the router needs to know about a controller class, computed
+ * once when the controller is registered.
+ *
+ * The values are read from a prototype instance, so subclasses that override
+ * routes(), filters(), requiredParams() or getControllerNamespace() still work,
+ * as long as the overrides don't depend on the request.
+ *
+ */
+public class ControllerDescriptor {
+
+	protected static Log log = LogFactory.getLog(ControllerDescriptor.class);
+
+	private static final Class<?>[] NO_FILTERS = new Class<?>[0];
+	private static final String[] NO_PARAMS = new String[0];
+
+	protected final Class<? extends StrestController> cls;
+	protected final ControllerFactory factory;
+	protected final String[] routes;
+	protected final Class<?>[] filters;
+	protected final String[] requiredParams;
+	protected final String namespace;
+	protected final long deadline;
+	protected final boolean[] async = new boolean[StrestHeader.Method.values().length];
+	protected final boolean[] streaming = new boolean[StrestHeader.Method.values().length];
+	protected final boolean[] inline = new boolean[StrestHeader.Method.values().length];
+
+	/**
+	 * creates a descriptor using a prototype instance from the factory.
+	 * @param factory
+	 * @return
+	 * @throws Exception
+	 */
+	public static ControllerDescriptor instance(ControllerFactory factory) throws Exception {
+		StrestController prototype = factory.newInstance();
+		ControllerDescriptor descriptor = new ControllerDescriptor(factory, prototype);
+		factory.release(prototype);
+		return descriptor;
+	}
+
+	/**
+	 *
+	 * @param factory the factory for this class, may be null if the controller was not created by the router.
+	 * @param prototype
+	 */
+	public ControllerDescriptor(ControllerFactory factory, StrestController prototype) {
+		this.cls = prototype.getClass();
+		this.factory = factory;
+		this.routes = prototype.routes();
+
+		Class<?>[] filters = prototype.filters();
+		this.filters = filters == null ? NO_FILTERS : filters;
+
+		String[] required = prototype.requiredParams();
+		this.requiredParams = required == null ? NO_PARAMS : required;
+
+		String namespace = prototype.getControllerNamespace();
+		this.namespace = namespace == null ? "default" : namespace;
+
+		this.deadline = Math.max(0, prototype.deadline());
+
+		boolean nonBlocking = this.cls.isAnnotationPresent(NonBlocking.class);
+		for (StrestHeader.Method method : StrestHeader.Method.values()) {
+			this.async[method.ordinal()] = AnnotationHelper.hasMethodAnnotation(Async.class, prototype, "handle" + method.toString());
+			this.streaming[method.ordinal()] = AnnotationHelper.hasMethodAnnotation(StreamingBody.class, prototype, "handle" + method.toString());
+			//a streaming handler waits on the io thread, so it can never run on it.
+			this.inline[method.ordinal()] = !this.streaming[method.ordinal()]
+					&& (nonBlocking || AnnotationHelper.hasMethodAnnotation(NonBlocking.class, prototype, "handle" + method.toString()));
+		}
+	}
+
+	public Class<? extends StrestController> getControllerClass() {
+		return cls;
+	}
+
+	public ControllerFactory getFactory() {
+		return factory;
+	}
+
+	/**
+	 * the routes, or null if the controller has none.
+	 * @return
+	 */
+	public String[] getRoutes() {
+		return routes;
+	}
+
+	/**
+	 * the controller specific filter classes, never null
+	 * @return
+	 */
+	public Class<?>[] getFilters() {
+		return filters;
+	}
+
+	/**
+	 * the required params, never null.  Not enforced by the router, but available 
+	 * to filters and docs without going back to the annotation.
+	 * @return
+	 */
+	public String[] getRequiredParams() {
+		return requiredParams;
+	}
+
+	public String getNamespace() {
+		return namespace;
+	}
+
+	/**
+	 * default deadline in millis from arrival, 0 for the server default.
+	 * @return
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * is the handle method for this http method annotated with @Async
+	 * @param method
+	 * @return
+	 */
+	public boolean isAsync(StrestHeader.Method method) {
+		if (method == null)
+			return false;
+		return this.async[method.ordinal()];
+	}
+
+	/**
+	 * is the handle method for this http method annotated with @StreamingBody
+	 * @param method
+	 * @return
+	 */
+	public boolean isStreaming(StrestHeader.Method method) {
+		if (method == null)
+			return false;
+		return this.streaming[method.ordinal()];
+	}
+
+	/**
+	 * is the handle method for this http method marked @NonBlocking, and so may
+	 * run on the io thread.
+	 * @param method
+	 * @return
+	 */
+	public boolean isInline(StrestHeader.Method method) {
+		if (method == null)
+			return false;
+		return this.inline[method.ordinal()];
+	}
+
+	public String toString() {
+		return "ControllerDescriptor: " + cls;
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server;
+
+import com.trendrr.strest.annotations.Pooled;
+
+
+/**
+ * Creates controller instances for a single controller class.
+ * 
+ * A factory is resolved once per class when the route is added, so the 
+ * per request cost is just the newInstance call.
+ *
+ */
+public abstract class ControllerFactory {
+
+	/**
+	 * gets the default factory for the class.  Controllers annotated with @Pooled get 
+	 * a pooled factory, all others get a new instance per request.
+	 * @param cls
+	 * @return
+	 * @throws Exception if the class has no usable default constructor
+	 */
+	public static ControllerFactory instance(Class<? extends StrestController> cls) throws Exception {
+		Pooled pooled = cls.getAnnotation(Pooled.class);
+		if (pooled != null) {
+			return new PooledControllerFactory(cls, pooled.max());
+		}
+		return new DefaultControllerFactory(cls);
+	}
+	
+	/**
+	 * returns a controller ready to handle a request.
+	 * @return
+	 * @throws Exception
+	 */
+	public abstract StrestController newInstance() throws Exception;
+	
+	/**
+	 * called once the router is finished with the controller.
+	 * @param controller
+	 */
+	public void release(StrestController controller) {
+		//default is to let it get garbage collected.
+	}
+}
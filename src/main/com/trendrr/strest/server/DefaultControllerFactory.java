@@ -0,0 +1,45 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+
+
+/**
+ * Creates a new controller for every request.  
+ * 
+ * The default constructor is resolved to a MethodHandle once, when the route is added.
+ * Each request is then a direct invokeExact, with none of the access checks and 
+ * argument array of Constructor.newInstance.
+ *
+ */
+public class DefaultControllerFactory extends ControllerFactory {
+
+	protected final MethodHandle constructor;
+	
+	public DefaultControllerFactory(Class<? extends StrestController> cls) throws Exception {
+		Constructor<? extends StrestController> c = cls.getDeclaredConstructor();
+		c.setAccessible(true);
+		this.constructor = MethodHandles.lookup().unreflectConstructor(c).asType(MethodType.methodType(StrestController.class));
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.ControllerFactory#newInstance()
+	 */
+	@Override
+	public StrestController newInstance() throws Exception {
+		try {
+			return (StrestController)this.constructor.invokeExact();
+		} catch (Exception x) {
+			throw x;
+		} catch (Error x) {
+			throw x;
+		} catch (Throwable t) {
+			throw new Exception(t);
+		}
+	}
+}
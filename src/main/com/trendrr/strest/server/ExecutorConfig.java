@@ -0,0 +1,216 @@
+/**
+ *
+ */
+package com.trendrr.strest.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+
+import com.trendrr.oss.DynMap;
+
+
+/**
+ *
+ * The threading model, parsed from the "threads" section of the config.
+ *
+ * 	io - number of netty io (nio worker) threads, shared by all listeners.  default 2 * cores
+ * 	worker - number of threads that run controllers, shared by all listeners.  default 16
+ * 	executor - type of the worker pool:
+ * 		memory_aware - (default) netty MemoryAwareThreadPoolExecutor, requests from one
+ * 				connection may run concurrently.
+ * 		ordered - netty OrderedMemoryAwareThreadPoolExecutor, requests from one connection
+ * 				run one at a time, in order.
+ * 		fixed - plain fixed size pool, no memory limits.
+ * 		cached - unbounded pool, no memory limits.
+ * 		virtual - a virtual thread per request (see VirtualThreadExecutor), for controllers
+ * 				that block.  worker is ignored, max_concurrency caps the running requests.
+ * 	max_concurrency - requests run at once by the virtual executor.  default 1024
+ * 	max_channel_memory_kb - queued request bytes allowed per connection before it stops
+ * 			reading, memory_aware, ordered and virtual only.  0 for no limit. default 1024
+ * 	max_total_memory_kb - same, summed over all connections.  default 1024
+ * 	keep_alive_seconds - idle time before a thread above the core size exits.  default 30
+ * 	inline - run @NonBlocking handlers on the io thread.  default true
+ *
+ */
+public class ExecutorConfig {
+
+	protected static Log log = LogFactory.getLog(ExecutorConfig.class);
+
+	public static enum Type {
+		MEMORY_AWARE,
+		ORDERED,
+		FIXED,
+		CACHED,
+		VIRTUAL;
+
+		public static Type instance(String name) {
+			if (name == null) {
+				return null;
+			}
+			try {
+				return Type.valueOf(name.trim().toUpperCase().replace('-', '_'));
+			} catch (IllegalArgumentException x) {
+				return null;
+			}
+		}
+	}
+
+	protected int ioThreads = Runtime.getRuntime().availableProcessors() * 2;
+	protected int workerThreads = 16;
+	protected int maxConcurrency = 1024;
+	protected Type type = Type.MEMORY_AWARE;
+	protected long maxChannelMemory = 1048576;
+	protected long maxTotalMemory = 1048576;
+	protected int keepAliveSeconds = 30;
+	protected boolean inline = true;
+
+	/**
+	 * parses the threads section of the config, missing or invalid values keep their default.
+	 * @param config may be null
+	 * @return
+	 */
+	public static ExecutorConfig instance(DynMap config) {
+		ExecutorConfig conf = new ExecutorConfig();
+		if (config == null) {
+			return conf;
+		}
+		conf.setIoThreads(config.getInteger("io", conf.ioThreads));
+		conf.setWorkerThreads(config.getInteger("worker", conf.workerThreads));
+		String type = config.getString("executor");
+		if (type != null) {
+			Type t = Type.instance(type);
+			if (t == null) {
+				log.warn("Unknown executor type: " + type + ", using " + conf.type);
+			} else {
+				conf.type = t;
+			}
+		}
+		int maxConcurrency = config.getInteger("max_concurrency", conf.maxConcurrency);
+		if (maxConcurrency < 1) {
+			log.warn("threads.max_concurrency must be at least 1, ignoring " + maxConcurrency);
+		} else {
+			conf.maxConcurrency = maxConcurrency;
+		}
+		conf.maxChannelMemory = Math.max(0, config.getLong("max_channel_memory_kb", conf.maxChannelMemory / 1024)) * 1024;
+		conf.maxTotalMemory = Math.max(0, config.getLong("max_total_memory_kb", conf.maxTotalMemory / 1024)) * 1024;
+		conf.keepAliveSeconds = Math.max(1, config.getInteger("keep_alive_seconds", conf.keepAliveSeconds));
+		conf.inline = config.getBoolean("inline", conf.inline);
+		return conf;
+	}
+
+	/**
+	 * creates the worker pool described by this config.
+	 * @return
+	 */
+	public Executor createWorkerExecutor() {
+		return this.createWorkerExecutor(this.type);
+	}
+	
+	/**
+	 * creates a worker pool of the given type, with the sizes and limits of this config.
+	 * @param type
+	 * @return
+	 */
+	public Executor createWorkerExecutor(Type type) {
+		switch(type) {
+		case ORDERED :
+			return new OrderedMemoryAwareThreadPoolExecutor(this.workerThreads,
+					this.maxChannelMemory, this.maxTotalMemory, this.keepAliveSeconds, TimeUnit.SECONDS);
+		case FIXED :
+			return Executors.newFixedThreadPool(this.workerThreads);
+		case CACHED :
+			return Executors.newCachedThreadPool();
+		case VIRTUAL :
+			return new VirtualThreadExecutor(this.maxConcurrency, this.maxChannelMemory, this.maxTotalMemory);
+		default :
+			return new MemoryAwareThreadPoolExecutor(this.workerThreads,
+					this.maxChannelMemory, this.maxTotalMemory, this.keepAliveSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	public void setIoThreads(int ioThreads) {
+		if (ioThreads < 1) {
+			log.warn("threads.io must be at least 1, ignoring " + ioThreads);
+			return;
+		}
+		this.ioThreads = ioThreads;
+	}
+
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	public void setWorkerThreads(int workerThreads) {
+		if (workerThreads < 1) {
+			log.warn("threads.worker must be at least 1, ignoring " + workerThreads);
+			return;
+		}
+		this.workerThreads = workerThreads;
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public void setType(Type type) {
+		this.type = type;
+	}
+
+	public long getMaxChannelMemory() {
+		return maxChannelMemory;
+	}
+
+	public long getMaxTotalMemory() {
+		return maxTotalMemory;
+	}
+
+	public int getKeepAliveSeconds() {
+		return keepAliveSeconds;
+	}
+
+	public boolean isInline() {
+		return inline;
+	}
+
+	public void setInline(boolean inline) {
+		this.inline = inline;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		str.append("io threads: ").append(this.ioThreads);
+		str.append(", executor: ").append(this.type.toString().toLowerCase());
+		str.append(", worker threads: ");
+		if (this.type == Type.CACHED) {
+			str.append("unbounded");
+		} else if (this.type == Type.VIRTUAL) {
+			str.append("one per request, max concurrency: ").append(this.maxConcurrency);
+		} else {
+			str.append(this.workerThreads);
+		}
+		if (this.type == Type.MEMORY_AWARE || this.type == Type.ORDERED || this.type == Type.VIRTUAL) {
+			str.append(", max channel memory: ").append(this.maxChannelMemory / 1024).append("kb");
+			str.append(", max total memory: ").append(this.maxTotalMemory / 1024).append("kb");
+		}
+		str.append(", inline non-blocking handlers: ").append(this.inline);
+		return str.toString();
+	}
+}
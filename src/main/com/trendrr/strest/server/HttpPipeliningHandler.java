@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package com.trendrr.strest.server;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.HashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.timeout.IdleState;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+
+import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
+
+
+/**
+ *
+ * Keeps responses to pipelined plain http requests in request order.
+ *
+ * Requests are numbered on the io thread as they arrive (before the execution handler,
+ * which may run them out of order), the number travels with the request and comes back
+ * on its response.  Responses that finish early are held until every earlier response
+ * has been written.
+ *
+ * A request that will never get a response through here (ex: the controller sends its own)
+ * must give up its place with a Sequenced(sequence, null), see StrestConnectionChannel.skipSequence.
+ * A second response for the same request is failed rather than written.  If more than MAX_HELD 
+ * responses are waiting on an earlier one, that one is assumed lost and the connection is closed.
+ *
+ * STREST requests are passed through untouched, their responses are matched by txn id.
+ *
+ * Also closes keep-alive connections that have been idle (see IdleStateHandler),
+ * unless they are waiting on a response or have open STREST txns.
+ *
+ * One instance per connection.
+ *
+ */
+public class HttpPipeliningHandler extends SimpleChannelHandler {
+
+	protected static Log log = LogFactory.getLog(HttpPipeliningHandler.class);
+
+	//responses allowed to wait on an earlier one before it is given up on.
+	public static final int MAX_HELD = 256;
+
+	//only written on the io thread, read by the idle timer.
+	private volatile int nextRequest = 0;
+
+	//guarded by this
+	private int nextResponse = 0;
+	private HashMap<Integer, MessageEvent> held = new HashMap<Integer, MessageEvent>();
+
+	/**
+	 * a request or response tagged with its position on the connection.  A null
+	 * response message gives up the position without writing anything.
+	 */
+	public static final class Sequenced {
+		private final int sequence;
+		private final Object message;
+
+		public Sequenced(int sequence, Object message) {
+			this.sequence = sequence;
+			this.message = message;
+		}
+
+		public int getSequence() {
+			return sequence;
+		}
+
+		public Object getMessage() {
+			return message;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.SimpleChannelHandler#handleUpstream(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent)
+	 */
+	@Override
+	public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+		if (e instanceof IdleStateEvent) {
+			this.channelIdle(ctx, (IdleStateEvent)e);
+			return;
+		}
+		super.handleUpstream(ctx, e);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.SimpleChannelHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+	 */
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		Object msg = e.getMessage();
+		if (msg instanceof HttpRequest && !isStrest((HttpRequest)msg)) {
+			Channels.fireMessageReceived(ctx, new Sequenced(this.nextRequest++, msg), e.getRemoteAddress());
+			return;
+		}
+		ctx.sendUpstream(e);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.SimpleChannelHandler#writeRequested(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+	 */
+	@Override
+	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		if (!(e.getMessage() instanceof Sequenced)) {
+			ctx.sendDownstream(e);
+			return;
+		}
+		Sequenced s = (Sequenced)e.getMessage();
+		synchronized(this) {
+			if (s.getSequence() < this.nextResponse || this.held.containsKey(s.getSequence())) {
+				//a second response would be read as the answer to the next request.
+				log.warn("Dropping second response to pipelined request " + s.getSequence() + " on " + e.getChannel());
+				e.getFuture().setFailure(new IllegalStateException("Request " + s.getSequence() + " already has a response"));
+				return;
+			}
+			if (s.getSequence() != this.nextResponse) {
+				if (this.held.size() >= MAX_HELD) {
+					log.warn("Closing " + e.getChannel() + ", pipelined request " + this.nextResponse + " never got a response");
+					e.getFuture().setFailure(new ClosedChannelException());
+					this.failHeld();
+					Channels.close(ctx, Channels.future(ctx.getChannel()));
+					return;
+				}
+				this.held.put(s.getSequence(), e);
+				return;
+			}
+			//write under the lock so concurrent writers can't reorder.
+			this.write(ctx, e);
+			MessageEvent next = this.held.remove(this.nextResponse);
+			while (next != null) {
+				this.write(ctx, next);
+				next = this.held.remove(this.nextResponse);
+			}
+		}
+	}
+
+	/**
+	 * writes the next response, must hold the lock.
+	 */
+	private void write(ChannelHandlerContext ctx, MessageEvent e) {
+		Object message = ((Sequenced)e.getMessage()).getMessage();
+		this.nextResponse++;
+		if (message == null) {
+			e.getFuture().setSuccess(); //skipped
+			return;
+		}
+		Channels.write(ctx, e.getFuture(), message, e.getRemoteAddress());
+	}
+
+	/**
+	 * fails the futures of the held responses, must hold the lock.
+	 */
+	private void failHeld() {
+		for (MessageEvent held : this.held.values()) {
+			held.getFuture().setFailure(new ClosedChannelException());
+		}
+		this.held.clear();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.SimpleChannelHandler#channelClosed(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+	 */
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		synchronized(this) {
+			this.failHeld();
+		}
+		super.channelClosed(ctx, e);
+	}
+
+	protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) {
+		if (e.getState() != IdleState.ALL_IDLE) {
+			return;
+		}
+		synchronized(this) {
+			if (this.nextResponse != this.nextRequest || !this.held.isEmpty()) {
+				return; //a controller is still working on a response
+			}
+		}
+		StrestNettyConnectionChannel con = StrestNettyConnectionChannel.find(e.getChannel());
+		if (con != null && con.getTransactionCount() > 0) {
+			return; //open strest txns, quiet streams are fine
+		}
+		e.getChannel().close();
+	}
+
+	private static boolean isStrest(HttpRequest request) {
+		return request.getProtocolVersion() != null
+				&& "STREST".equalsIgnoreCase(request.getProtocolVersion().getProtocolName());
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Keeps a bounded pool of idle controllers, so a steady request load creates no 
+ * new controllers at all.  
+ * 
+ * Controllers are reset before they are returned to the pool. If the pool is full 
+ * the controller is dropped.  So is a controller that went async, whatever completes
+ * it may still hold it (always, if it timed out), and must not see another request.
+ *
+ */
+public class PooledControllerFactory extends DefaultControllerFactory {
+
+	protected final ConcurrentLinkedQueue<StrestController> pool = new ConcurrentLinkedQueue<StrestController>();
+	protected final AtomicInteger idle = new AtomicInteger(0); //ConcurrentLinkedQueue.size is O(n)
+	protected final int max;
+	
+	public PooledControllerFactory(Class<? extends StrestController> cls, int max) throws Exception {
+		super(cls);
+		this.max = max;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.ControllerFactory#newInstance()
+	 */
+	@Override
+	public StrestController newInstance() throws Exception {
+		StrestController c = this.pool.poll();
+		if (c == null) {
+			return super.newInstance();
+		}
+		this.idle.decrementAndGet();
+		return c;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.ControllerFactory#release(com.trendrr.strest.server.StrestController)
+	 */
+	@Override
+	public void release(StrestController controller) {
+		if (controller.getAsyncCompletion() != null) {
+			return;
+		}
+		if (this.idle.incrementAndGet() > this.max) {
+			this.idle.decrementAndGet();
+			return;
+		}
+		controller.reset();
+		this.pool.offer(controller);
+	}
+}
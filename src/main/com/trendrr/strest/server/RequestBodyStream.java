@@ -0,0 +1,207 @@
+/**
+ *
+ */
+package com.trendrr.strest.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedChannelException;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+
+
+/**
+ *
+ * The body of a request, delivered in chunks as they come off the socket (see @StreamingBody).
+ *
+ * Chunks are queued by the io thread and read by the controller on its worker thread,
+ * in order.  When more than highWaterMark bytes are waiting the connection stops reading
+ * from the socket, it starts again once the controller has read it down to lowWaterMark.
+ *
+ */
+public class RequestBodyStream {
+
+	protected static Log log = LogFactory.getLog(RequestBodyStream.class);
+
+	protected final Channel channel;
+	protected final int highWaterMark;
+	protected final int lowWaterMark;
+
+	//guarded by this
+	private LinkedList<ChannelBuffer> chunks = new LinkedList<ChannelBuffer>();
+	private long queued = 0;
+	private long read = 0;
+	private boolean ended = false;
+	private boolean discarding = false;
+	private boolean paused = false;
+	private Throwable failure = null;
+
+	public RequestBodyStream(Channel channel, int highWaterMark, int lowWaterMark) {
+		this.channel = channel;
+		this.highWaterMark = highWaterMark;
+		this.lowWaterMark = lowWaterMark;
+	}
+
+	/**
+	 * the next chunk of the body, blocks until one arrives.
+	 * @return the chunk, or null once the whole body has been read.
+	 * @throws IOException if the connection was lost before the body was complete.
+	 */
+	public ChannelBuffer read() throws IOException {
+		ChannelBuffer chunk;
+		boolean resume = false;
+		synchronized(this) {
+			while (this.chunks.isEmpty() && !this.ended && this.failure == null) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while reading the request body");
+				}
+			}
+			if (this.failure != null) {
+				IOException x = new IOException("Request body was not completed");
+				x.initCause(this.failure);
+				throw x;
+			}
+			chunk = this.chunks.poll();
+			if (chunk == null) {
+				return null; //ended
+			}
+			this.queued -= chunk.readableBytes();
+			this.read += chunk.readableBytes();
+			if (this.paused && this.queued <= this.lowWaterMark) {
+				this.paused = false;
+				resume = true;
+			}
+		}
+		if (resume) {
+			this.channel.setReadable(true);
+		}
+		return chunk;
+	}
+
+	/**
+	 * the body as an InputStream.  Reads are blocking, same as read().
+	 * @return
+	 */
+	public InputStream getInputStream() {
+		return new InputStream() {
+			ChannelBuffer current = ChannelBuffers.EMPTY_BUFFER;
+
+			private boolean fill() throws IOException {
+				while (!this.current.readable()) {
+					this.current = RequestBodyStream.this.read();
+					if (this.current == null) {
+						this.current = ChannelBuffers.EMPTY_BUFFER;
+						return false;
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public int read() throws IOException {
+				if (!this.fill())
+					return -1;
+				return this.current.readByte() & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				if (!this.fill())
+					return -1;
+				len = Math.min(len, this.current.readableBytes());
+				this.current.readBytes(b, off, len);
+				return len;
+			}
+
+			@Override
+			public int available() {
+				return this.current.readableBytes();
+			}
+		};
+	}
+
+	/**
+	 * number of body bytes the controller has read so far.
+	 * @return
+	 */
+	public synchronized long getBytesRead() {
+		return this.read;
+	}
+
+	/**
+	 * true once the whole body has arrived (it may not all be read yet)
+	 * @return
+	 */
+	public synchronized boolean isComplete() {
+		return this.ended;
+	}
+
+	/**
+	 * called by the io thread with the next chunk.
+	 * @param chunk
+	 */
+	void offer(ChannelBuffer chunk) {
+		boolean pause = false;
+		synchronized(this) {
+			if (this.discarding || this.failure != null) {
+				return;
+			}
+			this.chunks.add(chunk);
+			this.queued += chunk.readableBytes();
+			if (!this.paused && this.queued > this.highWaterMark) {
+				this.paused = pause = true;
+			}
+			this.notifyAll();
+		}
+		if (pause) {
+			this.channel.setReadable(false);
+		}
+	}
+
+	/**
+	 * called by the io thread once the last chunk has arrived.
+	 */
+	synchronized void end() {
+		this.ended = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * the connection was lost, wakes up any waiting reader.
+	 */
+	synchronized void fail(Throwable cause) {
+		if (this.ended)
+			return;
+		this.failure = cause == null ? new ClosedChannelException() : cause;
+		this.chunks.clear();
+		this.notifyAll();
+	}
+
+	/**
+	 * the controller is done with the request, drops anything unread (and any
+	 * chunks still to come) and makes sure the connection is reading again.
+	 */
+	void discard() {
+		boolean resume;
+		synchronized(this) {
+			this.discarding = true;
+			this.chunks.clear();
+			this.queued = 0;
+			resume = this.paused;
+			this.paused = false;
+		}
+		if (resume) {
+			this.channel.setReadable(true);
+		}
+	}
+}
@@ -0,0 +1,429 @@
+/**
+ *
+ */
+package com.trendrr.strest.server;
+
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.oss.DynMapFactory;
+import com.trendrr.strest.server.routing.MatchedRoute;
+import com.trendrr.strest.server.v2.JsonFrameParser;
+import com.trendrr.strest.server.v2.models.StrestHeader;
+import com.trendrr.strest.server.v2.models.StrestRequest;
+import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
+
+
+/**
+ *
+ * The params passed to the controller.
+ *
+ * Nothing is parsed up front.  Each source (POST body, GET string, the request's own params
+ * and the named route params) is parsed the first time it is needed, and get(key) checks the
+ * sources in lookup order without copying them anywhere.
+ *
+ * Lookup order is the same as the old eager merge: POST overrides GET, which overrides
+ * the request params, which override the route params.
+ *
+ * getMap() merges all the sources into a regular DynMap the first time it is called, after
+ * which get(key) reads from that map, so changes the controller makes to it are seen.
+ *
+ */
+public class RequestParams {
+
+	protected static Log log = LogFactory.getLog(RequestParams.class);
+
+	//shared read only placeholders for empty sources
+	private static final DynMap EMPTY = new DynMap();
+	private static final Map<String,String> EMPTY_ROUTE = Collections.emptyMap();
+
+	protected StrestRequest request;
+	protected MatchedRoute route;
+
+	protected DynMap paramsPOST = null;
+	protected DynMap paramsGET = null;
+	protected DynMap paramsRequest = null;
+	protected Map<String,String> paramsRoute = null;
+
+	protected DynMap merged = null;
+
+	public RequestParams(MatchedRoute route) {
+		this.route = route;
+	}
+
+	/**
+	 * sets the request the params are read from.  Must be called before any params are accessed.
+	 * @param request
+	 */
+	public void setRequest(StrestRequest request) {
+		this.request = request;
+	}
+
+	/**
+	 * params from a url encoded or json POST body.  Parsed on first access.
+	 * @return
+	 */
+	public DynMap getParamsPOST() {
+		if (this.paramsPOST == null) {
+			if (this.request instanceof StrestHttpRequest) {
+				this.paramsPOST = ((StrestHttpRequest)this.request).getParamsPOST();
+			} else {
+				this.paramsPOST = parsePOST(this.request);
+			}
+		}
+		return this.paramsPOST;
+	}
+
+	/**
+	 * params from the uri query string.  Parsed on first access.
+	 * @return
+	 */
+	public DynMap getParamsGET() {
+		if (this.paramsGET == null) {
+			if (this.request instanceof StrestHttpRequest) {
+				this.paramsGET = ((StrestHttpRequest)this.request).getParamsGET();
+			} else {
+				this.paramsGET = parseGET(this.request == null ? null : this.request.getUri());
+			}
+		}
+		return this.paramsGET;
+	}
+
+	/**
+	 * the params carried in the request packet (ex: strest.params for json requests)
+	 * @return
+	 */
+	protected DynMap getParamsRequest() {
+		if (this.paramsRequest == null) {
+			DynMap p = null;
+			//http requests build their params from GET + POST, so no need to check them twice.
+			if (this.request != null && !(this.request instanceof StrestHttpRequest)) {
+				p = this.request.getParams();
+			}
+			this.paramsRequest = p == null ? EMPTY : p;
+		}
+		return this.paramsRequest;
+	}
+
+	protected Map<String,String> getParamsRoute() {
+		if (this.paramsRoute == null) {
+			if (this.route != null && this.route.hasParams()) {
+				this.paramsRoute = this.route.getParams();
+			} else {
+				this.paramsRoute = EMPTY_ROUTE;
+			}
+		}
+		return this.paramsRoute;
+	}
+
+	/**
+	 * parses the GET string of the uri, skips the parse entirely if there is no query string.
+	 * 
+	 * The pairs are decoded straight from the uri's chars, only the names and values are allocated.
+	 * @param uri
+	 * @return
+	 */
+	public static DynMap parseGET(String uri) {
+		DynMap params = new DynMap();
+		if (uri == null) {
+			return params;
+		}
+		int q = uri.indexOf('?');
+		if (q == -1) {
+			return params;
+		}
+		int end = uri.indexOf('?', q + 1);
+		decodeForm(new StringSource(uri), q + 1, end == -1 ? uri.length() : end, params);
+		return params;
+	}
+
+	/**
+	 * parses form encoded or json content from requests whose content is a string.
+	 * @param request
+	 * @return
+	 */
+	public static DynMap parsePOST(StrestRequest request) {
+		DynMap params = null;
+		if (request != null) {
+			String contentType = request.getHeader(StrestHeader.Name.CONTENT_TYPE);
+			Object content = request.getContent();
+			if (contentType != null && content instanceof String) {
+				String str = (String)content;
+				if (contentType.contains("form-urlencoded")) {
+					params = new DynMap();
+					decodeForm(new StringSource(str), 0, str.length(), params);
+				} else if (contentType.contains("json")) {
+					params = DynMapFactory.instanceFromJSON(str);
+				}
+			}
+		}
+		return params == null ? new DynMap() : params;
+	}
+
+	/**
+	 * parses a form encoded or json body straight from the buffer, without building a 
+	 * String of the whole body first.  The buffer's indexes are not changed.
+	 * @param contentType
+	 * @param content
+	 * @return
+	 */
+	public static DynMap parsePOST(String contentType, ChannelBuffer content) {
+		if (contentType == null || content == null || !content.readable()) {
+			return new DynMap();
+		}
+		if (contentType.contains("form-urlencoded")) {
+			DynMap params = new DynMap();
+			decodeForm(new BufferSource(content), content.readerIndex(), content.writerIndex(), params);
+			return params;
+		} else if (contentType.contains("json")) {
+			try {
+				return JsonFrameParser.parse(content, content.readerIndex(), content.readableBytes());
+			} catch (CorruptedFrameException x) {
+				log.warn("Unable to parse json body: " + x.getMessage());
+			}
+		}
+		return new DynMap();
+	}
+
+	/**
+	 * the bytes of form encoded content, read in place from a string or a buffer.
+	 */
+	protected static abstract class FormSource {
+		/**
+		 * the byte at index, or -1 if the char there is not a single byte.
+		 * @param index
+		 * @return
+		 */
+		abstract int byteAt(int index);
+
+		/**
+		 * the text of [start, end), only used for content that is not plain ascii.
+		 */
+		abstract String text(int start, int end);
+	}
+
+	protected static class StringSource extends FormSource {
+		final String str;
+
+		StringSource(String str) {
+			this.str = str;
+		}
+
+		@Override
+		int byteAt(int index) {
+			char c = this.str.charAt(index);
+			return c < 0x80 ? c : -1;
+		}
+
+		@Override
+		String text(int start, int end) {
+			return this.str.substring(start, end);
+		}
+	}
+
+	protected static class BufferSource extends FormSource {
+		final ChannelBuffer buf;
+
+		BufferSource(ChannelBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		int byteAt(int index) {
+			return this.buf.getByte(index) & 0xFF;
+		}
+
+		@Override
+		String text(int start, int end) {
+			return this.buf.toString(start, end - start, CharsetUtil.UTF_8);
+		}
+	}
+
+	/**
+	 * decodes the name=value pairs of [start, end) into params.  Same rules as 
+	 * DynMapFactory.instanceFromURLEncoded: a pair needs exactly one '=' (trailing ones 
+	 * are ignored), names like a[b][c] create nested maps, and a repeated name 
+	 * collects its values into a list.  Pairs that don't decode are skipped.
+	 * @param src
+	 * @param start
+	 * @param end
+	 * @param params
+	 */
+	protected static void decodeForm(FormSource src, int start, int end, DynMap params) {
+		byte[] scratch = null;
+		int pairStart = start;
+		while (pairStart < end) {
+			int pairEnd = pairStart;
+			while (pairEnd < end && src.byteAt(pairEnd) != '&') {
+				pairEnd++;
+			}
+			int e = pairEnd;
+			while (e > pairStart && src.byteAt(e - 1) == '=') {
+				e--;
+			}
+			int eq = -1;
+			for (int i = pairStart; i < e; i++) {
+				if (src.byteAt(i) == '=') {
+					if (eq != -1) {
+						eq = -1;
+						break;
+					}
+					eq = i;
+				}
+			}
+			if (eq != -1) {
+				if (scratch == null) {
+					scratch = new byte[end - start];
+				}
+				String name = decode(src, pairStart, eq, scratch);
+				String value = decode(src, eq + 1, e, scratch);
+				if (name != null && value != null) {
+					put(params, name, value);
+				}
+			}
+			pairStart = pairEnd + 1;
+		}
+	}
+
+	/**
+	 * url decodes [start, end) as utf-8.
+	 * @return the string, or null if it has a malformed escape
+	 */
+	protected static String decode(FormSource src, int start, int end, byte[] scratch) {
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			int b = src.byteAt(i);
+			if (b == -1) {
+				//not ascii, let the jdk sort it out
+				try {
+					return URLDecoder.decode(src.text(start, end), "utf-8");
+				} catch (Exception x) {
+					return null;
+				}
+			} else if (b == '+') {
+				scratch[n++] = ' ';
+			} else if (b == '%') {
+				int hi = i + 2 < end ? hex(src.byteAt(i + 1)) : -1;
+				int lo = hi == -1 ? -1 : hex(src.byteAt(i + 2));
+				if (lo == -1) {
+					return null;
+				}
+				scratch[n++] = (byte)((hi << 4) | lo);
+				i += 2;
+			} else {
+				scratch[n++] = (byte)b;
+			}
+		}
+		return new String(scratch, 0, n, CharsetUtil.UTF_8);
+	}
+
+	private static int hex(int b) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+		return -1;
+	}
+
+	/**
+	 * puts the value under the (possibly a[b][c] nested) name.
+	 */
+	protected static void put(DynMap params, String name, String value) {
+		DynMap container = params;
+		if (name.indexOf('[') != -1) {
+			String[] path = name.replace("]", "").split("\\[");
+			for (int i = 0; i < path.length - 1; i++) {
+				Object child = container.get(path[i]);
+				if (child == null) {
+					child = new DynMap();
+					container.put(path[i], child);
+				} else if (!(child instanceof DynMap)) {
+					return; //already a plain value
+				}
+				container = (DynMap)child;
+			}
+			name = path[path.length - 1];
+		}
+		Object existing = container.get(name);
+		if (existing == null && !container.containsKey(name)) {
+			container.put(name, value);
+		} else if (existing instanceof List) {
+			@SuppressWarnings("unchecked")
+			List<Object> list = (List<Object>)existing;
+			list.add(value);
+		} else {
+			List<Object> list = new ArrayList<Object>();
+			list.add(existing);
+			list.add(value);
+			container.put(name, list);
+		}
+	}
+
+	/**
+	 * all the sources merged into a DynMap, lowest priority first.  Merged on the first call,
+	 * the same map is returned after that.
+	 * @return
+	 */
+	public DynMap getMap() {
+		if (this.merged == null) {
+			DynMap mp = new DynMap();
+			mp.putAll(this.getParamsRoute());
+			mp.putAll(this.getParamsRequest());
+			mp.putAll(this.getParamsGET());
+			mp.putAll(this.getParamsPOST());
+			this.merged = mp;
+		}
+		return this.merged;
+	}
+
+	/**
+	 * true once getMap() has been called.
+	 * @return
+	 */
+	public boolean isMerged() {
+		return this.merged != null;
+	}
+
+	/**
+	 * a single param, parsing only the sources that need to be checked.
+	 * @param key
+	 * @return the value or null
+	 */
+	public Object get(String key) {
+		if (this.merged != null) {
+			return this.merged.get(key);
+		}
+		DynMap m = this.getParamsPOST();
+		if (m.containsKey(key))
+			return m.get(key);
+		m = this.getParamsGET();
+		if (m.containsKey(key))
+			return m.get(key);
+		m = this.getParamsRequest();
+		if (m.containsKey(key))
+			return m.get(key);
+		return this.getParamsRoute().get(key);
+	}
+
+	public boolean containsKey(String key) {
+		if (this.merged != null) {
+			return this.merged.containsKey(key);
+		}
+		return this.getParamsPOST().containsKey(key)
+				|| this.getParamsGET().containsKey(key)
+				|| this.getParamsRequest().containsKey(key)
+				|| this.getParamsRoute().containsKey(key);
+	}
+}
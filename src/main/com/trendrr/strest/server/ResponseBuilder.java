@@ -28,6 +28,8 @@ import com.trendrr.strest.server.v2.models.StrestHeader;
 import com.trendrr.strest.server.v2.models.StrestHeader.TxnStatus;
 import com.trendrr.strest.server.v2.models.StrestRequest;
 import com.trendrr.strest.server.v2.models.StrestResponse;
+import com.trendrr.strest.server.v2.models.binary.StrestBinaryRequest;
+import com.trendrr.strest.server.v2.models.binary.StrestBinaryResponse;
 import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
 import com.trendrr.strest.server.v2.models.http.StrestHttpResponse;
 import com.trendrr.strest.server.v2.models.json.StrestJsonRequest;
@@ -69,6 +71,8 @@ public class ResponseBuilder {
 			this.response = new StrestJsonResponse();
 		} else if (request instanceof StrestHttpRequest) {
 			this.response = new StrestHttpResponse();
+		} else if (request instanceof StrestBinaryRequest) {
+			this.response = new StrestBinaryResponse();
 		}
 		response.setProtocol(request.getProtocolName(), request.getProtocolVersion());
 		response.setTxnId(request.getTxnId());
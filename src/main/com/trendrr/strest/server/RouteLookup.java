@@ -6,14 +6,15 @@ package com.trendrr.strest.server;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.trendrr.oss.Reflection;
 import com.trendrr.strest.server.routing.MatchedRoute;
 import com.trendrr.strest.server.routing.RouteMatcher;
 import com.trendrr.strest.server.routing.UriMapping;
+import com.trendrr.strest.server.v2.models.StrestRequest;
 
 /**
  * 
@@ -29,10 +30,65 @@ public class RouteLookup {
 	
 	RouteMatcher matcher = new RouteMatcher();
 	
+	protected ConcurrentHashMap<Class<?>, ControllerDescriptor> descriptors = new ConcurrentHashMap<Class<?>, ControllerDescriptor>();
+	
 	public void addRoute(String route, Class<StrestController> cls) {
+		if (cls != null && !this.descriptors.containsKey(cls)) {
+			try {
+				this.descriptors.putIfAbsent(cls, ControllerDescriptor.instance(ControllerFactory.instance(cls)));
+			} catch (Exception e) {
+				log.error("Unable to register controller: " + cls + " route: " + route, e);
+				return;
+			}
+		}
 		matcher.addMapping(new UriMapping(route, cls));
 	}
 	
+	/**
+	 * overrides the factory used to create instances of the given controller class.
+	 * 
+	 * @param cls
+	 * @param factory
+	 * @throws Exception if the factory is unable to create a prototype instance
+	 */
+	public void setControllerFactory(Class<? extends StrestController> cls, ControllerFactory factory) throws Exception {
+		this.descriptors.put(cls, ControllerDescriptor.instance(factory));
+	}
+	
+	/**
+	 * gets the factory for the class, or null if the class is not registered.
+	 * @param cls
+	 * @return
+	 */
+	public ControllerFactory getControllerFactory(Class<?> cls) {
+		ControllerDescriptor descriptor = this.descriptors.get(cls);
+		if (descriptor == null)
+			return null;
+		return descriptor.getFactory();
+	}
+	
+	/**
+	 * gets the precomputed metadata for the class, or null if the class is not registered.
+	 * @param cls
+	 * @return
+	 */
+	public ControllerDescriptor getDescriptor(Class<?> cls) {
+		return this.descriptors.get(cls);
+	}
+	
+	/**
+	 * called by the router once it is done with the controller.
+	 * @param controller
+	 */
+	public void release(StrestController controller) {
+		if (controller == null)
+			return;
+		ControllerDescriptor descriptor = controller.descriptor;
+		if (descriptor != null && descriptor.getFactory() != null) {
+			descriptor.getFactory().release(controller);
+		}
+	}
+	
 	/**
 	 * Returns all the controllers registered controllers.
 	 * 
@@ -47,8 +103,12 @@ public class RouteLookup {
 			Class cls = m.getCls();
 			if (cls == null)
 				continue;
+			ControllerDescriptor descriptor = this.descriptors.get(cls);
+			if (descriptor == null)
+				continue;
 			try {
-				StrestController controller = (StrestController)Reflection.defaultInstance(cls);
+				StrestController controller = descriptor.getFactory().newInstance();
+				controller.setDescriptor(descriptor);
 				controllers.add(controller);
 			} catch (Exception e) {
 				log.error("Caught" ,e);
@@ -57,6 +117,21 @@ public class RouteLookup {
 		return controllers;
 	}
 	
+	/**
+	 * Finds the controller for the request, with its params bound to the request.  
+	 * 
+	 * The params are not parsed until the controller reads them.
+	 * @param request
+	 * @return
+	 */
+	public StrestController find(StrestRequest request) {
+		StrestController controller = this.find(request.getUri());
+		if (controller != null) {
+			controller.requestParams.setRequest(request);
+		}
+		return controller;
+	}
+	
 	/**
 	 * Finds the controller based on the URI param.
 	 * 
@@ -65,18 +140,7 @@ public class RouteLookup {
 	 * @return
 	 */
 	public StrestController find(String uri) {
-		if (uri.startsWith("http://")) {
-			//sometimes the host shows up in the uri
-			uri.replaceFirst("http\\:\\/\\/[^\\/]+\\/", "/");
-		}
-		int queryIndex = uri.indexOf('?');
-		
-		if (queryIndex != -1) {
-			uri = uri.substring(0, queryIndex);
-		}
-		
-		
-		MatchedRoute route = matcher.find(uri);
+		MatchedRoute route = this.match(uri);
 		if (route == null)
 			return null;
 		
@@ -84,13 +148,46 @@ public class RouteLookup {
 
 		if (cls == null)
 			return null;
+		ControllerDescriptor descriptor = this.descriptors.get(cls);
+		if (descriptor == null)
+			return null;
 		try {
-			StrestController controller = (StrestController)Reflection.defaultInstance(cls);
-			controller.params.putAll(route.getParams());
+			StrestController controller = descriptor.getFactory().newInstance();
+			controller.setDescriptor(descriptor);
+			controller.requestParams = new RequestParams(route);
 			return controller;
 		} catch (Exception e) {
 			log.error("Caught" ,e);
 		}
 		return null;
 	}
+	
+	/**
+	 * the descriptor of the controller that handles the uri, without creating a controller.
+	 * @param uri
+	 * @return the descriptor or null if nothing matches.
+	 */
+	public ControllerDescriptor findDescriptor(String uri) {
+		MatchedRoute route = this.match(uri);
+		if (route == null || route.getMapping().getCls() == null)
+			return null;
+		return this.descriptors.get(route.getMapping().getCls());
+	}
+	
+	protected MatchedRoute match(String uri) {
+		int start = 0;
+		if (uri.startsWith("http://")) {
+			//sometimes the host shows up in the uri
+			start = uri.indexOf('/', 7);
+			if (start == -1) {
+				start = uri.length();
+			}
+		}
+		int end = uri.indexOf('?', start);
+		if (end == -1) {
+			end = uri.length();
+		}
+		
+		return matcher.find(uri, start, end);
+	}
 }
@@ -0,0 +1,41 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server;
+
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+
+/**
+ * 
+ * A request whose body is still arriving, the body is read from getBody().
+ *
+ */
+public class StreamingHttpRequest extends DefaultHttpRequest {
+
+	protected final RequestBodyStream body;
+	
+	/**
+	 * copies the method, uri and headers of the request.
+	 * @param request
+	 * @param body
+	 */
+	public StreamingHttpRequest(HttpRequest request, RequestBodyStream body) {
+		super(request.getProtocolVersion(), request.getMethod(), request.getUri());
+		for (Map.Entry<String, String> h : request.getHeaders()) {
+			this.addHeader(h.getKey(), h.getValue());
+		}
+		this.removeHeader(HttpHeaders.Names.TRANSFER_ENCODING);
+		this.setContent(ChannelBuffers.EMPTY_BUFFER);
+		this.body = body;
+	}
+	
+	public RequestBodyStream getBody() {
+		return body;
+	}
+}
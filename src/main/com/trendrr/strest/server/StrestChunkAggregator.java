@@ -1,26 +1,426 @@
 /**
- * 
+ *
  */
 package com.trendrr.strest.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunkTrailer;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import com.trendrr.strest.server.v2.models.StrestHeader;
 
 
 /**
+ *
+ * Joins chunked messages back into a single message.
+ *
+ * Bodies up to spillThreshold are joined in memory.  Larger ones are written to a
+ * temp file as they arrive and handed on as a read only mapping of that file, so they
+ * don't take up heap.  Bodies over maxContentLength fail with a TooLongFrameException.
+ *
+ * The file is created and written on the spill executor, never on the io thread, so a 
+ * large upload doesn't stall the other connections of its io worker.  From the chunk 
+ * that starts the spill until the spilled body is passed on, every event of the channel 
+ * is queued and handled in order on the spill executor, so pipelined requests that 
+ * follow it keep their order.  Reading stops while more than STREAM_HIGH_WATER_MARK 
+ * bytes are queued.
+ *
+ * Requests for handle methods marked @StreamingBody are not joined, they are passed on
+ * as soon as the headers arrive and the chunks are fed to the request's RequestBodyStream.
+ *
  * @author Dustin Norlander
  * @created Jun 13, 2011
- * 
+ *
  */
-public class StrestChunkAggregator extends HttpChunkAggregator {
+public class StrestChunkAggregator extends SimpleChannelUpstreamHandler {
+
+	protected Log log = LogFactory.getLog(StrestChunkAggregator.class);
 
 	/**
+	 * queued bytes at which a streaming or spilling body stops reading from the socket.
+	 */
+	public static int STREAM_HIGH_WATER_MARK = 256 * 1024;
+	public static int STREAM_LOW_WATER_MARK = 64 * 1024;
+
+	protected final StrestRouter router;
+	protected final long maxContentLength;
+	protected final int spillThreshold;
+
+	//current message being joined
+	private HttpMessage current;
+	private ChannelBuffer content;
+	private long length;
+	private File spillFile;
+	private RandomAccessFile spill;
+
+	//current streaming body
+	private RequestBodyStream stream;
+
+	//events waiting for the spill executor, and the state below, guarded by spillQueue.
+	private final LinkedList<ChannelEvent> spillQueue = new LinkedList<ChannelEvent>();
+	private ChannelHandlerContext spillContext;
+	private boolean spilling = false;
+	private boolean draining = false;
+	private long spillQueuedBytes = 0;
+	private boolean spillPaused = false;
+	protected final Executor spillExecutor;
+
+	private static volatile Executor defaultSpillExecutor = null;
+
+	/**
+	 * the shared executor spilled bodies are written on, created on first use.
+	 * @return
+	 */
+	protected static Executor getDefaultSpillExecutor() {
+		Executor executor = defaultSpillExecutor;
+		if (executor == null) {
+			synchronized(StrestChunkAggregator.class) {
+				executor = defaultSpillExecutor;
+				if (executor == null) {
+					final AtomicInteger count = new AtomicInteger(0);
+					executor = Executors.newCachedThreadPool(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "strest-spill-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+					defaultSpillExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * joins everything in memory, no streaming.
 	 * @param maxContentLength
 	 */
 	public StrestChunkAggregator(int maxContentLength) {
-		super(maxContentLength);
+		this(null, maxContentLength, maxContentLength);
 	}
 
-	protected Log log = LogFactory.getLog(StrestChunkAggregator.class);
+	/**
+	 * @param router used to find @StreamingBody handlers, null to never stream.
+	 * @param maxContentLength largest body accepted.
+	 * @param spillThreshold bodies larger than this are spilled to a temp file.
+	 */
+	public StrestChunkAggregator(StrestRouter router, long maxContentLength, int spillThreshold) {
+		this(router, maxContentLength, spillThreshold, null);
+	}
+
+	/**
+	 * @param router used to find @StreamingBody handlers, null to never stream.
+	 * @param maxContentLength largest body accepted.
+	 * @param spillThreshold bodies larger than this are spilled to a temp file.
+	 * @param spillExecutor where spilled bodies are written, null for a shared default.
+	 */
+	public StrestChunkAggregator(StrestRouter router, long maxContentLength, int spillThreshold, Executor spillExecutor) {
+		this.router = router;
+		this.maxContentLength = maxContentLength;
+		this.spillThreshold = spillThreshold;
+		this.spillExecutor = spillExecutor;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#handleUpstream(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent)
+	 */
+	@Override
+	public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+		boolean queued = false;
+		boolean pause = false;
+		boolean drain = false;
+		synchronized(this.spillQueue) {
+			if (this.spilling || this.startsSpill(e)) {
+				queued = this.spilling = true;
+				this.spillContext = ctx;
+				this.spillQueue.add(e);
+				this.spillQueuedBytes += size(e);
+				if (!this.spillPaused && this.spillQueuedBytes > STREAM_HIGH_WATER_MARK) {
+					pause = this.spillPaused = true;
+				}
+				if (!this.draining) {
+					drain = this.draining = true;
+				}
+			}
+		}
+		if (!queued) {
+			super.handleUpstream(ctx, e);
+			return;
+		}
+		if (pause) {
+			ctx.getChannel().setReadable(false);
+		}
+		if (drain) {
+			Executor executor = this.spillExecutor == null ? getDefaultSpillExecutor() : this.spillExecutor;
+			try {
+				executor.execute(this.drainSpill);
+			} catch (RejectedExecutionException x) {
+				log.warn("Spill executor rejected the body, writing it on the io thread", x);
+				this.drainSpill.run();
+			}
+		}
+	}
+
+	/**
+	 * does this event push the current body over the spill threshold.  Only called while 
+	 * not spilling, when the state is owned by the io thread.
+	 * @param e
+	 * @return
+	 */
+	private boolean startsSpill(ChannelEvent e) {
+		if (this.current == null || this.stream != null || this.spill != null) {
+			return false;
+		}
+		if (!(e instanceof MessageEvent) || !(((MessageEvent)e).getMessage() instanceof HttpChunk)) {
+			return false;
+		}
+		long length = this.length + size(e);
+		return length > this.spillThreshold && length <= this.maxContentLength;
+	}
+
+	private static int size(ChannelEvent e) {
+		if (e instanceof MessageEvent && ((MessageEvent)e).getMessage() instanceof HttpChunk) {
+			return ((HttpChunk)((MessageEvent)e).getMessage()).getContent().readableBytes();
+		}
+		return 0;
+	}
+
+	/**
+	 * handles the queued events in order, on the spill executor.  Stops spilling once the 
+	 * queue is empty and no spilled body is open.
+	 */
+	private final Runnable drainSpill = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				ChannelEvent e;
+				ChannelHandlerContext ctx;
+				boolean resume = false;
+				synchronized(spillQueue) {
+					e = spillQueue.poll();
+					ctx = spillContext;
+					if (e == null) {
+						draining = false;
+						spilling = spill != null;
+						resume = spillPaused;
+						spillPaused = false;
+					}
+				}
+				if (resume) {
+					ctx.getChannel().setReadable(true);
+				}
+				if (e == null) {
+					return;
+				}
+				try {
+					dispatch(ctx, e);
+				} catch (Exception x) {
+					Channels.fireExceptionCaught(ctx, x);
+				}
+				synchronized(spillQueue) {
+					spillQueuedBytes -= size(e);
+					resume = spillPaused && spillQueuedBytes < STREAM_LOW_WATER_MARK;
+					if (resume) {
+						spillPaused = false;
+					}
+				}
+				if (resume) {
+					ctx.getChannel().setReadable(true);
+				}
+			}
+		}
+	};
+
+	private void dispatch(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+		super.handleUpstream(ctx, e);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+	 */
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		Object msg = e.getMessage();
+		if (msg instanceof HttpMessage) {
+			HttpMessage m = (HttpMessage)msg;
+			if (!m.isChunked()) {
+				ctx.sendUpstream(e);
+				return;
+			}
+			if (HttpHeaders.is100ContinueExpected(m)) {
+				//the client is waiting on us before it sends the body.
+				Channels.write(ctx.getChannel(), new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+				m.removeHeader(HttpHeaders.Names.EXPECT);
+			}
+			if (m instanceof HttpRequest && this.isStreaming((HttpRequest)m)) {
+				this.stream = new RequestBodyStream(ctx.getChannel(), STREAM_HIGH_WATER_MARK, STREAM_LOW_WATER_MARK);
+				Channels.fireMessageReceived(ctx, new StreamingHttpRequest((HttpRequest)m, this.stream), e.getRemoteAddress());
+				return;
+			}
+			m.setChunked(false);
+			m.removeHeader(HttpHeaders.Names.TRANSFER_ENCODING);
+			this.current = m;
+			this.content = ChannelBuffers.dynamicBuffer(Math.min(8192, this.spillThreshold));
+			this.length = 0;
+			return;
+		}
+		if (!(msg instanceof HttpChunk)) {
+			ctx.sendUpstream(e);
+			return;
+		}
+		HttpChunk chunk = (HttpChunk)msg;
+		if (this.stream != null) {
+			if (chunk.isLast()) {
+				this.stream.end();
+				this.stream = null;
+			} else {
+				this.stream.offer(chunk.getContent());
+			}
+			return;
+		}
+		if (this.current == null) {
+			ctx.sendUpstream(e);
+			return;
+		}
+
+		this.append(chunk.getContent());
+		if (!chunk.isLast()) {
+			return;
+		}
+		HttpMessage m = this.current;
+		if (chunk instanceof HttpChunkTrailer) {
+			for (Map.Entry<String, String> header : ((HttpChunkTrailer)chunk).getHeaders()) {
+				m.setHeader(header.getKey(), header.getValue());
+			}
+		}
+		m.setContent(this.finish());
+		m.setHeader(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(this.length));
+		this.current = null;
+		Channels.fireMessageReceived(ctx, m, e.getRemoteAddress());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#channelClosed(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+	 */
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		if (this.stream != null) {
+			this.stream.fail(new ClosedChannelException());
+			this.stream = null;
+		}
+		this.current = null;
+		this.content = null;
+		this.closeSpill();
+		super.channelClosed(ctx, e);
+	}
+
+	protected boolean isStreaming(HttpRequest request) {
+		if (this.router == null) {
+			return false;
+		}
+		try {
+			ControllerDescriptor descriptor = this.router.getRouteLookup().findDescriptor(request.getUri());
+			return descriptor != null
+				&& descriptor.isStreaming(StrestHeader.Method.instance(request.getMethod().getName()));
+		} catch (IllegalArgumentException x) {
+			return false; //not a method we route
+		}
+	}
+
+	private void append(ChannelBuffer chunk) throws IOException, TooLongFrameException {
+		int size = chunk.readableBytes();
+		if (this.length + size > this.maxContentLength) {
+			this.current = null;
+			this.content = null;
+			this.closeSpill();
+			throw new TooLongFrameException("HTTP content length exceeded " + this.maxContentLength + " bytes.");
+		}
+		this.length += size;
+		if (this.spill == null && this.length > this.spillThreshold) {
+			this.spillFile = File.createTempFile("strest-body", ".tmp");
+			this.spill = new RandomAccessFile(this.spillFile, "rw");
+			this.write(this.content);
+			this.content = null;
+		}
+		if (this.spill != null) {
+			this.write(chunk);
+		} else {
+			this.content.writeBytes(chunk);
+		}
+	}
+
+	private void write(ChannelBuffer buf) throws IOException {
+		FileChannel channel = this.spill.getChannel();
+		while (buf.readable()) {
+			buf.readBytes(channel, buf.readableBytes());
+		}
+	}
+
+	/**
+	 * the joined content.  A spilled body is mapped and its file removed, the
+	 * mapping stays valid until it is garbage collected.
+	 * @return
+	 * @throws IOException
+	 */
+	private ChannelBuffer finish() throws IOException {
+		if (this.spill == null) {
+			ChannelBuffer c = this.content;
+			this.content = null;
+			return c;
+		}
+		try {
+			return ChannelBuffers.wrappedBuffer(
+					this.spill.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, this.length));
+		} finally {
+			this.closeSpill();
+		}
+	}
+
+	private void closeSpill() {
+		if (this.spill != null) {
+			try {
+				this.spill.close();
+			} catch (IOException x) {
+				log.warn("Caught", x);
+			}
+			this.spill = null;
+		}
+		if (this.spillFile != null) {
+			if (!this.spillFile.delete()) {
+				this.spillFile.deleteOnExit();
+			}
+			this.spillFile = null;
+		}
+	}
 }
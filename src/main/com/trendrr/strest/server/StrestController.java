@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
@@ -23,11 +24,13 @@ import com.trendrr.strest.ContentTypes;
 import com.trendrr.strest.StrestHttpException;
 import com.trendrr.strest.annotations.AnnotationHelper;
 import com.trendrr.strest.annotations.Strest;
+import com.trendrr.strest.server.connections.EncodedResponse;
 import com.trendrr.strest.server.connections.StrestConnectionChannel;
 import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
 import com.trendrr.strest.server.connections.StrestConnectionTxn;
 import com.trendrr.strest.server.v2.models.StrestRequest;
 import com.trendrr.strest.server.v2.models.StrestResponse;
+import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
 
 
 /**
@@ -46,14 +49,37 @@ public abstract class StrestController {
 	
 	protected StrestRequest request;
 	protected StrestResponse response = null;
-	protected DynMap params = new DynMap();
-	protected DynMap paramsGET = new DynMap();
-	protected DynMap paramsPOST = new DynMap();
+	//filled lazily from requestParams, use the getters, a direct read would see null.
+	private DynMap params = null;
+	private DynMap paramsGET = null;
+	private DynMap paramsPOST = null;
+	
+	//lazy view of the request's params, set by the router.
+	RequestParams requestParams = null;
 	
 	protected StrestRouter router = null;
 	
 	protected boolean skipExecution = false;
 	
+	protected ControllerDescriptor descriptor = null;
+	
+	/**
+	 * The precomputed routes, filters, ect for this controller class.  
+	 * 
+	 * Set by the router, if this controller was created elsewhere it is computed on first access.
+	 * @return
+	 */
+	public ControllerDescriptor getDescriptor() {
+		if (this.descriptor == null) {
+			this.descriptor = new ControllerDescriptor(null, this);
+		}
+		return descriptor;
+	}
+
+	public void setDescriptor(ControllerDescriptor descriptor) {
+		this.descriptor = descriptor;
+	}
+	
 	/**
 	 * Should we skip running the GET POST ect methods?
 	 * @return
@@ -105,6 +131,13 @@ public abstract class StrestController {
 	 * @return the GET params
 	 */
 	public DynMap getParamsGET() {
+		if (this.paramsGET == null) {
+			if (this.requestParams != null) {
+				this.paramsGET = this.requestParams.getParamsGET();
+			} else {
+				this.paramsGET = new DynMap();
+			}
+		}
 		return paramsGET;
 	}
 
@@ -121,6 +154,13 @@ public abstract class StrestController {
 	 * @return the POST params
 	 */
 	public DynMap getParamsPOST() {
+		if (this.paramsPOST == null) {
+			if (this.requestParams != null) {
+				this.paramsPOST = this.requestParams.getParamsPOST();
+			} else {
+				this.paramsPOST = new DynMap();
+			}
+		}
 		return paramsPOST;
 	}
 
@@ -151,11 +191,30 @@ public abstract class StrestController {
 	 * these are the params, either parsed from the get string, or from a form encoded post.
 	 * will also include any named params from the url string.
 	 * 
+	 * For routed requests the sources are only parsed and merged the first time this is called,
+	 * use getParam to read a single param without the merge.
+	 * 
 	 * @return
 	 */
 	public DynMap getParams() {
+		if (this.params == null) {
+			this.params = this.requestParams == null ? new DynMap() : this.requestParams.getMap();
+		}
 		return params;
 	}
+	
+	/**
+	 * a single param, with the same lookup order as getParams(), but only parsing 
+	 * the sources that need to be checked.  
+	 * @param key
+	 * @return the value or null
+	 */
+	public Object getParam(String key) {
+		if (this.params != null || this.requestParams == null) {
+			return this.getParams().get(key);
+		}
+		return this.requestParams.get(key);
+	}
 
 	public void setParams(DynMap params) {
 		this.params = params;
@@ -164,6 +223,91 @@ public abstract class StrestController {
 	protected boolean strest = false;
 	protected String strestTxnId = null;
 	
+	protected AsyncCompletion asyncCompletion = null;
+	
+	//concurrency limiter slot held by this request, managed by the router
+	ConcurrencyLimiter.Permit permit = null;
+	
+	//System.nanoTime() when the router picked up the request, for the metrics
+	long started = 0;
+	
+	protected EncodedResponse encodedResponse = null;
+	
+	/**
+	 * already encoded bytes to send instead of the response, or null.
+	 * @return
+	 */
+	public EncodedResponse getEncodedResponse() {
+		return encodedResponse;
+	}
+
+	/**
+	 * sends this (already encoded) response rather than the controller's own.  Meant for
+	 * caching implementations, along with setSkipExecution.  Ignored if the connection 
+	 * can't write encoded responses.
+	 * @param encodedResponse
+	 */
+	public void setEncodedResponse(EncodedResponse encodedResponse) {
+		this.encodedResponse = encodedResponse;
+	}
+	
+	/**
+	 * makes this an async request: the response is not sent when the handle method
+	 * returns, but when the returned completion is completed (or fails, or times out).
+	 * Handle methods marked @Async are already started.
+	 * 
+	 * Calling again returns the same completion.
+	 * @return
+	 */
+	public synchronized AsyncCompletion startAsync() {
+		if (this.asyncCompletion == null) {
+			this.asyncCompletion = this.router.startAsync(this);
+		}
+		return this.asyncCompletion;
+	}
+	
+	/**
+	 * makes this an async request that is completed by the stage, see AsyncCompletion.complete(CompletionStage)
+	 * 
+	 * ex:  startAsync(client.fetch(id).thenAccept(...set the response...));
+	 * @param stage
+	 * @return
+	 */
+	public AsyncCompletion startAsync(CompletionStage<?> stage) {
+		AsyncCompletion completion = this.startAsync();
+		completion.complete(stage);
+		return completion;
+	}
+	
+	/**
+	 * millis left before the request's deadline, Long.MAX_VALUE if it has none. 
+	 * Long running (or async) handlers can use this to give up early.
+	 * @return
+	 */
+	public long getRemainingTime() {
+		long deadline = this.request == null ? 0 : this.request.getDeadline();
+		if (deadline <= 0) {
+			return Long.MAX_VALUE;
+		}
+		return deadline - System.currentTimeMillis();
+	}
+	
+	/**
+	 * true if the request's deadline has passed, nobody is waiting for the response.
+	 * @return
+	 */
+	public boolean isExpired() {
+		return this.getRemainingTime() <= 0;
+	}
+	
+	/**
+	 * the completion if this is an async request, else null
+	 * @return
+	 */
+	public synchronized AsyncCompletion getAsyncCompletion() {
+		return this.asyncCompletion;
+	}
+	
 	/**
 	 * default constructor is manditory.  Other constructors will not be used.
 	 */
@@ -172,6 +316,30 @@ public abstract class StrestController {
 		
 	}
 	
+	/**
+	 * clears all per request state so the instance can be reused. 
+	 * 
+	 * Only called for @Pooled controllers.  Subclasses that keep their own
+	 * per request fields should override (and call super).
+	 */
+	protected void reset() {
+		this.request = null;
+		this.response = null;
+		this.params = null;
+		this.requestParams = null;
+		this.paramsGET = null;
+		this.paramsPOST = null;
+		this.skipExecution = false;
+		this.sendResponse = true;
+		this.strest = false;
+		this.strestTxnId = null;
+		this.asyncCompletion = null;
+		this.permit = null;
+		this.started = 0;
+		this.encodedResponse = null;
+		this.nonstrestTxnStorage.clear();
+	}
+	
 	public StrestConnectionChannel getChannelConnection() {
 		return this.request.getConnectionChannel();
 	}
@@ -275,6 +443,17 @@ public abstract class StrestController {
 		return response;
 	}
 	
+	/**
+	 * the request body as it arrives, only available to handle methods marked @StreamingBody.
+	 * @return the body, or null if the request is not streamed.
+	 */
+	public RequestBodyStream getRequestBody() {
+		if (this.request instanceof StrestHttpRequest) {
+			return ((StrestHttpRequest)this.request).getBodyStream();
+		}
+		return null;
+	}
+	
 	public ResponseBuilder getResponseAsBuilder() {
 		return ResponseBuilder.instance(this.getResponse());
 	}
@@ -354,6 +533,26 @@ public abstract class StrestController {
 		return null;
 	}
 	
+	/**
+	 * default deadline (millis from arrival) for requests to this controller, 0 for 
+	 * the server default.  Takes the 'deadline' value from the annotation.
+	 * @return
+	 */
+	public long deadline() {
+		if (!this.isAnnotationPresent()) {
+			return 0;
+		}
+		Class<?> annotation = this.getAnnotationClass();
+		try {
+			//custom annotation classes may not have it.
+			annotation.getMethod("deadline");
+		} catch (NoSuchMethodException x) {
+			return 0;
+		}
+		Long deadline = this.getAnnotationVal(Long.class, "deadline");
+		return deadline == null ? 0 : deadline;
+	}
+	
 	/**
 	 * gets the namespace for the filters in
 	 * @return
@@ -0,0 +1,142 @@
+/**
+ *
+ */
+package com.trendrr.strest.server;
+
+import java.util.concurrent.Executor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.execution.ChannelUpstreamEventRunnable;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.v2.models.StrestHeader;
+import com.trendrr.strest.server.v2.models.StrestRequest;
+
+
+/**
+ *
+ * ExecutionHandler that lets requests for @NonBlocking handlers skip the thread hop,
+ * they are passed straight up the pipeline on the io thread.  Everything else is
+ * handed to the worker pool as usual.
+ *
+ * Only messages that are already decoded on the io thread can be run inline (http
+ * requests and parsed json frames), raw frames always go to the worker pool.
+ *
+ * Events are stamped with the time they were queued, handlers read it with
+ * getArrivalTime() so time spent waiting for a worker counts against the request's deadline.
+ *
+ */
+public class StrestExecutionHandler extends ExecutionHandler {
+
+	protected static Log log = LogFactory.getLog(StrestExecutionHandler.class);
+
+	protected final StrestRouter router;
+	protected final boolean inline;
+
+	//queue time of the event the current thread is handling
+	private static final ThreadLocal<Long> arrival = new ThreadLocal<Long>();
+
+	/**
+	 * an event runnable that remembers when it was queued.
+	 */
+	protected static class TimedChannelEventRunnable extends ChannelUpstreamEventRunnable {
+		protected final long queued = System.currentTimeMillis();
+
+		public TimedChannelEventRunnable(ChannelHandlerContext ctx, ChannelEvent e) {
+			super(ctx, e);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.jboss.netty.handler.execution.ChannelUpstreamEventRunnable#run()
+		 */
+		@Override
+		public void run() {
+			arrival.set(this.queued);
+			try {
+				super.run();
+			} finally {
+				arrival.remove();
+			}
+		}
+	}
+
+	/**
+	 * when the event being handled by the current thread was handed to the worker
+	 * pool, or now if it wasn't (run inline, or outside of a pipeline).
+	 * @return
+	 */
+	public static long getArrivalTime() {
+		Long queued = arrival.get();
+		return queued == null ? System.currentTimeMillis() : queued;
+	}
+
+	/**
+	 *
+	 * @param router
+	 * @param executor
+	 * @param inline false to send every request to the executor.
+	 */
+	public StrestExecutionHandler(StrestRouter router, Executor executor, boolean inline) {
+		super(executor);
+		this.router = router;
+		this.inline = inline;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.handler.execution.ExecutionHandler#handleUpstream(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent)
+	 */
+	@Override
+	public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+		if (this.inline && e instanceof MessageEvent && this.isInline(((MessageEvent)e).getMessage())) {
+			ctx.sendUpstream(e);
+			return;
+		}
+		this.getExecutor().execute(new TimedChannelEventRunnable(ctx, e));
+	}
+
+	/**
+	 * does this message go to a @NonBlocking handler
+	 * @param message
+	 * @return
+	 */
+	protected boolean isInline(Object message) {
+		if (message instanceof HttpPipeliningHandler.Sequenced) {
+			message = ((HttpPipeliningHandler.Sequenced)message).getMessage();
+		}
+		String uri;
+		StrestHeader.Method method;
+		try {
+			if (message instanceof StreamingHttpRequest) {
+				return false;
+			} else if (message instanceof HttpRequest) {
+				HttpRequest request = (HttpRequest)message;
+				uri = request.getUri();
+				method = StrestHeader.Method.instance(request.getMethod().getName());
+			} else if (message instanceof StrestRequest) {
+				uri = ((StrestRequest)message).getUri();
+				method = ((StrestRequest)message).getMethod();
+			} else if (message instanceof DynMap) {
+				//same keys StrestJsonRequest reads, without wrapping every frame in one
+				DynMap request = (DynMap)message;
+				uri = request.getString("strest.uri");
+				String name = request.getString("strest.method");
+				method = name == null ? null : StrestHeader.Method.instance(name);
+			} else {
+				return false;
+			}
+		} catch (IllegalArgumentException x) {
+			return false; //unknown method, let the router answer it
+		}
+		if (uri == null || method == null) {
+			return false;
+		}
+		ControllerDescriptor descriptor = this.router.getRouteLookup().findDescriptor(uri);
+		return descriptor != null && descriptor.isInline(method);
+	}
+}
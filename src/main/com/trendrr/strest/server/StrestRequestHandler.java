@@ -65,21 +65,33 @@ public class StrestRequestHandler extends SimpleChannelUpstreamHandler {
 	
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-    	HttpRequest request = (HttpRequest) e.getMessage();
+    	Object msg = e.getMessage();
+    	int sequence = -1;
+    	if (msg instanceof HttpPipeliningHandler.Sequenced) {
+    		sequence = ((HttpPipeliningHandler.Sequenced)msg).getSequence();
+    		msg = ((HttpPipeliningHandler.Sequenced)msg).getMessage();
+    	}
+    	HttpRequest request = (HttpRequest) msg;
         if (is100ContinueExpected(request)) {
             send100Continue(e);
         }
         
         if (request.isChunked()) {
-        	//we don't need no chunked POST's here!
-        	//throw an exception here!
-        	throw new Exception("Chunking not allowed!");
+        	//the aggregator joins or streams every chunked request, we should never see one.
+        	throw new Exception("Unexpected chunked request, is the aggregator missing from the pipeline?");
         } 
         StrestHttpRequest req = new StrestHttpRequest(request);
+        req.setSequence(sequence);
+        req.setArrivalTime(StrestExecutionHandler.getArrivalTime());
         Channel channel = e.getChannel();
         StrestNettyConnectionChannel con = StrestNettyConnectionChannel.get(channel);
         req.setConnectionChannel(con);
-        router.incoming(req);
+        try {
+        	//the router discards anything left of a streaming body once the response is sent.
+        	router.incoming(req);
+        } finally {
+        	con.flushWrites();
+        }
     }
 
     @Override
@@ -3,35 +3,40 @@
  */
 package com.trendrr.strest.server;
 
-import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
-
 import java.nio.channels.ClosedChannelException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 
 
-import com.trendrr.oss.DynMapFactory;
+import com.trendrr.oss.DynMap;
 import com.trendrr.oss.Reflection;
 import com.trendrr.strest.StrestException;
 import com.trendrr.strest.StrestHttpException;
 import com.trendrr.strest.StrestUtil;
-import com.trendrr.strest.annotations.AnnotationHelper;
-import com.trendrr.strest.annotations.Async;
+import com.trendrr.strest.server.connections.EncodedResponse;
+import com.trendrr.strest.server.connections.StrestConnectionChannel;
 import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
+import com.trendrr.strest.server.metrics.RequestMetrics;
 import com.trendrr.strest.server.routing.UriMapping;
 import com.trendrr.strest.server.v2.models.*;
 import com.trendrr.strest.server.v2.models.StrestHeader.TxnAccept;
 import com.trendrr.strest.server.v2.models.StrestHeader.TxnStatus;
+import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
+import com.trendrr.strest.server.v2.models.http.StrestHttpResponse;
 import com.trendrr.strest.server.v2.models.json.StrestJsonResponse;
 
 
@@ -53,12 +58,47 @@ public class StrestRouter {
 
 //	protected ConcurrentHashMap<Channel, StrestNettyConnectionChannel> connections = new ConcurrentHashMap<Channel, StrestNettyConnectionChannel>();
 	
-	protected HashMap<String, List<StrestControllerFilter>> defaultFilters = new HashMap<String,List<StrestControllerFilter>> ();
 	protected ConcurrentHashMap<Class, StrestControllerFilter> filtersByClass = new ConcurrentHashMap<Class,StrestControllerFilter>();
 	
+	protected static final StrestControllerFilter[] NO_FILTERS = new StrestControllerFilter[0];
+	
+	/**
+	 * Snapshot of the filter configuration.  The namespace filters are never modified,
+	 * setFilters swaps in a whole new instance, so chains built against an old 
+	 * configuration can never show up in the new one.
+	 */
+	protected static class FilterChains {
+		final Map<String, StrestControllerFilter[]> namespaces;
+		//frozen chain per controller class (controller filters + namespace filters)
+		final ConcurrentHashMap<Class, StrestControllerFilter[]> chains = new ConcurrentHashMap<Class, StrestControllerFilter[]>();
+		
+		FilterChains(Map<String, StrestControllerFilter[]> namespaces) {
+			this.namespaces = namespaces;
+		}
+	}
+	
+	protected volatile FilterChains filterChains = new FilterChains(new HashMap<String, StrestControllerFilter[]>());
+	
 	//the server that this router belongs to .
 	protected StrestServer server = null; 
 	
+	/**
+	 * millis an async request may take before it fails with a 504, 0 for no limit.
+	 */
+	protected long asyncTimeout = 30000;
+	
+	/**
+	 * deadline (millis from arrival) for requests without a Strest-Deadline header
+	 * or a controller default, 0 for none.
+	 */
+	protected long defaultDeadline = 0;
+	
+	protected RequestMetrics metrics = new RequestMetrics();
+	
+	//null when the concurrency limiter is off
+	protected volatile DynMap limiterConfig = null;
+	protected ConcurrentHashMap<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<String, ConcurrencyLimiter>();
+	
 	public StrestServer getServer() {
 		return server;
 	}
@@ -113,19 +153,40 @@ public class StrestRouter {
 	 * @return
 	 */
 	protected List<StrestControllerFilter> getFilters(StrestController controller) {
-		//TODO: implement a local cache of this? or overkill?
-		List<StrestControllerFilter> retList = new ArrayList<StrestControllerFilter>();
+		return Arrays.asList(this.getFilterChain(controller));
+	}
+	
+	/**
+	 * gets the filter chain for this controller, the controller specific filters followed by
+	 * the namespace filters.  
+	 * 
+	 * The array is built once per controller class and shared, so it must not be modified.
+	 * @param controller
+	 * @return
+	 */
+	protected StrestControllerFilter[] getFilterChain(StrestController controller) {
 		if (controller == null)
-			return retList;
-        Class[] filters = controller.filters();
-        if (filters != null) {
-            for (Class f : filters) {
-            	StrestControllerFilter filter = this.getFilter(f);
-            	retList.add(filter);
-            }
-        }
-        retList.addAll(this.getNamespaceFilters(controller.getControllerNamespace()));
-        return retList;
+			return NO_FILTERS;
+		FilterChains config = this.filterChains;
+		StrestControllerFilter[] chain = config.chains.get(controller.getClass());
+		if (chain != null)
+			return chain;
+		
+		ControllerDescriptor descriptor = controller.getDescriptor();
+		List<StrestControllerFilter> filters = new ArrayList<StrestControllerFilter>();
+		for (Class<?> f : descriptor.getFilters()) {
+			StrestControllerFilter filter = this.getFilter(f);
+			if (filter != null) {
+				filters.add(filter);
+			}
+		}
+		StrestControllerFilter[] namespaceFilters = config.namespaces.get(descriptor.getNamespace());
+		if (namespaceFilters != null) {
+			filters.addAll(Arrays.asList(namespaceFilters));
+		}
+		chain = filters.isEmpty() ? NO_FILTERS : filters.toArray(new StrestControllerFilter[filters.size()]);
+		StrestControllerFilter[] existing = config.chains.putIfAbsent(controller.getClass(), chain);
+		return existing == null ? chain : existing;
 	}
 	
 	
@@ -134,36 +195,66 @@ public class StrestRouter {
 	 * 
 	 * List should be full class names of the filters.
 	 * 
-	 * TODO: this is not currently threadsafe.  it is meant to be executed before starting up, but even so, should be safe.
+	 * This is safe to call while the server is running, the filter chains are rebuilt 
+	 * lazily from the new configuration.
 	 * 
 	 * @param defaultFilters
 	 */
-	public void setFilters(String namespace, List<String> defaultFilters) {
+	public synchronized void setFilters(String namespace, List<String> defaultFilters) {
+		this.setFilterConfig(namespace, new ArrayList<Object>(defaultFilters));
+	}
+	
+	/**
+	 * sets the filters of the namespace.  Entries are either a class name, or a map with
+	 * the class name under "class" and the filter's settings.  A filter with settings 
+	 * needs a constructor taking a DynMap.
+	 * 
+	 * @param namespace
+	 * @param entries
+	 */
+	public synchronized void setFilterConfig(String namespace, List<Object> entries) {
 		if (namespace == null) {
 			namespace = "default";
 		}
 		
 		List<StrestControllerFilter> filters = new ArrayList<StrestControllerFilter> ();
-		 for (String d : defaultFilters) {
+		 for (Object d : entries) {
 			 try {
-				StrestControllerFilter f = Reflection.defaultInstance(StrestControllerFilter.class, d);
-				filters.add(f);
+				filters.add(this.createFilter(d));
 			} catch (Exception x) {
 				log.warn("Unable to load filter: " + d, x);
 			}
 		 }
-		 this.defaultFilters.put(namespace, filters);
+		 Map<String, StrestControllerFilter[]> namespaces = new HashMap<String, StrestControllerFilter[]>(this.filterChains.namespaces);
+		 namespaces.put(namespace, filters.toArray(new StrestControllerFilter[filters.size()]));
+		 this.filterChains = new FilterChains(namespaces);
 	}
+	protected StrestControllerFilter createFilter(Object entry) throws Exception {
+		if (!(entry instanceof Map)) {
+			return Reflection.defaultInstance(StrestControllerFilter.class, entry.toString());
+		}
+		DynMap config = DynMap.instance(entry);
+		String cls = config.getString("class");
+		if (cls == null) {
+			throw new IllegalArgumentException("Filter config is missing the class");
+		}
+		try {
+			return (StrestControllerFilter)Class.forName(cls).getConstructor(DynMap.class).newInstance(config);
+		} catch (NoSuchMethodException x) {
+			return Reflection.defaultInstance(StrestControllerFilter.class, cls);
+		}
+	}
+	
 	/**
 	 * returns the list of filters for the given namespace or empty list
 	 * @param namespace
 	 * @return
 	 */
 	protected List<StrestControllerFilter> getNamespaceFilters(String namespace) {
-		List<StrestControllerFilter> filters = this.defaultFilters.get(namespace);
+		StrestControllerFilter[] filters = this.filterChains.namespaces.get(namespace);
 		if (filters == null)
-			filters = new ArrayList<StrestControllerFilter>();
-		return filters;
+			filters = NO_FILTERS;
+		return Arrays.asList(filters);
 	}
 	
 	public void addRoute(String route, Class cls) {
@@ -182,6 +273,22 @@ public class StrestRouter {
 		
 	}
 	
+	public long getAsyncTimeout() {
+		return asyncTimeout;
+	}
+
+	public void setAsyncTimeout(long asyncTimeout) {
+		this.asyncTimeout = asyncTimeout;
+	}
+
+	public long getDefaultDeadline() {
+		return defaultDeadline;
+	}
+
+	public void setDefaultDeadline(long defaultDeadline) {
+		this.defaultDeadline = defaultDeadline;
+	}
+
 	public RouteLookup getRouteLookup() {
 		return routeLookup;
 	}
@@ -208,19 +315,21 @@ public class StrestRouter {
 			return f;
 		try {
 			f = (StrestControllerFilter)Reflection.defaultInstance(cls);
-			this.filtersByClass.putIfAbsent(cls, f);
+			StrestControllerFilter existing = this.filtersByClass.putIfAbsent(cls, f);
+			if (existing != null)
+				return existing;
 		} catch (Exception x) {
 			log.warn("Unable to load filter: " + cls, x);
 		}
 		return f;
 	}
 	
-	private boolean isAsync(StrestController controller, StrestHeader.Method method) {
-		return AnnotationHelper.hasMethodAnnotation(Async.class, controller, "handle" + method.toString());
-	}
-	
 	
 	public void incoming(StrestRequest request) {
+		long started = System.nanoTime();
+		if (request.getArrivalTime() <= 0) {
+			request.setArrivalTime(System.currentTimeMillis());
+		}
 		boolean isStrest = StrestUtil.isStrest(request);
 		// Build the response object.
 		//throw an illegal exception here?
@@ -236,6 +345,7 @@ public class StrestRouter {
 				StrestJsonResponse error = new StrestJsonResponse();
 				error.setStatus(StrestHttpException.BAD_REQUEST().getCode(), x.getMessage());
 				request.getConnectionChannel().sendMessage(error);
+				this.metrics.status(error.getStatusCode());
 			} catch (Exception x2) {
 				log.error("caught", x2);
 			}
@@ -256,50 +366,52 @@ public class StrestRouter {
         StrestController controller = null;
         try {
         	try {
-	            controller = this.getRouteLookup().find(request.getUri());
+        		//shed requests that waited past their deadline before doing any work for them.
+        		this.checkDeadline(request, this.parseDeadline(request));
+	            controller = this.getRouteLookup().find(request);
 	            if (controller == null) {
 	            	throw StrestHttpException.NOT_FOUND();
 	            }
+	            try {
+		            if (request.getDeadline() <= 0) {
+		            	long budget = controller.getDescriptor().getDeadline();
+		            	this.checkDeadline(request, budget > 0 ? budget : this.defaultDeadline);
+		            }
+		            this.acquirePermit(controller, response);
+	            } catch (StrestHttpException x) {
+	            	//shed before any filters have seen it
+	            	this.getRouteLookup().release(controller);
+	            	controller = null;
+	            	throw x;
+	            }
+	            controller.started = started;
 	            controller.setRouter(this);
 	            controller.setStrest(isStrest);
 	            if (isStrest) {
 	            	controller.setStrestTxnId(txnId);	
 	            }
 	            
-	            //parse the get string params
-	            //TODO: this should be handled by the request objects
-	            
-	            controller.setParamsGET(DynMapFactory.instanceFromURL(request.getUri())); 
-	            controller.getParams().putAll(request.getParams());
-	            
-	            //parse any post params
-	            //TODO: don't think this is really correct.
-	            String contentType = request.getHeader(CONTENT_TYPE);
-	            if(contentType != null){
-	            	String pms = request.getContent().toString();
-	            	if(pms != null){
-	            		if (contentType.contains("form-urlencoded")) {
-	            			controller.setParamsPOST(DynMapFactory.instanceFromURLEncoded(pms));
-	            		}else if (contentType.contains("json")){
-	            			controller.setParamsPOST(DynMapFactory.instanceFromJSON(pms));
-	            		}
-	            	}
-	            }
-
-	            
-	            controller.getParams().putAll(controller.getParamsGET());
-	            controller.getParams().putAll(controller.getParamsPOST());
+	            //params (GET, POST, route and request params) are parsed lazily by RequestParams
 	            
 	            controller.setRequest(request);
 	            controller.setResponse(response.getResponse());
 	            
 	            //before filters
-	            for (StrestControllerFilter f : this.getFilters(controller)) {
+	            for (StrestControllerFilter f : this.getFilterChain(controller)) {
 	            	f.before(controller);
 	            }
 	            
+	            ControllerDescriptor descriptor = controller.getDescriptor();
+	            
 	            //now execution the appropriate action.
 	            if (!controller.isSkipExecution()) {
+	            	if (controller.permit != null) {
+	            		controller.permit.executing();
+	            	}
+	            	if (descriptor.isAsync(request.getMethod())) {
+		            	//user is responsable to complete the request.
+	            		controller.startAsync();
+	            	}
 		            if (request.getMethod() == StrestHeader.Method.GET) {
 						controller.handleGET(controller.getParams());
 		            } else if (request.getMethod() == StrestHeader.Method.POST) {
@@ -311,10 +423,6 @@ public class StrestRouter {
 		            } else {
 		            	throw StrestHttpException.METHOD_NOT_ALLOWED();
 		            }
-		            if (this.isAsync(controller, request.getMethod())) {
-		            	//user is responsable to complete the request.
-//		            	return; 
-					}
 	            }			
 				
 	        } catch (StrestHttpException e) {
@@ -326,24 +434,248 @@ public class StrestRouter {
 	        	throw e;
 	        }
 		} catch (StrestHttpException e) {
-			response.status(e.getCode(), e.getMessage());
-			response.txnStatus(TxnStatus.COMPLETED);
-			//run the error filters
-			if (controller != null) {
-				for (StrestControllerFilter f : this.getFilters(controller)) {
-					f.error(controller, response.getResponse(), e);
-	            }
-			}
-			try {
-				this.sendResponse(request, response);
-			} catch (Exception e1) {
-				log.error("Caught", e);
+			AsyncCompletion async = controller == null ? null : controller.getAsyncCompletion();
+			if (async != null) {
+				//no-op if the handler already completed it.
+				async.fail(e);
+				return;
 			}
+			this.sendError(request, controller, response, e);
+			return;
+		}
+		if (controller.getAsyncCompletion() != null) {
+			//sent when the completion completes.
 			return;
 		}
 		this.finishResponse(controller, response);
 	}
 	
+	/**
+	 * the Strest-Deadline header, in millis.  0 if missing or invalid.
+	 * @param request
+	 * @return
+	 */
+	protected long parseDeadline(StrestRequest request) {
+		String header = request.getHeader(StrestHeader.Name.DEADLINE);
+		if (header == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Long.parseLong(header.trim()));
+		} catch (NumberFormatException x) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * sets the request's deadline to budget millis after it arrived, and fails it with
+	 * a 503 if that has already passed.
+	 * @param request
+	 * @param budget millis, 0 for no deadline
+	 * @throws StrestHttpException
+	 */
+	protected void checkDeadline(StrestRequest request, long budget) throws StrestHttpException {
+		if (budget <= 0) {
+			return;
+		}
+		long deadline = request.getArrivalTime() + budget;
+		request.setDeadline(deadline);
+		if (System.currentTimeMillis() >= deadline) {
+			throw StrestHttpException.SERVICE_UNAVAILABLE("Deadline exceeded");
+		}
+	}
+	
+	/**
+	 * takes a slot from the concurrency limiter of the controller's namespace, fails with a 503
+	 * (and Retry-After) if there is none.  Does nothing if the limiter is off.
+	 * @param controller
+	 * @param response
+	 * @throws StrestHttpException
+	 */
+	protected void acquirePermit(StrestController controller, ResponseBuilder response) throws StrestHttpException {
+		if (this.limiterConfig == null) {
+			return;
+		}
+		ConcurrencyLimiter.Permit permit = this.getLimiter(controller.getDescriptor().getNamespace()).tryAcquire();
+		if (permit == null) {
+			response.header("Retry-After", String.valueOf(this.limiterConfig.getInteger("retry_after", 1)));
+			throw StrestHttpException.SERVICE_UNAVAILABLE("Over capacity");
+		}
+		controller.permit = permit;
+	}
+	
+	/**
+	 * gives back the controller's limiter slot, if it has one.
+	 * @param controller
+	 * @param response the response sent, a 503 or 504 counts as dropped.
+	 */
+	protected void releasePermit(StrestController controller, StrestResponse response) {
+		if (controller == null || controller.permit == null) {
+			return;
+		}
+		int status = response == null ? 200 : response.getStatusCode();
+		controller.permit.release(status == 503 || status == 504);
+		controller.permit = null;
+	}
+	
+	/**
+	 * the concurrency limiter for the namespace, created on first use.
+	 * @param namespace
+	 * @return
+	 */
+	public ConcurrencyLimiter getLimiter(String namespace) {
+		ConcurrencyLimiter limiter = this.limiters.get(namespace);
+		if (limiter == null) {
+			DynMap config = this.limiterConfig;
+			DynMap namespaceConfig = config == null ? null : config.getMap("namespaces." + namespace, null);
+			if (namespaceConfig != null) {
+				//namespace specific settings override the defaults
+				DynMap merged = new DynMap();
+				merged.putAll(config);
+				merged.putAll(namespaceConfig);
+				config = merged;
+			}
+			limiter = ConcurrencyLimiter.instance(namespace, config);
+			ConcurrencyLimiter existing = this.limiters.putIfAbsent(namespace, limiter);
+			if (existing != null) {
+				return existing;
+			}
+		}
+		return limiter;
+	}
+	
+	/**
+	 * all the limiters created so far.
+	 * @return
+	 */
+	public Collection<ConcurrencyLimiter> getLimiters() {
+		return this.limiters.values();
+	}
+	
+	public DynMap getLimiterConfig() {
+		return limiterConfig;
+	}
+
+	/**
+	 * turns on the adaptive concurrency limiter (see ConcurrencyLimiter), one per controller 
+	 * namespace.  null turns it off.  Existing limiters are replaced.
+	 * @param limiterConfig
+	 */
+	public void setLimiterConfig(DynMap limiterConfig) {
+		this.limiterConfig = limiterConfig;
+		this.limiters.clear();
+	}
+	
+	/**
+	 * sends an error response for the request, after running the error filters.
+	 * @param request
+	 * @param controller may be null
+	 * @param response
+	 * @param e
+	 */
+	protected void sendError(StrestRequest request, StrestController controller, ResponseBuilder response, StrestHttpException e) {
+		response.status(e.getCode(), e.getMessage());
+		response.txnStatus(TxnStatus.COMPLETED);
+		//run the error filters
+		if (controller != null) {
+			for (StrestControllerFilter f : this.getFilterChain(controller)) {
+				f.error(controller, response.getResponse(), e);
+            }
+		}
+		try {
+			this.sendResponse(request, response);
+		} catch (Exception e1) {
+			log.error("Caught", e);
+		}
+		this.recordMetrics(controller, response.getResponse(), e);
+		this.releasePermit(controller, response.getResponse());
+		this.discardBody(request);
+		this.getRouteLookup().release(controller);
+	}
+	
+	/**
+	 * drops whatever the controller didn't read of a streaming (@StreamingBody) request body.
+	 * Called once the response is sent, async handlers may still be reading it before that.
+	 * @param request
+	 */
+	protected void discardBody(StrestRequest request) {
+		if (request instanceof StrestHttpRequest) {
+			RequestBodyStream body = ((StrestHttpRequest)request).getBodyStream();
+			if (body != null) {
+				body.discard();
+			}
+		}
+	}
+	
+	/**
+	 * records a finished request in the metrics.
+	 * @param controller may be null
+	 * @param response
+	 * @param e the error, or null
+	 */
+	protected void recordMetrics(StrestController controller, StrestResponse response, StrestException e) {
+		if (e != null && e.getCause() != null) {
+			this.metrics.exception(e.getCause());
+		}
+		int status = response == null ? 200 : response.getStatusCode();
+		if (controller == null || controller.started == 0) {
+			this.metrics.status(status);
+			return;
+		}
+		String[] routes = controller.getDescriptor().getRoutes();
+		this.metrics.record(routes.length > 0 ? routes[0] : controller.getClass().getName(), 
+				controller.getRequest().getMethod(), status, System.nanoTime() - controller.started);
+	}
+	
+	/**
+	 * the request metrics (latency, status codes, etc.) of this router.
+	 * @return
+	 */
+	public RequestMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * creates the completion for an async request, see StrestController.startAsync()
+	 * @param controller
+	 * @return
+	 */
+	protected AsyncCompletion startAsync(StrestController controller) {
+		AsyncCompletion completion = new AsyncCompletion(this, controller, new ResponseBuilder(controller.getResponse()));
+		long timeout = this.asyncTimeout;
+		long remaining = controller.getRemainingTime();
+		if (remaining != Long.MAX_VALUE && (timeout <= 0 || remaining < timeout)) {
+			//no point waiting past the deadline
+			timeout = Math.max(1, remaining);
+		}
+		completion.setTimeout(timeout);
+		return completion;
+	}
+	
+	/**
+	 * called once an async request is completed.
+	 * @param controller
+	 * @param response
+	 * @param cause the failure, or null on success
+	 */
+	protected void finishAsync(StrestController controller, ResponseBuilder response, Throwable cause) {
+		if (cause == null) {
+			this.finishResponse(controller, response);
+			return;
+		}
+		StrestHttpException e;
+		if (cause instanceof StrestHttpException) {
+			e = (StrestHttpException)cause;
+		} else {
+			e = StrestHttpException.INTERNAL_SERVER_ERROR();
+			if (cause instanceof Exception) {
+				e.setCause((Exception)cause);
+			}
+			log.error("Caught", cause);
+		}
+		this.sendError(controller.getRequest(), controller, response, e);
+	}
+	
 	/**
 	 * actually does the send, and handles the txn.
 	 * @param controller
@@ -363,8 +695,10 @@ public class StrestRouter {
 		//now set the status
 		response.txnStatus(txnStatus);
         
-		
-		
+		boolean keepAlive = true;
+		if (!StrestUtil.isStrest(request)) {
+			keepAlive = this.prepareHttpResponse(request, response.getResponse());
+		}
 		
         // Write the response.
 //			System.out.println(response.getResponse());
@@ -374,13 +708,70 @@ public class StrestRouter {
 		
 		 // Close the non-keep-alive connection after the write operation is done.
         if (!StrestUtil.isStrest(request) && future instanceof ChannelFuture) {
-//		        	log.info("CLOSING NON STREST CONNECTION");
         	((ChannelFuture)future).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
-        	((ChannelFuture)future).addListener(ChannelFutureListener.CLOSE);
+        	if (!keepAlive) {
+        		((ChannelFuture)future).addListener(ChannelFutureListener.CLOSE);
+        	}
         }
 		
 	}
 	
+	/**
+	 * sends an already encoded response (see StrestController.setEncodedResponse).
+	 * @param request
+	 * @param encoded
+	 * @return false if the connection can't write it, the response should be sent instead.
+	 * @throws Exception
+	 */
+	protected boolean sendEncoded(StrestRequest request, EncodedResponse encoded) throws Exception {
+		StrestConnectionChannel channel = request.getConnectionChannel();
+		if (!channel.isEncodedSupported()) {
+			return false;
+		}
+		if (StrestUtil.isStrest(request)) {
+			ChannelBuffer buffer = encoded.encode(request);
+			if (buffer == null) {
+				return false;
+			}
+			channel.sendEncoded(buffer, request.getTxnId(), TxnStatus.COMPLETED);
+			return true;
+		}
+		if (!(request instanceof StrestHttpRequest)) {
+			return false;
+		}
+		StrestHttpRequest req = (StrestHttpRequest)request;
+		boolean keepAlive = HttpHeaders.isKeepAlive(req.getRequest());
+		Object future = channel.sendEncoded(encoded.encodePlainHttp(request, keepAlive), req.getSequence());
+		if (future instanceof ChannelFuture) {
+			((ChannelFuture)future).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+			if (!keepAlive) {
+				((ChannelFuture)future).addListener(ChannelFutureListener.CLOSE);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * sets the Connection header of a plain http response, following HTTP/1.1 rules (persistent 
+	 * unless the request says close, HTTP/1.0 only if it asks for keep-alive), and tags it 
+	 * with the request's pipeline position.
+	 * 
+	 * @param request
+	 * @param response
+	 * @return true if the connection should stay open.
+	 */
+	protected boolean prepareHttpResponse(StrestRequest request, StrestResponse response) {
+		if (!(request instanceof StrestHttpRequest) || !(response instanceof StrestHttpResponse)) {
+			return false;
+		}
+		StrestHttpResponse res = (StrestHttpResponse)response;
+		boolean keepAlive = HttpHeaders.isKeepAlive(((StrestHttpRequest)request).getRequest());
+		res.getResponse().setHeader(HttpHeaders.Names.CONNECTION, 
+				keepAlive ? HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE);
+		res.setSequence(((StrestHttpRequest)request).getSequence());
+		return keepAlive;
+	}
+	
 	/**
 	 * Returns all the controllers registered controllers.
 	 * 
@@ -398,15 +789,23 @@ public class StrestRouter {
 	 * @param response
 	 */
 	public void finishResponse(StrestController controller, ResponseBuilder response) {
+		StrestHttpException error = null;
 		try {
 			try {
 				//execute final filters
-				for (StrestControllerFilter f : this.getFilters(controller)) {
+				for (StrestControllerFilter f : this.getFilterChain(controller)) {
 		        	f.after(controller);
 		        }
 				
 				response.setResponse(controller.getResponse());
 				if (!controller.isSendResponse()) {
+					//the controller is sending its own responses, from here on it isn't using a worker.
+					this.releasePermit(controller, null);
+					this.discardBody(controller.getRequest());
+					if (controller.getRequest() instanceof StrestHttpRequest) {
+						//don't hold up the responses to any later pipelined requests
+						controller.getChannelConnection().skipSequence(((StrestHttpRequest)controller.getRequest()).getSequence());
+					}
 					return;
 				}
 			} catch (StrestHttpException e) {
@@ -418,19 +817,29 @@ public class StrestRouter {
 	        	throw e;
 	        }
 		} catch (StrestHttpException e) {
+			error = e;
 			response.status(e.getCode(), e.getMessage());
 			response.getResponse().setTxnStatus(TxnStatus.COMPLETED);
 			//run the error filters
 			if (controller != null) {
-				for (StrestControllerFilter f : this.getFilters(controller)) {
+				//send the error, not whatever a filter had lined up
+				controller.setEncodedResponse(null);
+				for (StrestControllerFilter f : this.getFilterChain(controller)) {
 					f.error(controller, response.getResponse(), e);
 	            }
 			}
 		}
-        try {
-			this.sendResponse(controller.getRequest(), response);
+		try {
+			EncodedResponse encoded = controller.getEncodedResponse();
+			if (encoded == null || !this.sendEncoded(controller.getRequest(), encoded)) {
+				this.sendResponse(controller.getRequest(), response);
+			}
 		} catch (Exception e) {
 			log.error("Caught", e);
 		}
+		this.recordMetrics(controller, response.getResponse(), error);
+		this.releasePermit(controller, response.getResponse());
+		this.discardBody(controller.getRequest());
+		this.getRouteLookup().release(controller);
 	}
 }
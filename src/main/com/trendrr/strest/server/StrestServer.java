@@ -9,6 +9,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
@@ -20,6 +21,9 @@ import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 import org.yaml.snakeyaml.Yaml;
 
 import com.trendrr.oss.DynMap;
@@ -28,7 +32,10 @@ import com.trendrr.oss.FileHelper;
 import com.trendrr.oss.Reflection;
 import com.trendrr.oss.SSLContextBuilder;
 import com.trendrr.strest.flash.FlashSocketPolicyServer;
+import com.trendrr.strest.server.connections.StrestConnectionGroup;
+import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
 import com.trendrr.strest.server.v2.servers.ServerListenerBase;
+import com.trendrr.strest.server.v2.servers.StrestBinaryServerListener;
 import com.trendrr.strest.server.v2.servers.StrestHttpServerListener;
 import com.trendrr.strest.server.v2.servers.StrestJsonServerListener;
 
@@ -48,9 +55,17 @@ public class StrestServer {
 	private Integer sslPort = 8009;
 
 
+	private ExecutorConfig executorConfig = new ExecutorConfig();
 	private Executor bossExecutor = Executors.newCachedThreadPool();
-	private Executor workerExecutor = new MemoryAwareThreadPoolExecutor(
-	   		 16, 1048576, 1048576);
+	private Executor ioExecutor = Executors.newCachedThreadPool(StrestNettyConnectionChannel.ioThreadFactory());
+	private Executor workerExecutor = null;
+	private Executor orderedWorkerExecutor = null;
+	private boolean customWorkerExecutor = false;
+	
+	private static Timer timer = null;
+	
+	//one set of io threads shared by all the netty listeners
+	private NioServerSocketChannelFactory channelFactory = null;
 	
 	protected HashMap<String, ServerListenerBase> listeners = new HashMap<String, ServerListenerBase>();
 	protected HashMap<String, Class<? extends ServerListenerBase>> listenerClasses = new HashMap<String, Class<? extends ServerListenerBase>>();
@@ -61,10 +76,23 @@ public class StrestServer {
 	
 	
 
+	/**
+	 * one timer shared by every server, for idle connections, request timeouts, etc. 
+	 * Tasks must be quick, they all run on the timer thread.
+	 * @return
+	 */
+	public static synchronized Timer getTimer() {
+		if (timer == null) {
+			timer = new HashedWheelTimer();
+		}
+		return timer;
+	}
+
 	public StrestServer() {
 		//hard coded listener classes..
 		this.listenerClasses.put("http", StrestHttpServerListener.class);
 		this.listenerClasses.put("json", StrestJsonServerListener.class);
+		this.listenerClasses.put("binary", StrestBinaryServerListener.class);
 	}
 
 	public void registerListenerClass(String name, Class cls) {
@@ -85,8 +113,7 @@ public class StrestServer {
 			throw new Exception("Config is null! unable to initialize server ");
 		}
 		
-//		this.setMaxWorkerThreads(config.getInteger("threads.worker", 10));
-//		this.setMaxIOThreads(config.getInteger("threads.io",8));
+		this.setExecutorConfig(ExecutorConfig.instance(config.getMap("threads", null)));
 		
 		List<String> controllerPackages = config.getList(String.class, "controller_packages");
 		if (controllerPackages != null) {
@@ -95,12 +122,29 @@ public class StrestServer {
 			}
 		}
 		
-		List<String> filters = config.getList(String.class, "filters");
-		if (filters != null) {
-			this.getRouter().setFilters("default", filters);
+		//either a list for the default namespace, or lists by namespace
+		if (config.get("filters") instanceof Map) {
+			DynMap namespaces = config.getMap("filters");
+			for (String namespace : namespaces.keySet()) {
+				List<Object> filters = namespaces.getList(Object.class, namespace);
+				if (filters != null) {
+					this.getRouter().setFilterConfig(namespace, filters);
+				}
+			}
+		} else if (config.get("filters") != null) {
+			this.getRouter().setFilterConfig("default", config.getList(Object.class, "filters"));
 		}
 
 		this.getRouter().setServer(this);
+		DynMap limiter = config.getMap("limiter", null);
+		if (limiter != null && limiter.getBoolean("enabled", true)) {
+			this.getRouter().setLimiterConfig(limiter);
+		}
+		this.getRouter().setDefaultDeadline(config.getLong("default_deadline", this.getRouter().getDefaultDeadline()));
+		this.getRouter().setAsyncTimeout(config.getLong("async_timeout", this.getRouter().getAsyncTimeout() / 1000) * 1000);
+		
+		StrestNettyConnectionChannel.configure(config.getMap("backpressure", null));
+		StrestNettyConnectionChannel.configureCoalesce(config.getMap("coalesce", null));
 		
 		//now initialize the listeners.
 		DynMap listeners = config.getMap("listeners", new DynMap());
@@ -172,46 +216,75 @@ public class StrestServer {
 	}
 
 
-	public Executor getWorkerExecutor() {
+	/**
+	 * the pool that runs controllers, shared by all listeners.  Created from the
+	 * executor config unless one was set.
+	 * @return
+	 */
+	public synchronized Executor getWorkerExecutor() {
+		if (this.workerExecutor == null) {
+			this.workerExecutor = this.executorConfig.createWorkerExecutor();
+		}
 		return workerExecutor;
 	}
 
-
-	public void setWorkerExecutor(Executor workerExecutor) {
+	/**
+	 * use the given pool for controllers instead of the one described by the executor config.
+	 * @param workerExecutor
+	 */
+	public synchronized void setWorkerExecutor(Executor workerExecutor) {
 		this.workerExecutor = workerExecutor;
+		this.customWorkerExecutor = workerExecutor != null;
+	}
+
+	/**
+	 * a worker pool that runs the events of each connection one at a time, in order.
+	 * For listeners configured with ordered execution.  This is the regular worker pool
+	 * if it is already ordered, otherwise a second pool with the same settings.
+	 * @return
+	 */
+	public synchronized Executor getOrderedWorkerExecutor() {
+		Executor workers = this.getWorkerExecutor();
+		if (workers instanceof OrderedMemoryAwareThreadPoolExecutor) {
+			return workers;
+		}
+		if (this.orderedWorkerExecutor == null) {
+			this.orderedWorkerExecutor = this.executorConfig.createWorkerExecutor(ExecutorConfig.Type.ORDERED);
+		}
+		return this.orderedWorkerExecutor;
+	}
+
+	public ExecutorConfig getExecutorConfig() {
+		return executorConfig;
 	}
 
-//	/**
-//	 * will set the workerExecutor to a fixed pool with maxThreads number of threads.
-//	 * 
-//	 * -1 or null will set to unlimited.
-//	 * 
-//	 * @param maxThreads
-//	 */
-//	public void setMaxWorkerThreads(Integer maxThreads) {
-//		if (maxThreads == null || maxThreads < 1) {
-//			this.workerExecutor = Executors.newCachedThreadPool();
-//		} else {
-//			log.info("Setting max worker threads: " + maxThreads);
-//			this.workerExecutor = Executors.newFixedThreadPool(maxThreads);
-//		}
-//	}
-//	
-//	/**
-//	 * will set the bossExecutor to a fixed pool with maxThreads number of threads.
-//	 * 
-//	 * -1 or null will set to unlimited.
-//	 * 
-//	 * @param maxThreads
-//	 */
-//	public void setMaxIOThreads(Integer maxThreads) {
-//		if (maxThreads == null || maxThreads < 1) {
-//			this.bossExecutor = Executors.newCachedThreadPool();
-//		} else {
-//			log.info("Setting max IO threads: " + maxThreads);
-//			this.bossExecutor = Executors.newFixedThreadPool(maxThreads);
-//		}
-//	}
+	/**
+	 * sets the threading model.  Must be called before the server is started.
+	 * @param executorConfig
+	 */
+	public synchronized void setExecutorConfig(ExecutorConfig executorConfig) {
+		if (this.channelFactory != null) {
+			log.warn("Server already started, executor config change ignored");
+			return;
+		}
+		this.executorConfig = executorConfig;
+		if (!this.customWorkerExecutor) {
+			this.workerExecutor = null;
+		}
+	}
+	
+	/**
+	 * the channel factory for netty listeners.  All listeners share the same
+	 * boss and io threads (threads.io in total).
+	 * @return
+	 */
+	public synchronized NioServerSocketChannelFactory getChannelFactory() {
+		if (this.channelFactory == null) {
+			this.channelFactory = new NioServerSocketChannelFactory(
+					this.bossExecutor, this.ioExecutor, this.executorConfig.getIoThreads());
+		}
+		return this.channelFactory;
+	}
 	
 	/**
 	 * starts all the listeners.
@@ -221,8 +294,16 @@ public class StrestServer {
 			log.warn("No listeners configured.  Goodbye");
 			System.exit(1);
 		}
+		Executor workers = this.getWorkerExecutor();
+		if (this.customWorkerExecutor) {
+			log.info("Threading: io threads: " + this.executorConfig.getIoThreads() + ", custom worker executor: " + workers.getClass().getName());
+		} else if (workers instanceof VirtualThreadExecutor && !((VirtualThreadExecutor)workers).isVirtual()) {
+			log.info("Threading: " + this.executorConfig + " (no virtual threads on this jvm, using platform threads)");
+		} else {
+			log.info("Threading: " + this.executorConfig);
+		}
 		for (ServerListenerBase listener : this.listeners.values()) {
-			listener.start(bossExecutor, workerExecutor);
+			listener.start(bossExecutor, workers);
 		}
     }
 	
@@ -237,5 +318,17 @@ public class StrestServer {
 		for (ServerListenerBase listener : this.listeners.values()) {
 			listener.stop();
 		}
+		synchronized(this) {
+			if (this.channelFactory != null) {
+				this.channelFactory.releaseExternalResources();
+			}
+			if (this.workerExecutor instanceof ExecutorService) {
+				((ExecutorService)this.workerExecutor).shutdown();
+			}
+			if (this.orderedWorkerExecutor instanceof ExecutorService) {
+				((ExecutorService)this.orderedWorkerExecutor).shutdown();
+			}
+		}
+		StrestConnectionGroup.shutdownBroadcastExecutor();
 	}
 }
@@ -17,6 +17,8 @@ package com.trendrr.strest.server;
 
 import static org.jboss.netty.channel.Channels.*;
 
+import java.util.concurrent.Executor;
+
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 
@@ -29,6 +31,11 @@ import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+
+import com.trendrr.strest.server.metrics.ByteCountingHandler;
 
 /**
  * @author <a href="http://www.jboss.org/netty/">The Netty Project</a>
@@ -44,6 +51,26 @@ public class StrestServerPipelineFactory implements ChannelPipelineFactory {
 	
 	protected ExecutionHandler handler;
 	
+	/**
+	 * counts wire bytes into the router's metrics, shared by all connections.
+	 */
+	protected ByteCountingHandler byteCounter;
+	
+	/**
+	 * seconds a keep-alive connection may sit idle before it is closed, 0 to never close.
+	 */
+	protected int keepAliveTimeout = 60;
+	
+	/**
+	 * largest request body accepted.
+	 */
+	protected long maxContentLength = 64 * 1024 * 1024;
+	
+	/**
+	 * request bodies over this many bytes are spilled to a temp file rather than held in memory.
+	 */
+	protected int spillThreshold = 65536;
+	
 	/**
 	 * creates a new pipeline factory (non-ssl)
 	 * @param router
@@ -62,10 +89,55 @@ public class StrestServerPipelineFactory implements ChannelPipelineFactory {
 	public StrestServerPipelineFactory(StrestRouter router, SSLContext sslContext) {
 		this.router = router;
 		this.sslContext = sslContext;
-		this.handler = new ExecutionHandler(router.getServer().getWorkerExecutor());
-//	             new MemoryAwareThreadPoolExecutor(
-//	            		 router.getServer().getConfig().getInteger("threads.worker", 16), 1048576, 1048576)
-//	    );
+		this.byteCounter = new ByteCountingHandler(router.getMetrics());
+		this.setOrderedExecution(false);
+	}
+	
+	/**
+	 * if true the requests of a connection are run one at a time, in the order
+	 * they arrived (and @NonBlocking handlers are not run inline, since that would
+	 * let them jump the queue).
+	 * 
+	 * Otherwise requests of a connection may run concurrently, and @NonBlocking handlers
+	 * run on the io thread.
+	 * @param ordered
+	 */
+	public void setOrderedExecution(boolean ordered) {
+		//the worker pools are shared by all listeners, see ExecutorConfig
+		StrestServer server = this.router.getServer();
+		if (ordered) {
+			this.handler = new StrestExecutionHandler(this.router, server.getOrderedWorkerExecutor(), false);
+		} else {
+			Executor workers = server.getWorkerExecutor();
+			//an ordered pool (threads.executor: ordered) is ordered for every listener
+			this.handler = new StrestExecutionHandler(this.router, workers, 
+					server.getExecutorConfig().isInline() && !(workers instanceof OrderedMemoryAwareThreadPoolExecutor));
+		}
+	}
+	
+	public int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	public void setKeepAliveTimeout(int keepAliveTimeout) {
+		this.keepAliveTimeout = keepAliveTimeout;
+	}
+	
+	public long getMaxContentLength() {
+		return maxContentLength;
+	}
+
+	public void setMaxContentLength(long maxContentLength) {
+		//spilled bodies are mapped, which is limited to 2GB
+		this.maxContentLength = Math.min(maxContentLength, Integer.MAX_VALUE);
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
 	}
 	
     public ChannelPipeline getPipeline() throws Exception {
@@ -73,7 +145,7 @@ public class StrestServerPipelineFactory implements ChannelPipelineFactory {
         // Create a default pipeline implementation.
         ChannelPipeline pipeline = pipeline();
 
-        
+        pipeline.addLast("bytes", this.byteCounter);
         if (this.sslContext != null) {
 	        SSLEngine engine = this.sslContext.createSSLEngine();
 	        engine.setUseClientMode(false);
@@ -81,11 +153,19 @@ public class StrestServerPipelineFactory implements ChannelPipelineFactory {
         }
         pipeline.addLast("decoder", new HttpRequestDecoder());
         // Uncomment the following line if you don't want to handle HttpChunks.
-        pipeline.addLast("aggregator", new StrestChunkAggregator(65536));
+        pipeline.addLast("aggregator", new StrestChunkAggregator(this.router, this.maxContentLength, this.spillThreshold));
         pipeline.addLast("encoder", new HttpResponseEncoder());
         // Remove the following line if you don't want automatic content compression.
         pipeline.addLast("deflater", new StrestResponseEncoder());
         
+        if (this.keepAliveTimeout > 0) {
+        	pipeline.addLast("idle", new IdleStateHandler(StrestServer.getTimer(), 0, 0, this.keepAliveTimeout));
+        }
+        //numbers requests on the io thread, so pipelined responses go out in order.
+        pipeline.addLast("pipelining", new HttpPipeliningHandler());
+        
+        //before the execution handler so drains are seen on the io thread
+        pipeline.addLast("writability", new StrestWritabilityHandler());
         pipeline.addLast("executionHandler", handler);
         pipeline.addLast("handler", new StrestRequestHandler(router));
         return pipeline;
@@ -0,0 +1,37 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
+
+
+/**
+ * 
+ * Tells the connection channel when netty's outbound buffer has drained, so 
+ * held back messages are flushed and blocked senders are woken.
+ * 
+ * Must be in the pipeline before the execution handler, so it runs on the io
+ * thread even when every worker is blocked on a slow consumer.
+ *
+ */
+public class StrestWritabilityHandler extends SimpleChannelUpstreamHandler {
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#channelInterestChanged(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+	 */
+	@Override
+	public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		if (e.getChannel().isWritable()) {
+			StrestNettyConnectionChannel con = StrestNettyConnectionChannel.find(e.getChannel());
+			if (con != null) {
+				con.writabilityChanged();
+			}
+		}
+		ctx.sendUpstream(e);
+	}
+}
@@ -0,0 +1,346 @@
+/**
+ *
+ */
+package com.trendrr.strest.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.util.DefaultObjectSizeEstimator;
+import org.jboss.netty.util.ObjectSizeEstimator;
+
+
+/**
+ *
+ * Worker pool that runs every task on its own virtual thread, for controllers that
+ * spend most of their time blocked on jdbc, http, etc.  A blocked virtual thread
+ * costs a few kb, so thousands of requests can wait at once without a huge pool.
+ *
+ * At most maxConcurrency tasks run at a time, the rest wait (parked, on their own
+ * virtual thread) for a permit.
+ *
+ * Queued request memory is accounted the same way as MemoryAwareThreadPoolExecutor:
+ * a connection with more than maxChannelMemory bytes of requests waiting stops reading
+ * until they are handled, and the caller blocks while more than maxTotalMemory bytes
+ * are waiting in total.  0 disables either limit.
+ *
+ * Virtual threads need java 21, on older jvms tasks run on a pool of maxConcurrency
+ * platform threads (queued tasks wait in the pool's queue, not on a thread of their own) 
+ * and a warning is logged.
+ *
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+	protected static Log log = LogFactory.getLog(VirtualThreadExecutor.class);
+
+	protected final int maxConcurrency;
+	protected final long maxChannelMemory;
+	protected final long maxTotalMemory;
+
+	//null on jvms without virtual threads
+	protected final ThreadFactory threadFactory;
+	//used instead of virtual threads on older jvms
+	protected final ThreadPoolExecutor platformPool;
+	protected final boolean virtual;
+	protected final Semaphore permits;
+	protected final ObjectSizeEstimator estimator = new DefaultObjectSizeEstimator();
+
+	//queued bytes per channel, guarded by itself
+	private final HashMap<Channel, ChannelMemory> channels = new HashMap<Channel, ChannelMemory>();
+
+	//queued bytes in total, guarded by this
+	private long totalMemory = 0;
+
+	//guarded by this
+	private int active = 0;
+	private volatile boolean shutdown = false;
+
+	private static class ChannelMemory {
+		long size = 0;
+		boolean paused = false;
+	}
+
+	public VirtualThreadExecutor(int maxConcurrency, long maxChannelMemory, long maxTotalMemory) {
+		this.maxConcurrency = maxConcurrency;
+		this.maxChannelMemory = maxChannelMemory;
+		this.maxTotalMemory = maxTotalMemory;
+		this.permits = new Semaphore(maxConcurrency);
+		this.threadFactory = virtualThreadFactory();
+		this.virtual = this.threadFactory != null;
+		if (this.virtual) {
+			this.platformPool = null;
+			return;
+		}
+		log.warn("Virtual threads are not available on this jvm (java " + System.getProperty("java.version")
+				+ "), using a pool of " + maxConcurrency + " platform threads");
+		this.platformPool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicLong count = new AtomicLong();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "strest-worker-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.platformPool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Thread.ofVirtual().name("strest-virtual-", 0).factory(), or null on a jvm
+	 * without virtual threads.  Done reflectively so we still build against older jdks.
+	 * @return
+	 */
+	protected static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "strest-virtual-", 0L);
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		} catch (NoSuchMethodException x) {
+			return null;
+		} catch (ClassNotFoundException x) {
+			return null;
+		} catch (Exception x) {
+			//preview api turned off, etc.
+			log.warn("Unable to create virtual threads", x);
+			return null;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	@Override
+	public void execute(final Runnable task) {
+		if (this.shutdown) {
+			throw new RejectedExecutionException("Executor is shut down");
+		}
+		final Channel channel = channelOf(task);
+		final long size = channel == null ? 0 : this.estimator.estimateSize(((MessageEvent)((ChannelEventRunnable)task).getEvent()).getMessage());
+		this.increase(channel, size);
+		synchronized(this) {
+			this.active++;
+		}
+		Runnable runnable = new Runnable() {
+			@Override
+			public void run() {
+				VirtualThreadExecutor.this.run(task, channel, size);
+			}
+		};
+		try {
+			if (this.virtual) {
+				this.threadFactory.newThread(runnable).start();
+			} else {
+				this.platformPool.execute(runnable);
+			}
+		} catch (RuntimeException x) {
+			this.decrease(channel, size);
+			this.finished();
+			throw x;
+		}
+	}
+
+	protected void run(Runnable task, Channel channel, long size) {
+		try {
+			this.permits.acquireUninterruptibly();
+			try {
+				//handed to the controller, no longer counted as queued
+				this.decrease(channel, size);
+				size = 0;
+				task.run();
+			} finally {
+				this.permits.release();
+			}
+		} catch (Throwable t) {
+			log.error("Caught", t);
+		} finally {
+			this.decrease(channel, size);
+			this.finished();
+		}
+	}
+
+	/**
+	 * the channel of a message event, only message events are counted (same as MemoryAwareThreadPoolExecutor)
+	 * @param task
+	 * @return
+	 */
+	private static Channel channelOf(Runnable task) {
+		if (!(task instanceof ChannelEventRunnable)) {
+			return null;
+		}
+		ChannelEvent e = ((ChannelEventRunnable)task).getEvent();
+		if (!(e instanceof MessageEvent)) {
+			return null;
+		}
+		return e.getChannel();
+	}
+
+	private void increase(Channel channel, long size) {
+		if (size <= 0) {
+			return;
+		}
+		if (this.maxTotalMemory > 0) {
+			synchronized(this) {
+				boolean interrupted = false;
+				//always let one through, otherwise a single huge request would wait forever
+				while (this.totalMemory > 0 && this.totalMemory + size > this.maxTotalMemory) {
+					try {
+						this.wait();
+					} catch (InterruptedException x) {
+						interrupted = true;
+					}
+				}
+				this.totalMemory += size;
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		if (this.maxChannelMemory > 0) {
+			boolean pause = false;
+			synchronized(this.channels) {
+				ChannelMemory mem = this.channels.get(channel);
+				if (mem == null) {
+					mem = new ChannelMemory();
+					this.channels.put(channel, mem);
+				}
+				mem.size += size;
+				if (!mem.paused && mem.size >= this.maxChannelMemory && channel.isReadable()) {
+					mem.paused = pause = true;
+				}
+			}
+			if (pause) {
+				channel.setReadable(false);
+			}
+		}
+	}
+
+	private void decrease(Channel channel, long size) {
+		if (size <= 0) {
+			return;
+		}
+		if (this.maxTotalMemory > 0) {
+			synchronized(this) {
+				this.totalMemory -= size;
+				this.notifyAll();
+			}
+		}
+		if (this.maxChannelMemory > 0) {
+			boolean resume = false;
+			synchronized(this.channels) {
+				ChannelMemory mem = this.channels.get(channel);
+				if (mem == null) {
+					return;
+				}
+				mem.size -= size;
+				if (mem.paused && mem.size < this.maxChannelMemory) {
+					mem.paused = false;
+					resume = channel.isOpen();
+				}
+				if (mem.size <= 0) {
+					this.channels.remove(channel);
+				}
+			}
+			if (resume) {
+				channel.setReadable(true);
+			}
+		}
+	}
+
+	private synchronized void finished() {
+		this.active--;
+		if (this.active == 0) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * true if tasks run on virtual threads, false if this jvm doesn't have them.
+	 * @return
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * number of tasks waiting for or holding a permit.
+	 * @return
+	 */
+	public synchronized int getActiveCount() {
+		return this.active;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#shutdown()
+	 */
+	@Override
+	public void shutdown() {
+		this.shutdown = true;
+		if (this.platformPool != null) {
+			//already queued tasks still run
+			this.platformPool.shutdown();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#shutdownNow()
+	 */
+	@Override
+	public List<Runnable> shutdownNow() {
+		//queued tasks still run (they hold queued memory and active counts), there is never a queue to return.
+		this.shutdown();
+		return Collections.emptyList();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#isShutdown()
+	 */
+	@Override
+	public boolean isShutdown() {
+		return this.shutdown;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#isTerminated()
+	 */
+	@Override
+	public synchronized boolean isTerminated() {
+		return this.shutdown && this.active == 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!this.isTerminated()) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+}
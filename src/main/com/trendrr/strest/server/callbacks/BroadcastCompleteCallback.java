@@ -0,0 +1,15 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server.callbacks;
+
+import com.trendrr.strest.server.connections.BroadcastFuture;
+
+
+/**
+ * Used to alert when a connection group broadcast has been written to every member.
+ *
+ */
+public interface BroadcastCompleteCallback {
+	public void broadcastComplete(BroadcastFuture future);
+}
@@ -0,0 +1,70 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server.connections;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.trendrr.oss.DynMap;
+
+
+/**
+ * 
+ * Server wide counts of the actions taken against slow consumers.
+ *
+ */
+public class BackpressureMetrics {
+
+	private static final AtomicLongArray actions = new AtomicLongArray(BackpressurePolicy.values().length);
+	private static final AtomicLong slowConsumers = new AtomicLong(0);
+	private static final AtomicLong blockTimeouts = new AtomicLong(0);
+	
+	/**
+	 * a policy was applied to a message (or connection for DISCONNECT)
+	 * @param action
+	 */
+	public static void record(BackpressurePolicy action) {
+		actions.incrementAndGet(action.ordinal());
+	}
+	
+	/**
+	 * a connection went over its high watermark.
+	 */
+	public static void slowConsumer() {
+		slowConsumers.incrementAndGet();
+	}
+	
+	/**
+	 * a blocked send gave up waiting, and the message was dropped.
+	 */
+	public static void blockTimeout() {
+		blockTimeouts.incrementAndGet();
+	}
+	
+	public static long getCount(BackpressurePolicy action) {
+		return actions.get(action.ordinal());
+	}
+	
+	public static long getSlowConsumers() {
+		return slowConsumers.get();
+	}
+	
+	public static long getBlockTimeouts() {
+		return blockTimeouts.get();
+	}
+	
+	/**
+	 * all the counts, keyed by lowercase action name.
+	 * @return
+	 */
+	public static DynMap toDynMap() {
+		DynMap mp = new DynMap();
+		for (BackpressurePolicy action : BackpressurePolicy.values()) {
+			mp.put(action.toString().toLowerCase(), getCount(action));
+		}
+		mp.put("slow_consumers", getSlowConsumers());
+		mp.put("block_timeouts", getBlockTimeouts());
+		return mp;
+	}
+}
@@ -0,0 +1,47 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server.connections;
+
+
+/**
+ * 
+ * What to do with a message sent to a slow consumer, a connection whose outbound 
+ * buffer is over the high watermark.
+ * 
+ * Messages that complete a txn are never dropped, they are queued behind anything
+ * already pending.
+ *
+ */
+public enum BackpressurePolicy {
+	/**
+	 * the sending thread waits (up to the block timeout) for the connection to drain.
+	 * the message is dropped if it times out.
+	 * 
+	 * io threads (@NonBlocking handlers) never wait, they queue the message as DROP_OLDEST does.
+	 */
+	BLOCK,
+	/**
+	 * the message is queued, if the queue is full the oldest queued message is dropped.
+	 * This is the default.
+	 */
+	DROP_OLDEST,
+	/**
+	 * the message is dropped.
+	 */
+	DROP_NEWEST,
+	/**
+	 * the message replaces any queued message for the same txn, so only the latest is sent.
+	 */
+	COALESCE_LATEST,
+	/**
+	 * the connection is closed.
+	 */
+	DISCONNECT;
+	
+	public static BackpressurePolicy instance(String str) {
+		if (str == null)
+			return null;
+		return BackpressurePolicy.valueOf(str.toUpperCase().replace('-', '_'));
+	}
+}
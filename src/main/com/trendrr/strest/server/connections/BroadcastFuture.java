@@ -0,0 +1,162 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server.connections;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import com.trendrr.strest.server.callbacks.BroadcastCompleteCallback;
+
+
+/**
+ * 
+ * The aggregate result of a connection group broadcast.  
+ * 
+ * Completes once every shard has finished its fan out and every write 
+ * it started has completed (successfully or not).
+ *
+ */
+public class BroadcastFuture implements ChannelFutureListener {
+
+	protected static Log log = LogFactory.getLog(BroadcastFuture.class);
+	
+	//outstanding shards + outstanding writes
+	private final AtomicInteger pending;
+	private final AtomicInteger success = new AtomicInteger(0);
+	private final AtomicInteger failure = new AtomicInteger(0);
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final ConcurrentLinkedQueue<BroadcastCompleteCallback> callbacks = new ConcurrentLinkedQueue<BroadcastCompleteCallback>();
+	
+	/**
+	 * 
+	 * @param shards the number of shards that will report in via shardComplete
+	 */
+	BroadcastFuture(int shards) {
+		this.pending = new AtomicInteger(shards);
+		if (shards == 0) {
+			this.done.countDown();
+		}
+	}
+	
+	/**
+	 * a write was started for a member.  
+	 * @param result the result of the send, writes that return a ChannelFuture are tracked until they complete.
+	 */
+	void written(Object result) {
+		if (result instanceof ChannelFuture) {
+			this.pending.incrementAndGet();
+			((ChannelFuture)result).addListener(this);
+		} else {
+			this.success.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * a send to a member failed before anything was written.
+	 */
+	void failed() {
+		this.failure.incrementAndGet();
+	}
+	
+	/**
+	 * a shard has finished iterating its members.
+	 */
+	void shardComplete() {
+		this.decrement();
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.ChannelFutureListener#operationComplete(org.jboss.netty.channel.ChannelFuture)
+	 */
+	@Override
+	public void operationComplete(ChannelFuture future) throws Exception {
+		if (future.isSuccess()) {
+			this.success.incrementAndGet();
+		} else {
+			this.failure.incrementAndGet();
+		}
+		this.decrement();
+	}
+	
+	private void decrement() {
+		if (this.pending.decrementAndGet() == 0) {
+			this.done.countDown();
+			this.fireCallbacks();
+		}
+	}
+	
+	private void fireCallbacks() {
+		BroadcastCompleteCallback cb = this.callbacks.poll();
+		while (cb != null) {
+			try {
+				cb.broadcastComplete(this);
+			} catch (Exception x) {
+				log.error("Caught", x);
+			}
+			cb = this.callbacks.poll();
+		}
+	}
+	
+	/**
+	 * registers a callback for when the broadcast is complete.  If it is already complete the 
+	 * callback is called immediately.
+	 * @param callback
+	 */
+	public void onComplete(BroadcastCompleteCallback callback) {
+		this.callbacks.add(callback);
+		if (this.isDone()) {
+			this.fireCallbacks();
+		}
+	}
+	
+	public boolean isDone() {
+		return this.done.getCount() == 0;
+	}
+	
+	/**
+	 * waits for the broadcast to complete.
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException {
+		this.done.await();
+	}
+	
+	/**
+	 * waits for the broadcast to complete.
+	 * @param timeout
+	 * @param unit
+	 * @return true if complete, false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.done.await(timeout, unit);
+	}
+	
+	/**
+	 * number of members the message was written to.
+	 * @return
+	 */
+	public int getSuccessCount() {
+		return this.success.get();
+	}
+	
+	/**
+	 * number of members the message could not be written to.
+	 * @return
+	 */
+	public int getFailureCount() {
+		return this.failure.get();
+	}
+	
+	public String toString() {
+		return "BroadcastFuture: done=" + this.isDone() + " success=" + this.getSuccessCount() + " failure=" + this.getFailureCount();
+	}
+}
@@ -0,0 +1,511 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.connections;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.StrestResponseEncoder;
+import com.trendrr.strest.server.v2.JsonBufferWriter;
+import com.trendrr.strest.server.v2.models.StrestHeader;
+import com.trendrr.strest.server.v2.models.StrestHeader.TxnStatus;
+import com.trendrr.strest.server.v2.models.StrestRequest;
+import com.trendrr.strest.server.v2.models.StrestResponse;
+import com.trendrr.strest.server.v2.models.binary.StrestBinaryRequest;
+import com.trendrr.strest.server.v2.models.binary.StrestBinaryResponse;
+import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
+import com.trendrr.strest.server.v2.models.http.StrestHttpResponse;
+import com.trendrr.strest.server.v2.models.json.StrestJsonRequest;
+import com.trendrr.strest.server.v2.models.json.StrestJsonResponse;
+
+
+/**
+ *
+ * A response that is serialized at most once per wire format, no matter how many
+ * transactions it is sent to.
+ *
+ * Each format is encoded into a read only prefix and suffix around the txn id,
+ * so sending to a member is just wrapping the shared buffers around that member's id.
+ *
+ * Formats are encoded lazily, the first time a member needs them:
+ *  json - members connected to the json listener (or zmq)
+ *  http - members connected to the http listener, identity encoded
+ *  http gzip - http members that accept gzip, only when the content is over GZIP_THRESHOLD
+ *  binary - members connected to the binary listener.  The txn id is a varint that sits
+ *  	inside the length prefixed frame, so only the body after it is shared.
+ *  plain http (and gzip) - plain (non strest) http requests, see encodePlainHttp.  The 
+ *  	Connection header is patched in instead of the txn id.
+ *
+ */
+public class EncodedResponse {
+
+	protected static Log log = LogFactory.getLog(EncodedResponse.class);
+
+	private static final byte[] CRLF = new byte[] {'\r', '\n'};
+
+	protected final StrestResponse response;
+	protected final TxnStatus txnStatus;
+
+	private volatile Template json;
+	private volatile Template http;
+	private volatile Template httpGzip;
+	private volatile Template plainHttp;
+	private volatile Template plainHttpGzip;
+	private volatile ChannelBuffer binaryBody;
+	private float binaryVersion;
+
+	public EncodedResponse(StrestResponse response) {
+		this.response = response;
+		this.txnStatus = response.getTxnStatus();
+	}
+
+	/**
+	 * the original response.
+	 * @return
+	 */
+	public StrestResponse getResponse() {
+		return response;
+	}
+
+	public TxnStatus getTxnStatus() {
+		return txnStatus;
+	}
+
+	/**
+	 * returns the bytes to write for the passed in transaction's request, or null if
+	 * the request is not of a known wire format.
+	 *
+	 * The returned buffer shares its content with every other member, do not modify it.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public ChannelBuffer encode(StrestRequest request) {
+		if (request instanceof StrestJsonRequest) {
+			return this.getJson().forTxn(jsonEscape(request.getTxnId()));
+		}
+		if (request instanceof StrestHttpRequest) {
+			String accept = request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING);
+			if (accept != null && accept.indexOf("gzip") >= 0) {
+				return this.getHttpGzip().forTxn(request.getTxnId());
+			}
+			return this.getHttp().forTxn(request.getTxnId());
+		}
+		if (request instanceof StrestBinaryRequest) {
+			ChannelBuffer body = this.getBinaryBody();
+			return StrestBinaryResponse.frame(this.binaryVersion, ((StrestBinaryRequest)request).getTxnIdLong(), body);
+		}
+		return null;
+	}
+
+	/**
+	 * returns the bytes to write for a plain http request, which has no txn id but needs 
+	 * the Connection header of its own request.  The caller is responsible for keeping 
+	 * pipelined responses in order.
+	 * 
+	 * @param request
+	 * @param keepAlive
+	 * @return
+	 */
+	public ChannelBuffer encodePlainHttp(StrestRequest request, boolean keepAlive) {
+		String connection = keepAlive ? HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE;
+		String accept = request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING);
+		if (accept != null && accept.indexOf("gzip") >= 0) {
+			return this.getPlainHttpGzip().forTxn(connection);
+		}
+		return this.getPlainHttp().forTxn(connection);
+	}
+	
+	/**
+	 * encodes every format now, rather than when first needed.  Used to snapshot a response
+	 * that is going to be modified (or reused) after this.
+	 * @return this
+	 */
+	public EncodedResponse encodeAll() {
+		this.getJson();
+		this.getHttpGzip();
+		this.getPlainHttpGzip();
+		this.getBinaryBody();
+		return this;
+	}
+	
+	/**
+	 * bytes held by the formats encoded so far.
+	 * @return
+	 */
+	public int getEncodedSize() {
+		int size = 0;
+		ChannelBuffer binary = this.binaryBody;
+		if (binary != null) {
+			size += binary.readableBytes();
+		}
+		Template http = this.http;
+		Template plainHttp = this.plainHttp;
+		size += size(this.json, null) + size(http, null) + size(this.httpGzip, http) 
+			+ size(plainHttp, null) + size(this.plainHttpGzip, plainHttp);
+		return size;
+	}
+	
+	private static int size(Template t, Template sharedWith) {
+		if (t == null || t == sharedWith) {
+			return 0;
+		}
+		return t.prefix.readableBytes() + t.suffix.readableBytes();
+	}
+
+	protected ChannelBuffer getBinaryBody() {
+		ChannelBuffer body = this.binaryBody;
+		if (body == null) {
+			synchronized(this) {
+				body = this.binaryBody;
+				if (body == null) {
+					StrestBinaryResponse res = StrestBinaryResponse.instance(this.response);
+					this.binaryVersion = res.getProtocolVersion();
+					body = this.binaryBody = ChannelBuffers.unmodifiableBuffer(res.encodeBody());
+				}
+			}
+		}
+		return body;
+	}
+
+	protected Template getJson() {
+		Template t = this.json;
+		if (t == null) {
+			synchronized(this) {
+				t = this.json;
+				if (t == null) {
+					t = this.json = this.encodeJson();
+				}
+			}
+		}
+		return t;
+	}
+
+	protected Template getHttp() {
+		Template t = this.http;
+		if (t == null) {
+			synchronized(this) {
+				t = this.http;
+				if (t == null) {
+					t = this.http = this.encodeHttp(false, false);
+				}
+			}
+		}
+		return t;
+	}
+	
+	protected Template getPlainHttp() {
+		Template t = this.plainHttp;
+		if (t == null) {
+			synchronized(this) {
+				t = this.plainHttp;
+				if (t == null) {
+					t = this.plainHttp = this.encodeHttp(false, true);
+				}
+			}
+		}
+		return t;
+	}
+
+	protected Template getPlainHttpGzip() {
+		Template t = this.plainHttpGzip;
+		if (t == null) {
+			synchronized(this) {
+				t = this.plainHttpGzip;
+				if (t == null) {
+					t = this.encodeHttp(true, true);
+					if (t == null) {
+						t = this.getPlainHttp();
+					}
+					this.plainHttpGzip = t;
+				}
+			}
+		}
+		return t;
+	}
+
+	protected Template getHttpGzip() {
+		Template t = this.httpGzip;
+		if (t == null) {
+			synchronized(this) {
+				t = this.httpGzip;
+				if (t == null) {
+					t = this.encodeHttp(true, false);
+					if (t == null) {
+						//content is too small to bother, share the identity encoding
+						t = this.getHttp();
+					}
+					this.httpGzip = t;
+				}
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * encodes the json packet, with a placeholder where the txn id goes.
+	 * @return
+	 */
+	protected Template encodeJson() {
+		StrestJsonResponse res;
+		if (this.response instanceof StrestJsonResponse) {
+			//copy so the callers response is left untouched.
+			res = new StrestJsonResponse(DynMap.instance(((StrestJsonResponse)this.response).getMap().toJSONString()));
+		} else {
+			res = new StrestJsonResponse();
+			res.setProtocol(this.response.getProtocolName(), this.response.getProtocolVersion());
+			res.setStatus(this.response.getStatusCode(), this.response.getStatusMessage());
+			if (this.txnStatus != null) {
+				res.setTxnStatus(this.txnStatus);
+			}
+			byte[] content = this.response.getContentBytes();
+			if (content != null && content.length > 0) {
+				String contentType = this.response.getHeader(StrestHeader.Name.CONTENT_TYPE);
+				res.setContent(contentType == null ? "text/plain" : contentType, content);
+			}
+		}
+		String placeholder = placeholder();
+		res.setTxnId(placeholder);
+		byte[] bytes = res.toByteArray();
+		return Template.split(bytes, placeholder.getBytes(CharsetUtil.UTF_8));
+	}
+
+	/**
+	 * encodes the full http response (status line, headers and content), with the txn
+	 * id header last so it can be patched in.
+	 *
+	 * @param gzip
+	 * @param plain if true the Connection header is patched in instead, and the txn id left out.
+	 * @return the template, or null if gzip was requested but the content is too small to compress.
+	 */
+	protected Template encodeHttp(boolean gzip, boolean plain) {
+		HttpResponse res;
+		if (this.response instanceof StrestHttpResponse) {
+			res = ((StrestHttpResponse)this.response).getResponse();
+		} else {
+			StrestHttpResponse r = new StrestHttpResponse();
+			r.setProtocol(this.response.getProtocolName(), this.response.getProtocolVersion());
+			r.setStatus(this.response.getStatusCode(), this.response.getStatusMessage());
+			if (this.txnStatus != null) {
+				r.setTxnStatus(this.txnStatus);
+			}
+			if (this.response instanceof StrestJsonResponse) {
+				this.copyJsonContent((StrestJsonResponse)this.response, r);
+			} else {
+				byte[] bytes = this.response.getContentBytes();
+				if (bytes != null && bytes.length > 0) {
+					String contentType = this.response.getHeader(StrestHeader.Name.CONTENT_TYPE);
+					r.setContent(contentType == null ? "application/octet-stream" : contentType, bytes);
+				}
+			}
+			res = r.getResponse();
+		}
+
+		ChannelBuffer content = res.getContent();
+		if (content == null) {
+			content = ChannelBuffers.EMPTY_BUFFER;
+		}
+		String contentEncoding = res.getHeader(HttpHeaders.Names.CONTENT_ENCODING);
+		if (gzip) {
+			if (contentEncoding != null || content.readableBytes() <= StrestResponseEncoder.GZIP_THRESHOLD) {
+				return null;
+			}
+			byte[] bytes = new byte[content.readableBytes()];
+			content.getBytes(content.readerIndex(), bytes);
+			content = ChannelBuffers.wrappedBuffer(StrestResponseEncoder.gzip(bytes));
+			contentEncoding = "gzip";
+		}
+
+		StringBuilder head = httpHead(res, content.readableBytes(), contentEncoding, false, !plain);
+		head.append(plain ? HttpHeaders.Names.CONNECTION : StrestHeader.Name.TXN_ID.getHttpName()).append(": ");
+
+		ChannelBuffer prefix = ChannelBuffers.copiedBuffer(head, CharsetUtil.US_ASCII);
+		ChannelBuffer suffix = ChannelBuffers.wrappedBuffer(
+				ChannelBuffers.wrappedBuffer(CRLF),
+				ChannelBuffers.wrappedBuffer(CRLF),
+				content.slice());
+		return new Template(prefix, suffix);
+	}
+
+	/**
+	 * the status line and headers of the response, without the blank line that ends the headers.
+	 * 
+	 * @param res
+	 * @param contentLength
+	 * @param contentEncoding the content encoding, or null for none.
+	 * @param includeTxnId if false the txn id header is left out.
+	 * @param includeConnection if false the Connection header is left out.
+	 * @return
+	 */
+	static StringBuilder httpHead(HttpResponse res, int contentLength, String contentEncoding, boolean includeTxnId, boolean includeConnection) {
+		StringBuilder head = new StringBuilder(256);
+		head.append(res.getProtocolVersion().getText())
+			.append(' ')
+			.append(res.getStatus().toString())
+			.append("\r\n");
+		for (Map.Entry<String, String> h : res.getHeaders()) {
+			String name = h.getKey();
+			if ((!includeTxnId && name.equalsIgnoreCase(StrestHeader.Name.TXN_ID.getHttpName()))
+					|| (!includeConnection && name.equalsIgnoreCase(HttpHeaders.Names.CONNECTION))
+					|| name.equalsIgnoreCase(HttpHeaders.Names.CONTENT_LENGTH)
+					|| name.equalsIgnoreCase(HttpHeaders.Names.CONTENT_ENCODING)) {
+				continue;
+			}
+			head.append(name).append(": ").append(h.getValue()).append("\r\n");
+		}
+		if (contentEncoding != null) {
+			head.append(HttpHeaders.Names.CONTENT_ENCODING).append(": ").append(contentEncoding).append("\r\n");
+		}
+		head.append(HttpHeaders.Names.CONTENT_LENGTH).append(": ").append(contentLength).append("\r\n");
+		return head;
+	}
+	
+	/**
+	 * encodes a single response, as is, in its own wire format.  Used when a response has 
+	 * to be written as raw bytes (ex: write coalescing).
+	 * 
+	 * @param response
+	 * @return the bytes, or null if the response is not a known type.
+	 */
+	public static ChannelBuffer toBuffer(StrestResponse response) {
+		if (response instanceof StrestJsonResponse) {
+			return JsonBufferWriter.encode(((StrestJsonResponse)response).getMap(), 512);
+		}
+		if (response instanceof StrestBinaryResponse) {
+			return ((StrestBinaryResponse)response).toBuffer();
+		}
+		if (response instanceof StrestHttpResponse) {
+			HttpResponse res = ((StrestHttpResponse)response).getResponse();
+			ChannelBuffer content = res.getContent();
+			if (content == null) {
+				content = ChannelBuffers.EMPTY_BUFFER;
+			}
+			StringBuilder head = httpHead(res, content.readableBytes(), res.getHeader(HttpHeaders.Names.CONTENT_ENCODING), true, true);
+			head.append("\r\n");
+			return ChannelBuffers.wrappedBuffer(ChannelBuffers.copiedBuffer(head, CharsetUtil.US_ASCII), content.slice());
+		}
+		return null;
+	}
+	
+	/**
+	 * moves the content of a json response into an http response.
+	 * non json content is stored as a string in the content field, everything
+	 * else is the json packet minus the strest header.
+	 * @param from
+	 * @param to
+	 */
+	protected void copyJsonContent(StrestJsonResponse from, StrestHttpResponse to) {
+		String contentType = from.getHeader(StrestHeader.Name.CONTENT_TYPE);
+		if (contentType != null && !contentType.contains("json") && from.getContent() instanceof String) {
+			to.setContent(contentType, (String)from.getContent());
+			return;
+		}
+		byte[] bytes = from.getContentBytes();
+		if (bytes != null) {
+			to.setContent("application/json", bytes);
+		}
+	}
+
+	/**
+	 * a token that will not appear in the content.
+	 * @return
+	 */
+	private static String placeholder() {
+		return "strest-txn-" + Long.toHexString(System.nanoTime()) + "-" + Integer.toHexString(System.identityHashCode(new Object()));
+	}
+
+	/**
+	 * escapes a txn id to go between quotes in a json string.
+	 * @param id
+	 * @return
+	 */
+	static String jsonEscape(String id) {
+		if (id == null) {
+			return "";
+		}
+		StringBuilder sb = null;
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (c == '"' || c == '\\' || c < 0x20) {
+				if (sb == null) {
+					sb = new StringBuilder(id.length() + 8);
+					sb.append(id, 0, i);
+				}
+				if (c == '"' || c == '\\') {
+					sb.append('\\').append(c);
+				} else {
+					sb.append(String.format("\\u%04x", (int)c));
+				}
+			} else if (sb != null) {
+				sb.append(c);
+			}
+		}
+		return sb == null ? id : sb.toString();
+	}
+
+	/**
+	 * shared, read only buffers on either side of the txn id.
+	 */
+	static final class Template {
+		final ChannelBuffer prefix;
+		final ChannelBuffer suffix;
+
+		Template(ChannelBuffer prefix, ChannelBuffer suffix) {
+			this.prefix = ChannelBuffers.unmodifiableBuffer(prefix);
+			this.suffix = ChannelBuffers.unmodifiableBuffer(suffix);
+		}
+
+		/**
+		 * splits the encoded bytes around the first occurance of the placeholder
+		 * @param bytes
+		 * @param placeholder
+		 * @return
+		 */
+		static Template split(byte[] bytes, byte[] placeholder) {
+			int index = indexOf(bytes, placeholder);
+			if (index == -1) {
+				throw new IllegalStateException("txn id placeholder not found in the encoded response");
+			}
+			int after = index + placeholder.length;
+			return new Template(
+					ChannelBuffers.wrappedBuffer(bytes, 0, index),
+					ChannelBuffers.wrappedBuffer(bytes, after, bytes.length - after));
+		}
+
+		/**
+		 * wraps the shared buffers around the txn id.  No content is copied.
+		 * @param txnId
+		 * @return
+		 */
+		ChannelBuffer forTxn(String txnId) {
+			if (txnId == null || txnId.isEmpty()) {
+				return ChannelBuffers.wrappedBuffer(this.prefix, this.suffix);
+			}
+			return ChannelBuffers.wrappedBuffer(this.prefix,
+					ChannelBuffers.copiedBuffer(txnId, CharsetUtil.UTF_8),
+					this.suffix);
+		}
+
+		private static int indexOf(byte[] bytes, byte[] find) {
+			outer:
+			for (int i = 0; i <= bytes.length - find.length; i++) {
+				for (int j = 0; j < find.length; j++) {
+					if (bytes[i + j] != find[j]) {
+						continue outer;
+					}
+				}
+				return i;
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server.connections;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+
+/**
+ * 
+ * Completes a set of futures with the result of a single write, used when 
+ * several messages are written as one buffer.
+ *
+ */
+class FutureFanout implements ChannelFutureListener {
+
+	private final ChannelFuture[] futures;
+	
+	FutureFanout(ChannelFuture[] futures) {
+		this.futures = futures;
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.ChannelFutureListener#operationComplete(org.jboss.netty.channel.ChannelFuture)
+	 */
+	/**
+	 * fails all the futures, for a write that never happened.
+	 * @param cause
+	 */
+	void fail(Throwable cause) {
+		for (ChannelFuture f : this.futures) {
+			f.setFailure(cause);
+		}
+	}
+	
+	@Override
+	public void operationComplete(ChannelFuture future) throws Exception {
+		for (ChannelFuture f : this.futures) {
+			if (future.isSuccess()) {
+				f.setSuccess();
+			} else if (future.isCancelled()) {
+				f.cancel();
+			} else {
+				f.setFailure(future.getCause());
+			}
+		}
+	}
+}
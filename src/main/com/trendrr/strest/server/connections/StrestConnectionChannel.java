@@ -7,6 +7,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelFuture;
 
 import com.trendrr.strest.server.ResponseBuilder;
@@ -50,14 +51,132 @@ public abstract class StrestConnectionChannel {
 	}
 	
 	public Object sendMessage(StrestResponse response) throws Exception {
+		return this.sendMessage(response, null);
+	}
+	
+	/**
+	 * send a message, applying the backpressure policy if this connection is a slow consumer.
+	 * @param response
+	 * @param policy the policy, or null for the channel default
+	 * @return
+	 * @throws Exception
+	 */
+	public Object sendMessage(StrestResponse response, BackpressurePolicy policy) throws Exception {
 		// Write the response.
 		if (response.getTxnStatus() == TxnStatus.COMPLETED) {
 			//remove the txn
 			this.txnComplete(response.getTxnId());
 		}
+		return this.doSendMessage(response, policy);
+	}
+	
+	/**
+	 * send a message with a backpressure policy.  Channels that don't track their outbound
+	 * buffer ignore the policy.
+	 * @param response
+	 * @param policy
+	 * @return
+	 * @throws Exception
+	 */
+	protected Object doSendMessage(StrestResponse response, BackpressurePolicy policy) throws Exception {
 		return this.doSendMessage(response);
 	}
 	
+	/**
+	 * sends a message that was already encoded in this channel's wire format
+	 * (see EncodedResponse).  The buffer may be shared with other channels, so it must not be modified.
+	 * 
+	 * @param buffer
+	 * @param txnId the txn the message belongs to
+	 * @param status the txn status of the message
+	 * @return
+	 * @throws Exception
+	 */
+	public Object sendEncoded(ChannelBuffer buffer, String txnId, TxnStatus status) throws Exception {
+		return this.sendEncoded(buffer, txnId, status, null);
+	}
+	
+	/**
+	 * sends an encoded message, applying the backpressure policy if this connection is a slow consumer.
+	 * @param buffer
+	 * @param txnId
+	 * @param status
+	 * @param policy the policy, or null for the channel default
+	 * @return
+	 * @throws Exception
+	 */
+	public Object sendEncoded(ChannelBuffer buffer, String txnId, TxnStatus status, BackpressurePolicy policy) throws Exception {
+		if (status == TxnStatus.COMPLETED) {
+			//remove the txn
+			this.txnComplete(txnId);
+		}
+		return this.doSendEncoded(buffer, txnId, status != TxnStatus.CONTINUE, policy);
+	}
+	
+	/**
+	 * true if this channel can write pre encoded buffers.  Channels that return false
+	 * are sent the response object instead.
+	 * @return
+	 */
+	public boolean isEncodedSupported() {
+		return false;
+	}
+	
+	/**
+	 * writes an encoded buffer, only called if isEncodedSupported is true
+	 * @param buffer
+	 * @return
+	 * @throws Exception
+	 */
+	protected abstract Object doSendEncoded(ChannelBuffer buffer) throws Exception;
+	
+	/**
+	 * writes an encoded buffer with a backpressure policy.  Channels that don't track their
+	 * outbound buffer ignore the policy.
+	 * @param buffer
+	 * @param txnId
+	 * @param terminal true if this message completes the txn
+	 * @param policy
+	 * @return
+	 * @throws Exception
+	 */
+	protected Object doSendEncoded(ChannelBuffer buffer, String txnId, boolean terminal, BackpressurePolicy policy) throws Exception {
+		return this.doSendEncoded(buffer);
+	}
+	
+	/**
+	 * sends an encoded response to a plain http request (see EncodedResponse.encodePlainHttp),
+	 * in pipeline order.
+	 * @param buffer
+	 * @param sequence the request's position on the connection, -1 if it has none
+	 * @return
+	 * @throws Exception
+	 */
+	public Object sendEncoded(ChannelBuffer buffer, int sequence) throws Exception {
+		return this.doSendEncoded(buffer, sequence);
+	}
+	
+	/**
+	 * writes an encoded http response in pipeline order, only called if isEncodedSupported is true
+	 * @param buffer
+	 * @param sequence
+	 * @return
+	 * @throws Exception
+	 */
+	protected Object doSendEncoded(ChannelBuffer buffer, int sequence) throws Exception {
+		return this.doSendEncoded(buffer);
+	}
+	
+	/**
+	 * gives up the pipeline position of a plain http request that will not get a response 
+	 * through the router (ex: the controller sends its own), so later responses aren't held
+	 * waiting for it.  Channels that don't pipeline ignore it.
+	 * @param sequence
+	 */
+	public void skipSequence(int sequence) {
+		//nothing to do
+	}
+	
 	/**
 	 * registers a callback for when the connection is disconnected..
 	 * @param callback
@@ -104,6 +223,14 @@ public abstract class StrestConnectionChannel {
 		}
 	}
 	
+	/**
+	 * the number of open txns on this connection.
+	 * @return
+	 */
+	public int getTransactionCount() {
+		return this.transactions.size();
+	}
+	
 	public StrestConnectionTxn getTxnConnection(String txnId) {
 		return this.transactions.get(txnId);
 	}
@@ -3,29 +3,29 @@
  */
 package com.trendrr.strest.server.connections;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
-import org.jboss.netty.handler.codec.http.HttpHeaders;
-import org.jboss.netty.handler.codec.http.HttpRequest;
-import org.jboss.netty.handler.codec.http.HttpResponse;
 
 import com.trendrr.strest.StrestUtil;
 import com.trendrr.strest.server.ResponseBuilder;
-import com.trendrr.strest.server.StrestResponseEncoder;
 import com.trendrr.strest.server.callbacks.ConnectionGroupEmptyCallback;
 import com.trendrr.strest.server.callbacks.DisconnectCallback;
 import com.trendrr.strest.server.callbacks.TxnCompleteCallback;
+import com.trendrr.strest.server.v2.models.StrestRequest;
 import com.trendrr.strest.server.v2.models.StrestResponse;
 
 
@@ -36,6 +36,16 @@ import com.trendrr.strest.server.v2.models.StrestResponse;
  * 
  * Connections are automatically removed when they are disconnected.
  * 
+ * Members are partitioned into shards by their connection channel, so all the txns on a 
+ * channel live in the same shard.  Each shard is a set backed by a ConcurrentHashMap, adds and 
+ * removes are O(1) and only contend on the same hash bin.  Iteration is weakly consistent, broadcasts
+ * walk the live sets without copying them.
+ * 
+ * Broadcasts to large groups (see setParallelThreshold) fan out in parallel, one task per 
+ * shard on the broadcast executor.  Each shard sends its queued broadcasts in order, so a 
+ * channel always sees messages in the order they were sent.  Small groups are sent on the 
+ * calling thread.
+ * 
  * @author Dustin Norlander
  * @created Mar 16, 2011
  * 
@@ -44,43 +54,191 @@ public class StrestConnectionGroup implements TxnCompleteCallback {
 
 	protected Log log = LogFactory.getLog(StrestConnectionGroup.class);
 
-	private int size = 0; //we keep our own copy of size as the connections.size is slow
-	private ConcurrentSkipListSet<StrestConnectionTxn> connections = new ConcurrentSkipListSet<StrestConnectionTxn>();
+	/**
+	 * groups smaller than this are sent on the calling thread, unless set per group.
+	 */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 1024;
+	
+	private static final int DEFAULT_SHARDS = shardCount(Runtime.getRuntime().availableProcessors());
+	
+	private static volatile Executor broadcastExecutor = null;
+	//the pool we created ourselves, shut down by shutdownBroadcastExecutor
+	private static ExecutorService defaultBroadcastExecutor = null;
+	
+	private final Shard[] shards;
+	private final int shardMask;
 
 	private ConcurrentLinkedQueue<ConnectionGroupEmptyCallback> emptyCallbacks = new ConcurrentLinkedQueue<ConnectionGroupEmptyCallback>();
 	
 	private AtomicBoolean closed = new AtomicBoolean(false);
 	
+	private volatile BackpressurePolicy backpressurePolicy = null;
+	
+	private volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+	
+	public StrestConnectionGroup() {
+		this(DEFAULT_SHARDS);
+	}
+	
+	/**
+	 * 
+	 * @param shards the number of partitions to fan out over, rounded up to a power of two.
+	 */
+	public StrestConnectionGroup(int shards) {
+		this.shards = new Shard[shardCount(shards)];
+		for (int i = 0; i < this.shards.length; i++) {
+			this.shards[i] = new Shard();
+		}
+		this.shardMask = this.shards.length - 1;
+	}
+	
+	private static int shardCount(int shards) {
+		int count = 1;
+		while (count < shards) {
+			count <<= 1;
+		}
+		return count;
+	}
+	
+	/**
+	 * sets the executor that large broadcasts fan out on.
+	 * @param executor
+	 */
+	public static void setBroadcastExecutor(Executor executor) {
+		broadcastExecutor = executor;
+	}
+	
+	/**
+	 * the executor that large broadcasts fan out on. Defaults to a fixed pool
+	 * of daemon threads, one per processor.
+	 * @return
+	 */
+	public static Executor getBroadcastExecutor() {
+		Executor executor = broadcastExecutor;
+		if (executor == null) {
+			synchronized(StrestConnectionGroup.class) {
+				executor = broadcastExecutor;
+				if (executor == null) {
+					defaultBroadcastExecutor = newBroadcastExecutor(Runtime.getRuntime().availableProcessors());
+					executor = broadcastExecutor = defaultBroadcastExecutor;
+				}
+			}
+		}
+		return executor;
+	}
+	
+	/**
+	 * shuts down the default broadcast pool, if it was ever created.  An executor passed to 
+	 * setBroadcastExecutor belongs to the caller and is left alone.  Called by StrestServer.shutdown,
+	 * a later broadcast creates a new pool.
+	 */
+	public static void shutdownBroadcastExecutor() {
+		synchronized(StrestConnectionGroup.class) {
+			if (defaultBroadcastExecutor == null) {
+				return;
+			}
+			defaultBroadcastExecutor.shutdown();
+			if (broadcastExecutor == defaultBroadcastExecutor) {
+				broadcastExecutor = null;
+			}
+			defaultBroadcastExecutor = null;
+		}
+	}
+	
+	private static ExecutorService newBroadcastExecutor(int threads) {
+		final AtomicInteger count = new AtomicInteger(0);
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "strest-broadcast-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * what to do with broadcasts to members whose connection is a slow consumer.
+	 * members that set their own policy keep it. null (the default) uses the channel default.
+	 * @param policy
+	 */
+	public void setBackpressurePolicy(BackpressurePolicy policy) {
+		this.backpressurePolicy = policy;
+	}
+	
+	public BackpressurePolicy getBackpressurePolicy() {
+		return this.backpressurePolicy;
+	}
+	
+	/**
+	 * groups with at least this many members fan broadcasts out on the broadcast executor,
+	 * smaller groups are sent on the calling thread.  Defaults to DEFAULT_PARALLEL_THRESHOLD.
+	 * @param threshold
+	 */
+	public void setParallelThreshold(int threshold) {
+		this.parallelThreshold = threshold;
+	}
+	
+	public int getParallelThreshold() {
+		return this.parallelThreshold;
+	}
+	
+	/**
+	 * the shard for this txn, keyed on its connection channel.
+	 * @param connection
+	 * @return
+	 */
+	private Shard shard(StrestConnectionTxn connection) {
+		StrestRequest request = connection.getRequest();
+		Object key = connection;
+		if (request != null && request.getConnectionChannel() != null) {
+			key = request.getConnectionChannel();
+		}
+		int h = System.identityHashCode(key);
+		h ^= (h >>> 16);
+		return this.shards[h & this.shardMask];
+	}
+	
 	/**
 	 * Adds a new connection to the group.
 	 * @param connection
 	 * @param txnId
 	 */
-	public synchronized void addConnection(StrestConnectionTxn connection) {
+	public void addConnection(StrestConnectionTxn connection) {
 		if (closed.get()) {
 			//TODO: probably should throw an exception
 			log.warn("This connection group is closed! ");
 			return;
 		}
 		
-		if (!connections.add(connection)) {
+		if (!this.shard(connection).members.add(connection)) {
 			log.warn("Connection already present in the group!: " + connection);
 			return;
 		}
-		size++;
+		if (closed.get()) {
+			//raced with close(), make sure we don't leave a member behind.
+			this.removeConnection(connection);
+			log.warn("This connection group is closed! ");
+			return;
+		}
 		connection.onTxnComplete(this);
 	}
 	
 	public boolean removeConnection(StrestConnectionTxn connection) {
 		try {
-			if (connections.remove(connection)){
-				size--;
+			if (this.shard(connection).members.remove(connection)) {
 				return true;
 			}
+			//the txn may have lost its channel, check everywhere.
+			for (Shard shard : this.shards) {
+				if (shard.members.remove(connection)) {
+					return true;
+				}
+			}
+			return false;
 		} finally {
 			this.onEmptyCallback();
 		}
-		return false;
 	}
 	
 	private void onEmptyCallback() {
@@ -116,41 +274,52 @@ public class StrestConnectionGroup implements TxnCompleteCallback {
 	
 	/**
 	 * sends a message to all the connections + txn in the group.
+	 * 
+	 * The response is serialized once per wire format (see EncodedResponse), every
+	 * member shares the same encoded bytes with only the txn id patched in.
+	 * 
+	 * Groups of getParallelThreshold() or more members fan out in parallel on the broadcast
+	 * executor, so this returns without waiting for the writes.
+	 * 
 	 * @param response
-	 * @return
+	 * @return a future that completes when every member has been written to.
 	 */
-	public Collection<ChannelFuture> sendMessage(StrestResponse response) {
-		Collection<ChannelFuture> futures = new ArrayList<ChannelFuture>();
-		for (StrestConnectionTxn con : this.connections) {
-			
-			//TODO: do this in an efficient way!
-			log.warn("connection group is disabled, TODO!");
-//			
-//			HttpResponse res = StrestResponseEncoder.copyHeaders(response);
-//			
-//			//We don't allow any content encoding.
-//			//TODO: we should sort the gzip accept ones vs the ungzipped.
-//			res.setHeader(HttpHeaders.Names.CONTENT_ENCODING, "identity");
-//			res.setContent(response.getContent()); //all share the same content buffer.
-//			futures.add(con.sendMessage(res));
-		}
-		return futures;
-	}
-	
-	public Collection<ChannelFuture> sendMessage(ResponseBuilder response) {
+	public BroadcastFuture sendMessage(StrestResponse response) {
+		Broadcast broadcast = new Broadcast(new EncodedResponse(response), new BroadcastFuture(this.shards.length));
+		Executor executor = null;
+		if (this.shards.length > 1 && this.size() >= this.parallelThreshold) {
+			executor = getBroadcastExecutor();
+		}
+		for (Shard shard : this.shards) {
+			shard.submit(broadcast, executor);
+		}
+		return broadcast.future;
+	}
+	
+	public BroadcastFuture sendMessage(ResponseBuilder response) {
 		return this.sendMessage(response.getResponse());
 	}
 	
 	public int size() {
+		//ConcurrentHashMap keeps its size in LongAdder style counter cells, no need to keep our own.
+		int size = 0;
+		for (Shard shard : this.shards) {
+			size += shard.members.size();
+		}
 		return size;
 	}
 	
 	public boolean isEmpty() {
-		return this.connections.isEmpty();
+		for (Shard shard : this.shards) {
+			if (!shard.members.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
-	public boolean contains(StrestNettyConnectionChannel connection) {
-		return this.connections.contains(connection);
+	public boolean contains(StrestConnectionTxn connection) {
+		return this.shard(connection).members.contains(connection);
 	}
 	
 	/**
@@ -159,14 +328,117 @@ public class StrestConnectionGroup implements TxnCompleteCallback {
 	 */
 	public void close() {
 		this.closed.set(true);
-		StrestConnectionTxn con = this.connections.pollFirst();
-		while (con != null) {
+		for (Shard shard : this.shards) {
+			Iterator<StrestConnectionTxn> it = shard.members.iterator();
+			while (it.hasNext()) {
+				StrestConnectionTxn con = it.next();
+				if (!shard.members.remove(con)) {
+					continue; //removed concurrently
+				}
+				try {
+					con.close();
+				} catch (Exception e) {
+					log.error("Caught", e);
+				}
+			}
+		}
+		this.onEmptyCallback();
+	}
+	
+	/**
+	 * a single message being sent to the group
+	 */
+	private static class Broadcast {
+		final EncodedResponse encoded;
+		final BroadcastFuture future;
+		
+		Broadcast(EncodedResponse encoded, BroadcastFuture future) {
+			this.encoded = encoded;
+			this.future = future;
+		}
+	}
+	
+	/**
+	 * A partition of the group.  Broadcasts are queued and sent in order by
+	 * at most one thread at a time.
+	 */
+	private class Shard implements Runnable {
+		final Set<StrestConnectionTxn> members = Collections.newSetFromMap(
+				new ConcurrentHashMap<StrestConnectionTxn, Boolean>());
+		final ConcurrentLinkedQueue<Broadcast> queue = new ConcurrentLinkedQueue<Broadcast>();
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+		
+		/**
+		 * queues the broadcast and makes sure a thread is sending.
+		 * @param broadcast
+		 * @param executor the executor to send on, or null to send on the calling thread.
+		 */
+		void submit(Broadcast broadcast, Executor executor) {
+			this.queue.add(broadcast);
+			if (!this.scheduled.compareAndSet(false, true)) {
+				return; //already being drained
+			}
+			if (executor == null || this.members.isEmpty()) {
+				this.run();
+				return;
+			}
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException x) {
+				log.warn("Broadcast executor rejected shard, sending inline", x);
+				this.run();
+			}
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			do {
+				Set<StrestConnectionChannel> coalesced = null;
+				Broadcast broadcast = this.queue.poll();
+				while (broadcast != null) {
+					coalesced = this.send(broadcast, coalesced);
+					broadcast = this.queue.poll();
+				}
+				//write anything coalesced by this batch before letting go.
+				if (coalesced != null) {
+					for (StrestConnectionChannel channel : coalesced) {
+						StrestNettyConnectionChannel.flush(channel);
+					}
+				}
+				this.scheduled.set(false);
+			} while (!this.queue.isEmpty() && this.scheduled.compareAndSet(false, true));
+		}
+		
+		/**
+		 * sends the broadcast to every member.
+		 * @param broadcast
+		 * @param coalesced the connections that need a flush so far, may be null
+		 * @return coalesced, plus any connection this broadcast left coalesced writes on.
+		 */
+		private Set<StrestConnectionChannel> send(Broadcast broadcast, Set<StrestConnectionChannel> coalesced) {
 			try {
-				con.close();
-			} catch (Exception e) {
-				log.error("Caught", e);
+				for (StrestConnectionTxn con : this.members) {
+					try {
+						broadcast.future.written(con.sendMessage(broadcast.encoded, backpressurePolicy));
+						StrestConnectionChannel channel = con.getStrestConnectionChannel();
+						if (StrestNettyConnectionChannel.hasCoalescedWrites(channel)) {
+							if (coalesced == null) {
+								coalesced = Collections.newSetFromMap(new IdentityHashMap<StrestConnectionChannel, Boolean>());
+							}
+							coalesced.add(channel);
+						}
+					} catch (Exception x) {
+						log.error("Caught", x);
+						broadcast.future.failed();
+					}
+				}
+			} finally {
+				broadcast.future.shardComplete();
 			}
-			con = this.connections.pollFirst();
+			return coalesced;
 		}
 	}
 }
@@ -9,6 +9,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -45,6 +46,8 @@ public class StrestConnectionTxn /* implements Comparable<StrestConnectionTxn> *
 	
 	private StrestRequest request;
 	
+	private volatile BackpressurePolicy backpressurePolicy = null;
+	
 	
 	
 	public StrestConnectionTxn(StrestRequest request) {
@@ -95,9 +98,64 @@ public class StrestConnectionTxn /* implements Comparable<StrestConnectionTxn> *
 	 * @return
 	 */
 	public Object sendMessage(StrestResponse response) throws Exception{
+		return this.sendMessage(response, this.backpressurePolicy);
+	}
+	
+	private Object sendMessage(StrestResponse response, BackpressurePolicy policy) throws Exception{
 		//set the txn id
 		response.setTxnId(this.request.getTxnId());
-		return request.getConnectionChannel().sendMessage(response);	
+		return request.getConnectionChannel().sendMessage(response, policy);	
+	}
+	
+	/**
+	 * what to do with messages to this txn when the connection is a slow consumer.
+	 * null (the default) uses the group or channel default.
+	 * @param policy
+	 */
+	public void setBackpressurePolicy(BackpressurePolicy policy) {
+		this.backpressurePolicy = policy;
+	}
+	
+	public BackpressurePolicy getBackpressurePolicy() {
+		return this.backpressurePolicy;
+	}
+	
+	/**
+	 * sends a response that is shared with other transactions (ex: a connection group broadcast).
+	 * 
+	 * The response is only serialized once per wire format, this txn's id is patched into the 
+	 * shared bytes.  Falls back to sending the response object if the channel can't write encoded bytes.
+	 * 
+	 * @param response
+	 * @return
+	 * @throws Exception
+	 */
+	public Object sendMessage(EncodedResponse response) throws Exception {
+		return this.sendMessage(response, null);
+	}
+	
+	/**
+	 * sends a shared response.
+	 * @param response
+	 * @param defaultPolicy the backpressure policy to use if this txn doesn't have one.
+	 * @return
+	 * @throws Exception
+	 */
+	public Object sendMessage(EncodedResponse response, BackpressurePolicy defaultPolicy) throws Exception {
+		BackpressurePolicy policy = this.backpressurePolicy == null ? defaultPolicy : this.backpressurePolicy;
+		StrestRequest request = this.request;
+		if (request == null) {
+			return null; //txn is already complete
+		}
+		StrestConnectionChannel channel = request.getConnectionChannel();
+		ChannelBuffer buffer = null;
+		if (channel.isEncodedSupported()) {
+			buffer = response.encode(request);
+		}
+		if (buffer == null) {
+			return this.sendMessage(response.getResponse(), policy);
+		}
+		return channel.sendEncoded(buffer, request.getTxnId(), response.getTxnStatus(), policy);
 	}
 	
 	/**
@@ -4,17 +4,54 @@
 package com.trendrr.strest.server.connections;
 
 
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioChannelConfig;
 
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.HttpPipeliningHandler;
 import com.trendrr.strest.server.v2.models.*;
+import com.trendrr.strest.server.v2.models.StrestHeader.TxnStatus;
 import com.trendrr.strest.server.v2.models.http.StrestHttpResponse;
 
 
 /**
+ * 
+ * Slow consumers:
+ * 
+ * Netty tracks the bytes waiting to be written for each channel, and marks the channel
+ * unwritable once that goes over the high watermark (writable again under the low watermark).
+ * While a channel is unwritable, new messages are handled according to the txn's 
+ * BackpressurePolicy instead of being buffered without bound.  Messages that are held back 
+ * are flushed, in order, once the channel drains (see StrestWritabilityHandler).
+ * 
+ * Write coalescing:
+ * 
+ * When enabled, streaming messages (those with a txn id) are encoded to bytes and 
+ * held in a per connection aggregate instead of being written one at a time.  The aggregate 
+ * is written as a single composite buffer once it reaches coalesce max_bytes, once 
+ * max_delay has passed, or at the end of the handler / broadcast task that wrote to the 
+ * connection (see flush), whichever is first.  Each message still gets its own future.
+ * An aggregate flushed while the connection is a slow consumer is held back like any 
+ * other response.
+ * 
  * @author Dustin Norlander
  * @created Jan 12, 2011
  * 
@@ -42,6 +79,15 @@ public class StrestNettyConnectionChannel extends StrestConnectionChannel {
 		return c;
 	}
 	
+	/**
+	 * gets the StrestNettyConnectionChannel for the channel, or null if there is none.
+	 * @param channel
+	 * @return
+	 */
+	public static StrestNettyConnectionChannel find(Channel channel) {
+		return channels.get(channel);
+	}
+	
 	public static void remove(Channel c) {
 		remove(get(c));
 	}
@@ -55,10 +101,201 @@ public class StrestNettyConnectionChannel extends StrestConnectionChannel {
 		return channels.size();
 	}
 	
+	protected static volatile BackpressurePolicy defaultPolicy = BackpressurePolicy.DROP_OLDEST;
+	protected static volatile int highWaterMark = 64 * 1024;
+	protected static volatile int lowWaterMark = 32 * 1024;
+	protected static volatile int maxPending = 1024;
+	protected static volatile long blockTimeout = 5000;
+	
+	/**
+	 * configures the slow consumer handling from the 'backpressure' section of the config.
+	 * 
+	 * policy - the default policy for txns that don't set one (drop_oldest)
+	 * high_watermark - bytes buffered before a connection is a slow consumer (65536)
+	 * low_watermark - bytes buffered before a slow consumer is writable again (32768)
+	 * max_pending - max messages held back per connection, a connection with more 
+	 * 		responses than this waiting is disconnected (1024)
+	 * block_timeout - millis a blocked send waits before dropping the message (5000)
+	 * 
+	 * Only affects connections created afterwards.
+	 * 
+	 * @param config
+	 */
+	public static void configure(DynMap config) {
+		if (config == null)
+			return;
+		BackpressurePolicy policy = BackpressurePolicy.instance(config.getString("policy"));
+		if (policy != null) {
+			defaultPolicy = policy;
+		}
+		int high = config.getInteger("high_watermark", highWaterMark);
+		int low = config.getInteger("low_watermark", Math.min(lowWaterMark, high));
+		if (low > high) {
+			throw new IllegalArgumentException("backpressure.low_watermark cannot be greater than backpressure.high_watermark");
+		}
+		highWaterMark = high;
+		lowWaterMark = low;
+		maxPending = config.getInteger("max_pending", maxPending);
+		blockTimeout = config.getInteger("block_timeout", (int)blockTimeout);
+	}
+	
+	protected static volatile boolean coalesceDefault = false;
+	protected static volatile int coalesceMaxBytes = 16 * 1024;
+	protected static volatile long coalesceMaxDelayMicros = 500;
+	
+	/**
+	 * configures write coalescing from the 'coalesce' section of the config.
+	 * 
+	 * enabled - coalesce writes on new connections (false)
+	 * max_bytes - flush once this many bytes are waiting (16384)
+	 * max_delay - flush once the first waiting message is this many microseconds old (500)
+	 * 
+	 * @param config
+	 */
+	public static void configureCoalesce(DynMap config) {
+		if (config == null)
+			return;
+		coalesceDefault = config.getBoolean("enabled", coalesceDefault);
+		coalesceMaxBytes = config.getInteger("max_bytes", coalesceMaxBytes);
+		coalesceMaxDelayMicros = config.getInteger("max_delay", (int)coalesceMaxDelayMicros);
+	}
+	
+	//true on the threads made by ioThreadFactory
+	private static final ThreadLocal<Boolean> ioThread = new ThreadLocal<Boolean>();
+	
+	/**
+	 * the thread factory for the netty io (worker) pool.  Threads it creates are known 
+	 * to be io threads, see isIoThread.
+	 * @return
+	 */
+	public static ThreadFactory ioThreadFactory() {
+		final AtomicInteger count = new AtomicInteger(0);
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						ioThread.set(Boolean.TRUE);
+						r.run();
+					}
+				}, "strest-io-" + count.incrementAndGet());
+			}
+		};
+	}
+	
+	/**
+	 * is the current thread a netty io thread.  These drain the channels, so they must 
+	 * never wait for one.
+	 * @return
+	 */
+	public static boolean isIoThread() {
+		return ioThread.get() != null;
+	}
+	
+	private static volatile ScheduledThreadPoolExecutor flushTimer = null;
+	
+	private static ScheduledThreadPoolExecutor getFlushTimer() {
+		ScheduledThreadPoolExecutor timer = flushTimer;
+		if (timer == null) {
+			synchronized(StrestNettyConnectionChannel.class) {
+				timer = flushTimer;
+				if (timer == null) {
+					timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "strest-write-flush");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+					//most flushes happen before the timer does, don't keep the cancelled tasks around.
+					timer.setRemoveOnCancelPolicy(true);
+					flushTimer = timer;
+				}
+			}
+		}
+		return timer;
+	}
+	
+	/**
+	 * flushes the coalesced writes of the connection, if it is a netty connection.  Called 
+	 * at the end of each handler and broadcast task, so a burst is written as soon as the 
+	 * task that produced it is done.
+	 * @param connection
+	 */
+	public static void flush(StrestConnectionChannel connection) {
+		if (connection instanceof StrestNettyConnectionChannel) {
+			((StrestNettyConnectionChannel)connection).flushWrites();
+		}
+	}
+	
+	/**
+	 * true if the connection is a netty connection holding coalesced writes that still 
+	 * need a flush.
+	 * @param connection
+	 * @return
+	 */
+	public static boolean hasCoalescedWrites(StrestConnectionChannel connection) {
+		return connection instanceof StrestNettyConnectionChannel 
+				&& ((StrestNettyConnectionChannel)connection).aggregating;
+	}
+	
+	public static BackpressurePolicy getDefaultPolicy() {
+		return defaultPolicy;
+	}
+
+	public static void setDefaultPolicy(BackpressurePolicy policy) {
+		defaultPolicy = policy;
+	}
+	
 	Channel channel;
 	
+	//messages held back while the channel is unwritable, guarded by itself.
+	private final LinkedList<Pending> outbound = new LinkedList<Pending>();
+	private volatile boolean backedUp = false;
+	
+	//coalesced writes, guarded by aggregate.
+	private volatile boolean coalesce = coalesceDefault;
+	private final ArrayList<ChannelBuffer> aggregate = new ArrayList<ChannelBuffer>();
+	private final ArrayList<ChannelFuture> aggregateFutures = new ArrayList<ChannelFuture>();
+	private int aggregateBytes = 0;
+	private volatile boolean aggregating = false;
+	private ScheduledFuture<?> scheduledFlush = null;
+	
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushWrites();
+		}
+	};
+	
 	public StrestNettyConnectionChannel(Channel channel) {
 		this.channel = channel;
+		if (channel != null) {
+			setWaterMarks(channel.getConfig(), highWaterMark, lowWaterMark);
+		}
+	}
+	
+	/**
+	 * netty rejects a high mark under the current low mark (and a low mark over the 
+	 * current high mark), so the order the two are set in depends on which way they move.
+	 * @param config
+	 * @param high
+	 * @param low
+	 */
+	static void setWaterMarks(ChannelConfig config, int high, int low) {
+		if (!(config instanceof NioChannelConfig)) {
+			return; //only nio channels have watermarks
+		}
+		NioChannelConfig nio = (NioChannelConfig)config;
+		if (high < nio.getWriteBufferLowWaterMark()) {
+			nio.setWriteBufferLowWaterMark(low);
+			nio.setWriteBufferHighWaterMark(high);
+		} else {
+			nio.setWriteBufferHighWaterMark(high);
+			nio.setWriteBufferLowWaterMark(low);
+		}
 	}
 	
 		
@@ -78,19 +315,350 @@ public class StrestNettyConnectionChannel extends StrestConnectionChannel {
 	
 	@Override
 	protected Object doSendMessage(StrestResponse response) throws Exception {
+		return this.doSendMessage(response, null);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.connections.StrestConnectionChannel#doSendMessage(com.trendrr.strest.server.v2.models.StrestResponse, com.trendrr.strest.server.connections.BackpressurePolicy)
+	 */
+	@Override
+	protected Object doSendMessage(StrestResponse response, BackpressurePolicy policy) throws Exception {
+		Object message = response;
+		if (this.coalesce && response.getTxnId() != null && !isSequenced(response)) {
+			ChannelBuffer buffer = EncodedResponse.toBuffer(response);
+			if (buffer != null) {
+				return this.write(buffer, response.getTxnId(), response.getTxnStatus() != TxnStatus.CONTINUE, policy);
+			}
+		}
+		if (response instanceof StrestHttpResponse) {
+			//TODO: we should probably just have an encoder in the pipeline..
+			message = ((StrestHttpResponse)response).getResponse();
+			int sequence = ((StrestHttpResponse)response).getSequence();
+			if (sequence >= 0) {
+				message = new HttpPipeliningHandler.Sequenced(sequence, message);
+			}
+		}
+		return this.write(message, response.getTxnId(), response.getTxnStatus() != TxnStatus.CONTINUE, policy);
+	}
+	
+	/**
+	 * pipelined http responses have to go through the HttpPipeliningHandler one at a time.
+	 */
+	private static boolean isSequenced(StrestResponse response) {
+		return response instanceof StrestHttpResponse && ((StrestHttpResponse)response).getSequence() >= 0;
+	}
+	
+	/**
+	 * writes the message, or applies the backpressure policy if the channel is not writable.
+	 * 
+	 * @param message
+	 * @param txnId
+	 * @param terminal true if the message completes the txn, these are never dropped.
+	 * @param policy the policy or null for the default
+	 * @return the write future, or null if the message was dropped or held back (messages 
+	 * that complete a txn always get a future).
+	 */
+	protected Object write(Object message, String txnId, boolean terminal, BackpressurePolicy policy) {
+		Channel channel = this.channel;
 		if (channel == null || !channel.isOpen()) {
 			log.info("channel is closed, user has disconnected");
 			return null;
 		}
-
-		if (response instanceof StrestHttpResponse) {
-			//TODO: we should probably just have an encoder in the pipeline..
-			return channel.write(((StrestHttpResponse)response).getResponse());
-		} else {
-			return channel.write(response);
+		if (!this.backedUp && channel.isWritable()) {
+			if (this.coalesce && message instanceof ChannelBuffer) {
+				return this.coalesce(channel, (ChannelBuffer)message);
+			}
+			if (this.aggregating) {
+				this.flushWrites(); //keep ordering
+			}
+			return channel.write(message);
 		}
+		if (this.aggregating) {
+			this.flushWrites();
+		}
+		if (policy == null) {
+			policy = defaultPolicy;
+		}
+		synchronized(this.outbound) {
+			if (this.outbound.isEmpty() && channel.isWritable()) {
+				this.backedUp = false;
+				return channel.write(message);
+			}
+			if (!this.backedUp) {
+				this.backedUp = true;
+				BackpressureMetrics.slowConsumer();
+			}
+			if (terminal) {
+				//the caller gets a future for when it is actually written (ex: to close the connection after)
+				ChannelFuture future = Channels.future(channel);
+				Pending pending = new Pending(message, txnId, true);
+				pending.listener = new FutureFanout(new ChannelFuture[] {future});
+				this.outbound.add(pending);
+				this.trim();
+				if (this.outbound.size() > maxPending) {
+					//only responses left, they can't be dropped.
+					this.disconnect(channel);
+				}
+				return future;
+			}
+			if (policy == BackpressurePolicy.BLOCK && isIoThread()) {
+				//an io thread can't wait for a channel to drain, it is the thread that drains it.
+				policy = BackpressurePolicy.DROP_OLDEST;
+			}
+			switch(policy) {
+			case BLOCK :
+				BackpressureMetrics.record(policy);
+				return this.block(channel, message);
+			case DROP_NEWEST :
+				BackpressureMetrics.record(policy);
+				return null;
+			case COALESCE_LATEST :
+				if (txnId != null) {
+					for (Pending p : this.outbound) {
+						if (!p.terminal && txnId.equals(p.txnId)) {
+							p.message = message;
+							BackpressureMetrics.record(policy);
+							return null;
+						}
+					}
+				}
+				this.outbound.add(new Pending(message, txnId, false));
+				this.trim();
+				return null;
+			case DROP_OLDEST :
+				this.outbound.add(new Pending(message, txnId, false));
+				this.trim();
+				return null;
+			case DISCONNECT :
+				this.disconnect(channel);
+				return null;
+			}
+		}
+		return null;
 	}
 	
+	/**
+	 * closes the channel of a slow consumer. must hold the outbound lock.
+	 * @param channel
+	 */
+	private void disconnect(Channel channel) {
+		BackpressureMetrics.record(BackpressurePolicy.DISCONNECT);
+		log.warn("Disconnecting slow consumer: " + this.getRemoteAddress());
+		this.clearOutbound();
+		channel.close();
+	}
+	
+	/**
+	 * drops everything held back, failing any coalesced writes. must hold the outbound lock.
+	 */
+	private void clearOutbound() {
+		for (Pending p : this.outbound) {
+			if (p.listener != null) {
+				p.listener.fail(new ClosedChannelException());
+			}
+		}
+		this.outbound.clear();
+		this.outbound.notifyAll();
+	}
+	
+	/**
+	 * adds the buffer to the aggregate, writing the aggregate if it is full.
+	 * @param channel
+	 * @param buffer
+	 * @return a future for this message's part of the write.
+	 */
+	private ChannelFuture coalesce(Channel channel, ChannelBuffer buffer) {
+		ChannelFuture future = Channels.future(channel);
+		synchronized(this.aggregate) {
+			this.aggregate.add(buffer);
+			this.aggregateFutures.add(future);
+			this.aggregateBytes += buffer.readableBytes();
+			if (this.aggregateBytes >= coalesceMaxBytes) {
+				this.aggregating = true;
+				this.flushWrites();
+			} else if (!this.aggregating) {
+				this.aggregating = true;
+				this.scheduledFlush = getFlushTimer().schedule(this.flushTask, coalesceMaxDelayMicros, TimeUnit.MICROSECONDS);
+			}
+		}
+		return future;
+	}
+	
+	/**
+	 * writes any coalesced messages as a single buffer.  If the connection is a slow 
+	 * consumer the buffer is held back until it drains.
+	 */
+	public void flushWrites() {
+		if (!this.aggregating)
+			return;
+		synchronized(this.aggregate) {
+			this.aggregating = false;
+			if (this.scheduledFlush != null) {
+				this.scheduledFlush.cancel(false);
+				this.scheduledFlush = null;
+			}
+			if (this.aggregate.isEmpty())
+				return;
+			ChannelBuffer merged = ChannelBuffers.wrappedBuffer(this.aggregate.toArray(new ChannelBuffer[this.aggregate.size()]));
+			FutureFanout fanout = new FutureFanout(this.aggregateFutures.toArray(new ChannelFuture[this.aggregateFutures.size()]));
+			this.aggregate.clear();
+			this.aggregateFutures.clear();
+			this.aggregateBytes = 0;
+			Channel channel = this.channel;
+			if (channel == null || !channel.isOpen()) {
+				fanout.fail(new ClosedChannelException());
+				return;
+			}
+			//written under the lock so concurrent flushes stay in order.
+			if (!this.backedUp && channel.isWritable()) {
+				channel.write(merged).addListener(fanout);
+				return;
+			}
+			synchronized(this.outbound) {
+				if (!this.backedUp) {
+					this.backedUp = true;
+					BackpressureMetrics.slowConsumer();
+				}
+				//may complete txns, so it is never dropped.
+				Pending pending = new Pending(merged, null, true);
+				pending.listener = fanout;
+				this.outbound.add(pending);
+				this.trim();
+				if (this.outbound.size() > maxPending) {
+					this.disconnect(channel);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * turns write coalescing on or off for this connection.
+	 * @param coalesce
+	 */
+	public void setCoalesceWrites(boolean coalesce) {
+		this.coalesce = coalesce;
+		if (!coalesce) {
+			this.flushWrites();
+		}
+	}
+	
+	public boolean isCoalesceWrites() {
+		return this.coalesce;
+	}
+	
+	/**
+	 * waits for the channel to drain then writes. must hold the outbound lock.
+	 * @return the write future, or null if the wait timed out and the message was dropped.
+	 */
+	private Object block(Channel channel, Object message) {
+		long deadline = System.currentTimeMillis() + blockTimeout;
+		try {
+			while (!(this.outbound.isEmpty() && channel.isWritable())) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0 || !channel.isOpen()) {
+					BackpressureMetrics.blockTimeout();
+					return null;
+				}
+				this.outbound.wait(wait);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		this.backedUp = false;
+		return channel.write(message);
+	}
+	
+	/**
+	 * drops the oldest non terminal messages until we are under maxPending. must hold the outbound lock.
+	 */
+	private void trim() {
+		Iterator<Pending> it = this.outbound.iterator();
+		while (this.outbound.size() > maxPending && it.hasNext()) {
+			if (!it.next().terminal) {
+				it.remove();
+				BackpressureMetrics.record(BackpressurePolicy.DROP_OLDEST);
+			}
+		}
+	}
+	
+	/**
+	 * called when netty's outbound buffer drops below the low watermark.
+	 * flushes any held back messages and wakes blocked senders.
+	 */
+	public void writabilityChanged() {
+		if (!this.backedUp)
+			return;
+		Channel channel = this.channel;
+		synchronized(this.outbound) {
+			while (!this.outbound.isEmpty() && channel.isWritable()) {
+				Pending pending = this.outbound.removeFirst();
+				ChannelFuture future = channel.write(pending.message);
+				if (pending.listener != null) {
+					future.addListener(pending.listener);
+				}
+			}
+			if (this.outbound.isEmpty() && channel.isWritable()) {
+				this.backedUp = false;
+			}
+			this.outbound.notifyAll();
+		}
+	}
+	
+	/**
+	 * true if the channel is currently over its high watermark or has messages held back.
+	 * @return
+	 */
+	public boolean isSlowConsumer() {
+		return this.backedUp;
+	}
+	
+	@Override
+	public synchronized void cleanup() {
+		//the channel is gone, this fails anything still coalesced and cancels the timer.
+		this.flushWrites();
+		synchronized(this.outbound) {
+			this.clearOutbound();
+		}
+		super.cleanup();
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.connections.StrestConnectionChannel#isEncodedSupported()
+	 */
+	@Override
+	public boolean isEncodedSupported() {
+		return true;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.connections.StrestConnectionChannel#doSendEncoded(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	protected Object doSendEncoded(ChannelBuffer buffer) throws Exception {
+		return this.doSendEncoded(buffer, null, false, null);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.connections.StrestConnectionChannel#doSendEncoded(org.jboss.netty.buffer.ChannelBuffer, java.lang.String, boolean, com.trendrr.strest.server.connections.BackpressurePolicy)
+	 */
+	@Override
+	protected Object doSendEncoded(ChannelBuffer buffer, String txnId, boolean terminal, BackpressurePolicy policy) throws Exception {
+		//the encoders in both pipelines pass raw buffers straight through.
+		return this.write(buffer, txnId, terminal, policy);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.connections.StrestConnectionChannel#doSendEncoded(org.jboss.netty.buffer.ChannelBuffer, int)
+	 */
+	@Override
+	protected Object doSendEncoded(ChannelBuffer buffer, int sequence) throws Exception {
+		Object message = buffer;
+		if (sequence >= 0) {
+			message = new HttpPipeliningHandler.Sequenced(sequence, buffer);
+		}
+		return this.write(message, null, true, null);
+	}
 
 //	/* (non-Javadoc)
 //	 * @see java.lang.Comparable#compareTo(java.lang.Object)
@@ -103,6 +671,18 @@ public class StrestNettyConnectionChannel extends StrestConnectionChannel {
 //		return -1;
 //	}
 
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.connections.StrestConnectionChannel#skipSequence(int)
+	 */
+	@Override
+	public void skipSequence(int sequence) {
+		Channel channel = this.channel;
+		if (sequence >= 0 && channel != null && channel.isOpen()) {
+			//writes nothing, so it doesn't need to wait for a slow consumer.
+			channel.write(new HttpPipeliningHandler.Sequenced(sequence, null));
+		}
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.trendrr.strest.server.connections.StrestConnectionChannel#getRemoteAddress()
 	 */
@@ -115,5 +695,21 @@ public class StrestNettyConnectionChannel extends StrestConnectionChannel {
 		}
 		return null;
 	}
-
+	
+	/**
+	 * a message waiting for the channel to drain.
+	 */
+	private static class Pending {
+		Object message;
+		final String txnId;
+		final boolean terminal;
+		//completes the futures of a coalesced write, or a response's future
+		FutureFanout listener = null;
+		
+		Pending(Object message, String txnId, boolean terminal) {
+			this.message = message;
+			this.txnId = txnId;
+			this.terminal = terminal;
+		}
+	}
 }
@@ -0,0 +1,91 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.controllers;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.annotations.Strest;
+import com.trendrr.strest.server.ConcurrencyLimiter;
+import com.trendrr.strest.server.StrestController;
+import com.trendrr.strest.server.connections.BackpressureMetrics;
+import com.trendrr.strest.server.metrics.RequestMetrics;
+
+
+/**
+ *
+ * Serves the router's RequestMetrics, plus the backpressure counts and concurrency limits.
+ *
+ * JSON by default, the prometheus text format for ?format=prometheus or when the
+ * client asks for text/plain (as prometheus does).
+ *
+ * Add com.trendrr.strest.server.controllers.MetricsController to controller_packages
+ * to enable it.
+ *
+ */
+@Strest(
+		route = "/metrics"
+)
+public class MetricsController extends StrestController {
+
+	protected static Log log = LogFactory.getLog(MetricsController.class);
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.StrestController#handleGET(com.trendrr.oss.DynMap)
+	 */
+	@Override
+	public void handleGET(DynMap params) throws Exception {
+		RequestMetrics metrics = this.getRouter().getMetrics();
+		if (this.isPrometheus(params)) {
+			StringBuilder sb = new StringBuilder(8192);
+			metrics.toPrometheus(sb);
+			this.appendPrometheus(sb);
+			this.setResponseUTF8("text/plain; version=0.0.4", sb.toString());
+			return;
+		}
+		DynMap mp = metrics.toDynMap();
+		mp.put("backpressure", BackpressureMetrics.toDynMap());
+		DynMap limiters = new DynMap();
+		for (ConcurrencyLimiter limiter : this.getRouter().getLimiters()) {
+			DynMap l = new DynMap();
+			l.put("limit", limiter.getLimit());
+			l.put("in_flight", limiter.getInFlight());
+			l.put("rejected", limiter.getRejected());
+			limiters.put(limiter.getName(), l);
+		}
+		mp.put("limiters", limiters);
+		this.setResponseJSON(mp);
+	}
+
+	protected boolean isPrometheus(DynMap params) {
+		String format = params.getString("format");
+		if (format != null) {
+			return format.equalsIgnoreCase("prometheus");
+		}
+		String accept = this.getRequest().getHeader("Accept");
+		return accept != null && accept.contains("text/plain") && !accept.contains("json");
+	}
+
+	protected void appendPrometheus(StringBuilder sb) {
+		RequestMetrics.type(sb, "strest_backpressure_events_total", "counter", "Slow consumer events, by action.");
+		for (Map.Entry<String, Object> e : BackpressureMetrics.toDynMap().entrySet()) {
+			RequestMetrics.sample(sb, "strest_backpressure_events_total", "event=\"" + e.getKey() + "\"", ((Number)e.getValue()).doubleValue());
+		}
+		RequestMetrics.type(sb, "strest_concurrency_limit", "gauge", "Adaptive concurrency limit, by namespace.");
+		for (ConcurrencyLimiter limiter : this.getRouter().getLimiters()) {
+			RequestMetrics.sample(sb, "strest_concurrency_limit", "namespace=\"" + RequestMetrics.escape(limiter.getName()) + "\"", limiter.getLimit());
+		}
+		RequestMetrics.type(sb, "strest_concurrency_in_flight", "gauge", "Requests holding a concurrency limiter slot, by namespace.");
+		for (ConcurrencyLimiter limiter : this.getRouter().getLimiters()) {
+			RequestMetrics.sample(sb, "strest_concurrency_in_flight", "namespace=\"" + RequestMetrics.escape(limiter.getName()) + "\"", limiter.getInFlight());
+		}
+		RequestMetrics.type(sb, "strest_concurrency_rejected_total", "counter", "Requests rejected by the concurrency limiter, by namespace.");
+		for (ConcurrencyLimiter limiter : this.getRouter().getLimiters()) {
+			RequestMetrics.sample(sb, "strest_concurrency_rejected_total", "namespace=\"" + RequestMetrics.escape(limiter.getName()) + "\"", limiter.getRejected());
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.filters;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.ContentTypes;
+import com.trendrr.strest.StrestException;
+import com.trendrr.strest.server.StrestController;
+import com.trendrr.strest.server.StrestControllerFilter;
+import com.trendrr.strest.server.v2.models.StrestResponse;
+
+
+/**
+ *
+ * Token bucket rate limiting.  Add it to a namespace in the filters section:
+ *
+ * filters:
+ *    api:
+ *       - class: com.trendrr.strest.server.filters.RateLimitFilter
+ *         key: remote_address   # route, remote_address or param.  default route
+ *         param: api_key        # the param to key on, for key: param
+ *         rate: 100             # requests per second, per key
+ *         burst: 200            # bucket size.  defaults to rate
+ *         max_keys: 100000      # buckets held at once
+ *
+ * Requests over the limit get a 429 with Retry-After.  The controller is skipped
+ * (setSkipExecution) rather than failed with an exception, so a rejection costs a
+ * map lookup and nothing else.
+ *
+ * A bucket is a single AtomicLong holding the time it will be full again, taking a
+ * token pushes that out by 1/rate seconds, and is refused if it would land more than
+ * burst tokens in the future.  Buckets are never locked.  Full buckets are the same
+ * as missing ones, they are swept out once there are more than max_keys.
+ *
+ * Requests missing the key (no param, unknown address) share a single bucket.
+ *
+ */
+public class RateLimitFilter implements StrestControllerFilter {
+
+	protected static Log log = LogFactory.getLog(RateLimitFilter.class);
+
+	public static enum Key {
+		ROUTE,
+		REMOTE_ADDRESS,
+		PARAM
+	}
+
+	private static final byte[] RATE_LIMITED = "Rate limit exceeded".getBytes();
+
+	protected final Key key;
+	protected final String param;
+	protected final int maxKeys;
+	//nanos per token
+	protected final long interval;
+	//nanos of tokens the bucket holds
+	protected final long burst;
+
+	protected final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicBoolean sweeping = new AtomicBoolean(false);
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * 100 requests per second per route.
+	 */
+	public RateLimitFilter() {
+		this(new DynMap());
+	}
+
+	public RateLimitFilter(DynMap config) {
+		this.key = Key.valueOf(config.getString("key", "route").toUpperCase());
+		this.param = config.getString("param", null);
+		if (this.key == Key.PARAM && this.param == null) {
+			throw new IllegalArgumentException("RateLimitFilter with key: param needs a param");
+		}
+		double rate = config.getDouble("rate", 100.0);
+		if (rate <= 0) {
+			throw new IllegalArgumentException("RateLimitFilter rate must be positive: " + rate);
+		}
+		double burst = Math.max(1, config.getDouble("burst", rate));
+		this.interval = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / rate));
+		this.burst = (long)(this.interval * burst);
+		this.maxKeys = Math.max(1, config.getInteger("max_keys", 100000));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.StrestControllerFilter#before(com.trendrr.strest.server.StrestController)
+	 */
+	@Override
+	public void before(StrestController controller) throws StrestException {
+		if (controller.isSkipExecution()) {
+			return; //already answered by an earlier filter
+		}
+		long wait = this.tryAcquire(this.bucket(this.key(controller)), System.nanoTime());
+		if (wait <= 0) {
+			return;
+		}
+		this.rejected.incrementAndGet();
+		controller.setSkipExecution(true);
+		StrestResponse response = controller.getResponse();
+		response.setStatus(429, "Too Many Requests");
+		response.addHeader("Retry-After", String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1))));
+		controller.setResponseBytes(ContentTypes.TEXT, RATE_LIMITED);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.StrestControllerFilter#after(com.trendrr.strest.server.StrestController)
+	 */
+	@Override
+	public void after(StrestController controller) throws StrestException {
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.StrestControllerFilter#error(com.trendrr.strest.server.StrestController, com.trendrr.strest.server.v2.models.StrestResponse, java.lang.Exception)
+	 */
+	@Override
+	public void error(StrestController controller, StrestResponse response, Exception exception) {
+	}
+
+	/**
+	 * the bucket key for this request, "" if it has none.
+	 * @param controller
+	 * @return
+	 */
+	protected String key(StrestController controller) {
+		String k = null;
+		switch (this.key) {
+		case ROUTE :
+			String[] routes = controller.getDescriptor().getRoutes();
+			k = routes.length > 0 ? routes[0] : controller.getClass().getName();
+			break;
+		case REMOTE_ADDRESS :
+			k = controller.getChannelConnection() == null ? null : controller.getChannelConnection().getRemoteAddress();
+			if (k != null) {
+				//the host, not the connection, is limited.  "/1.2.3.4:5678"
+				int colon = k.lastIndexOf(':');
+				if (colon > 0) {
+					k = k.substring(0, colon);
+				}
+			}
+			break;
+		case PARAM :
+			Object v = controller.getParam(this.param);
+			k = v == null ? null : v.toString();
+			break;
+		}
+		return k == null ? "" : k;
+	}
+
+	protected AtomicLong bucket(String k) {
+		AtomicLong bucket = this.buckets.get(k);
+		if (bucket != null) {
+			return bucket;
+		}
+		long now = System.nanoTime();
+		bucket = new AtomicLong(now);
+		AtomicLong existing = this.buckets.putIfAbsent(k, bucket);
+		if (existing != null) {
+			return existing;
+		}
+		if (this.size.incrementAndGet() > this.maxKeys) {
+			this.sweep(now);
+		}
+		return bucket;
+	}
+
+	/**
+	 * takes a token from the bucket.
+	 * @param bucket
+	 * @param now
+	 * @return 0 if taken, otherwise nanos until one is available.
+	 */
+	protected long tryAcquire(AtomicLong bucket, long now) {
+		while (true) {
+			long full = bucket.get();
+			long next = (full - now > 0 ? full : now) + this.interval;
+			long wait = next - now - this.burst;
+			if (wait > 0) {
+				return wait;
+			}
+			if (bucket.compareAndSet(full, next)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * removes the full buckets, and if that isn't enough, whatever else it takes to
+	 * get down to 90% of max_keys.  A removed bucket just starts over full.
+	 * @param now
+	 */
+	protected void sweep(long now) {
+		if (!this.sweeping.compareAndSet(false, true)) {
+			return; //someone else is on it
+		}
+		try {
+			for (Map.Entry<String, AtomicLong> e : this.buckets.entrySet()) {
+				if (e.getValue().get() - now <= 0) {
+					this.remove(e.getKey(), e.getValue());
+				}
+			}
+			if (this.size.get() > this.maxKeys) {
+				//all busy, drop some anyway
+				int target = this.maxKeys - this.maxKeys / 10;
+				Iterator<Map.Entry<String, AtomicLong>> i = this.buckets.entrySet().iterator();
+				while (this.size.get() > target && i.hasNext()) {
+					Map.Entry<String, AtomicLong> e = i.next();
+					this.remove(e.getKey(), e.getValue());
+				}
+			}
+		} finally {
+			this.sweeping.set(false);
+		}
+	}
+
+	private void remove(String k, AtomicLong bucket) {
+		if (this.buckets.remove(k, bucket)) {
+			this.size.decrementAndGet();
+		}
+	}
+
+	/**
+	 * number of buckets currently held
+	 * @return
+	 */
+	public int getKeyCount() {
+		return this.size.get();
+	}
+
+	/**
+	 * requests rejected since startup
+	 * @return
+	 */
+	public long getRejected() {
+		return this.rejected.get();
+	}
+}
@@ -0,0 +1,423 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.filters;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.StrestException;
+import com.trendrr.strest.server.StrestController;
+import com.trendrr.strest.server.StrestControllerFilter;
+import com.trendrr.strest.server.connections.EncodedResponse;
+import com.trendrr.strest.server.v2.models.StrestHeader;
+import com.trendrr.strest.server.v2.models.StrestRequest;
+import com.trendrr.strest.server.v2.models.StrestResponse;
+import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
+
+
+/**
+ *
+ * Caches GET responses.  Add it to a namespace in the filters section:
+ *
+ * filters:
+ *    api:
+ *       - class: com.trendrr.strest.server.filters.ResponseCacheFilter
+ *         ttl: 60               # seconds a response is served from the cache
+ *         max_mb: 64            # total size of the cached responses
+ *         max_entry_kb: 1024    # larger responses are not cached
+ *         wait_timeout: 5000    # millis a request waits on a load of the same key
+ *         ignore_params:        # params left out of the key (cache busters, etc.)
+ *            - _
+ *
+ * The key is the request path plus its query (or packet) params, sorted, so only cache namespaces whose
+ * responses depend on nothing else (no per user content, no header dependent content).
+ * Only 200 responses are stored, a controller can opt out of caching a response by
+ * setting Cache-Control: no-store, no-cache or private.
+ *
+ * Responses are stored already encoded for every wire format (see EncodedResponse),
+ * a hit is written as is with the request's txn id patched in, and the controller is
+ * skipped.
+ *
+ * Concurrent misses for the same key are collapsed, the first runs the controller and
+ * the others wait (up to wait_timeout, or their deadline) for its response.  @NonBlocking
+ * handlers run on the io thread, so they never wait, they run the controller.
+ *
+ * Once the cache is over max_mb, expired responses are dropped, then the least recently
+ * used until it is back under 90%.
+ *
+ */
+public class ResponseCacheFilter implements StrestControllerFilter {
+
+	protected static Log log = LogFactory.getLog(ResponseCacheFilter.class);
+
+	protected static final class Entry {
+		final EncodedResponse response;
+		final long expires;
+		final int size;
+		volatile long lastAccess;
+
+		Entry(EncodedResponse response, long expires, long now) {
+			this.response = response;
+			this.expires = expires;
+			this.size = response.getEncodedSize();
+			this.lastAccess = now;
+		}
+	}
+
+	/**
+	 * a controller running for a missing key, others wait on it.
+	 */
+	protected static final class Load {
+		final String key;
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Entry entry;
+
+		Load(String key) {
+			this.key = key;
+		}
+	}
+
+	protected final long ttl;
+	protected final long maxBytes;
+	protected final int maxEntryBytes;
+	protected final long waitTimeout;
+	protected final Set<String> ignoreParams = new HashSet<String>();
+
+	protected final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	protected final ConcurrentHashMap<String, Load> loads = new ConcurrentHashMap<String, Load>();
+	//the load each loading controller is responsible for
+	protected final ConcurrentHashMap<StrestController, Load> loaders = new ConcurrentHashMap<StrestController, Load>();
+
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicBoolean evicting = new AtomicBoolean(false);
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong collapsed = new AtomicLong();
+
+	/**
+	 * 60 second ttl, 64mb.
+	 */
+	public ResponseCacheFilter() {
+		this(new DynMap());
+	}
+
+	public ResponseCacheFilter(DynMap config) {
+		this.ttl = TimeUnit.SECONDS.toMillis(config.getInteger("ttl", 60));
+		this.maxBytes = config.getInteger("max_mb", 64) * 1024L * 1024L;
+		this.maxEntryBytes = config.getInteger("max_entry_kb", 1024) * 1024;
+		this.waitTimeout = config.getInteger("wait_timeout", 5000);
+		List<String> ignore = config.getList(String.class, "ignore_params");
+		if (ignore != null) {
+			this.ignoreParams.addAll(ignore);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.StrestControllerFilter#before(com.trendrr.strest.server.StrestController)
+	 */
+	@Override
+	public void before(StrestController controller) throws StrestException {
+		StrestRequest request = controller.getRequest();
+		if (controller.isSkipExecution()
+				|| request.getMethod() != StrestHeader.Method.GET
+				|| !request.getConnectionChannel().isEncodedSupported()) {
+			return;
+		}
+		String key = this.key(controller);
+		long now = System.currentTimeMillis();
+		Entry entry = this.get(key, now);
+		if (entry != null) {
+			this.hit(controller, entry);
+			return;
+		}
+		Load load = new Load(key);
+		Load existing = this.loads.putIfAbsent(key, load);
+		if (existing == null) {
+			entry = this.get(key, now);
+			if (entry != null) {
+				//filled between our lookup and now
+				this.finish(load, entry);
+				this.hit(controller, entry);
+				return;
+			}
+			this.misses.incrementAndGet();
+			this.loaders.put(controller, load);
+			return;
+		}
+		if (controller.getDescriptor().isInline(request.getMethod())) {
+			return; //never block the io thread
+		}
+		long wait = Math.min(this.waitTimeout, controller.getRemainingTime());
+		try {
+			if (wait > 0 && existing.done.await(wait, TimeUnit.MILLISECONDS) && existing.entry != null) {
+				this.collapsed.incrementAndGet();
+				this.hit(controller, existing.entry);
+			}
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+		}
+		//else the load failed or is taking too long, run it ourselves.
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.StrestControllerFilter#after(com.trendrr.strest.server.StrestController)
+	 */
+	@Override
+	public void after(StrestController controller) throws StrestException {
+		Load load = this.loaders.remove(controller);
+		if (load == null) {
+			return;
+		}
+		Entry entry = null;
+		try {
+			if (controller.getEncodedResponse() == null && this.isCacheable(controller)) {
+				entry = this.store(load.key, controller.getResponse());
+			}
+		} catch (Exception x) {
+			//still send the response, just don't cache it
+			log.warn("Unable to cache response for: " + load.key, x);
+		} finally {
+			this.finish(load, entry);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.StrestControllerFilter#error(com.trendrr.strest.server.StrestController, com.trendrr.strest.server.v2.models.StrestResponse, java.lang.Exception)
+	 */
+	@Override
+	public void error(StrestController controller, StrestResponse response, Exception exception) {
+		Load load = controller == null ? null : this.loaders.remove(controller);
+		if (load != null) {
+			//the waiters will run it themselves
+			this.finish(load, null);
+		}
+	}
+
+	/**
+	 * the request path plus the sorted query params, then the sorted params carried in the
+	 * packet for non http requests.  Names and values are url encoded, so a value containing
+	 * & or = can't pass for another set of params.
+	 * 
+	 * Built from the sources directly rather than controller.getParams(), which would merge
+	 * every source on each cacheable GET.  Route params are part of the path, and a GET has
+	 * no POST body.
+	 * @param controller
+	 * @return
+	 */
+	protected String key(StrestController controller) {
+		StrestRequest request = controller.getRequest();
+		String uri = request.getUri();
+		int query = uri.indexOf('?');
+		StringBuilder key = new StringBuilder(query < 0 ? uri : uri.substring(0, query));
+		char separator = '?';
+		if (query >= 0) {
+			separator = this.append(key, separator, controller.getParamsGET());
+		}
+		if (!(request instanceof StrestHttpRequest)) {
+			//keeps the packet params apart, so they can't collide with the query params
+			key.append('#');
+			this.append(key, separator, request.getParams());
+		}
+		return key.toString();
+	}
+
+	private char append(StringBuilder key, char separator, DynMap params) {
+		if (params == null || params.isEmpty()) {
+			return separator;
+		}
+		for (Map.Entry<String, Object> p : new TreeMap<String, Object>(params).entrySet()) {
+			if (this.ignoreParams.contains(p.getKey())) {
+				continue;
+			}
+			key.append(separator).append(encode(p.getKey())).append('=').append(encode(String.valueOf(p.getValue())));
+			separator = '&';
+		}
+		return separator;
+	}
+
+	private static String encode(String str) {
+		try {
+			return URLEncoder.encode(str, "utf-8");
+		} catch (UnsupportedEncodingException x) {
+			throw new IllegalStateException(x); //utf8 is always there
+		}
+	}
+
+	protected boolean isCacheable(StrestController controller) {
+		StrestResponse response = controller.getResponse();
+		if (!controller.isSendResponse() || response == null || response.getStatusCode() != 200
+				|| response.getTxnStatus() == StrestHeader.TxnStatus.CONTINUE) {
+			return false;
+		}
+		String cacheControl = response.getHeader("Cache-Control");
+		if (cacheControl != null) {
+			cacheControl = cacheControl.toLowerCase();
+			if (cacheControl.contains("no-store") || cacheControl.contains("no-cache") || cacheControl.contains("private")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	protected void hit(StrestController controller, Entry entry) {
+		this.hits.incrementAndGet();
+		controller.setSkipExecution(true);
+		controller.setEncodedResponse(entry.response);
+	}
+
+	protected Entry get(String key, long now) {
+		Entry entry = this.entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expires <= now) {
+			this.remove(key, entry);
+			return null;
+		}
+		entry.lastAccess = now;
+		return entry;
+	}
+
+	/**
+	 * encodes the response and adds it to the cache.
+	 * @param key
+	 * @param response
+	 * @return the entry, or null if the response is too big.
+	 */
+	protected Entry store(String key, StrestResponse response) {
+		if (response.getTxnStatus() == null) {
+			response.setTxnStatus(StrestHeader.TxnStatus.COMPLETED);
+		}
+		long now = System.currentTimeMillis();
+		//encoded now, the response is modified on its way out.
+		Entry entry = new Entry(new EncodedResponse(response).encodeAll(), now + this.ttl, now);
+		if (entry.size > this.maxEntryBytes) {
+			return null;
+		}
+		Entry old = this.entries.put(key, entry);
+		this.bytes.addAndGet(entry.size - (old == null ? 0 : old.size));
+		if (this.bytes.get() > this.maxBytes) {
+			this.evict(now);
+		}
+		return entry;
+	}
+
+	protected void finish(Load load, Entry entry) {
+		load.entry = entry;
+		this.loads.remove(load.key, load);
+		load.done.countDown();
+	}
+
+	private void remove(String key, Entry entry) {
+		if (this.entries.remove(key, entry)) {
+			this.bytes.addAndGet(-entry.size);
+		}
+	}
+
+	/**
+	 * drops the expired entries, then the least recently used until under 90% of max_mb.
+	 * @param now
+	 */
+	protected void evict(long now) {
+		if (!this.evicting.compareAndSet(false, true)) {
+			return; //someone else is on it
+		}
+		try {
+			List<Candidate> candidates = new ArrayList<Candidate>(this.entries.size());
+			for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+				if (e.getValue().expires <= now) {
+					this.remove(e.getKey(), e.getValue());
+				} else {
+					candidates.add(new Candidate(e.getKey(), e.getValue()));
+				}
+			}
+			long target = this.maxBytes - this.maxBytes / 10;
+			if (this.bytes.get() <= target) {
+				return;
+			}
+			Collections.sort(candidates, new Comparator<Candidate>() {
+				@Override
+				public int compare(Candidate o1, Candidate o2) {
+					return o1.lastAccess < o2.lastAccess ? -1 : (o1.lastAccess == o2.lastAccess ? 0 : 1);
+				}
+			});
+			for (Candidate c : candidates) {
+				if (this.bytes.get() <= target) {
+					break;
+				}
+				this.remove(c.key, c.entry);
+			}
+		} finally {
+			this.evicting.set(false);
+		}
+	}
+
+	/**
+	 * an entry with its access time fixed, so the sort is stable while requests touch it
+	 */
+	private static final class Candidate {
+		final String key;
+		final Entry entry;
+		final long lastAccess;
+
+		Candidate(String key, Entry entry) {
+			this.key = key;
+			this.entry = entry;
+			this.lastAccess = entry.lastAccess;
+		}
+	}
+
+	/**
+	 * responses served from the cache, including collapsed ones.
+	 * @return
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * requests that ran the controller to fill the cache.
+	 * @return
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * requests that waited on another request's load instead of running the controller.
+	 * @return
+	 */
+	public long getCollapsed() {
+		return this.collapsed.get();
+	}
+
+	/**
+	 * bytes held
+	 * @return
+	 */
+	public long getBytes() {
+		return this.bytes.get();
+	}
+
+	public int getEntryCount() {
+		return this.entries.size();
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.metrics;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.WriteCompletionEvent;
+
+
+/**
+ *
+ * Counts the bytes read and written by a connection, into the router's RequestMetrics.
+ *
+ * Must be first in the pipeline, so it sees the raw buffers before they are decoded.
+ * Has no per connection state, one instance is shared by every pipeline of a listener.
+ *
+ */
+@ChannelHandler.Sharable
+public class ByteCountingHandler extends SimpleChannelUpstreamHandler {
+
+	protected final RequestMetrics metrics;
+
+	public ByteCountingHandler(RequestMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+	 */
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		if (e.getMessage() instanceof ChannelBuffer) {
+			this.metrics.bytesIn(((ChannelBuffer)e.getMessage()).readableBytes());
+		}
+		ctx.sendUpstream(e);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#writeComplete(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.WriteCompletionEvent)
+	 */
+	@Override
+	public void writeComplete(ChannelHandlerContext ctx, WriteCompletionEvent e) throws Exception {
+		this.metrics.bytesOut(e.getWrittenAmount());
+		ctx.sendUpstream(e);
+	}
+}
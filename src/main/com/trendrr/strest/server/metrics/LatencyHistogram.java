@@ -0,0 +1,153 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.trendrr.oss.DynMap;
+
+
+/**
+ *
+ * Fixed size latency histogram, in microseconds (HdrHistogram style).
+ *
+ * Values under 32 get a bucket each, above that every power of two is split into 16
+ * buckets, so any value is recorded within 1/16 (6.25%) of itself.  Values up to an
+ * hour are tracked, anything longer counts as an hour.  That is 459 counters, under 4kb,
+ * no matter how many values are recorded.
+ *
+ * Recording is lock free (a few atomic increments), reading takes a snapshot of the
+ * counters, which may be slightly torn while values are being recorded.
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int LINEAR = SUB_COUNT * 2;
+	private static final long MAX_VALUE = TimeUnit.HOURS.toMicros(1);
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * the bucket of the value.
+	 * @param micros
+	 * @return
+	 */
+	static int index(long micros) {
+		if (micros < LINEAR) {
+			return (int)Math.max(0, micros);
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+		//top SUB_BITS + 1 bits, between SUB_COUNT and LINEAR - 1
+		return shift * SUB_COUNT + (int)(micros >>> shift);
+	}
+
+	/**
+	 * the largest value that lands in the bucket.
+	 * @param index
+	 * @return
+	 */
+	static long highestValue(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = index / SUB_COUNT - 1;
+		long top = SUB_COUNT + index % SUB_COUNT;
+		return ((top + 1) << shift) - 1;
+	}
+
+	public void record(long value, TimeUnit unit) {
+		long micros = Math.min(MAX_VALUE, Math.max(0, unit.toMicros(value)));
+		this.counts.incrementAndGet(index(micros));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(micros);
+		long m = this.max.get();
+		while (micros > m && !this.max.compareAndSet(m, micros)) {
+			m = this.max.get();
+		}
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * total of all the recorded values, in micros
+	 * @return
+	 */
+	public long getSum() {
+		return this.sum.get();
+	}
+
+	/**
+	 * largest recorded value, in micros
+	 * @return
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * the value (in micros) that the given fraction of values are at or below.
+	 * @param quantile between 0 and 1
+	 * @return
+	 */
+	public long getValueAtQuantile(double quantile) {
+		return this.getValuesAtQuantiles(new double[] {quantile})[0];
+	}
+
+	/**
+	 * several quantiles, from a single snapshot.
+	 * @param quantiles in ascending order
+	 * @return the values in micros
+	 */
+	public long[] getValuesAtQuantiles(double[] quantiles) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = this.counts.get(i);
+			total += snapshot[i];
+		}
+		long[] values = new long[quantiles.length];
+		if (total == 0) {
+			return values;
+		}
+		long max = this.max.get();
+		long seen = 0;
+		int bucket = 0;
+		for (int q = 0; q < quantiles.length; q++) {
+			long rank = Math.max(1, (long)Math.ceil(quantiles[q] * total));
+			while (bucket < BUCKETS - 1 && seen + snapshot[bucket] < rank) {
+				seen += snapshot[bucket++];
+			}
+			values[q] = Math.min(max, highestValue(bucket));
+		}
+		return values;
+	}
+
+	/**
+	 * count, mean, max and the usual percentiles, in millis.
+	 * @return
+	 */
+	public DynMap toDynMap() {
+		long[] values = this.getValuesAtQuantiles(new double[] {.5, .9, .99, .999});
+		long count = this.getCount();
+		DynMap mp = new DynMap();
+		mp.put("count", count);
+		mp.put("mean", count == 0 ? 0.0 : this.getSum() / 1000.0 / count);
+		mp.put("max", this.getMax() / 1000.0);
+		mp.put("p50", values[0] / 1000.0);
+		mp.put("p90", values[1] / 1000.0);
+		mp.put("p99", values[2] / 1000.0);
+		mp.put("p999", values[3] / 1000.0);
+		return mp;
+	}
+}
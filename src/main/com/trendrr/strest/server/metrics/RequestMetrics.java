@@ -0,0 +1,295 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.v2.models.StrestHeader;
+
+
+/**
+ *
+ * Request metrics for a router:
+ * 	latency histograms per route and method, and per method (see LatencyHistogram)
+ * 	response counts by status code
+ * 	exceptions thrown by controllers, by class
+ * 	bytes read and written on the wire (see ByteCountingHandler)
+ *
+ * Latency is measured from when the router picks up the request to when the response
+ * is handed to the connection, so it includes the filters but not the time spent waiting
+ * for a worker.
+ *
+ * Everything is a fixed size atomic counter, recording a request takes a map lookup
+ * and a few increments.
+ *
+ */
+public class RequestMetrics {
+
+	//beyond this many exception classes, the rest are counted together
+	private static final int MAX_EXCEPTION_TYPES = 100;
+	private static final String OTHER = "other";
+
+	private static final double[] QUANTILES = new double[] {.5, .9, .99, .999};
+	private static final String[] QUANTILE_LABELS = new String[] {"0.5", "0.9", "0.99", "0.999"};
+
+	/**
+	 * a histogram per method, created the first time the method is seen.
+	 */
+	protected static final class RouteStats {
+		final AtomicReferenceArray<LatencyHistogram> methods = new AtomicReferenceArray<LatencyHistogram>(StrestHeader.Method.values().length);
+
+		LatencyHistogram get(StrestHeader.Method method) {
+			LatencyHistogram h = this.methods.get(method.ordinal());
+			if (h == null) {
+				this.methods.compareAndSet(method.ordinal(), null, new LatencyHistogram());
+				h = this.methods.get(method.ordinal());
+			}
+			return h;
+		}
+	}
+
+	protected final ConcurrentHashMap<String, RouteStats> routes = new ConcurrentHashMap<String, RouteStats>();
+	protected final LatencyHistogram[] methods = new LatencyHistogram[StrestHeader.Method.values().length];
+	protected final AtomicLongArray statuses = new AtomicLongArray(600);
+	protected final ConcurrentHashMap<String, AtomicLong> exceptions = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final long started = System.currentTimeMillis();
+
+	public RequestMetrics() {
+		for (int i = 0; i < this.methods.length; i++) {
+			this.methods[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * records a finished request.
+	 * @param route the controller's route
+	 * @param method
+	 * @param status the response status
+	 * @param nanos
+	 */
+	public void record(String route, StrestHeader.Method method, int status, long nanos) {
+		this.status(status);
+		if (method == null) {
+			return;
+		}
+		this.methods[method.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+		if (route == null) {
+			return;
+		}
+		RouteStats stats = this.routes.get(route);
+		if (stats == null) {
+			stats = new RouteStats();
+			RouteStats existing = this.routes.putIfAbsent(route, stats);
+			if (existing != null) {
+				stats = existing;
+			}
+		}
+		stats.get(method).record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * counts a response, for requests that never reached a controller (404, shed, etc.)
+	 * @param status
+	 */
+	public void status(int status) {
+		this.statuses.incrementAndGet(Math.max(0, Math.min(status, this.statuses.length() - 1)));
+	}
+
+	/**
+	 * counts an exception thrown while handling a request.
+	 * @param t
+	 */
+	public void exception(Throwable t) {
+		String type = t.getClass().getName();
+		AtomicLong count = this.exceptions.get(type);
+		if (count == null) {
+			if (this.exceptions.size() >= MAX_EXCEPTION_TYPES) {
+				type = OTHER;
+			}
+			AtomicLong existing = this.exceptions.putIfAbsent(type, count = new AtomicLong());
+			if (existing != null) {
+				count = existing;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	public void bytesIn(long bytes) {
+		this.bytesIn.addAndGet(bytes);
+	}
+
+	public void bytesOut(long bytes) {
+		this.bytesOut.addAndGet(bytes);
+	}
+
+	public long getBytesIn() {
+		return this.bytesIn.get();
+	}
+
+	public long getBytesOut() {
+		return this.bytesOut.get();
+	}
+
+	public long getStatusCount(int status) {
+		return this.statuses.get(status);
+	}
+
+	/**
+	 * the route's histogram for the method, or null if there have been no such requests.
+	 * @param route
+	 * @param method
+	 * @return
+	 */
+	public LatencyHistogram getHistogram(String route, StrestHeader.Method method) {
+		RouteStats stats = this.routes.get(route);
+		return stats == null ? null : stats.methods.get(method.ordinal());
+	}
+
+	public LatencyHistogram getHistogram(StrestHeader.Method method) {
+		return this.methods[method.ordinal()];
+	}
+
+	/**
+	 * everything, latencies in millis.
+	 * @return
+	 */
+	public DynMap toDynMap() {
+		DynMap mp = new DynMap();
+		mp.put("uptime_seconds", (System.currentTimeMillis() - this.started) / 1000);
+		mp.put("bytes_in", this.getBytesIn());
+		mp.put("bytes_out", this.getBytesOut());
+
+		DynMap statuses = new DynMap();
+		for (int i = 0; i < this.statuses.length(); i++) {
+			long count = this.statuses.get(i);
+			if (count > 0) {
+				statuses.put(String.valueOf(i), count);
+			}
+		}
+		mp.put("status", statuses);
+
+		DynMap exceptions = new DynMap();
+		for (Map.Entry<String, AtomicLong> e : this.exceptions.entrySet()) {
+			exceptions.put(e.getKey(), e.getValue().get());
+		}
+		mp.put("exceptions", exceptions);
+
+		DynMap methods = new DynMap();
+		for (StrestHeader.Method method : StrestHeader.Method.values()) {
+			if (this.methods[method.ordinal()].getCount() > 0) {
+				methods.put(method.toString(), this.methods[method.ordinal()].toDynMap());
+			}
+		}
+		mp.put("methods", methods);
+
+		DynMap routes = new DynMap();
+		for (Map.Entry<String, RouteStats> e : new TreeMap<String, RouteStats>(this.routes).entrySet()) {
+			DynMap route = new DynMap();
+			for (StrestHeader.Method method : StrestHeader.Method.values()) {
+				LatencyHistogram h = e.getValue().methods.get(method.ordinal());
+				if (h != null) {
+					route.put(method.toString(), h.toDynMap());
+				}
+			}
+			routes.put(e.getKey(), route);
+		}
+		mp.put("routes", routes);
+		return mp;
+	}
+
+	/**
+	 * appends everything in the prometheus text format (version 0.0.4), latencies in seconds.
+	 * @param sb
+	 */
+	public void toPrometheus(StringBuilder sb) {
+		type(sb, "strest_request_duration_seconds", "summary", "Time from routing a request to sending its response, by route and method.");
+		for (Map.Entry<String, RouteStats> e : new TreeMap<String, RouteStats>(this.routes).entrySet()) {
+			for (StrestHeader.Method method : StrestHeader.Method.values()) {
+				LatencyHistogram h = e.getValue().methods.get(method.ordinal());
+				if (h != null) {
+					summary(sb, "strest_request_duration_seconds", "route=\"" + escape(e.getKey()) + "\",method=\"" + method + "\"", h);
+				}
+			}
+		}
+		type(sb, "strest_method_duration_seconds", "summary", "Time from routing a request to sending its response, by method.");
+		for (StrestHeader.Method method : StrestHeader.Method.values()) {
+			summary(sb, "strest_method_duration_seconds", "method=\"" + method + "\"", this.methods[method.ordinal()]);
+		}
+		type(sb, "strest_responses_total", "counter", "Responses sent, by status code.");
+		for (int i = 0; i < this.statuses.length(); i++) {
+			long count = this.statuses.get(i);
+			if (count > 0) {
+				sample(sb, "strest_responses_total", "code=\"" + i + "\"", count);
+			}
+		}
+		type(sb, "strest_exceptions_total", "counter", "Exceptions thrown by controllers, by class.");
+		for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(this.exceptions).entrySet()) {
+			sample(sb, "strest_exceptions_total", "type=\"" + escape(e.getKey()) + "\"", e.getValue().get());
+		}
+		type(sb, "strest_received_bytes_total", "counter", "Bytes read from connections.");
+		sample(sb, "strest_received_bytes_total", null, this.getBytesIn());
+		type(sb, "strest_sent_bytes_total", "counter", "Bytes written to connections.");
+		sample(sb, "strest_sent_bytes_total", null, this.getBytesOut());
+	}
+
+	private static void summary(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+		long[] values = h.getValuesAtQuantiles(QUANTILES);
+		for (int i = 0; i < values.length; i++) {
+			sample(sb, name, labels + ",quantile=\"" + QUANTILE_LABELS[i] + "\"", values[i] / 1000000.0);
+		}
+		sample(sb, name + "_sum", labels, h.getSum() / 1000000.0);
+		sample(sb, name + "_count", labels, h.getCount());
+	}
+
+	/**
+	 * the HELP and TYPE lines of a metric.
+	 * @param sb
+	 * @param name
+	 * @param type counter, gauge, summary..
+	 * @param help
+	 */
+	public static void type(StringBuilder sb, String name, String type, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * a sample line.
+	 * @param sb
+	 * @param name
+	 * @param labels already escaped labels (a="b",c="d"), or null for none.
+	 * @param value
+	 */
+	public static void sample(StringBuilder sb, String name, String labels, double value) {
+		sb.append(name);
+		if (labels != null) {
+			sb.append('{').append(labels).append('}');
+		}
+		sb.append(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			sb.append((long)value);
+		} else {
+			sb.append(value);
+		}
+		sb.append('\n');
+	}
+
+	/**
+	 * escapes a label value.
+	 * @param value
+	 * @return
+	 */
+	public static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
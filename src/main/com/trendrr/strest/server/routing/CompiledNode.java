@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.routing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ *
+ * Immutable, compiled form of a TreeNode.
+ *
+ * Matching walks the raw uri one segment at a time using offsets, so
+ * no strings, lists or arrays are allocated during a lookup.
+ *
+ * Priority is identical to TreeNode.find: exact segment matches win over
+ * named wildcards, which win over directory (*) wildcards.
+ *
+ */
+final class CompiledNode {
+
+	private static final CompiledNode[] NO_NODES = new CompiledNode[0];
+
+	final UriMapping mapping;
+	final RegionMap<CompiledNode> children;
+	final CompiledNode[] wildcards;
+	final UriMapping dirWildCard;
+
+	private CompiledNode(UriMapping mapping, RegionMap<CompiledNode> children, CompiledNode[] wildcards, UriMapping dirWildCard) {
+		this.mapping = mapping;
+		this.children = children;
+		this.wildcards = wildcards;
+		this.dirWildCard = dirWildCard;
+	}
+
+	/**
+	 * recursively compiles the passed in tree.
+	 * @param node
+	 * @return
+	 */
+	static CompiledNode compile(TreeNode node) {
+		Map<String, CompiledNode> children = new HashMap<String, CompiledNode>();
+		for (Map.Entry<String, TreeNode> e : node.children.entrySet()) {
+			children.put(e.getKey(), compile(e.getValue()));
+		}
+		CompiledNode[] wildcards = NO_NODES;
+		if (!node.wildcards.isEmpty()) {
+			wildcards = new CompiledNode[node.wildcards.size()];
+			for (int i = 0; i < wildcards.length; i++) {
+				wildcards[i] = compile(node.wildcards.get(i));
+			}
+		}
+		UriMapping dir = node.dirWildCard == null ? null : node.dirWildCard.getMapping();
+		return new CompiledNode(node.getMapping(), RegionMap.build(children), wildcards, dir);
+	}
+
+	/**
+	 * finds the most specific mapping for the path uri[start, end).
+	 *
+	 * path should already have leading and trailing / trimmed.
+	 *
+	 * @param uri
+	 * @param start
+	 * @param end
+	 * @return the mapping or null
+	 */
+	UriMapping find(String uri, int start, int end) {
+		int segEnd = start;
+		while (segEnd < end && uri.charAt(segEnd) != '/') {
+			segEnd++;
+		}
+		if (segEnd == start) {
+			//empty segment, we are at the end of the path.
+			return this.mapping;
+		}
+		int next = segEnd < end ? segEnd + 1 : end;
+
+		//word matches first.
+		CompiledNode child = this.children.get(uri, start, segEnd);
+		if (child != null) {
+			UriMapping m = child.find(uri, next, end);
+			if (m != null) {
+				return m;
+			}
+		}
+		//later registered wildcards take precedence, same as the original tree.
+		for (int i = this.wildcards.length - 1; i >= 0; i--) {
+			UriMapping m = this.wildcards[i].find(uri, next, end);
+			if (m != null) {
+				return m;
+			}
+		}
+		return this.dirWildCard;
+	}
+}
@@ -1,5 +1,5 @@
 /**
- * 
+ *
  */
 package com.trendrr.strest.server.routing;
 
@@ -11,30 +11,78 @@ import org.apache.commons.logging.LogFactory;
 
 
 /**
+ *
+ * The result of a route lookup.
+ *
+ * The matched path is kept as offsets into the original uri, the params map
+ * is only built the first time getParams is called.
+ *
  * @author Dustin Norlander
  * @created Jan 14, 2011
- * 
+ *
  */
 public class MatchedRoute {
 	UriMapping mapping;
-	Map<String,String> params = new HashMap<String,String>();
-	
+	Map<String,String> params = null;
+
+	//the matched path, and the extension (if any) as offsets into uri
+	String uri;
+	int start, end;
+	int extensionStart = -1, extensionEnd = -1;
+
+	public MatchedRoute() {
+
+	}
+
+	MatchedRoute(UriMapping mapping, String uri, int start, int end, int extensionStart, int extensionEnd) {
+		this.mapping = mapping;
+		this.uri = uri;
+		this.start = start;
+		this.end = end;
+		this.extensionStart = extensionStart;
+		this.extensionEnd = extensionEnd;
+	}
+
 	public UriMapping getMapping() {
 		return mapping;
 	}
 	public void setMapping(UriMapping mapping) {
 		this.mapping = mapping;
 	}
+
+	/**
+	 * true if this match will produce any params (named wildcards or return_type)
+	 *
+	 * Useful to avoid building the params map when there is nothing in it.
+	 * @return
+	 */
+	public boolean hasParams() {
+		if (this.params != null) {
+			return !this.params.isEmpty();
+		}
+		return this.extensionStart != -1 || (this.mapping != null && this.mapping.isWildCard());
+	}
+
 	public Map<String, String> getParams() {
+		if (params == null) {
+			params = new HashMap<String,String>();
+			if (this.uri != null) {
+				if (this.mapping != null) {
+					this.mapping.getWildCardMatches(this.uri, this.start, this.end, params);
+				}
+				if (this.extensionStart != -1) {
+					params.put("return_type", this.uri.substring(this.extensionStart, this.extensionEnd));
+				}
+			}
+		}
 		return params;
 	}
 	public void setParams(Map<String, String> params) {
 		this.params = params;
 	}
-	
-	
+
 	public String toString() {
-		return mapping.toString() + "\n" + params;
+		return mapping.toString() + "\n" + this.getParams();
 	}
-	
+
 }
@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.routing;
+
+import java.util.Map;
+
+
+/**
+ *
+ * Immutable open addressing hash table keyed by strings, which can be
+ * queried with a region of a larger string (ex: a single path segment of a uri)
+ * without having to allocate a substring.
+ *
+ * The hash of a region is computed the same way as String.hashCode so
+ * keys are hashed once at build time.
+ *
+ */
+final class RegionMap<V> {
+
+	private static final RegionMap<?> EMPTY = new RegionMap<Object>(new String[1], new Object[1]);
+
+	private final String[] keys;
+	private final Object[] values;
+	private final int mask;
+
+	private RegionMap(String[] keys, Object[] values) {
+		this.keys = keys;
+		this.values = values;
+		this.mask = keys.length - 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> RegionMap<V> empty() {
+		return (RegionMap<V>)EMPTY;
+	}
+
+	/**
+	 * builds a new table from the passed in map.  The map is copied, so later
+	 * changes to it are not reflected.
+	 * @param map
+	 * @return
+	 */
+	static <V> RegionMap<V> build(Map<String, V> map) {
+		if (map == null || map.isEmpty()) {
+			return empty();
+		}
+		//keep the load factor under .5 so probes stay short.
+		int capacity = 2;
+		while (capacity < map.size() * 2) {
+			capacity <<= 1;
+		}
+		String[] keys = new String[capacity];
+		Object[] values = new Object[capacity];
+		int mask = capacity - 1;
+		for (Map.Entry<String, V> e : map.entrySet()) {
+			int i = e.getKey().hashCode() & mask;
+			while (keys[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = e.getKey();
+			values[i] = e.getValue();
+		}
+		return new RegionMap<V>(keys, values);
+	}
+
+	/**
+	 * gets the value for the key equal to str[start, end), or null.
+	 * @param str
+	 * @param start inclusive
+	 * @param end exclusive
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	V get(String str, int start, int end) {
+		int len = end - start;
+		int h = 0;
+		for (int j = start; j < end; j++) {
+			h = 31 * h + str.charAt(j);
+		}
+		int i = h & mask;
+		String k = keys[i];
+		while (k != null) {
+			if (k.length() == len && k.regionMatches(0, str, start, len)) {
+				return (V)values[i];
+			}
+			i = (i + 1) & mask;
+			k = keys[i];
+		}
+		return null;
+	}
+
+	boolean isEmpty() {
+		return this == EMPTY;
+	}
+}
@@ -5,15 +5,13 @@ package com.trendrr.strest.server.routing;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.trendrr.oss.StringHelper;
-
 
 /**
  * 
@@ -40,11 +38,30 @@ public class RouteMatcher {
 
 	protected static Log log = LogFactory.getLog(RouteMatcher.class);
 	
+	//the builder state, only touched while holding the lock in addMapping
 	protected TreeNode tree = new TreeNode();
-	protected HashMap<String, UriMapping> nonWildcardRoutes = new HashMap<String, UriMapping>();
-	
+	protected HashMap<String, UriMapping> staticRoutes = new HashMap<String, UriMapping>();
 	protected HashSet<UriMapping> all = new HashSet<UriMapping>();
 	
+	/**
+	 * Immutable snapshot of the route table that find reads from.  
+	 */
+	private static final class RouteTable {
+		final RegionMap<UriMapping> nonWildcardRoutes;
+		final CompiledNode compiled;
+		final Collection<UriMapping> all;
+		
+		RouteTable(RegionMap<UriMapping> nonWildcardRoutes, CompiledNode compiled, Collection<UriMapping> all) {
+			this.nonWildcardRoutes = nonWildcardRoutes;
+			this.compiled = compiled;
+			this.all = all;
+		}
+	}
+	
+	private volatile RouteTable table = new RouteTable(RegionMap.<UriMapping>empty(), 
+			CompiledNode.compile(tree), 
+			Collections.<UriMapping>emptyList());
+	
 	public static void main(String ...strings) {
 		
 		RouteMatcher tree = new RouteMatcher();
@@ -76,66 +93,99 @@ public class RouteMatcher {
 	 * @return
 	 */
 	public MatchedRoute find(String uri) {
+		return this.find(uri, 0, uri.length());
+	}
+	
+	/**
+	 * Finds the matched route for the region uri[start, end).  This lets callers 
+	 * skip the query string or host without creating a substring.
+	 * 
+	 * Lookup does not allocate anything besides the returned MatchedRoute, the 
+	 * params are only parsed if MatchedRoute.getParams is called.
+	 * 
+	 * @param uri
+	 * @param start inclusive
+	 * @param end exclusive
+	 * @return
+	 */
+	public MatchedRoute find(String uri, int start, int end) {
+		//trim the slashes
+		while (start < end && uri.charAt(start) == '/') {
+			start++;
+		}
+		while (end > start && uri.charAt(end-1) == '/') {
+			end--;
+		}
 		
-		MatchedRoute m = new MatchedRoute();
-		String u = StringHelper.trim(uri, "/");
-		String extension = null;
-		{
-			String tmp[] = u.split("\\.");
-			if (tmp.length == 2) {
-				u = tmp[0];
-				extension = tmp[1];
+		//an extension is only stripped if there is exactly one '.'
+		int extensionStart = -1;
+		int extensionEnd = -1;
+		int pathEnd = end;
+		for (int i = start; i < end; i++) {
+			if (uri.charAt(i) == '.') {
+				if (extensionStart != -1) {
+					extensionStart = -1;
+					break;
+				}
+				extensionStart = i + 1;
 			}
 		}
-		UriMapping route = this.nonWildcardRoutes.get(u);
+		if (extensionStart == end) {
+			//trailing dot, no extension
+			extensionStart = -1;
+		}
+		if (extensionStart != -1) {
+			pathEnd = extensionStart - 1;
+			extensionEnd = end;
+		}
+		
+		RouteTable table = this.table;
+		UriMapping route = table.nonWildcardRoutes.get(uri, start, pathEnd);
 		if (route == null) {
 			//check wildcard matches.
-			List<UriMapping> found = new ArrayList<UriMapping>();
-			List<String> words = new ArrayList<String>();
-			for (String w : u.split("\\/")) {
-				words.add(w);
-			}
-			
-			tree.find(found, words);
-			if (found.isEmpty()) {
+			route = table.compiled.find(uri, start, pathEnd);
+			if (route == null) {
 				return null;
 			}
-			route = found.get(found.size()-1);
-			m.setParams(route.getWildCardMatches(words));
 		}
-		
-		m.setMapping(route);
-		
-		if (extension != null) {
-			m.getParams().put("return_type", extension);
-		}
-		
-		return m;
+		return new MatchedRoute(route, uri, start, pathEnd, extensionStart, extensionEnd);
 	}
 	
 	/**
 	 * adds a route mapping.
 	 * 
-	 * TODO: this is synchronized, but not technically threadsafe, as a concurrent find could be happening. Should fix 
+	 * Safe to call while the server is running.  Writers are serialized, and the new 
+	 * route table is built on the side and then published in a single volatile write,
+	 * so a concurrent find never takes a lock or sees a partially built table.
 	 * 
 	 * @param mapping
 	 */
 	public synchronized void addMapping(UriMapping mapping) {
+		RouteTable current = this.table;
+		RegionMap<UriMapping> nonWildcardRoutes = current.nonWildcardRoutes;
+		CompiledNode compiled = current.compiled;
+		
 		if (!mapping.isWildCard()) {
-			this.nonWildcardRoutes.put(mapping.getRoute(), mapping);
+			this.staticRoutes.put(mapping.getRoute(), mapping);
+			nonWildcardRoutes = RegionMap.build(this.staticRoutes);
 		}else if (mapping.getRoute().isEmpty()) {
 			tree.setMapping(mapping);
+			compiled = CompiledNode.compile(tree);
 		} else {
 			tree.addChildNode(mapping, mapping.getTokens());
+			compiled = CompiledNode.compile(tree);
 		}
 		this.all.add(mapping);
+		this.table = new RouteTable(nonWildcardRoutes, compiled, 
+				Collections.unmodifiableList(new ArrayList<UriMapping>(this.all)));
 	}
 
 	/**
-	 * returns a list of all the mapped uris
+	 * returns a list of all the mapped uris.  This is an immutable snapshot, 
+	 * later additions are not reflected.
 	 * @return
 	 */
 	public Collection<UriMapping> getAll() {
-		return this.all;
+		return this.table.all;
 	}
 }
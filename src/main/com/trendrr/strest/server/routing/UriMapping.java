@@ -29,6 +29,10 @@ public class UriMapping {
 	
 	private HashMap<Integer, String> wildcards = new HashMap<Integer, String>();
 
+	//flattened copies of the wildcards, ordered by segment index.
+	private final int[] wildcardIndexes;
+	private final String[] wildcardNames;
+	private final boolean[] wildcardDirs;
 	
 	public UriMapping(String route, Class cls) {
 		this.route = StringHelper.trim(route, "/");
@@ -43,6 +47,20 @@ public class UriMapping {
 			this.tokens.add(t);
 			index++;
 		}
+		
+		this.wildcardIndexes = new int[wildcards.size()];
+		this.wildcardNames = new String[wildcards.size()];
+		this.wildcardDirs = new boolean[wildcards.size()];
+		int i = 0;
+		for (int ind = 0; ind < this.tokens.size(); ind++) {
+			String var = this.wildcards.get(ind);
+			if (var == null)
+				continue;
+			this.wildcardIndexes[i] = ind;
+			this.wildcardNames[i] = var.substring(1);
+			this.wildcardDirs[i] = var.startsWith("*");
+			i++;
+		}
 	}
 	
 	public List<String> getTokens() {
@@ -92,4 +110,40 @@ public class UriMapping {
 		}
 		return mp;
 	}
+	
+	/**
+	 * same as above, but reads the already matched path directly from 
+	 * uri[start, end) rather then from a list of tokens.
+	 * 
+	 * @param uri
+	 * @param start
+	 * @param end
+	 * @param mp map to put the matches into
+	 */
+	void getWildCardMatches(String uri, int start, int end, Map<String, String> mp) {
+		if (this.wildcardIndexes.length == 0) {
+			return;
+		}
+		int w = 0;
+		int segment = 0;
+		int pos = start;
+		while (pos <= end && w < this.wildcardIndexes.length) {
+			int segEnd = uri.indexOf('/', pos);
+			if (segEnd == -1 || segEnd > end) {
+				segEnd = end;
+			}
+			if (segment == this.wildcardIndexes[w]) {
+				if (this.wildcardDirs[w]) {
+					if (!this.wildcardNames[w].isEmpty()) {
+						mp.put(this.wildcardNames[w], uri.substring(pos, end));
+					}
+					return;
+				}
+				mp.put(this.wildcardNames[w], uri.substring(pos, segEnd));
+				w++;
+			}
+			pos = segEnd + 1;
+			segment++;
+		}
+	}
 }
@@ -0,0 +1,188 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.v2;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.trendrr.json.simple.JSONValue;
+import com.trendrr.oss.DynMapConvertable;
+
+
+/**
+ *
+ * Serializes maps, lists and simple values as JSON straight into a ChannelBuffer,
+ * encoding strings to UTF-8 as it goes.  No intermediate String or byte[] is built.
+ *
+ * Maps (including DynMaps) become objects, Collections and Object[] become arrays,
+ * Numbers and Booleans are written as is (NaN and infinities as null), DynMapConvertables
+ * are written as their DynMap.  Anything else goes through JSONValue, so registered
+ * JSONFormatters and JSONAware values come out the same as from DynMap.toJSONString().
+ *
+ */
+public class JsonBufferWriter {
+
+	protected static Log log = LogFactory.getLog(JsonBufferWriter.class);
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final byte[] NULL = "null".getBytes();
+	private static final byte[] TRUE = "true".getBytes();
+	private static final byte[] FALSE = "false".getBytes();
+
+	/**
+	 * encodes the value into a new buffer.
+	 * @param value
+	 * @param estimatedSize initial capacity of the buffer, a good estimate avoids any resizing.
+	 * @return
+	 */
+	public static ChannelBuffer encode(Object value, int estimatedSize) {
+		ChannelBuffer out = ChannelBuffers.dynamicBuffer(Math.max(estimatedSize, 16));
+		write(value, out);
+		return out;
+	}
+
+	/**
+	 * encodes the value to a byte array
+	 * @param value
+	 * @return
+	 */
+	public static byte[] toByteArray(Object value) {
+		ChannelBuffer out = encode(value, 256);
+		byte[] bytes = new byte[out.readableBytes()];
+		out.readBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * appends the json for the value to out.
+	 * @param value
+	 * @param out
+	 */
+	public static void write(Object value, ChannelBuffer out) {
+		if (value == null) {
+			out.writeBytes(NULL);
+		} else if (value instanceof String) {
+			writeString((String)value, out);
+		} else if (value instanceof Map) {
+			writeMap((Map<?,?>)value, out);
+		} else if (value instanceof Collection) {
+			out.writeByte('[');
+			boolean first = true;
+			for (Object o : (Collection<?>)value) {
+				if (!first) {
+					out.writeByte(',');
+				}
+				first = false;
+				write(o, out);
+			}
+			out.writeByte(']');
+		} else if (value instanceof Object[]) {
+			out.writeByte('[');
+			Object[] array = (Object[])value;
+			for (int i = 0; i < array.length; i++) {
+				if (i > 0) {
+					out.writeByte(',');
+				}
+				write(array[i], out);
+			}
+			out.writeByte(']');
+		} else if (value instanceof Number) {
+			writeNumber((Number)value, out);
+		} else if (value instanceof Boolean) {
+			out.writeBytes(((Boolean)value) ? TRUE : FALSE);
+		} else if (value instanceof DynMapConvertable) {
+			writeMap(((DynMapConvertable)value).toDynMap(), out);
+		} else {
+			//formatters, JSONAware, or the quoted toString()
+			out.writeBytes(JSONValue.toJSONString(value).getBytes(CharsetUtil.UTF_8));
+		}
+	}
+
+	private static void writeMap(Map<?,?> map, ChannelBuffer out) {
+		out.writeByte('{');
+		boolean first = true;
+		for (Map.Entry<?,?> e : map.entrySet()) {
+			if (!first) {
+				out.writeByte(',');
+			}
+			first = false;
+			writeString(String.valueOf(e.getKey()), out);
+			out.writeByte(':');
+			write(e.getValue(), out);
+		}
+		out.writeByte('}');
+	}
+
+	private static void writeNumber(Number n, ChannelBuffer out) {
+		if (n instanceof Double || n instanceof Float) {
+			double d = n.doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d)) {
+				out.writeBytes(NULL);
+				return;
+			}
+		}
+		String str = n.toString();
+		for (int i = 0; i < str.length(); i++) {
+			out.writeByte(str.charAt(i));
+		}
+	}
+
+	/**
+	 * writes the quoted, escaped, utf-8 encoded string.
+	 * @param str
+	 * @param out
+	 */
+	static void writeString(String str, ChannelBuffer out) {
+		out.writeByte('"');
+		int len = str.length();
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				switch (c) {
+				case '"' : out.writeByte('\\'); out.writeByte('"'); break;
+				case '\\' : out.writeByte('\\'); out.writeByte('\\'); break;
+				case '\n' : out.writeByte('\\'); out.writeByte('n'); break;
+				case '\r' : out.writeByte('\\'); out.writeByte('r'); break;
+				case '\t' : out.writeByte('\\'); out.writeByte('t'); break;
+				case '\b' : out.writeByte('\\'); out.writeByte('b'); break;
+				case '\f' : out.writeByte('\\'); out.writeByte('f'); break;
+				default :
+					if (c < 0x20) {
+						out.writeByte('\\');
+						out.writeByte('u');
+						out.writeByte('0');
+						out.writeByte('0');
+						out.writeByte(HEX[c >> 4]);
+						out.writeByte(HEX[c & 0xF]);
+					} else {
+						out.writeByte(c);
+					}
+				}
+			} else if (c < 0x800) {
+				out.writeByte(0xC0 | (c >> 6));
+				out.writeByte(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				out.writeByte(0xF0 | (cp >> 18));
+				out.writeByte(0x80 | ((cp >> 12) & 0x3F));
+				out.writeByte(0x80 | ((cp >> 6) & 0x3F));
+				out.writeByte(0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				//unpaired surrogate, same replacement String.getBytes uses
+				out.writeByte('?');
+			} else {
+				out.writeByte(0xE0 | (c >> 12));
+				out.writeByte(0x80 | ((c >> 6) & 0x3F));
+				out.writeByte(0x80 | (c & 0x3F));
+			}
+		}
+		out.writeByte('"');
+	}
+}
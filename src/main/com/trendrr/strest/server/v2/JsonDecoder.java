@@ -1,64 +1,121 @@
 /**
- * 
+ *
  */
 package com.trendrr.strest.server.v2;
 
-import java.nio.charset.Charset;
-import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferFactory;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
-import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 
-import com.trendrr.json.stream.JSONStreamParser;
-import com.trendrr.oss.DynMap;
 import com.trendrr.oss.FileHelper;
 
 
 /**
+ *
+ * Splits the incoming bytes into top level json objects.
+ *
+ * Scans the buffer bytes once, tracking brace depth and string / escape state,
+ * so braces inside strings and nested objects are handled without re-scanning.
+ * The structural characters are all ascii, so it is safe to scan utf-8 byte by byte.
+ * Scan state is kept between calls, a partial frame is never rescanned from the start.
+ *
+ * Each frame is either parsed in a single pass into a DynMap (the default), or, if raw,
+ * copied out as a ChannelBuffer so it can be parsed later (ex: on a worker thread).
+ *
  * @author Dustin Norlander
  * @created May 4, 2012
- * 
+ *
  */
-public class JsonDecoder extends DelimiterBasedFrameDecoder {
+public class JsonDecoder extends FrameDecoder {
 
 	protected static Log log = LogFactory.getLog(JsonDecoder.class);
 
-	JSONStreamParser parser = new JSONStreamParser();
+	protected final int maxFrameLength;
+	protected final boolean raw;
+
+	//scan state of the current frame
+	private int scanned = 0;
+	private int depth = 0;
+	private boolean inString = false;
+	private boolean escape = false;
 
 	public JsonDecoder() {
-		super((int)FileHelper.megsToBytes(1),  
-				false,
-				ChannelBuffers.wrappedBuffer(new byte[] { '}' }));
+		this(false);
+	}
+
+	/**
+	 *
+	 * @param raw if true frames are passed on as ChannelBuffers rather than parsed.
+	 */
+	public JsonDecoder(boolean raw) {
+		this((int)FileHelper.megsToBytes(1), raw);
+	}
+
+	public JsonDecoder(int maxFrameLength, boolean raw) {
+		this.maxFrameLength = maxFrameLength;
+		this.raw = raw;
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see org.jboss.netty.handler.codec.frame.FrameDecoder#decode(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.Channel, org.jboss.netty.buffer.ChannelBuffer)
 	 */
 	@Override
 	protected Object decode(ChannelHandlerContext ctx, Channel channel,
 			ChannelBuffer buf) throws Exception {
-		
-		Object result = super.decode(ctx, channel, buf);
-		while(result != null) {
-			StringCharacterIterator iter = new StringCharacterIterator(((ChannelBuffer)result).toString(CharsetUtil.UTF_8));
-			for(char c = iter.first(); c != CharacterIterator.DONE; c = iter.next()) {
-		         DynMap val = parser.addChar(c);
-		         if (val != null) {
-//		        	 log.info("GOT JSON PACKET: " + val.toJSONString());
-		        	 return val;
-		         }
-		    }
-			result = super.decode(ctx, channel, buf);
+		int start = buf.readerIndex();
+		int end = buf.writerIndex();
+		if (this.depth == 0) {
+			//skip anything between frames (whitespace, newlines)
+			while (start < end && buf.getByte(start) != '{') {
+				start++;
+			}
+			buf.readerIndex(start);
+			if (start == end) {
+				return null;
+			}
+		}
+		int i = start + this.scanned;
+		for (; i < end; i++) {
+			byte b = buf.getByte(i);
+			if (this.inString) {
+				if (this.escape) {
+					this.escape = false;
+				} else if (b == '\\') {
+					this.escape = true;
+				} else if (b == '"') {
+					this.inString = false;
+				}
+			} else if (b == '"') {
+				this.inString = true;
+			} else if (b == '{') {
+				this.depth++;
+			} else if (b == '}' && --this.depth == 0) {
+				int length = i + 1 - start;
+				this.reset();
+				buf.readerIndex(i + 1);
+				if (this.raw) {
+					return buf.copy(start, length);
+				}
+				return JsonFrameParser.parse(buf, start, length);
+			}
+		}
+		this.scanned = i - start;
+		if (this.scanned > this.maxFrameLength) {
+			this.reset();
+			buf.skipBytes(buf.readableBytes());
+			throw new TooLongFrameException("json frame is larger than " + this.maxFrameLength + " bytes");
 		}
 		return null;
 	}
+
+	private void reset() {
+		this.scanned = 0;
+		this.depth = 0;
+		this.inString = false;
+		this.escape = false;
+	}
 }
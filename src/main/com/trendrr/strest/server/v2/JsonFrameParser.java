@@ -0,0 +1,314 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.v2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.trendrr.oss.DynMap;
+
+
+/**
+ *
+ * Single pass JSON parser that works directly on the UTF-8 bytes of a frame.
+ *
+ * Objects become DynMaps, arrays Lists, integers Longs (Doubles if they have
+ * a fraction, exponent or overflow), same as the json parser in trendrr-oss.
+ *
+ * Strings without escapes are decoded straight from the bytes, so the only
+ * allocations are the resulting values.
+ *
+ * Not thread safe, create one per frame (they are cheap).
+ *
+ */
+public class JsonFrameParser {
+
+	protected static Log log = LogFactory.getLog(JsonFrameParser.class);
+
+	private final byte[] bytes;
+	private final int end;
+	private int pos;
+
+	/**
+	 * parses the object in buf[index, index+length)
+	 * @param buf
+	 * @param index
+	 * @param length
+	 * @return
+	 * @throws CorruptedFrameException if the frame is not a valid json object.
+	 */
+	public static DynMap parse(ChannelBuffer buf, int index, int length) throws CorruptedFrameException {
+		JsonFrameParser parser;
+		if (buf.hasArray()) {
+			int offset = buf.arrayOffset() + index;
+			parser = new JsonFrameParser(buf.array(), offset, offset + length);
+		} else {
+			byte[] bytes = new byte[length];
+			buf.getBytes(index, bytes);
+			parser = new JsonFrameParser(bytes, 0, length);
+		}
+		return parser.parseFrame();
+	}
+
+	/**
+	 * parses a json object from the bytes.
+	 * @param bytes
+	 * @return
+	 * @throws CorruptedFrameException
+	 */
+	public static DynMap parse(byte[] bytes) throws CorruptedFrameException {
+		return new JsonFrameParser(bytes, 0, bytes.length).parseFrame();
+	}
+
+	private JsonFrameParser(byte[] bytes, int start, int end) {
+		this.bytes = bytes;
+		this.pos = start;
+		this.end = end;
+	}
+
+	private DynMap parseFrame() throws CorruptedFrameException {
+		this.skipWhitespace();
+		if (this.pos >= this.end || this.bytes[this.pos] != '{') {
+			throw this.error("Expected '{'");
+		}
+		DynMap result = this.parseObject();
+		this.skipWhitespace();
+		if (this.pos != this.end) {
+			throw this.error("Unexpected content after object");
+		}
+		return result;
+	}
+
+	private Object parseValue() throws CorruptedFrameException {
+		this.skipWhitespace();
+		if (this.pos >= this.end) {
+			throw this.error("Unexpected end of frame");
+		}
+		byte b = this.bytes[this.pos];
+		switch(b) {
+		case '{' :
+			return this.parseObject();
+		case '[' :
+			return this.parseArray();
+		case '"' :
+			return this.parseString();
+		case 't' :
+			this.expect("true");
+			return Boolean.TRUE;
+		case 'f' :
+			this.expect("false");
+			return Boolean.FALSE;
+		case 'n' :
+			this.expect("null");
+			return null;
+		default :
+			if (b == '-' || (b >= '0' && b <= '9')) {
+				return this.parseNumber();
+			}
+			throw this.error("Unexpected character '" + (char)b + "'");
+		}
+	}
+
+	private DynMap parseObject() throws CorruptedFrameException {
+		DynMap map = new DynMap();
+		this.pos++; //{
+		this.skipWhitespace();
+		if (this.peek() == '}') {
+			this.pos++;
+			return map;
+		}
+		while (true) {
+			this.skipWhitespace();
+			if (this.peek() != '"') {
+				throw this.error("Expected a key");
+			}
+			String key = this.parseString();
+			this.skipWhitespace();
+			if (this.peek() != ':') {
+				throw this.error("Expected ':'");
+			}
+			this.pos++;
+			map.put(key, this.parseValue());
+			this.skipWhitespace();
+			byte b = this.peek();
+			this.pos++;
+			if (b == '}') {
+				return map;
+			}
+			if (b != ',') {
+				throw this.error("Expected ',' or '}'");
+			}
+		}
+	}
+
+	private List<Object> parseArray() throws CorruptedFrameException {
+		List<Object> list = new ArrayList<Object>();
+		this.pos++; //[
+		this.skipWhitespace();
+		if (this.peek() == ']') {
+			this.pos++;
+			return list;
+		}
+		while (true) {
+			list.add(this.parseValue());
+			this.skipWhitespace();
+			byte b = this.peek();
+			this.pos++;
+			if (b == ']') {
+				return list;
+			}
+			if (b != ',') {
+				throw this.error("Expected ',' or ']'");
+			}
+		}
+	}
+
+	private String parseString() throws CorruptedFrameException {
+		int start = ++this.pos; //opening quote
+		//fast path, no escapes.
+		while (this.pos < this.end) {
+			byte b = this.bytes[this.pos];
+			if (b == '"') {
+				String str = new String(this.bytes, start, this.pos - start, CharsetUtil.UTF_8);
+				this.pos++;
+				return str;
+			}
+			if (b == '\\') {
+				break;
+			}
+			this.pos++;
+		}
+		StringBuilder sb = new StringBuilder((this.pos - start) + 16);
+		int segment = start;
+		while (this.pos < this.end) {
+			byte b = this.bytes[this.pos];
+			if (b == '"') {
+				sb.append(new String(this.bytes, segment, this.pos - segment, CharsetUtil.UTF_8));
+				this.pos++;
+				return sb.toString();
+			}
+			if (b != '\\') {
+				this.pos++;
+				continue;
+			}
+			sb.append(new String(this.bytes, segment, this.pos - segment, CharsetUtil.UTF_8));
+			this.pos++;
+			if (this.pos >= this.end) {
+				break;
+			}
+			byte e = this.bytes[this.pos++];
+			switch(e) {
+			case '"' : sb.append('"'); break;
+			case '\\' : sb.append('\\'); break;
+			case '/' : sb.append('/'); break;
+			case 'b' : sb.append('\b'); break;
+			case 'f' : sb.append('\f'); break;
+			case 'n' : sb.append('\n'); break;
+			case 'r' : sb.append('\r'); break;
+			case 't' : sb.append('\t'); break;
+			case 'u' :
+				if (this.pos + 4 > this.end) {
+					throw this.error("Bad unicode escape");
+				}
+				int c = 0;
+				for (int i = 0; i < 4; i++) {
+					int d = Character.digit(this.bytes[this.pos++], 16);
+					if (d < 0) {
+						throw this.error("Bad unicode escape");
+					}
+					c = (c << 4) | d;
+				}
+				sb.append((char)c);
+				break;
+			default :
+				throw this.error("Bad escape '\\" + (char)e + "'");
+			}
+			segment = this.pos;
+		}
+		throw this.error("Unterminated string");
+	}
+
+	private Number parseNumber() throws CorruptedFrameException {
+		int start = this.pos;
+		boolean negative = false;
+		boolean integral = true;
+		long value = 0;
+		int digits = 0;
+		if (this.bytes[this.pos] == '-') {
+			negative = true;
+			this.pos++;
+		}
+		while (this.pos < this.end) {
+			byte b = this.bytes[this.pos];
+			if (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+				digits++;
+			} else if (b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-') {
+				integral = false;
+			} else {
+				break;
+			}
+			this.pos++;
+		}
+		if (digits == 0) {
+			throw this.error("Bad number");
+		}
+		//18 digits always fits in a long
+		if (integral && digits <= 18) {
+			return negative ? -value : value;
+		}
+		String str = new String(this.bytes, start, this.pos - start, CharsetUtil.US_ASCII);
+		try {
+			if (integral) {
+				return Long.parseLong(str);
+			}
+			return Double.parseDouble(str);
+		} catch (NumberFormatException x) {
+			try {
+				return Double.parseDouble(str);
+			} catch (NumberFormatException e) {
+				throw this.error("Bad number " + str);
+			}
+		}
+	}
+
+	private void expect(String literal) throws CorruptedFrameException {
+		if (this.pos + literal.length() > this.end) {
+			throw this.error("Expected " + literal);
+		}
+		for (int i = 0; i < literal.length(); i++) {
+			if (this.bytes[this.pos + i] != literal.charAt(i)) {
+				throw this.error("Expected " + literal);
+			}
+		}
+		this.pos += literal.length();
+	}
+
+	private byte peek() throws CorruptedFrameException {
+		if (this.pos >= this.end) {
+			throw this.error("Unexpected end of frame");
+		}
+		return this.bytes[this.pos];
+	}
+
+	private void skipWhitespace() {
+		while (this.pos < this.end) {
+			byte b = this.bytes[this.pos];
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				return;
+			}
+			this.pos++;
+		}
+	}
+
+	private CorruptedFrameException error(String message) {
+		return new CorruptedFrameException("Invalid json: " + message + " at " + this.pos);
+	}
+}
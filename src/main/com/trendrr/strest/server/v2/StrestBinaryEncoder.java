@@ -0,0 +1,40 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server.v2;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import com.trendrr.strest.server.v2.models.StrestResponse;
+import com.trendrr.strest.server.v2.models.binary.StrestBinaryResponse;
+
+
+/**
+ * 
+ * Encodes responses in the binary wire format.  Responses built for other
+ * formats (ex: the routers error responses) are converted.
+ *
+ */
+public class StrestBinaryEncoder extends SimpleChannelHandler {
+
+	protected static Log log = LogFactory.getLog(StrestBinaryEncoder.class);
+	
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.SimpleChannelHandler#writeRequested(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+	 */
+	@Override
+	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		Object msg = e.getMessage();
+		if (msg instanceof StrestResponse) {
+			Channels.write(ctx, e.getFuture(), StrestBinaryResponse.instance((StrestResponse)msg).toBuffer());
+		} else {
+			//already encoded (ex: connection group broadcasts)
+			ctx.sendDownstream(e);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server.v2;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import com.trendrr.strest.server.StrestExecutionHandler;
+import com.trendrr.strest.server.StrestRouter;
+import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
+import com.trendrr.strest.server.v2.models.binary.StrestBinaryRequest;
+
+
+/**
+ * 
+ * Parses binary frames into requests and hands them to the router.
+ *
+ */
+public class StrestBinaryRequestHandler extends SimpleChannelUpstreamHandler {
+
+	protected static Log log = LogFactory.getLog(StrestBinaryRequestHandler.class);
+	
+	StrestRouter router;
+	
+	public StrestBinaryRequestHandler(StrestRouter router) {
+		this.router = router;
+	}
+	
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+		StrestBinaryRequest req = StrestBinaryRequest.parse((ChannelBuffer)e.getMessage());
+		StrestNettyConnectionChannel con = StrestNettyConnectionChannel.get(e.getChannel());
+		req.setConnectionChannel(con);
+		req.setArrivalTime(StrestExecutionHandler.getArrivalTime());
+		try {
+			router.incoming(req);
+		} finally {
+			con.flushWrites();
+		}
+	}
+
+	@Override
+	public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+		StrestNettyConnectionChannel.remove(e.getChannel());
+	}
+	
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e)
+			throws Exception {
+		log.warn("Caught", e.getCause());
+		e.getChannel().close();
+		StrestNettyConnectionChannel.remove(e.getChannel());
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server.v2;
+
+import static org.jboss.netty.channel.Channels.pipeline;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.ssl.SslHandler;
+
+import com.trendrr.strest.server.StrestRouter;
+import com.trendrr.strest.server.StrestServerPipelineFactory;
+import com.trendrr.strest.server.StrestWritabilityHandler;
+
+
+/**
+ * 
+ * Pipeline for the binary strest protocol.  Frames are split on their 4 byte length
+ * prefix on the io thread and parsed on the worker.
+ *
+ */
+public class StrestBinaryServerPipelineFactory extends StrestServerPipelineFactory {
+
+	protected static Log log = LogFactory.getLog(StrestBinaryServerPipelineFactory.class);
+	
+	protected int maxFrameLength;
+	
+	/**
+	 * @param router
+	 * @param sslContext
+	 * @param maxFrameLength the largest packet accepted, larger frames close the connection.
+	 */
+	public StrestBinaryServerPipelineFactory(StrestRouter router,
+			SSLContext sslContext, int maxFrameLength) {
+		super(router, sslContext);
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.jboss.netty.channel.ChannelPipelineFactory#getPipeline()
+	 */
+	@Override
+	public ChannelPipeline getPipeline() throws Exception {
+		ChannelPipeline pipeline = pipeline();
+		
+		pipeline.addLast("bytes", this.byteCounter);
+		if (this.sslContext != null) {
+			SSLEngine engine = this.sslContext.createSSLEngine();
+			engine.setUseClientMode(false);
+			pipeline.addLast("ssl", new SslHandler(engine));
+		}
+		pipeline.addLast("decoder", new LengthFieldBasedFrameDecoder(this.maxFrameLength, 0, 4, 0, 4));
+		pipeline.addLast("encoder", new StrestBinaryEncoder());
+		
+		//before the execution handler so drains are seen on the io thread
+		pipeline.addLast("writability", new StrestWritabilityHandler());
+		pipeline.addLast("executionHandler", this.handler);
+		pipeline.addLast("handler", new StrestBinaryRequestHandler(router));
+		return pipeline;
+	}
+}
@@ -5,19 +5,24 @@ package com.trendrr.strest.server.v2;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.jboss.netty.buffer.ChannelBuffers;
-import org.jboss.netty.channel.Channel;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
-import org.jboss.netty.util.CharsetUtil;
 
 import com.trendrr.oss.DynMap;
 import com.trendrr.strest.server.v2.models.json.StrestJsonResponse;
 
 
 /**
+ * 
+ * Serializes responses straight into a ChannelBuffer (see JsonBufferWriter).  
+ * 
+ * The buffer is sized from a running estimate of the responses written on this 
+ * connection, so a stream of similar sized messages (ex: a firehose) is written 
+ * without resizing.
+ * 
  * @author Dustin Norlander
  * @created May 4, 2012
  * 
@@ -26,22 +31,32 @@ public class StrestJsonEncoder extends SimpleChannelHandler {
 
 	protected static Log log = LogFactory.getLog(StrestJsonEncoder.class);
 	
+	private static final int MIN_ESTIMATE = 128;
+	
+	//written from whichever thread writes, a lost update only costs a resize.
+	private int estimate = 512;
+	
 	 @Override
 	 public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
 		 Object msg = e.getMessage();
 //		 log.info("writing: " + msg);
 		 if (msg instanceof StrestJsonResponse) {
 			 StrestJsonResponse res = (StrestJsonResponse)msg;
-			Channels.write(ctx, e.getFuture(), 
-					ChannelBuffers.wrappedBuffer(res.getMap().toJSONString().getBytes(CharsetUtil.UTF_8))
-			);
-//			log.info("Writing Response: " + res.getMap().toJSONString());
+			Channels.write(ctx, e.getFuture(), this.encode(res.getMap()));
 		 } else if (msg instanceof DynMap) {
-			Channels.write(ctx, e.getFuture(), 
-					ChannelBuffers.wrappedBuffer(((DynMap)msg).toJSONString().getBytes(CharsetUtil.UTF_8))
-			);
-			log.info("Writing DynMap: " + ((DynMap)msg).toJSONString());
-
+			Channels.write(ctx, e.getFuture(), this.encode(msg));
+		 } else {
+			 //already encoded (ex: connection group broadcasts)
+			 ctx.sendDownstream(e);
 		 }
 	 }
+	 
+	 private ChannelBuffer encode(Object map) {
+		 ChannelBuffer buf = JsonBufferWriter.encode(map, this.estimate);
+		 //moving average, padded by 1/8th so typical messages fit.
+		 int size = buf.readableBytes();
+		 size += size >> 3;
+		 this.estimate = Math.max(MIN_ESTIMATE, this.estimate - (this.estimate >> 2) + (size >> 2));
+		 return buf;
+	 }
 }
@@ -7,6 +7,7 @@ import static org.jboss.netty.handler.codec.http.HttpHeaders.is100ContinueExpect
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
@@ -15,6 +16,7 @@ import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 
 import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.StrestExecutionHandler;
 import com.trendrr.strest.server.StrestRouter;
 import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
 import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
@@ -38,10 +40,24 @@ public class StrestJsonRequestHandler extends SimpleChannelUpstreamHandler {
 	
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-    	DynMap request = (DynMap) e.getMessage(); 
+    	Object msg = e.getMessage();
+    	DynMap request;
+    	if (msg instanceof ChannelBuffer) {
+    		//raw frame from the decoder, parse it here on the worker.
+    		ChannelBuffer frame = (ChannelBuffer)msg;
+    		request = JsonFrameParser.parse(frame, frame.readerIndex(), frame.readableBytes());
+    	} else {
+    		request = (DynMap)msg;
+    	}
         StrestJsonRequest req = new StrestJsonRequest(request);
-        req.setConnectionChannel(StrestNettyConnectionChannel.get(e.getChannel()));
-        router.incoming(req);
+        StrestNettyConnectionChannel con = StrestNettyConnectionChannel.get(e.getChannel());
+        req.setConnectionChannel(con);
+        req.setArrivalTime(StrestExecutionHandler.getArrivalTime());
+        try {
+        	router.incoming(req);
+        } finally {
+        	con.flushWrites();
+        }
     }
 
     @Override
@@ -19,6 +19,7 @@ import com.trendrr.strest.server.StrestRequestHandler;
 import com.trendrr.strest.server.StrestResponseEncoder;
 import com.trendrr.strest.server.StrestRouter;
 import com.trendrr.strest.server.StrestServerPipelineFactory;
+import com.trendrr.strest.server.StrestWritabilityHandler;
 
 
 /**
@@ -50,11 +51,14 @@ public class StrestJsonServerPipelineFactory extends StrestServerPipelineFactory
 		 // Create a default pipeline implementation.
         ChannelPipeline pipeline = pipeline();
         
+        pipeline.addLast("bytes", this.byteCounter);
 		pipeline.addLast("decoder", new JsonDecoder());
         // Uncomment the following line if you don't want to handle HttpChunks.
         pipeline.addLast("encoder", new StrestJsonEncoder());
         // Remove the following line if you don't want automatic content compression.
         
+        //before the execution handler so drains are seen on the io thread
+        pipeline.addLast("writability", new StrestWritabilityHandler());
         pipeline.addLast("executionHandler", this.handler);
         
         pipeline.addLast("handler", new StrestJsonRequestHandler(router));
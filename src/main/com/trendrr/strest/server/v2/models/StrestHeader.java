@@ -22,7 +22,9 @@ public class StrestHeader {
 		TXN_ACCEPT("Strest-Txn-Accept", "txn.accept"),
 		TXN_STATUS("Strest-Txn-Status", "txn.status"),
 		CONTENT_TYPE("Content-Type", "content-type"),
-		USER_AGENT("User-Agent", "user-agent");
+		USER_AGENT("User-Agent", "user-agent"),
+		//millis the client will wait for the response, from when the request arrived.
+		DEADLINE("Strest-Deadline", "deadline");
 
 		protected String http;
 		protected String json;
@@ -33,4 +33,20 @@ public interface StrestRequest extends StrestPacketBase{
 	
 	public void setParams(DynMap params);
 	public DynMap getParams();
+	
+	/**
+	 * when the request was taken off the socket (System.currentTimeMillis), before 
+	 * any time spent waiting for a worker.
+	 * @return
+	 */
+	public long getArrivalTime();
+	public void setArrivalTime(long millis);
+	
+	/**
+	 * the time (System.currentTimeMillis) after which nobody is waiting for the 
+	 * response anymore, or 0 for no deadline.
+	 * @return
+	 */
+	public long getDeadline();
+	public void setDeadline(long millis);
 }
@@ -0,0 +1,386 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.v2.models.binary;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.v2.JsonBufferWriter;
+import com.trendrr.strest.server.v2.models.StrestHeader;
+import com.trendrr.strest.server.v2.models.StrestPacketBase;
+import com.trendrr.strest.server.v2.models.StrestHeader.Name;
+
+
+/**
+ *
+ * Base for the compact binary encoding of strest packets.
+ *
+ * Every packet is framed by its length, a 4 byte big endian int.  The frame is:
+ *
+ * request  := version txnId method accept uri params headers payload
+ * response := version txnId statusCode statusMessage txnStatus headers payload
+ *
+ * version  := byte, protocol version * 10 (ex: 20 for STREST 2.0)
+ * txnId    := varint, 0 for none
+ * method   := byte, StrestHeader.Method ordinal
+ * accept   := byte, 0 single, 1 multi
+ * txnStatus := byte, 0 none, 1 continue, 2 completed
+ * params   := string, json encoded, empty for none
+ * headers  := varint count, then count * (tag byte, [name string if tag is 0], value string)
+ * string   := varint length, utf8 bytes
+ * payload  := the rest of the frame, raw bytes
+ *
+ * varints are unsigned LEB128 (7 bits per byte, low bits first).
+ *
+ * Well known headers are sent as a single byte tag (see TAGS), anything
+ * else is sent with its name.
+ *
+ */
+public abstract class StrestBinaryBase implements StrestPacketBase {
+
+	protected static Log log = LogFactory.getLog(StrestBinaryBase.class);
+
+	public static final String PROTOCOL_NAME = "STREST";
+
+	protected static final int TAG_CUSTOM = 0;
+
+	/**
+	 * header names by tag, index 0 is reserved for custom headers.
+	 * only append to this, the tags are part of the wire format.
+	 */
+	protected static final String[] TAGS = new String[] {
+		null,
+		"content-type",
+		"user-agent"
+	};
+
+	protected float protocolVersion = 2f;
+	protected long txnId = 0;
+
+	//keyed by lower case name.
+	protected Map<String, String> headers = new LinkedHashMap<String, String>();
+	protected ChannelBuffer payload = ChannelBuffers.EMPTY_BUFFER;
+
+	/**
+	 * the numeric txn id.
+	 * @return
+	 */
+	public long getTxnIdLong() {
+		return this.txnId;
+	}
+
+	public void setTxnIdLong(long txnId) {
+		this.txnId = txnId;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#addHeader(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public void addHeader(String header, String value) {
+		this.headers.put(header.toLowerCase(), value);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#addHeader(com.trendrr.strest.server.v2.models.StrestHeader.Name, java.lang.String)
+	 */
+	@Override
+	public void addHeader(StrestHeader.Name header, String value) {
+		if (header == Name.TXN_ID) {
+			this.setTxnId(value);
+			return;
+		}
+		this.addHeader(header.getHttpName(), value);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#getHeader(com.trendrr.strest.server.v2.models.StrestHeader.Name)
+	 */
+	@Override
+	public String getHeader(StrestHeader.Name header) {
+		if (header == Name.TXN_ID) {
+			return this.getTxnId();
+		}
+		return this.getHeader(header.getHttpName());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#getHeader(java.lang.String)
+	 */
+	@Override
+	public String getHeader(String header) {
+		return this.headers.get(header.toLowerCase());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#setProtocol(java.lang.String, float)
+	 */
+	@Override
+	public void setProtocol(String protocolName, float version) {
+		this.protocolVersion = version;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#getProtocolVersion()
+	 */
+	@Override
+	public float getProtocolVersion() {
+		return this.protocolVersion;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#getProtocolName()
+	 */
+	@Override
+	public String getProtocolName() {
+		return PROTOCOL_NAME;
+	}
+
+	/**
+	 * binary txn ids are numeric, null clears the id.
+	 * @throws IllegalArgumentException if the id is not a positive number
+	 */
+	@Override
+	public void setTxnId(String id) {
+		if (id == null) {
+			this.txnId = 0;
+			return;
+		}
+		try {
+			this.txnId = Long.parseLong(id);
+		} catch (NumberFormatException x) {
+			throw new IllegalArgumentException("Binary txn ids must be numeric: " + id);
+		}
+		if (this.txnId < 0) {
+			throw new IllegalArgumentException("Binary txn ids must be positive: " + id);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#getTxnId()
+	 */
+	@Override
+	public String getTxnId() {
+		if (this.txnId == 0) {
+			return null;
+		}
+		return Long.toString(this.txnId);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#setContent(com.trendrr.oss.DynMap)
+	 */
+	@Override
+	public void setContent(DynMap content) {
+		this.setContent("application/json", JsonBufferWriter.encode(content, 256));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#setContent(java.lang.String, byte[])
+	 */
+	@Override
+	public void setContent(String contentType, byte[] bytes) {
+		this.setContent(contentType, bytes == null ? ChannelBuffers.EMPTY_BUFFER : ChannelBuffers.wrappedBuffer(bytes));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#setContent(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public void setContent(String contentType, String utf8Str) {
+		this.setContent(contentType, ChannelBuffers.copiedBuffer(utf8Str, CharsetUtil.UTF_8));
+	}
+
+	public void setContent(String contentType, ChannelBuffer content) {
+		this.payload = content;
+		if (contentType != null) {
+			this.addHeader(Name.CONTENT_TYPE, contentType);
+		}
+	}
+
+	/**
+	 * textual content (json, text, form encoded, xml) is returned as a String,
+	 * anything else as a byte array.  null if there is no content.
+	 */
+	@Override
+	public Object getContent() {
+		if (this.payload.readableBytes() == 0) {
+			return null;
+		}
+		String contentType = this.getHeader(Name.CONTENT_TYPE);
+		if (contentType != null && (contentType.startsWith("text")
+				|| contentType.contains("json")
+				|| contentType.contains("form-urlencoded")
+				|| contentType.contains("xml"))) {
+			return this.payload.toString(CharsetUtil.UTF_8);
+		}
+		return this.getPayloadBytes();
+	}
+
+	/**
+	 * the raw payload, do not modify.
+	 * @return
+	 */
+	public ChannelBuffer getPayload() {
+		return this.payload;
+	}
+
+	protected byte[] getPayloadBytes() {
+		byte[] bytes = new byte[this.payload.readableBytes()];
+		this.payload.getBytes(this.payload.readerIndex(), bytes);
+		return bytes;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#cleanup()
+	 */
+	@Override
+	public void cleanup() {
+		this.headers = null;
+		this.payload = null;
+	}
+
+	/**
+	 * the framed packet, ready to write.
+	 * @return
+	 */
+	public ChannelBuffer toBuffer() {
+		ChannelBuffer head = ChannelBuffers.dynamicBuffer(64 + this.headers.size() * 32);
+		head.writeInt(0); //length, filled in below
+		head.writeByte(versionByte(this.protocolVersion));
+		writeVarint(head, this.txnId);
+		this.writeFields(head);
+		this.writeHeaders(head);
+		head.setInt(0, head.readableBytes() - 4 + this.payload.readableBytes());
+		if (this.payload.readableBytes() == 0) {
+			return head;
+		}
+		return ChannelBuffers.wrappedBuffer(head, this.payload.slice());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestPacketBase#toByteArray()
+	 */
+	@Override
+	public byte[] toByteArray() {
+		ChannelBuffer buf = this.toBuffer();
+		byte[] bytes = new byte[buf.readableBytes()];
+		buf.readBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * writes the packet type specific fields that come between the txn id and the headers.
+	 * @param out
+	 */
+	protected abstract void writeFields(ChannelBuffer out);
+
+	/**
+	 * reads the fields written by writeFields.
+	 * @param in
+	 */
+	protected abstract void readFields(ChannelBuffer in) throws CorruptedFrameException;
+
+	/**
+	 * reads the frame (without its length prefix) into this packet.
+	 * The payload is a slice of the frame.
+	 * @param frame
+	 * @throws CorruptedFrameException
+	 */
+	protected void read(ChannelBuffer frame) throws CorruptedFrameException {
+		try {
+			this.protocolVersion = frame.readUnsignedByte() / 10f;
+			this.txnId = readVarint(frame);
+			this.readFields(frame);
+			int count = (int)readVarint(frame);
+			for (int i = 0; i < count; i++) {
+				int tag = frame.readUnsignedByte();
+				String name;
+				if (tag == TAG_CUSTOM) {
+					name = readString(frame);
+				} else if (tag < TAGS.length) {
+					name = TAGS[tag];
+				} else {
+					throw new CorruptedFrameException("Unknown header tag: " + tag);
+				}
+				this.headers.put(name, readString(frame));
+			}
+			this.payload = frame.slice();
+		} catch (IndexOutOfBoundsException x) {
+			throw new CorruptedFrameException("Truncated strest packet");
+		}
+	}
+
+	protected void writeHeaders(ChannelBuffer out) {
+		writeVarint(out, this.headers.size());
+		for (Map.Entry<String, String> e : this.headers.entrySet()) {
+			int tag = tag(e.getKey());
+			out.writeByte(tag);
+			if (tag == TAG_CUSTOM) {
+				writeString(out, e.getKey());
+			}
+			writeString(out, e.getValue());
+		}
+	}
+
+	private static int tag(String name) {
+		for (int i = 1; i < TAGS.length; i++) {
+			if (TAGS[i].equals(name)) {
+				return i;
+			}
+		}
+		return TAG_CUSTOM;
+	}
+
+	static int versionByte(float version) {
+		return Math.min(255, Math.round(version * 10));
+	}
+
+	static void writeVarint(ChannelBuffer out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	static long readVarint(ChannelBuffer in) throws CorruptedFrameException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new CorruptedFrameException("Malformed varint");
+	}
+
+	static void writeString(ChannelBuffer out, String str) {
+		if (str == null) {
+			str = "";
+		}
+		byte[] bytes = str.getBytes(CharsetUtil.UTF_8);
+		writeVarint(out, bytes.length);
+		out.writeBytes(bytes);
+	}
+
+	static String readString(ChannelBuffer in) throws CorruptedFrameException {
+		long length = readVarint(in);
+		if (length > in.readableBytes()) {
+			throw new CorruptedFrameException("String longer than the packet");
+		}
+		String str = in.toString(in.readerIndex(), (int)length, CharsetUtil.UTF_8);
+		in.skipBytes((int)length);
+		return str;
+	}
+}
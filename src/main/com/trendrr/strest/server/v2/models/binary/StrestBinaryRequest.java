@@ -0,0 +1,208 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.v2.models.binary;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.connections.StrestConnectionChannel;
+import com.trendrr.strest.server.v2.JsonBufferWriter;
+import com.trendrr.strest.server.v2.JsonFrameParser;
+import com.trendrr.strest.server.v2.models.StrestRequest;
+import com.trendrr.strest.server.v2.models.StrestHeader.Method;
+import com.trendrr.strest.server.v2.models.StrestHeader.TxnAccept;
+
+
+/**
+ * A request in the binary encoding, see StrestBinaryBase for the format.
+ *
+ */
+public class StrestBinaryRequest extends StrestBinaryBase implements StrestRequest {
+
+	protected static Log log = LogFactory.getLog(StrestBinaryRequest.class);
+
+	protected StrestConnectionChannel channel;
+	protected long arrivalTime = 0;
+	protected long deadline = 0;
+
+	protected Method method;
+	protected String uri;
+	protected TxnAccept txnAccept = TxnAccept.SINGLE;
+	protected DynMap params;
+
+	/**
+	 * parses a request from a frame (without the length prefix)
+	 * @param frame
+	 * @return
+	 * @throws CorruptedFrameException
+	 */
+	public static StrestBinaryRequest parse(ChannelBuffer frame) throws CorruptedFrameException {
+		StrestBinaryRequest request = new StrestBinaryRequest();
+		request.read(frame);
+		return request;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.binary.StrestBinaryBase#writeFields(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	protected void writeFields(ChannelBuffer out) {
+		out.writeByte(this.method == null ? 0 : this.method.ordinal());
+		out.writeByte(this.txnAccept == TxnAccept.MULTI ? 1 : 0);
+		writeString(out, this.uri);
+		if (this.params == null || this.params.isEmpty()) {
+			writeVarint(out, 0);
+		} else {
+			ChannelBuffer json = JsonBufferWriter.encode(this.params, 64);
+			writeVarint(out, json.readableBytes());
+			out.writeBytes(json);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.binary.StrestBinaryBase#readFields(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	protected void readFields(ChannelBuffer in) throws CorruptedFrameException {
+		int method = in.readUnsignedByte();
+		if (method >= Method.values().length) {
+			throw new CorruptedFrameException("Unknown method: " + method);
+		}
+		this.method = Method.values()[method];
+		this.txnAccept = in.readUnsignedByte() == 1 ? TxnAccept.MULTI : TxnAccept.SINGLE;
+		this.uri = readString(in);
+		long length = readVarint(in);
+		if (length > in.readableBytes()) {
+			throw new CorruptedFrameException("Params longer than the packet");
+		}
+		if (length > 0) {
+			this.params = JsonFrameParser.parse(in, in.readerIndex(), (int)length);
+			in.skipBytes((int)length);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getArrivalTime()
+	 */
+	@Override
+	public long getArrivalTime() {
+		return this.arrivalTime;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#setArrivalTime(long)
+	 */
+	@Override
+	public void setArrivalTime(long millis) {
+		this.arrivalTime = millis;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getDeadline()
+	 */
+	@Override
+	public long getDeadline() {
+		return this.deadline;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#setDeadline(long)
+	 */
+	@Override
+	public void setDeadline(long millis) {
+		this.deadline = millis;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getConnectionChannel()
+	 */
+	@Override
+	public StrestConnectionChannel getConnectionChannel() {
+		return this.channel;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#setConnectionChannel(com.trendrr.strest.server.connections.StrestConnectionChannel)
+	 */
+	@Override
+	public void setConnectionChannel(StrestConnectionChannel channel) {
+		this.channel = channel;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#setMethod(com.trendrr.strest.server.v2.models.StrestHeader.Method)
+	 */
+	@Override
+	public void setMethod(Method method) {
+		this.method = method;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getMethod()
+	 */
+	@Override
+	public Method getMethod() {
+		return this.method;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#setUri(java.lang.String)
+	 */
+	@Override
+	public void setUri(String uri) {
+		this.uri = uri;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getUri()
+	 */
+	@Override
+	public String getUri() {
+		return this.uri;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#setTxnAccept(com.trendrr.strest.server.v2.models.StrestHeader.TxnAccept)
+	 */
+	@Override
+	public void setTxnAccept(TxnAccept accept) {
+		this.txnAccept = accept;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getTxnAccept()
+	 */
+	@Override
+	public TxnAccept getTxnAccept() {
+		return this.txnAccept;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#setParams(com.trendrr.oss.DynMap)
+	 */
+	@Override
+	public void setParams(DynMap params) {
+		this.params = params;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getParams()
+	 */
+	@Override
+	public DynMap getParams() {
+		return this.params;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.binary.StrestBinaryBase#cleanup()
+	 */
+	@Override
+	public void cleanup() {
+		super.cleanup();
+		this.channel = null;
+	}
+}
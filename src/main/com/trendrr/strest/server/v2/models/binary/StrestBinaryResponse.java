@@ -0,0 +1,177 @@
+/**
+ *
+ */
+package com.trendrr.strest.server.v2.models.binary;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+
+import com.trendrr.strest.server.v2.models.StrestResponse;
+import com.trendrr.strest.server.v2.models.StrestHeader.Name;
+import com.trendrr.strest.server.v2.models.StrestHeader.TxnStatus;
+import com.trendrr.strest.server.v2.models.json.StrestJsonResponse;
+
+
+/**
+ * A response in the binary encoding, see StrestBinaryBase for the format.
+ *
+ */
+public class StrestBinaryResponse extends StrestBinaryBase implements StrestResponse {
+
+	protected static Log log = LogFactory.getLog(StrestBinaryResponse.class);
+
+	protected int statusCode = 200;
+	protected String statusMessage = "OK";
+	protected TxnStatus txnStatus = null;
+
+	/**
+	 * parses a response from a frame (without the length prefix)
+	 * @param frame
+	 * @return
+	 * @throws CorruptedFrameException
+	 */
+	public static StrestBinaryResponse parse(ChannelBuffer frame) throws CorruptedFrameException {
+		StrestBinaryResponse response = new StrestBinaryResponse();
+		response.read(frame);
+		return response;
+	}
+
+	/**
+	 * converts a response of another wire format (ex: the routers json error responses).
+	 * Non numeric txn ids are dropped.
+	 * @param response
+	 * @return
+	 */
+	public static StrestBinaryResponse instance(StrestResponse response) {
+		if (response instanceof StrestBinaryResponse) {
+			return (StrestBinaryResponse)response;
+		}
+		StrestBinaryResponse res = new StrestBinaryResponse();
+		res.setProtocol(response.getProtocolName(), response.getProtocolVersion());
+		res.setStatus(response.getStatusCode(), response.getStatusMessage());
+		res.setTxnStatus(response.getTxnStatus());
+		try {
+			res.setTxnId(response.getTxnId());
+		} catch (IllegalArgumentException x) {
+			log.warn("Dropping txn id: " + x.getMessage());
+		}
+		String contentType = response.getHeader(Name.CONTENT_TYPE);
+		if (response instanceof StrestJsonResponse) {
+			Object content = response.getContent();
+			if (contentType != null && !contentType.contains("json") && content instanceof String) {
+				res.setContent(contentType, (String)content);
+				return res;
+			}
+			contentType = "application/json";
+		}
+		byte[] bytes = response.getContentBytes();
+		if (bytes != null && bytes.length > 0) {
+			res.setContent(contentType, bytes);
+		}
+		return res;
+	}
+
+	/**
+	 * the framed response for the txn, where body is the output of encodeBody.  Used to
+	 * share one encoding between many txns.
+	 * @param version
+	 * @param txnId
+	 * @param body
+	 * @return
+	 */
+	public static ChannelBuffer frame(float version, long txnId, ChannelBuffer body) {
+		ChannelBuffer head = ChannelBuffers.buffer(15);
+		head.writeInt(0);
+		head.writeByte(versionByte(version));
+		writeVarint(head, txnId);
+		head.setInt(0, head.readableBytes() - 4 + body.readableBytes());
+		return ChannelBuffers.wrappedBuffer(head, body);
+	}
+
+	/**
+	 * everything in the frame after the txn id.
+	 * @return
+	 */
+	public ChannelBuffer encodeBody() {
+		ChannelBuffer fields = ChannelBuffers.dynamicBuffer(64 + this.headers.size() * 32);
+		this.writeFields(fields);
+		this.writeHeaders(fields);
+		return ChannelBuffers.wrappedBuffer(fields, this.payload.slice());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.binary.StrestBinaryBase#writeFields(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	protected void writeFields(ChannelBuffer out) {
+		writeVarint(out, this.statusCode);
+		writeString(out, this.statusMessage);
+		out.writeByte(this.txnStatus == null ? 0 : this.txnStatus.ordinal() + 1);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.binary.StrestBinaryBase#readFields(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	protected void readFields(ChannelBuffer in) throws CorruptedFrameException {
+		this.statusCode = (int)readVarint(in);
+		this.statusMessage = readString(in);
+		int status = in.readUnsignedByte();
+		if (status > TxnStatus.values().length) {
+			throw new CorruptedFrameException("Unknown txn status: " + status);
+		}
+		this.txnStatus = status == 0 ? null : TxnStatus.values()[status - 1];
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestResponse#setStatus(int, java.lang.String)
+	 */
+	@Override
+	public void setStatus(int code, String message) {
+		this.statusCode = code;
+		this.statusMessage = message;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestResponse#getStatusCode()
+	 */
+	@Override
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestResponse#getStatusMessage()
+	 */
+	@Override
+	public String getStatusMessage() {
+		return this.statusMessage;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestResponse#setTxnStatus(com.trendrr.strest.server.v2.models.StrestHeader.TxnStatus)
+	 */
+	@Override
+	public void setTxnStatus(TxnStatus status) {
+		this.txnStatus = status;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestResponse#getTxnStatus()
+	 */
+	@Override
+	public TxnStatus getTxnStatus() {
+		return this.txnStatus;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestResponse#getContentBytes()
+	 */
+	@Override
+	public byte[] getContentBytes() {
+		return this.getPayloadBytes();
+	}
+}
@@ -12,6 +12,7 @@ import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMessage;
 import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
 
 import com.trendrr.oss.DynMap;
 import com.trendrr.strest.server.v2.models.StrestPacketBase;
@@ -107,7 +108,10 @@ public class StrestHttpBase implements StrestPacketBase {
 	 */
 	@Override
 	public void setTxnId(String id) {
-		this.addHeader(Name.TXN_ID, id);
+		if (id == null)
+			return;
+		//set rather than add, so resending a response doesn't accumulate ids
+		message.setHeader(Name.TXN_ID.getHttpName(), id);
 	}
 
 	/* (non-Javadoc)
@@ -167,9 +171,13 @@ public class StrestHttpBase implements StrestPacketBase {
 		return bytes;
 	}
 	
+	/**
+	 * decodes the content as utf8, straight from the buffer.
+	 * @return
+	 */
 	public String getContentAsString() {
 		try {
-			return new String((byte[])this.getContent(), "utf8");
+			return this.message.getContent().toString(CharsetUtil.UTF_8);
 		} catch (Exception x) {
 			return null;
 		}
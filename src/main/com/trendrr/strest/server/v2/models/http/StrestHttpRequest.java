@@ -9,7 +9,9 @@ import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 
 import com.trendrr.oss.DynMap;
-import com.trendrr.oss.DynMapFactory;
+import com.trendrr.strest.server.RequestBodyStream;
+import com.trendrr.strest.server.RequestParams;
+import com.trendrr.strest.server.StreamingHttpRequest;
 import com.trendrr.strest.server.connections.StrestConnectionChannel;
 import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
 import com.trendrr.strest.server.v2.models.StrestRequest;
@@ -28,14 +30,73 @@ public class StrestHttpRequest extends StrestHttpBase implements StrestRequest {
 	protected static Log log = LogFactory.getLog(StrestHttpRequest.class);
 	
 	protected StrestConnectionChannel channel;
+	protected long arrivalTime = 0;
+	protected long deadline = 0;
+	
+	protected int sequence = -1;
 		
 	public StrestHttpRequest(HttpRequest request) {
 		this.message = request;
 	}
 	
+	/**
+	 * position of this request on a pipelined keep-alive connection, -1 if not pipelined.
+	 * @return
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(int sequence) {
+		this.sequence = sequence;
+	}
+	
 	public HttpRequest getRequest() {
 		return (HttpRequest)this.message;
 	}
+	
+	/**
+	 * the body of a request for a @StreamingBody handler, null for any other request.
+	 * @return
+	 */
+	public RequestBodyStream getBodyStream() {
+		if (this.message instanceof StreamingHttpRequest) {
+			return ((StreamingHttpRequest)this.message).getBody();
+		}
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getArrivalTime()
+	 */
+	@Override
+	public long getArrivalTime() {
+		return this.arrivalTime;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#setArrivalTime(long)
+	 */
+	@Override
+	public void setArrivalTime(long millis) {
+		this.arrivalTime = millis;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getDeadline()
+	 */
+	@Override
+	public long getDeadline() {
+		return this.deadline;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#setDeadline(long)
+	 */
+	@Override
+	public void setDeadline(long millis) {
+		this.deadline = millis;
+	}
 
 	/* (non-Javadoc)
 	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getConnectionChannel()
@@ -142,27 +203,14 @@ public class StrestHttpRequest extends StrestHttpBase implements StrestRequest {
 			return this.paramsPOST;
 		}
 		
-		 //parse any post params
-        String contentType = this.getHeader(Name.CONTENT_TYPE);
-        if(contentType != null){
-        	String pms = this.getContentAsString();
-        	if(pms != null){
-        		if (contentType.contains("form-urlencoded")) {
-        			this.paramsPOST = DynMapFactory.instanceFromURLEncoded(pms);
-        		}else if (contentType.contains("json")){
-        			this.paramsPOST = DynMapFactory.instanceFromJSON(pms);
-        		}
-        	}
-        }
-		if (this.paramsPOST == null)
-			this.paramsPOST = new DynMap();
+		//parse any post params, straight from the body's buffer
+		this.paramsPOST = RequestParams.parsePOST(this.getHeader(Name.CONTENT_TYPE), this.getRequest().getContent());
 		return this.paramsPOST;
-        
 	}
 	
 	public DynMap getParamsGET() {
 		if (this.paramsGET == null) {
-			this.paramsGET = DynMapFactory.instanceFromURL(this.getUri());
+			this.paramsGET = RequestParams.parseGET(this.getUri());
 		}
 		return this.paramsGET;
 	}
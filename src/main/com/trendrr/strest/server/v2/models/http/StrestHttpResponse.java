@@ -35,9 +35,24 @@ public class StrestHttpResponse extends StrestHttpBase implements
 	}
 	
 	
+	protected int sequence = -1;
+	
 	public HttpResponse getResponse() {
 		return (HttpResponse)this.message;
 	} 
+	
+	/**
+	 * the sequence of the pipelined request this answers, -1 if not pipelined.
+	 * @return
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(int sequence) {
+		this.sequence = sequence;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.trendrr.strest.server.v2.models.StrestResponse#setStatus(int, java.lang.String)
 	 */
@@ -73,7 +88,7 @@ public class StrestHttpResponse extends StrestHttpBase implements
 	 */
 	@Override
 	public void setTxnStatus(TxnStatus status) {
-		this.addHeader(StrestHeader.Name.TXN_STATUS, status.getHttp());
+		this.getResponse().setHeader(StrestHeader.Name.TXN_STATUS.getHttpName(), status.getHttp());
 	}
 	
 	/* (non-Javadoc)
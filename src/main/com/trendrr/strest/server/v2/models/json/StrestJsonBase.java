@@ -10,6 +10,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.v2.JsonBufferWriter;
 import com.trendrr.strest.server.v2.models.StrestHeader;
 import com.trendrr.strest.server.v2.models.StrestPacketBase;
 import com.trendrr.strest.server.v2.models.StrestHeader.Method;
@@ -165,12 +166,7 @@ public abstract class StrestJsonBase implements StrestPacketBase {
 	 */
 	@Override
 	public byte[] toByteArray() {
-		try {
-			return this.map.toJSONString().getBytes("utf8");
-		} catch (UnsupportedEncodingException e) {
-			log.error("Caught", e);
-		}
-		return null;
+		return JsonBufferWriter.toByteArray(this.map);
 	}
 	
 	/* (non-Javadoc)
@@ -40,6 +40,8 @@ public class StrestJsonRequest extends StrestJsonBase implements StrestRequest {
 	protected static Log log = LogFactory.getLog(StrestJsonRequest.class);
 
 	protected StrestConnectionChannel channel;
+	protected long arrivalTime = 0;
+	protected long deadline = 0;
 	
 	
 	
@@ -110,6 +112,38 @@ public class StrestJsonRequest extends StrestJsonBase implements StrestRequest {
 		return this.map.getMap("strest.params");
 	}
 
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getArrivalTime()
+	 */
+	@Override
+	public long getArrivalTime() {
+		return this.arrivalTime;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#setArrivalTime(long)
+	 */
+	@Override
+	public void setArrivalTime(long millis) {
+		this.arrivalTime = millis;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getDeadline()
+	 */
+	@Override
+	public long getDeadline() {
+		return this.deadline;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.models.StrestRequest#setDeadline(long)
+	 */
+	@Override
+	public void setDeadline(long millis) {
+		this.deadline = millis;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.trendrr.strest.server.v2.models.StrestRequest#getConnectionChannel()
 	 */
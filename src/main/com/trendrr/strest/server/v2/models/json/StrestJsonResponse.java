@@ -3,12 +3,12 @@
  */
 package com.trendrr.strest.server.v2.models.json;
 
-import java.io.UnsupportedEncodingException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.v2.JsonBufferWriter;
 import com.trendrr.strest.server.v2.models.StrestHeader.TxnStatus;
 import com.trendrr.strest.server.v2.models.StrestHeader;
 import com.trendrr.strest.server.v2.models.StrestResponse;
@@ -86,13 +86,7 @@ public class StrestJsonResponse extends StrestJsonBase implements StrestResponse
 		DynMap mp = new DynMap();
 		mp.putAll(this.getMap());
 		mp.remove("strest");
-		
-		try {
-			return mp.toJSONString().getBytes("utf8");
-		} catch (UnsupportedEncodingException e) {
-			log.error("Caught", e);
-		}
-		return null;
+		return JsonBufferWriter.toByteArray(mp);
 	}
 	
 	
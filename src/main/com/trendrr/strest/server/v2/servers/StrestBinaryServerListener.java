@@ -0,0 +1,79 @@
+/**
+ * 
+ */
+package com.trendrr.strest.server.v2.servers;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.oss.FileHelper;
+import com.trendrr.strest.server.StrestServer;
+import com.trendrr.strest.server.v2.StrestBinaryServerPipelineFactory;
+
+
+/**
+ * 
+ * Listener for the compact binary strest protocol (see StrestBinaryBase).
+ * 
+ * config:
+ * 	port - default 8011
+ * 	max_frame_mb - largest packet accepted, default 16
+ * 	ordered - run the requests of a connection one at a time, in order.  default false
+ *
+ */
+public class StrestBinaryServerListener extends ServerListenerBase {
+
+	protected static Log log = LogFactory.getLog(StrestBinaryServerListener.class);
+	
+	protected ServerBootstrap bootstrap;
+	protected Channel channel;
+	
+	/**
+	 * @param master
+	 * @param config
+	 */
+	public StrestBinaryServerListener(StrestServer master, DynMap config) {
+		super(master, config);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.servers.ServerListenerBase#getName()
+	 */
+	@Override
+	public String getName() {
+		return "strest-binary";
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.servers.ServerListenerBase#start(java.util.concurrent.Executor, java.util.concurrent.Executor)
+	 */
+	@Override
+	public void start(Executor bossExecutor, Executor workerExecutor) {
+		//io threads are shared with the other listeners.
+		this.bootstrap = new ServerBootstrap(this.master.getChannelFactory());
+		int maxFrame = (int)FileHelper.megsToBytes(this.config.getInteger("max_frame_mb", 16));
+		StrestBinaryServerPipelineFactory factory = new StrestBinaryServerPipelineFactory(this.master.getRouter(), null, maxFrame);
+		factory.setOrderedExecution(this.config.getBoolean("ordered", false));
+		bootstrap.setPipelineFactory(factory);
+		int port = this.config.getInteger("port", 8011);
+		this.channel = bootstrap.bind(new InetSocketAddress(port));
+		System.out.println("STREST server binary started at port " + port + '.');
+	}
+
+	/* (non-Javadoc)
+	 * @see com.trendrr.strest.server.v2.servers.ServerListenerBase#stop()
+	 */
+	@Override
+	public void stop() {
+		//the channel factory belongs to the server, it is released there.
+		if (this.channel != null) {
+			this.channel.close().awaitUninterruptibly();
+		}
+	}
+}
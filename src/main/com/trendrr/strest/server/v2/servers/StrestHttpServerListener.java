@@ -9,9 +9,10 @@ import java.util.concurrent.Executor;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.bootstrap.ServerBootstrap;
-import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.channel.Channel;
 
 import com.trendrr.oss.DynMap;
+import com.trendrr.oss.FileHelper;
 import com.trendrr.strest.server.StrestServer;
 import com.trendrr.strest.server.StrestServerPipelineFactory;
 
@@ -35,6 +36,7 @@ public class StrestHttpServerListener extends ServerListenerBase {
 			.getLog(StrestHttpServerListener.class);
 
 	protected ServerBootstrap bootstrap;
+	protected Channel channel;
 	
 	/* (non-Javadoc)
 	 * @see com.trendrr.strest.server.v2.servers.ServerListenerBase#getName()
@@ -49,15 +51,18 @@ public class StrestHttpServerListener extends ServerListenerBase {
 	 */
 	@Override
 	public void start(Executor bossExecutor, Executor workerExecutor) {
-		this.bootstrap = new ServerBootstrap(
-                new NioServerSocketChannelFactory(
-                        bossExecutor,
-                        bossExecutor));
+		//io threads are shared with the other listeners.
+		this.bootstrap = new ServerBootstrap(this.master.getChannelFactory());
         // Set up the event pipeline factory.
 		int port = this.config.getInteger("port", 8010);
 		 
-        bootstrap.setPipelineFactory(new StrestServerPipelineFactory(this.master.getRouter(), null));
-		bootstrap.bind(new InetSocketAddress(port));
+        StrestServerPipelineFactory factory = new StrestServerPipelineFactory(this.master.getRouter(), null);
+        factory.setOrderedExecution(this.config.getBoolean("ordered", false));
+        factory.setKeepAliveTimeout(this.config.getInteger("keepalive_timeout", 60));
+        factory.setMaxContentLength(FileHelper.megsToBytes(this.config.getInteger("max_body_mb", 64)));
+        factory.setSpillThreshold(this.config.getInteger("spill_threshold_kb", 64) * 1024);
+        bootstrap.setPipelineFactory(factory);
+		this.channel = bootstrap.bind(new InetSocketAddress(port));
 		System.out.println("HTTP server started at port " + port + '.');
 
 	}
@@ -67,7 +72,9 @@ public class StrestHttpServerListener extends ServerListenerBase {
 	 */
 	@Override
 	public void stop() {
-		this.bootstrap.releaseExternalResources();
-		
+		//the channel factory belongs to the server, it is released there.
+		if (this.channel != null) {
+			this.channel.close().awaitUninterruptibly();
+		}
 	}
 }
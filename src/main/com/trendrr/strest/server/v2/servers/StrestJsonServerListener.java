@@ -9,7 +9,7 @@ import java.util.concurrent.Executor;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.bootstrap.ServerBootstrap;
-import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.channel.Channel;
 
 import com.trendrr.oss.DynMap;
 import com.trendrr.strest.server.StrestRouter;
@@ -35,22 +35,23 @@ public class StrestJsonServerListener extends ServerListenerBase{
 	protected static Log log = LogFactory.getLog(StrestJsonServerListener.class);
 	
 	protected ServerBootstrap bootstrap;
+	protected Channel channel;
 	
 	
 	
 	
 	public void start(Executor bossExecutor, Executor workerExecutor) {
 		 // Configure the server.
-		 this.bootstrap = new ServerBootstrap(
-	                new NioServerSocketChannelFactory(
-	                		bossExecutor,
-	                		bossExecutor));
+		 //io threads are shared with the other listeners.
+		 this.bootstrap = new ServerBootstrap(this.master.getChannelFactory());
 		   
 		 // Set up the event pipeline factory.
-		 bootstrap.setPipelineFactory(new StrestJsonServerPipelineFactory(this.master.getRouter(), null));
+		 StrestJsonServerPipelineFactory factory = new StrestJsonServerPipelineFactory(this.master.getRouter(), null);
+		 factory.setOrderedExecution(this.config.getBoolean("ordered", false));
+		 bootstrap.setPipelineFactory(factory);
 		 int port = this.config.getInteger("port", 8009);
 		 // Bind and start to accept incoming connections.
-		 bootstrap.bind(new InetSocketAddress(port));
+		 this.channel = bootstrap.bind(new InetSocketAddress(port));
 		  
 		 System.out.println("STREST server json started at port " + port + '.');
 	 }
@@ -72,8 +73,10 @@ public class StrestJsonServerListener extends ServerListenerBase{
 	 */
 	@Override
 	public void stop() {
-		this.bootstrap.releaseExternalResources();
-		
+		//the channel factory belongs to the server, it is released there.
+		if (this.channel != null) {
+			this.channel.close().awaitUninterruptibly();
+		}
 	}
 	
 	
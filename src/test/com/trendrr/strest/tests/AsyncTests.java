@@ -0,0 +1,116 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.util.concurrent.CompletableFuture;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.StrestHttpException;
+import com.trendrr.strest.annotations.Async;
+import com.trendrr.strest.annotations.Pooled;
+import com.trendrr.strest.annotations.Strest;
+import com.trendrr.strest.server.StrestController;
+import com.trendrr.strest.server.StrestRouter;
+import com.trendrr.strest.server.v2.models.StrestResponse;
+import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
+import com.trendrr.strest.tests.helper.RecordingConnection;
+
+
+public class AsyncTests {
+
+	protected Log log = LogFactory.getLog(AsyncTests.class);
+
+	static volatile CompletableFuture<String> pending;
+	static volatile StrestController lastController;
+
+	@Strest(route = "/stage")
+	public static class StageController extends StrestController {
+		@Override
+		public void handleGET(DynMap params) throws Exception {
+			final CompletableFuture<String> future = new CompletableFuture<String>();
+			pending = future;
+			this.startAsync(future.thenAccept(new java.util.function.Consumer<String>() {
+				@Override
+				public void accept(String value) {
+					setResponseUTF8("text/plain", value);
+				}
+			}));
+		}
+	}
+
+	@Strest(route = "/pooled")
+	@Pooled(max = 4)
+	public static class PooledAsyncController extends StrestController {
+		@Override
+		@Async
+		public void handleGET(DynMap params) throws Exception {
+			lastController = this;
+			//never completes
+		}
+
+		@Override
+		public void handlePOST(DynMap params) throws Exception {
+			lastController = this;
+			this.setResponseUTF8("text/plain", "sync");
+		}
+	}
+
+	private StrestRouter router() {
+		StrestRouter router = new StrestRouter();
+		router.addRoute("/stage", StageController.class);
+		router.addRoute("/pooled", PooledAsyncController.class);
+		return router;
+	}
+
+	@Test
+	public void testCompletionStage() throws Exception {
+		StrestRouter router = this.router();
+		StrestHttpRequest request = RecordingConnection.request("GET", "/stage");
+		router.incoming(request);
+		Assert.assertTrue(RecordingConnection.sent(request).isEmpty());
+
+		pending.complete("done");
+		StrestResponse response = RecordingConnection.sent(request).get(0);
+		Assert.assertEquals(200, response.getStatusCode());
+		Assert.assertEquals("done", RecordingConnection.content(response));
+	}
+
+	@Test
+	public void testCompletionStageFailure() throws Exception {
+		StrestRouter router = this.router();
+		StrestHttpRequest request = RecordingConnection.request("GET", "/stage");
+		router.incoming(request);
+		pending.completeExceptionally(StrestHttpException.NOT_FOUND());
+		Assert.assertEquals(404, RecordingConnection.sent(request).get(0).getStatusCode());
+	}
+
+	@Test
+	public void testTimedOutControllerIsNotReused() throws Exception {
+		StrestRouter router = this.router();
+		router.setAsyncTimeout(20);
+		StrestHttpRequest request = RecordingConnection.request("GET", "/pooled");
+		router.incoming(request);
+		StrestController timedOut = lastController;
+		StrestResponse response = ((RecordingConnection)request.getConnectionChannel()).await(2000);
+		Assert.assertNotNull(response);
+		Assert.assertEquals(504, response.getStatusCode());
+
+		//the handler may still be holding the timed out controller, it must not come back from the pool
+		request = RecordingConnection.request("POST", "/pooled");
+		router.incoming(request);
+		Assert.assertNotSame(timedOut, lastController);
+		Assert.assertEquals("/pooled", timedOut.getRequest().getUri());
+
+		//sync requests still recycle
+		StrestController sync = lastController;
+		router.incoming(RecordingConnection.request("POST", "/pooled"));
+		Assert.assertSame(sync, lastController);
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioChannelConfig;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.connections.BackpressurePolicy;
+import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
+import com.trendrr.strest.server.v2.models.StrestHeader.TxnStatus;
+import com.trendrr.strest.tests.helper.MockChannel;
+
+
+public class BackpressureTests {
+
+	protected Log log = LogFactory.getLog(BackpressureTests.class);
+
+	@After
+	public void resetConfig() {
+		this.configure("policy", "drop_oldest", "high_watermark", 65536, "low_watermark", 32768,
+				"max_pending", 1024, "block_timeout", 5000);
+	}
+
+	private void configure(Object ...keyValues) {
+		DynMap config = new DynMap();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			config.put((String)keyValues[i], keyValues[i + 1]);
+		}
+		StrestNettyConnectionChannel.configure(config);
+	}
+
+	private static ChannelBuffer message(String str) {
+		return ChannelBuffers.copiedBuffer(str.getBytes());
+	}
+
+	private static String str(Object message) {
+		return new String(((ChannelBuffer)message).array());
+	}
+
+	@Test
+	public void testWaterMarks() throws Exception {
+		NioClientSocketChannelFactory factory = new NioClientSocketChannelFactory();
+		try {
+			//under netty's default low mark of 32k, so the low mark has to be set first
+			this.configure("high_watermark", 8192, "low_watermark", 4096);
+			Channel channel = factory.newChannel(Channels.pipeline());
+			new StrestNettyConnectionChannel(channel);
+			NioChannelConfig config = (NioChannelConfig)channel.getConfig();
+			Assert.assertEquals(8192, config.getWriteBufferHighWaterMark());
+			Assert.assertEquals(4096, config.getWriteBufferLowWaterMark());
+			channel.close();
+
+			//and over the default high mark, the high mark goes first
+			this.configure("high_watermark", 256 * 1024, "low_watermark", 128 * 1024);
+			channel = factory.newChannel(Channels.pipeline());
+			new StrestNettyConnectionChannel(channel);
+			config = (NioChannelConfig)channel.getConfig();
+			Assert.assertEquals(256 * 1024, config.getWriteBufferHighWaterMark());
+			Assert.assertEquals(128 * 1024, config.getWriteBufferLowWaterMark());
+			channel.close();
+		} finally {
+			factory.releaseExternalResources();
+		}
+	}
+
+	@Test
+	public void testDropOldestIsDefault() throws Exception {
+		this.configure("max_pending", 4);
+		MockChannel channel = new MockChannel();
+		StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		channel.setWritable(false);
+		for (int i = 0; i < 10; i++) {
+			Assert.assertNull(con.sendEncoded(message("m" + i), "txn", TxnStatus.CONTINUE));
+		}
+		Assert.assertTrue(con.isSlowConsumer());
+		Assert.assertTrue(channel.written.isEmpty());
+
+		channel.setWritable(true);
+		con.writabilityChanged();
+		Assert.assertFalse(con.isSlowConsumer());
+		Assert.assertEquals(4, channel.written.size());
+		for (int i = 0; i < 4; i++) {
+			Assert.assertEquals("m" + (6 + i), str(channel.written.get(i)));
+		}
+	}
+
+	@Test
+	public void testPolicies() throws Exception {
+		MockChannel channel = new MockChannel();
+		StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		channel.setWritable(false);
+		con.sendEncoded(message("a1"), "a", TxnStatus.CONTINUE, BackpressurePolicy.COALESCE_LATEST);
+		con.sendEncoded(message("b1"), "b", TxnStatus.CONTINUE, BackpressurePolicy.COALESCE_LATEST);
+		con.sendEncoded(message("a2"), "a", TxnStatus.CONTINUE, BackpressurePolicy.COALESCE_LATEST);
+		con.sendEncoded(message("b2"), "b", TxnStatus.CONTINUE, BackpressurePolicy.DROP_NEWEST);
+		//completing a txn is never dropped
+		con.sendEncoded(message("b3"), "b", TxnStatus.COMPLETED, BackpressurePolicy.DROP_NEWEST);
+
+		channel.setWritable(true);
+		con.writabilityChanged();
+		Assert.assertEquals(3, channel.written.size());
+		Assert.assertEquals("a2", str(channel.written.get(0)));
+		Assert.assertEquals("b1", str(channel.written.get(1)));
+		Assert.assertEquals("b3", str(channel.written.get(2)));
+
+		channel.setWritable(false);
+		con.sendEncoded(message("c"), "c", TxnStatus.CONTINUE, BackpressurePolicy.DISCONNECT);
+		Assert.assertFalse(channel.isOpen());
+	}
+
+	@Test
+	public void testResponsesAreBounded() throws Exception {
+		this.configure("max_pending", 4);
+		MockChannel channel = new MockChannel();
+		StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		channel.setWritable(false);
+		for (int i = 0; i < 4; i++) {
+			con.sendEncoded(message("r" + i), "r" + i, TxnStatus.COMPLETED);
+		}
+		Assert.assertTrue(channel.isOpen());
+		con.sendEncoded(message("r4"), "r4", TxnStatus.COMPLETED);
+		Assert.assertFalse(channel.isOpen());
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		this.configure("block_timeout", 5000);
+		final MockChannel channel = new MockChannel();
+		final StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		channel.setWritable(false);
+		con.sendEncoded(message("first"), "t", TxnStatus.CONTINUE, BackpressurePolicy.DROP_OLDEST);
+
+		Thread drain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				channel.setWritable(true);
+				con.writabilityChanged();
+			}
+		});
+		drain.start();
+		long start = System.currentTimeMillis();
+		Assert.assertNotNull(con.sendEncoded(message("second"), "t", TxnStatus.CONTINUE, BackpressurePolicy.BLOCK));
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+		drain.join();
+		Assert.assertEquals(2, channel.written.size());
+		Assert.assertEquals("first", str(channel.written.get(0)));
+		Assert.assertEquals("second", str(channel.written.get(1)));
+	}
+
+	@Test
+	public void testNeverBlockOnIoThread() throws Exception {
+		MockChannel channel = new MockChannel();
+		final StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		channel.setWritable(false);
+		final AtomicReference<Object> result = new AtomicReference<Object>("not run");
+		final AtomicLong took = new AtomicLong();
+		Thread io = StrestNettyConnectionChannel.ioThreadFactory().newThread(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.currentTimeMillis();
+				try {
+					result.set(con.sendEncoded(message("m"), "t", TxnStatus.CONTINUE, BackpressurePolicy.BLOCK));
+				} catch (Exception x) {
+					result.set(x);
+				}
+				took.set(System.currentTimeMillis() - start);
+			}
+		});
+		Assert.assertFalse(StrestNettyConnectionChannel.isIoThread());
+		io.start();
+		io.join(5000);
+		Assert.assertNull(result.get());
+		Assert.assertTrue(took.get() < 1000);
+		channel.setWritable(true);
+		con.writabilityChanged();
+		Assert.assertEquals(1, channel.written.size());
+	}
+}
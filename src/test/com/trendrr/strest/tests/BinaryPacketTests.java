@@ -0,0 +1,84 @@
+/**
+ * 
+ */
+package com.trendrr.strest.tests;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.connections.EncodedResponse;
+import com.trendrr.strest.server.v2.models.StrestHeader.Method;
+import com.trendrr.strest.server.v2.models.StrestHeader.TxnAccept;
+import com.trendrr.strest.server.v2.models.StrestHeader.TxnStatus;
+import com.trendrr.strest.server.v2.models.binary.StrestBinaryRequest;
+import com.trendrr.strest.server.v2.models.binary.StrestBinaryResponse;
+
+
+public class BinaryPacketTests {
+
+	protected Log log = LogFactory.getLog(BinaryPacketTests.class);
+	
+	@Test
+	public void testRequest() throws Exception {
+		StrestBinaryRequest req = new StrestBinaryRequest();
+		req.setTxnId("300");
+		req.setMethod(Method.POST);
+		req.setUri("/firehose?x=1");
+		req.setTxnAccept(TxnAccept.MULTI);
+		DynMap params = new DynMap();
+		params.put("limit", 10);
+		req.setParams(params);
+		req.addHeader("X-Custom", "abc");
+		req.setContent("application/json", "{\"a\":1}");
+		
+		byte[] bytes = req.toByteArray();
+		DecoderEmbedder<ChannelBuffer> framer = new DecoderEmbedder<ChannelBuffer>(
+				new LengthFieldBasedFrameDecoder(1024, 0, 4, 0, 4));
+		//split so the frame arrives in pieces
+		framer.offer(ChannelBuffers.wrappedBuffer(bytes, 0, 3));
+		framer.offer(ChannelBuffers.wrappedBuffer(bytes, 3, bytes.length - 3));
+		
+		StrestBinaryRequest parsed = StrestBinaryRequest.parse(framer.poll());
+		Assert.assertEquals("300", parsed.getTxnId());
+		Assert.assertEquals(Method.POST, parsed.getMethod());
+		Assert.assertEquals("/firehose?x=1", parsed.getUri());
+		Assert.assertEquals(TxnAccept.MULTI, parsed.getTxnAccept());
+		Assert.assertEquals(10L, parsed.getParams().get("limit"));
+		Assert.assertEquals("abc", parsed.getHeader("x-custom"));
+		Assert.assertEquals("application/json", parsed.getHeader("Content-Type"));
+		Assert.assertEquals("{\"a\":1}", parsed.getContent());
+		Assert.assertEquals(2f, parsed.getProtocolVersion());
+	}
+	
+	@Test
+	public void testSharedResponse() throws Exception {
+		StrestBinaryResponse res = new StrestBinaryResponse();
+		res.setStatus(404, "Not Found");
+		res.setTxnStatus(TxnStatus.CONTINUE);
+		res.setContent("application/octet-stream", new byte[] {1, 2, 3});
+		
+		StrestBinaryRequest req = new StrestBinaryRequest();
+		req.setTxnId("123456789");
+		
+		ChannelBuffer shared = new EncodedResponse(res).encode(req);
+		res.setTxnId("123456789");
+		Assert.assertEquals(res.toBuffer(), shared);
+		
+		shared.skipBytes(4);
+		StrestBinaryResponse parsed = StrestBinaryResponse.parse(shared);
+		Assert.assertEquals(123456789L, parsed.getTxnIdLong());
+		Assert.assertEquals(404, parsed.getStatusCode());
+		Assert.assertEquals("Not Found", parsed.getStatusMessage());
+		Assert.assertEquals(TxnStatus.CONTINUE, parsed.getTxnStatus());
+		Assert.assertEquals(3, parsed.getContentBytes().length);
+		Assert.assertEquals(3, parsed.getContentBytes()[2]);
+	}
+}
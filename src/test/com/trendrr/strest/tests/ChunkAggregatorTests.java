@@ -0,0 +1,275 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.annotations.StreamingBody;
+import com.trendrr.strest.server.RequestBodyStream;
+import com.trendrr.strest.server.StrestChunkAggregator;
+import com.trendrr.strest.server.StrestController;
+import com.trendrr.strest.server.StrestRouter;
+import com.trendrr.strest.server.StreamingHttpRequest;
+import com.trendrr.strest.tests.helper.MockChannel;
+
+
+public class ChunkAggregatorTests {
+
+	protected Log log = LogFactory.getLog(ChunkAggregatorTests.class);
+
+	public static class UploadController extends StrestController {
+		@Override
+		@StreamingBody
+		public void handlePOST(DynMap params) throws Exception {
+		}
+	}
+
+	/**
+	 * keeps whatever the aggregator passes on.
+	 */
+	static class Collector extends SimpleChannelUpstreamHandler {
+		final List<Object> received = new CopyOnWriteArrayList<Object>();
+		final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+
+		@Override
+		public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+			this.received.add(e.getMessage());
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+			this.errors.add(e.getCause());
+		}
+
+		/**
+		 * waits for the n'th message, passed on from the spill thread.
+		 */
+		Object await(int n) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (this.received.size() < n && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			return this.received.get(n - 1);
+		}
+	}
+
+	/**
+	 * writes spills on the calling thread.
+	 */
+	static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	/**
+	 * runs tasks on another thread once opened, so the test controls when a spill is written.
+	 */
+	static class GateExecutor implements Executor {
+		final CountDownLatch open = new CountDownLatch(1);
+		final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+
+		@Override
+		public void execute(final Runnable command) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						open.await();
+					} catch (InterruptedException x) {
+						return;
+					}
+					command.run();
+				}
+			});
+			this.threads.add(t);
+			t.start();
+		}
+	}
+
+	private Collector collector = new Collector();
+
+	private MockChannel channel(StrestChunkAggregator aggregator) {
+		return new MockChannel(Channels.pipeline(aggregator, this.collector));
+	}
+
+	private static HttpRequest chunked(String uri) {
+		HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, uri);
+		request.setChunked(true);
+		return request;
+	}
+
+	private static HttpChunk chunk(String str) {
+		return new DefaultHttpChunk(ChannelBuffers.copiedBuffer(str, CharsetUtil.UTF_8));
+	}
+
+	private static HttpChunk chunk(int size) {
+		return new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(new byte[size]));
+	}
+
+	@Test
+	public void testJoinInMemory() throws Exception {
+		MockChannel channel = this.channel(new StrestChunkAggregator(null, 1024, 1024));
+		Channels.fireMessageReceived(channel, chunked("/upload"));
+		Channels.fireMessageReceived(channel, chunk("abc"));
+		Channels.fireMessageReceived(channel, chunk("def"));
+		Assert.assertTrue(this.collector.received.isEmpty());
+		Channels.fireMessageReceived(channel, HttpChunk.LAST_CHUNK);
+
+		HttpRequest request = (HttpRequest)this.collector.received.get(0);
+		Assert.assertFalse(request.isChunked());
+		Assert.assertEquals("6", request.getHeader("Content-Length"));
+		Assert.assertEquals("abcdef", request.getContent().toString(CharsetUtil.UTF_8));
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		MockChannel channel = this.channel(new StrestChunkAggregator(null, 1024 * 1024, 16));
+		Channels.fireMessageReceived(channel, chunked("/upload"));
+		Channels.fireMessageReceived(channel, chunk("0123456789"));
+		Channels.fireMessageReceived(channel, chunk("0123456789")); //over the threshold, spilled
+		Channels.fireMessageReceived(channel, chunk("end"));
+		Channels.fireMessageReceived(channel, HttpChunk.LAST_CHUNK);
+
+		HttpRequest request = (HttpRequest)this.collector.await(1);
+		ChannelBuffer content = request.getContent();
+		Assert.assertEquals(23, content.readableBytes());
+		Assert.assertEquals("01234567890123456789end", content.toString(CharsetUtil.UTF_8));
+	}
+
+	@Test
+	public void testMaxBody() throws Exception {
+		MockChannel channel = this.channel(new StrestChunkAggregator(null, 16, 8, DIRECT));
+		Channels.fireMessageReceived(channel, chunked("/upload"));
+		Channels.fireMessageReceived(channel, chunk("0123456789"));
+		Channels.fireMessageReceived(channel, chunk("0123456789"));
+		Assert.assertEquals(1, this.collector.errors.size());
+		Assert.assertTrue(this.collector.errors.get(0) instanceof TooLongFrameException);
+		Assert.assertTrue(this.collector.received.isEmpty());
+
+		//the rest of the failed body is passed on as is, the next request is joined normally
+		Channels.fireMessageReceived(channel, HttpChunk.LAST_CHUNK);
+		this.collector.received.clear();
+		Channels.fireMessageReceived(channel, chunked("/upload"));
+		Channels.fireMessageReceived(channel, chunk("ok"));
+		Channels.fireMessageReceived(channel, HttpChunk.LAST_CHUNK);
+		Assert.assertEquals("ok", ((HttpRequest)this.collector.received.get(0)).getContent().toString(CharsetUtil.UTF_8));
+	}
+
+	@Test
+	public void testStreamFlowControl() throws Exception {
+		StrestRouter router = new StrestRouter();
+		router.addRoute("/upload", UploadController.class);
+		MockChannel channel = this.channel(new StrestChunkAggregator(router, 1024 * 1024, 1024));
+		Channels.fireMessageReceived(channel, chunked("/upload"));
+		RequestBodyStream body = ((StreamingHttpRequest)this.collector.received.get(0)).getBody();
+
+		int high = StrestChunkAggregator.STREAM_HIGH_WATER_MARK;
+		Channels.fireMessageReceived(channel, chunk(high));
+		Assert.assertTrue(channel.isReadable());
+		Channels.fireMessageReceived(channel, chunk(1)); //over the high mark
+		Assert.assertFalse(channel.isReadable());
+
+		//reading down to the low mark starts the socket again
+		Assert.assertEquals(high, body.read().readableBytes());
+		Assert.assertTrue(channel.isReadable());
+		Assert.assertEquals(1, body.read().readableBytes());
+
+		Channels.fireMessageReceived(channel, HttpChunk.LAST_CHUNK);
+		Assert.assertNull(body.read());
+		Assert.assertTrue(body.isComplete());
+		Assert.assertEquals(high + 1, body.getBytesRead());
+	}
+
+	@Test
+	public void testStreamFailsOnClose() throws Exception {
+		StrestRouter router = new StrestRouter();
+		router.addRoute("/upload", UploadController.class);
+		MockChannel channel = this.channel(new StrestChunkAggregator(router, 1024 * 1024, 1024));
+		Channels.fireMessageReceived(channel, chunked("/upload"));
+		RequestBodyStream body = ((StreamingHttpRequest)this.collector.received.get(0)).getBody();
+		Channels.fireMessageReceived(channel, chunk("abc"));
+		channel.close();
+		try {
+			body.read();
+			Assert.fail("body was not completed");
+		} catch (IOException x) {
+			//expected
+		}
+	}
+
+	@Test
+	public void testSpillIsOffTheIoThreadAndKeepsOrder() throws Exception {
+		GateExecutor executor = new GateExecutor();
+		MockChannel channel = this.channel(new StrestChunkAggregator(null, 1024 * 1024, 16, executor));
+		Channels.fireMessageReceived(channel, chunked("/upload"));
+		Channels.fireMessageReceived(channel, chunk("0123456789"));
+		Channels.fireMessageReceived(channel, chunk("0123456789")); //starts the spill
+		Channels.fireMessageReceived(channel, HttpChunk.LAST_CHUNK);
+		//a pipelined request right behind it must not overtake it
+		HttpRequest next = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/next");
+		Channels.fireMessageReceived(channel, next);
+		Assert.assertTrue(this.collector.received.isEmpty());
+		Assert.assertEquals(1, executor.threads.size());
+
+		executor.open.countDown();
+		HttpRequest spilled = (HttpRequest)this.collector.await(1);
+		Assert.assertEquals("01234567890123456789", spilled.getContent().toString(CharsetUtil.UTF_8));
+		Assert.assertSame(next, this.collector.await(2));
+		executor.threads.get(0).join(5000);
+
+		//back to the io thread once the spill is done
+		this.collector.received.clear();
+		Channels.fireMessageReceived(channel, chunked("/upload"));
+		Channels.fireMessageReceived(channel, chunk("small"));
+		Channels.fireMessageReceived(channel, HttpChunk.LAST_CHUNK);
+		Assert.assertEquals("small", ((HttpRequest)this.collector.received.get(0)).getContent().toString(CharsetUtil.UTF_8));
+		Assert.assertEquals(1, executor.threads.size());
+	}
+
+	@Test
+	public void testSpillPausesReading() throws Exception {
+		GateExecutor executor = new GateExecutor();
+		MockChannel channel = this.channel(new StrestChunkAggregator(null, 16 * 1024 * 1024, 16, executor));
+		Channels.fireMessageReceived(channel, chunked("/upload"));
+		Channels.fireMessageReceived(channel, chunk(StrestChunkAggregator.STREAM_HIGH_WATER_MARK));
+		Assert.assertTrue(channel.isReadable());
+		Channels.fireMessageReceived(channel, chunk(1));
+		Assert.assertFalse(channel.isReadable());
+		Channels.fireMessageReceived(channel, HttpChunk.LAST_CHUNK);
+
+		executor.open.countDown();
+		HttpRequest spilled = (HttpRequest)this.collector.await(1);
+		Assert.assertEquals(StrestChunkAggregator.STREAM_HIGH_WATER_MARK + 1, spilled.getContent().readableBytes());
+		executor.threads.get(0).join(5000);
+		Assert.assertTrue(channel.isReadable());
+	}
+}
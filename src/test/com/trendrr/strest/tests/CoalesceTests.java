@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.HttpPipeliningHandler;
+import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
+import com.trendrr.strest.server.v2.models.StrestHeader.TxnStatus;
+import com.trendrr.strest.server.v2.models.http.StrestHttpResponse;
+import com.trendrr.strest.tests.helper.MockChannel;
+
+
+public class CoalesceTests {
+
+	protected Log log = LogFactory.getLog(CoalesceTests.class);
+
+	@Before
+	public void enable() {
+		this.configure(true, 64, 50000);
+	}
+
+	@After
+	public void reset() {
+		this.configure(false, 16 * 1024, 500);
+	}
+
+	private void configure(boolean enabled, int maxBytes, int maxDelay) {
+		DynMap config = new DynMap();
+		config.put("enabled", enabled);
+		config.put("max_bytes", maxBytes);
+		config.put("max_delay", maxDelay);
+		StrestNettyConnectionChannel.configureCoalesce(config);
+	}
+
+	private static ChannelBuffer message(String str) {
+		return ChannelBuffers.copiedBuffer(str, CharsetUtil.UTF_8);
+	}
+
+	private static String str(Object message) {
+		return ((ChannelBuffer)message).toString(CharsetUtil.UTF_8);
+	}
+
+	@Test
+	public void testBurstIsOneWrite() throws Exception {
+		MockChannel channel = new MockChannel();
+		StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+		for (int i = 0; i < 5; i++) {
+			futures.add((ChannelFuture)con.sendEncoded(message("m" + i), "t", TxnStatus.CONTINUE));
+		}
+		Assert.assertTrue(channel.written.isEmpty());
+		con.flushWrites();
+		Assert.assertEquals(1, channel.written.size());
+		Assert.assertEquals("m0m1m2m3m4", str(channel.written.get(0)));
+		for (ChannelFuture f : futures) {
+			Assert.assertTrue(f.isSuccess());
+		}
+		//nothing left to flush
+		con.flushWrites();
+		Assert.assertEquals(1, channel.written.size());
+	}
+
+	@Test
+	public void testFlushOnSizeAndDelay() throws Exception {
+		MockChannel channel = new MockChannel();
+		StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		//64 bytes, flushed as soon as it fills
+		for (int i = 0; i < 8; i++) {
+			con.sendEncoded(message("12345678"), "t", TxnStatus.CONTINUE);
+		}
+		Assert.assertEquals(1, channel.written.size());
+
+		//the timer picks up anything left behind
+		this.configure(true, 64, 1000);
+		con.sendEncoded(message("late"), "t", TxnStatus.CONTINUE);
+		for (int i = 0; i < 100 && channel.written.size() < 2; i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(2, channel.written.size());
+		Assert.assertEquals("late", str(channel.written.get(1)));
+	}
+
+	@Test
+	public void testHeldBackWhileUnwritable() throws Exception {
+		MockChannel channel = new MockChannel();
+		StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		ChannelFuture a = (ChannelFuture)con.sendEncoded(message("a"), "t", TxnStatus.CONTINUE);
+		ChannelFuture b = (ChannelFuture)con.sendEncoded(message("b"), "t", TxnStatus.CONTINUE);
+		channel.setWritable(false);
+		con.flushWrites();
+		Assert.assertTrue(channel.written.isEmpty());
+		Assert.assertTrue(con.isSlowConsumer());
+		Assert.assertFalse(a.isDone());
+
+		channel.setWritable(true);
+		con.writabilityChanged();
+		Assert.assertEquals(1, channel.written.size());
+		Assert.assertEquals("ab", str(channel.written.get(0)));
+		Assert.assertTrue(a.isSuccess());
+		Assert.assertTrue(b.isSuccess());
+	}
+
+	@Test
+	public void testCleanupFailsPending() throws Exception {
+		MockChannel channel = new MockChannel();
+		StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		ChannelFuture a = (ChannelFuture)con.sendEncoded(message("a"), "t", TxnStatus.CONTINUE);
+		channel.close();
+		con.cleanup();
+		Assert.assertTrue(a.isDone());
+		Assert.assertFalse(a.isSuccess());
+	}
+
+	@Test
+	public void testPipelinedHttpIsNotCoalesced() throws Exception {
+		MockChannel channel = new MockChannel();
+		StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		StrestHttpResponse response = new StrestHttpResponse(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+		response.setTxnId("t");
+		response.setTxnStatus(TxnStatus.CONTINUE);
+		response.setSequence(3);
+		con.sendMessage(response);
+		Assert.assertEquals(1, channel.written.size());
+		HttpPipeliningHandler.Sequenced sequenced = (HttpPipeliningHandler.Sequenced)channel.written.get(0);
+		Assert.assertEquals(3, sequenced.getSequence());
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import com.trendrr.strest.server.ConcurrencyLimiter;
+
+
+public class ConcurrencyLimiterTests {
+
+	protected Log log = LogFactory.getLog(ConcurrencyLimiterTests.class);
+
+	/**
+	 * feeds the limiter latencies directly.
+	 */
+	static class TestLimiter extends ConcurrencyLimiter {
+		public TestLimiter() {
+			super("test", 20, 4, 1000, 1000);
+		}
+
+		public void sample(long rtt, boolean dropped) {
+			this.release(rtt, dropped, true);
+		}
+	}
+
+	@Test
+	public void testRejectsOverLimit() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 2, 1, 10, 1000);
+		ConcurrencyLimiter.Permit a = limiter.tryAcquire();
+		Assert.assertNotNull(a);
+		Assert.assertNotNull(limiter.tryAcquire());
+		Assert.assertNull(limiter.tryAcquire());
+		Assert.assertEquals(1, limiter.getRejected());
+
+		a.release(false);
+		a.release(false); //only once
+		Assert.assertEquals(1, limiter.getInFlight());
+		Assert.assertNotNull(limiter.tryAcquire());
+	}
+
+	@Test
+	public void testGrowsAndShrinks() throws Exception {
+		TestLimiter limiter = new TestLimiter();
+		for (int i = 0; i < 20; i++) {
+			limiter.tryAcquire();
+		}
+		limiter.sample(1000000, false); //no load latency
+		limiter.tryAcquire();
+		limiter.sample(1000000, false);
+		Assert.assertTrue(limiter.getLimit() > 20);
+
+		int limit = limiter.getLimit();
+		limiter.tryAcquire();
+		limiter.sample(100000000, false); //100x slower, mostly queueing
+		Assert.assertTrue(limiter.getLimit() < limit);
+	}
+
+	@Test
+	public void testDroppedAlwaysShrinks() throws Exception {
+		TestLimiter limiter = new TestLimiter();
+		limiter.tryAcquire();
+		//the first sample, and the fastest, but a timeout all the same
+		limiter.sample(1000, true);
+		Assert.assertTrue(limiter.getLimit() < 20);
+
+		for (int i = 0; i < 100; i++) {
+			limiter.tryAcquire();
+			limiter.sample(1000, true);
+		}
+		Assert.assertEquals(4, limiter.getLimit());
+	}
+
+	@Test
+	public void testUnexecutedIsNotSampled() throws Exception {
+		TestLimiter limiter = new TestLimiter();
+		for (int i = 0; i < 19; i++) {
+			limiter.tryAcquire();
+		}
+		limiter.sample(1000000, false);
+
+		//answered by a filter in microseconds, that must not become the no load latency
+		ConcurrencyLimiter.Permit filtered = limiter.tryAcquire();
+		filtered.release(false);
+		Assert.assertEquals(20, limiter.getLimit());
+
+		limiter.tryAcquire();
+		limiter.sample(1000000, false);
+		Assert.assertTrue(limiter.getLimit() > 20);
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.ResponseBuilder;
+import com.trendrr.strest.server.callbacks.ConnectionGroupEmptyCallback;
+import com.trendrr.strest.server.connections.BroadcastFuture;
+import com.trendrr.strest.server.connections.StrestConnectionChannel;
+import com.trendrr.strest.server.connections.StrestConnectionGroup;
+import com.trendrr.strest.server.connections.StrestConnectionTxn;
+import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
+import com.trendrr.strest.server.v2.JsonFrameParser;
+import com.trendrr.strest.server.v2.models.StrestHeader.TxnStatus;
+import com.trendrr.strest.server.v2.models.json.StrestJsonRequest;
+import com.trendrr.strest.tests.helper.MockChannel;
+import com.trendrr.strest.tests.helper.RecordingConnection;
+
+
+public class ConnectionGroupTests {
+
+	protected Log log = LogFactory.getLog(ConnectionGroupTests.class);
+
+	/**
+	 * a json connection, takes encoded frames.
+	 */
+	static class JsonConnection extends RecordingConnection {
+		@Override
+		public boolean isEncodedSupported() {
+			return true;
+		}
+	}
+
+	private static StrestConnectionTxn txn(StrestConnectionChannel connection, String txnId) {
+		StrestJsonRequest request = new StrestJsonRequest();
+		request.setUri("/stream");
+		request.setTxnId(txnId);
+		request.setConnectionChannel(connection);
+		return new StrestConnectionTxn(request);
+	}
+
+	private static DynMap parse(ChannelBuffer buffer) throws Exception {
+		return JsonFrameParser.parse(buffer, buffer.readerIndex(), buffer.readableBytes());
+	}
+
+	private static ResponseBuilder message(StrestConnectionTxn txn, String content) {
+		return new ResponseBuilder(txn.getRequest()).contentUTF8(content).txnStatus(TxnStatus.CONTINUE);
+	}
+
+	@Test
+	public void testMembership() throws Exception {
+		StrestConnectionGroup group = new StrestConnectionGroup(4);
+		RecordingConnection connection = new JsonConnection();
+		StrestConnectionTxn a = txn(connection, "a");
+		StrestConnectionTxn b = txn(connection, "b");
+		group.addConnection(a);
+		group.addConnection(a);
+		group.addConnection(b);
+		Assert.assertEquals(2, group.size());
+		Assert.assertTrue(group.contains(b));
+
+		final AtomicInteger empty = new AtomicInteger();
+		group.onEmpty(new ConnectionGroupEmptyCallback() {
+			@Override
+			public void connectionGroupEmpty(StrestConnectionGroup g) {
+				empty.incrementAndGet();
+			}
+		});
+		//a finished txn leaves the group
+		group.txnComplete(a);
+		Assert.assertFalse(group.contains(a));
+		Assert.assertEquals(0, empty.get());
+
+		group.close();
+		Assert.assertTrue(group.isEmpty());
+		Assert.assertEquals(1, empty.get());
+		//the remaining member was sent its completion
+		Assert.assertEquals(1, connection.sent.size());
+		Assert.assertEquals("b", connection.sent.get(0).getTxnId());
+		Assert.assertEquals(TxnStatus.COMPLETED, connection.sent.get(0).getTxnStatus());
+
+		group.addConnection(txn(connection, "c"));
+		Assert.assertTrue(group.isEmpty());
+	}
+
+	@Test
+	public void testEncodedOncePerFormat() throws Exception {
+		StrestConnectionGroup group = new StrestConnectionGroup(2);
+		RecordingConnection json = new JsonConnection();
+		RecordingConnection objects = new RecordingConnection();
+		StrestConnectionTxn first = txn(json, "first");
+		group.addConnection(first);
+		group.addConnection(txn(json, "second"));
+		group.addConnection(txn(objects, "third"));
+
+		BroadcastFuture future = group.sendMessage(message(first, "hello"));
+		Assert.assertTrue(future.await(1, TimeUnit.SECONDS));
+		Assert.assertEquals(3, future.getSuccessCount());
+
+		Assert.assertEquals(2, json.encoded.size());
+		List<String> txns = new ArrayList<String>();
+		for (ChannelBuffer buffer : json.encoded) {
+			DynMap frame = parse(buffer);
+			txns.add(frame.getString("strest.txn.id"));
+			Assert.assertEquals(parse(json.encoded.get(0)).get("content"), frame.get("content"));
+		}
+		Assert.assertTrue(txns.contains("first"));
+		Assert.assertTrue(txns.contains("second"));
+
+		//channels that can't take encoded bytes get the response, with their own txn id
+		Assert.assertEquals(1, objects.sent.size());
+		Assert.assertEquals("third", objects.sent.get(0).getTxnId());
+	}
+
+	@Test
+	public void testParallelKeepsOrder() throws Exception {
+		StrestConnectionGroup group = new StrestConnectionGroup(4);
+		group.setParallelThreshold(1);
+		List<RecordingConnection> connections = new ArrayList<RecordingConnection>();
+		StrestConnectionTxn any = null;
+		for (int i = 0; i < 16; i++) {
+			RecordingConnection connection = new JsonConnection();
+			connections.add(connection);
+			any = txn(connection, "t" + i);
+			group.addConnection(any);
+		}
+		List<BroadcastFuture> futures = new ArrayList<BroadcastFuture>();
+		for (int i = 0; i < 50; i++) {
+			futures.add(group.sendMessage(message(any, "m" + i)));
+		}
+		for (BroadcastFuture future : futures) {
+			Assert.assertTrue(future.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals(16, future.getSuccessCount());
+		}
+		for (RecordingConnection connection : connections) {
+			Assert.assertEquals(50, connection.encoded.size());
+			for (int i = 0; i < 50; i++) {
+				Assert.assertEquals("m" + i, parse(connection.encoded.get(i)).get("content"));
+			}
+		}
+	}
+
+	@Test
+	public void testCoalescedMembersAreFlushed() throws Exception {
+		DynMap config = new DynMap();
+		config.put("max_delay", 60000000); //a minute, only the group's flush can write it
+		StrestNettyConnectionChannel.configureCoalesce(config);
+		try {
+			MockChannel channel = new MockChannel();
+			StrestNettyConnectionChannel coalesced = new StrestNettyConnectionChannel(channel);
+			coalesced.setCoalesceWrites(true);
+			StrestConnectionGroup group = new StrestConnectionGroup(1);
+			StrestConnectionTxn first = txn(coalesced, "first");
+			group.addConnection(first);
+			group.addConnection(txn(coalesced, "second"));
+			group.addConnection(txn(new JsonConnection(), "plain"));
+
+			BroadcastFuture future = group.sendMessage(message(first, "hello"));
+			Assert.assertTrue(future.await(1, TimeUnit.SECONDS));
+			Assert.assertEquals(3, future.getSuccessCount());
+			//both txns in a single write
+			Assert.assertEquals(1, channel.written.size());
+			Assert.assertFalse(StrestNettyConnectionChannel.hasCoalescedWrites(coalesced));
+		} finally {
+			config.put("max_delay", 500);
+			StrestNettyConnectionChannel.configureCoalesce(config);
+		}
+	}
+}
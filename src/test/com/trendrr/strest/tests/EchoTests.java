@@ -4,6 +4,9 @@
 package com.trendrr.strest.tests;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.Date;
 
 import junit.framework.Assert;
@@ -89,6 +92,23 @@ public class EchoTests {
 		client.close();
 	}
 
+	/**
+	 * a get request that asks the server to close the connection after the response,
+	 * so HttpURLConnection doesn't keep it alive in its pool.
+	 * @param url
+	 * @throws IOException
+	 */
+	protected static void getAndClose(String url) throws IOException {
+		HttpURLConnection c = (HttpURLConnection)new URL(url).openConnection();
+		c.setRequestProperty("Connection", "close");
+		InputStream in = c.getResponseCode() < 400 ? c.getInputStream() : c.getErrorStream();
+		if (in != null) {
+			while (in.read() != -1);
+			in.close();
+		}
+		c.disconnect();
+	}
+	
 	/**
 	 * make sure connections don't leak.
 	 * @throws Exception
@@ -99,12 +119,11 @@ public class EchoTests {
 		System.out.println("CONNECTIONS: " + server.getServer().getRouter().getNumConnections());
 		int num = 100;
 		for (int i=0; i < num; i++) {
-			String response = Http.get("http://localhost:8090/echo?echo=request"+ i);
+			getAndClose("http://localhost:8090/echo?echo=request"+ i);
 		}
 		//a few 404 for good measure
 		for (int i=0; i < 4; i++) {
-			try {String response = Http.get("http://localhost:8090/random404"+ i); }
-			catch (Exception x) {/*swallow 404 exception*/}
+			getAndClose("http://localhost:8090/random404"+ i);
 		}
 		Sleep.seconds(2);
 		Assert.assertEquals(0, server.getServer().getRouter().getNumConnections());
@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.util.concurrent.Executors;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.annotations.NonBlocking;
+import com.trendrr.strest.annotations.Strest;
+import com.trendrr.strest.server.HttpPipeliningHandler.Sequenced;
+import com.trendrr.strest.server.StrestController;
+import com.trendrr.strest.server.StrestExecutionHandler;
+import com.trendrr.strest.server.StrestRouter;
+
+
+public class InlineExecutionTests {
+
+	protected Log log = LogFactory.getLog(InlineExecutionTests.class);
+
+	@Strest(route = "/fast")
+	public static class FastController extends StrestController {
+		@Override
+		@NonBlocking
+		public void handleGET(DynMap params) throws Exception {
+			this.setResponseUTF8("text/plain", "fast");
+		}
+
+		@Override
+		public void handlePOST(DynMap params) throws Exception {
+			this.setResponseUTF8("text/plain", "slow");
+		}
+	}
+
+	/**
+	 * exposes isInline
+	 */
+	static class TestExecutionHandler extends StrestExecutionHandler {
+		public TestExecutionHandler(StrestRouter router) {
+			super(router, Executors.newSingleThreadExecutor(), true);
+		}
+
+		public boolean inline(Object message) {
+			return this.isInline(message);
+		}
+	}
+
+	private static TestExecutionHandler handler() {
+		StrestRouter router = new StrestRouter();
+		router.addRoute("/fast", FastController.class);
+		return new TestExecutionHandler(router);
+	}
+
+	private static DynMap frame(String uri, String method) {
+		DynMap strest = new DynMap();
+		strest.put("uri", uri);
+		strest.put("method", method);
+		DynMap frame = new DynMap();
+		frame.put("strest", strest);
+		return frame;
+	}
+
+	@Test
+	public void testHttp() throws Exception {
+		TestExecutionHandler handler = handler();
+		Assert.assertTrue(handler.inline(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/fast?a=b")));
+		Assert.assertFalse(handler.inline(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/fast")));
+		Assert.assertFalse(handler.inline(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/missing")));
+		//pipelined requests are wrapped with their sequence
+		Assert.assertTrue(handler.inline(new Sequenced(0, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/fast"))));
+		handler.releaseExternalResources();
+	}
+
+	@Test
+	public void testJsonFrames() throws Exception {
+		TestExecutionHandler handler = handler();
+		Assert.assertTrue(handler.inline(frame("/fast", "GET")));
+		Assert.assertFalse(handler.inline(frame("/fast", "POST")));
+		Assert.assertFalse(handler.inline(frame("/fast", "BOGUS")));
+		Assert.assertFalse(handler.inline(frame(null, "GET")));
+		Assert.assertFalse(handler.inline("not a request"));
+		handler.releaseExternalResources();
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * 
+ */
+package com.trendrr.strest.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import com.trendrr.json.simple.JSONAware;
+import com.trendrr.json.simple.JSONFormatter;
+import com.trendrr.json.simple.JSONValue;
+import com.trendrr.oss.DynMap;
+import com.trendrr.oss.DynMapConvertable;
+import com.trendrr.strest.server.v2.JsonBufferWriter;
+import com.trendrr.strest.server.v2.JsonDecoder;
+import com.trendrr.strest.server.v2.JsonFrameParser;
+
+
+public class JsonDecoderTests {
+
+	protected Log log = LogFactory.getLog(JsonDecoderTests.class);
+	
+	@Test
+	public void testFrames() {
+		DecoderEmbedder<DynMap> decoder = new DecoderEmbedder<DynMap>(new JsonDecoder());
+		
+		String json = "{\"strest\":{\"txn\":{\"id\":\"a}\\\"{\"}},\"nested\":{\"list\":[1,-2.5,true,null,{}]},\"s\":\"caf\u00e9 \\u00e9\\n\"}\r\n"
+			+ "{\"b\":12345678901234567890}";
+		byte[] bytes = json.getBytes(CharsetUtil.UTF_8);
+		//feed it in small pieces so frames are split across reads.
+		for (int i = 0; i < bytes.length; i += 7) {
+			decoder.offer(ChannelBuffers.wrappedBuffer(bytes, i, Math.min(7, bytes.length - i)));
+		}
+		
+		DynMap first = decoder.poll();
+		Assert.assertNotNull(first);
+		Assert.assertEquals("a}\"{", ((DynMap)((DynMap)first.get("strest")).get("txn")).get("id"));
+		@SuppressWarnings("unchecked")
+		List<Object> list = (List<Object>)((DynMap)first.get("nested")).get("list");
+		Assert.assertEquals(5, list.size());
+		Assert.assertEquals(1L, list.get(0));
+		Assert.assertEquals(-2.5, list.get(1));
+		Assert.assertEquals(Boolean.TRUE, list.get(2));
+		Assert.assertNull(list.get(3));
+		Assert.assertEquals("caf\u00e9 \u00e9\n", first.get("s"));
+		
+		DynMap second = decoder.poll();
+		Assert.assertNotNull(second);
+		Assert.assertEquals(12345678901234567890d, second.get("b"));
+		Assert.assertNull(decoder.poll());
+	}
+	
+	@Test
+	public void testRawFrames() {
+		DecoderEmbedder<ChannelBuffer> decoder = new DecoderEmbedder<ChannelBuffer>(new JsonDecoder(true));
+		decoder.offer(ChannelBuffers.copiedBuffer(" {\"a\":\"}\"} {\"b\":{}}", CharsetUtil.UTF_8));
+		Assert.assertEquals("{\"a\":\"}\"}", decoder.poll().toString(CharsetUtil.UTF_8));
+		Assert.assertEquals("{\"b\":{}}", decoder.poll().toString(CharsetUtil.UTF_8));
+		Assert.assertNull(decoder.poll());
+	}
+	
+	@Test
+	public void testWriter() throws Exception {
+		DynMap map = new DynMap();
+		map.put("s", "caf\u00e9 \"q\" \\ \n\u0001 \ud83d\ude00");
+		map.put("n", 42);
+		map.put("d", 1.5);
+		map.put("nan", Double.NaN);
+		map.put("b", false);
+		map.put("nil", null);
+		List<Object> list = new ArrayList<Object>();
+		list.add("a");
+		list.add(new DynMap());
+		map.put("list", list);
+		
+		ChannelBuffer buf = JsonBufferWriter.encode(map, 4);
+		DynMap parsed = JsonFrameParser.parse(buf, buf.readerIndex(), buf.readableBytes());
+		Assert.assertEquals(map.get("s"), parsed.get("s"));
+		Assert.assertEquals(42L, parsed.get("n"));
+		Assert.assertEquals(1.5, parsed.get("d"));
+		Assert.assertNull(parsed.get("nan"));
+		Assert.assertEquals(Boolean.FALSE, parsed.get("b"));
+		Assert.assertTrue(parsed.containsKey("nil"));
+		Assert.assertEquals(2, ((List)parsed.get("list")).size());
+		//same bytes String.getBytes would produce for the string.
+		ChannelBuffer str = ChannelBuffers.dynamicBuffer();
+		JsonBufferWriter.write("caf\u00e9 \ud83d\ude00", str);
+		Assert.assertEquals("\"caf\u00e9 \ud83d\ude00\"", str.toString(CharsetUtil.UTF_8));
+	}
+	
+	static class Formatted {
+	}
+	
+	@Test
+	public void testWriterFallsBackToJSONValue() throws Exception {
+		JSONValue.registerFormatter(Formatted.class, new JSONFormatter() {
+			@Override
+			public String toJSONString(Object value) {
+				return "\"formatted\"";
+			}
+		});
+		DynMap map = new DynMap();
+		map.put("formatted", new Formatted());
+		map.put("aware", new JSONAware() {
+			@Override
+			public String toJSONString() {
+				return "{\"raw\":1}";
+			}
+		});
+		map.put("convertable", new DynMapConvertable() {
+			@Override
+			public DynMap toDynMap() {
+				DynMap converted = new DynMap();
+				converted.put("c", "d");
+				return converted;
+			}
+		});
+		map.put("other", new StringBuilder("x\"y"));
+		//must match the json DynMap produces itself
+		ChannelBuffer buf = JsonBufferWriter.encode(map, 16);
+		Assert.assertEquals(JSONValue.parse(map.toJSONString()), JSONValue.parse(buf.toString(CharsetUtil.UTF_8)));
+		
+		DynMap parsed = JsonFrameParser.parse(buf, buf.readerIndex(), buf.readableBytes());
+		Assert.assertEquals(1L, parsed.getMap("aware").get("raw"));
+		Assert.assertEquals("d", parsed.getMap("convertable").get("c"));
+		Assert.assertEquals("x\"y", parsed.get("other"));
+		Assert.assertEquals("formatted", parsed.get("formatted"));
+	}
+}
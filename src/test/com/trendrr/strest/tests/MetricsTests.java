@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.metrics.LatencyHistogram;
+import com.trendrr.strest.server.metrics.RequestMetrics;
+import com.trendrr.strest.server.v2.models.StrestHeader;
+
+
+public class MetricsTests {
+
+	protected Log log = LogFactory.getLog(MetricsTests.class);
+
+	@Test
+	public void testBucketPrecision() throws Exception {
+		long[] values = {0, 1, 31, 32, 33, 47, 48, 1000, 12345, 999999, 123456789};
+		for (long value : values) {
+			LatencyHistogram histogram = new LatencyHistogram();
+			histogram.record(value, TimeUnit.MICROSECONDS);
+			//a larger value, so the result isn't capped by max
+			histogram.record(TimeUnit.HOURS.toMicros(1), TimeUnit.MICROSECONDS);
+			long reported = histogram.getValueAtQuantile(.5);
+			Assert.assertTrue(value + " reported as " + reported, reported >= value);
+			Assert.assertTrue(value + " reported as " + reported, reported <= value + value / 16);
+		}
+	}
+
+	@Test
+	public void testQuantiles() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i, TimeUnit.MILLISECONDS);
+		}
+		Assert.assertEquals(1000, histogram.getCount());
+		Assert.assertEquals(1000000, histogram.getMax());
+		long[] values = histogram.getValuesAtQuantiles(new double[] {.5, .99, 1});
+		Assert.assertTrue(Math.abs(values[0] - 500000) <= 500000 / 16);
+		Assert.assertTrue(Math.abs(values[1] - 990000) <= 990000 / 16);
+		Assert.assertEquals(1000000, values[2]);
+
+		//out of range values are clamped, not lost
+		histogram.record(-5, TimeUnit.MILLISECONDS);
+		histogram.record(2, TimeUnit.HOURS);
+		Assert.assertEquals(1002, histogram.getCount());
+		Assert.assertEquals(TimeUnit.HOURS.toMicros(1), histogram.getMax());
+		Assert.assertEquals(0, histogram.getValueAtQuantile(0));
+	}
+
+	@Test
+	public void testRequestMetrics() throws Exception {
+		RequestMetrics metrics = new RequestMetrics();
+		metrics.record("/a", StrestHeader.Method.GET, 200, TimeUnit.MILLISECONDS.toNanos(5));
+		metrics.record("/a", StrestHeader.Method.GET, 500, TimeUnit.MILLISECONDS.toNanos(7));
+		metrics.record(null, null, 404, 0);
+		metrics.exception(new IllegalStateException());
+
+		Assert.assertEquals(1, metrics.getStatusCount(200));
+		Assert.assertEquals(1, metrics.getStatusCount(404));
+		Assert.assertEquals(2, metrics.getHistogram("/a", StrestHeader.Method.GET).getCount());
+		Assert.assertNull(metrics.getHistogram("/a", StrestHeader.Method.POST));
+		Assert.assertEquals(2, metrics.getHistogram(StrestHeader.Method.GET).getCount());
+
+		DynMap map = metrics.toDynMap();
+		Assert.assertEquals(1L, map.getMap("status").get("500"));
+		Assert.assertEquals(1L, map.getMap("exceptions").get(IllegalStateException.class.getName()));
+		DynMap route = (DynMap)map.getMap("routes").get("/a");
+		Assert.assertEquals(2L, ((DynMap)route.get("GET")).get("count"));
+
+		StringBuilder prometheus = new StringBuilder();
+		metrics.toPrometheus(prometheus);
+		Assert.assertTrue(prometheus.length() > 0);
+	}
+}
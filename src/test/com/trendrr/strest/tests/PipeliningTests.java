@@ -0,0 +1,105 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import com.trendrr.strest.server.HttpPipeliningHandler;
+import com.trendrr.strest.server.HttpPipeliningHandler.Sequenced;
+import com.trendrr.strest.server.connections.StrestNettyConnectionChannel;
+import com.trendrr.strest.tests.helper.MockChannel;
+
+
+public class PipeliningTests {
+
+	protected Log log = LogFactory.getLog(PipeliningTests.class);
+
+	private static MockChannel channel() {
+		return new MockChannel(Channels.pipeline(new HttpPipeliningHandler()));
+	}
+
+	@Test
+	public void testOrder() throws Exception {
+		MockChannel channel = channel();
+		ChannelFuture two = channel.write(new Sequenced(2, "two"));
+		channel.write(new Sequenced(1, "one"));
+		Assert.assertTrue(channel.written.isEmpty());
+		Assert.assertFalse(two.isDone());
+
+		channel.write(new Sequenced(0, "zero"));
+		Assert.assertEquals(3, channel.written.size());
+		Assert.assertEquals("zero", channel.written.get(0));
+		Assert.assertEquals("one", channel.written.get(1));
+		Assert.assertEquals("two", channel.written.get(2));
+		Assert.assertTrue(two.isSuccess());
+	}
+
+	@Test
+	public void testSkip() throws Exception {
+		MockChannel channel = channel();
+		StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		channel.write(new Sequenced(1, "one"));
+		con.skipSequence(0);
+		Assert.assertEquals(1, channel.written.size());
+		Assert.assertEquals("one", channel.written.get(0));
+	}
+
+	@Test
+	public void testSecondResponseIsFailed() throws Exception {
+		MockChannel channel = channel();
+		channel.write(new Sequenced(0, "zero"));
+		ChannelFuture again = channel.write(new Sequenced(0, "again"));
+		Assert.assertFalse(again.isSuccess());
+
+		channel.write(new Sequenced(2, "two"));
+		again = channel.write(new Sequenced(2, "again"));
+		Assert.assertFalse(again.isSuccess());
+		channel.write(new Sequenced(1, "one"));
+		Assert.assertEquals(3, channel.written.size());
+		Assert.assertEquals("two", channel.written.get(2));
+	}
+
+	@Test
+	public void testHeldIsBounded() throws Exception {
+		MockChannel channel = channel();
+		//0 never answers
+		ChannelFuture first = channel.write(new Sequenced(1, "r"));
+		for (int i = 2; i <= HttpPipeliningHandler.MAX_HELD; i++) {
+			channel.write(new Sequenced(i, "r"));
+		}
+		Assert.assertTrue(channel.isOpen());
+		ChannelFuture last = channel.write(new Sequenced(HttpPipeliningHandler.MAX_HELD + 1, "r"));
+		Assert.assertFalse(channel.isOpen());
+		Assert.assertFalse(last.isSuccess());
+		Assert.assertTrue(first.isDone());
+		Assert.assertFalse(first.isSuccess());
+		Assert.assertTrue(channel.written.isEmpty());
+	}
+
+	@Test
+	public void testQueuedResponseHasFuture() throws Exception {
+		MockChannel channel = channel();
+		StrestNettyConnectionChannel con = new StrestNettyConnectionChannel(channel);
+		channel.setWritable(false);
+		ChannelFuture future = (ChannelFuture)con.sendEncoded(ChannelBuffers.copiedBuffer("zero", CharsetUtil.UTF_8), 0);
+		Assert.assertNotNull(future);
+		Assert.assertFalse(future.isDone());
+		future.addListener(ChannelFutureListener.CLOSE);
+
+		channel.setWritable(true);
+		con.writabilityChanged();
+		Assert.assertEquals("zero", ((ChannelBuffer)channel.written.get(0)).toString(CharsetUtil.UTF_8));
+		Assert.assertFalse(channel.isOpen());
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.StrestController;
+import com.trendrr.strest.server.StrestRouter;
+import com.trendrr.strest.server.filters.RateLimitFilter;
+import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
+import com.trendrr.strest.server.v2.models.http.StrestHttpResponse;
+import com.trendrr.strest.tests.helper.RecordingConnection;
+
+
+public class RateLimitTests {
+
+	protected Log log = LogFactory.getLog(RateLimitTests.class);
+
+	private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	public static class LimitedController extends StrestController {
+		@Override
+		public void handleGET(DynMap params) throws Exception {
+			this.setResponseUTF8("text/plain", "ok");
+		}
+	}
+
+	/**
+	 * takes tokens at a given time.
+	 */
+	static class TestLimit extends RateLimitFilter {
+		TestLimit(Object ...keyValues) {
+			super(config(keyValues));
+		}
+
+		long take(AtomicLong bucket, long now) {
+			return this.tryAcquire(bucket, now);
+		}
+
+		AtomicLong get(String key) {
+			return this.bucket(key);
+		}
+	}
+
+	private static DynMap config(Object ...keyValues) {
+		DynMap config = new DynMap();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			config.put((String)keyValues[i], keyValues[i + 1]);
+		}
+		return config;
+	}
+
+	private StrestController controller(StrestRouter router, String uri) throws Exception {
+		StrestHttpRequest request = RecordingConnection.request("GET", uri);
+		StrestController controller = router.getRouteLookup().find(request);
+		controller.setRequest(request);
+		controller.setResponse(new StrestHttpResponse(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)));
+		return controller;
+	}
+
+	@Test
+	public void testBucket() throws Exception {
+		//a token every 100ms, 3 at once
+		TestLimit limit = new TestLimit("rate", 10, "burst", 3);
+		long now = 1000 * MILLI;
+		AtomicLong bucket = new AtomicLong(now);
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(0, limit.take(bucket, now));
+		}
+		long wait = limit.take(bucket, now);
+		Assert.assertEquals(100 * MILLI, wait);
+
+		//refills one token per interval
+		now += 100 * MILLI;
+		Assert.assertEquals(0, limit.take(bucket, now));
+		Assert.assertTrue(limit.take(bucket, now) > 0);
+
+		//and never holds more than burst
+		now += 10000 * MILLI;
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(0, limit.take(bucket, now));
+		}
+		Assert.assertTrue(limit.take(bucket, now) > 0);
+	}
+
+	@Test
+	public void testMaxKeys() throws Exception {
+		TestLimit limit = new TestLimit("max_keys", 10);
+		for (int i = 0; i < 100; i++) {
+			limit.get("key" + i);
+		}
+		Assert.assertTrue(limit.getKeyCount() <= 10);
+	}
+
+	@Test
+	public void testParamKey() throws Exception {
+		StrestRouter router = new StrestRouter();
+		router.addRoute("/limited", LimitedController.class);
+		RateLimitFilter limit = new RateLimitFilter(config("key", "param", "param", "api_key", "rate", 1, "burst", 1));
+
+		StrestController a = this.controller(router, "/limited?api_key=a");
+		limit.before(a);
+		Assert.assertFalse(a.isSkipExecution());
+		StrestController b = this.controller(router, "/limited?api_key=b");
+		limit.before(b);
+		Assert.assertFalse(b.isSkipExecution());
+
+		StrestController again = this.controller(router, "/limited?api_key=a");
+		limit.before(again);
+		Assert.assertTrue(again.isSkipExecution());
+		Assert.assertEquals(429, again.getResponse().getStatusCode());
+		Assert.assertEquals("1", again.getResponse().getHeader("Retry-After"));
+		Assert.assertEquals(1, limit.getRejected());
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.oss.DynMapFactory;
+import com.trendrr.strest.examples.HelloWorld;
+import com.trendrr.strest.server.RequestParams;
+import com.trendrr.strest.server.routing.MatchedRoute;
+import com.trendrr.strest.server.routing.RouteMatcher;
+import com.trendrr.strest.server.routing.UriMapping;
+import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
+
+
+public class RequestParamsTests {
+
+	protected Log log = LogFactory.getLog(RequestParamsTests.class);
+
+	private RequestParams params(String uri, String post) {
+		RouteMatcher tree = new RouteMatcher();
+		tree.addMapping(new UriMapping("/test/:name/:id", HelloWorld.class));
+		int query = uri.indexOf('?');
+		MatchedRoute route = tree.find(uri, 0, query == -1 ? uri.length() : query);
+
+		DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+				post == null ? HttpMethod.GET : HttpMethod.POST, uri);
+		if (post != null) {
+			request.setHeader("Content-Type", "application/x-www-form-urlencoded");
+			request.setContent(ChannelBuffers.copiedBuffer(post.getBytes()));
+		}
+		RequestParams params = new RequestParams(route);
+		params.setRequest(new StrestHttpRequest(request));
+		return params;
+	}
+
+	@Test
+	public void testLookupOrder() {
+		RequestParams params = this.params("/test/dustin/1?id=2&name=get", "name=post");
+		Assert.assertEquals("post", params.get("name"));
+		Assert.assertEquals("2", params.get("id"));
+		Assert.assertNull(params.get("nothing"));
+		Assert.assertTrue(params.containsKey("id"));
+		Assert.assertFalse(params.containsKey("nothing"));
+		//single lookups never build the merged map
+		Assert.assertFalse(params.isMerged());
+
+		params = this.params("/test/dustin/1", null);
+		Assert.assertEquals("1", params.get("id"));
+		Assert.assertEquals("dustin", params.get("name"));
+	}
+
+	@Test
+	public void testMerge() {
+		RequestParams params = this.params("/test/dustin/1?id=2&q=a", "name=post");
+		DynMap map = params.getMap();
+		Assert.assertTrue(params.isMerged());
+		Assert.assertSame(map, params.getMap());
+		Assert.assertEquals("post", map.getString("name"));
+		Assert.assertEquals("2", map.getString("id"));
+		Assert.assertEquals("a", map.getString("q"));
+
+		//the merged map is a regular DynMap, java 8 defaults see everything
+		Assert.assertEquals("a", map.getOrDefault("q", "missing"));
+		Assert.assertEquals(3, map.size());
+
+		//once merged, changes are seen by get
+		map.put("q", "b");
+		map.remove("id");
+		Assert.assertEquals("b", params.get("q"));
+		Assert.assertNull(params.get("id"));
+	}
+
+	@Test
+	public void testFormDecodingMatchesDynMapFactory() throws Exception {
+		String[] forms = {
+				"a=1&b=two",
+				"name=hello+world&q=%7Bx%7D%26y",
+				"u=%C3%A9t%C3%A9",
+				"user[name]=dustin&user[id]=1&other=x",
+				"empty=&=b&a==b&a=b=&&c",
+				"bad=%zz&ok=1&short=%2",
+				"raw=\u00fcn\u00efcode",
+		};
+		for (String form : forms) {
+			Assert.assertEquals(form, DynMapFactory.instanceFromURL("/x?" + form), RequestParams.parseGET("/x?" + form));
+			Assert.assertEquals(form, DynMapFactory.instanceFromURLEncoded(form), 
+					RequestParams.parsePOST("application/x-www-form-urlencoded", ChannelBuffers.copiedBuffer(form, CharsetUtil.UTF_8)));
+		}
+		Assert.assertTrue(RequestParams.parseGET("/x").isEmpty());
+		Assert.assertTrue(RequestParams.parseGET("/x?").isEmpty());
+
+		DynMap repeated = RequestParams.parseGET("/x?id=1&id=2&id=3");
+		Assert.assertEquals(Arrays.asList("1", "2", "3"), repeated.get("id"));
+	}
+
+	@Test
+	public void testPostFromBuffer() throws Exception {
+		ChannelBuffer body = ChannelBuffers.copiedBuffer("{\"a\":{\"b\":1},\"c\":\"d\"}", CharsetUtil.UTF_8);
+		int reader = body.readerIndex();
+		DynMap json = RequestParams.parsePOST("application/json", body);
+		Assert.assertEquals(1l, json.getMap("a").get("b"));
+		Assert.assertEquals("d", json.get("c"));
+		Assert.assertEquals(reader, body.readerIndex());
+
+		Assert.assertTrue(RequestParams.parsePOST("application/json", ChannelBuffers.copiedBuffer("{bad", CharsetUtil.UTF_8)).isEmpty());
+		Assert.assertTrue(RequestParams.parsePOST(null, body).isEmpty());
+		Assert.assertTrue(RequestParams.parsePOST("text/plain", body).isEmpty());
+
+		//a slice, only the readable part is parsed
+		ChannelBuffer form = ChannelBuffers.copiedBuffer("xx&a=1&b=2", CharsetUtil.UTF_8);
+		form.skipBytes(3);
+		Assert.assertEquals("1", RequestParams.parsePOST("application/x-www-form-urlencoded", form).get("a"));
+		Assert.assertFalse(RequestParams.parsePOST("application/x-www-form-urlencoded", form).containsKey("xx"));
+	}
+}
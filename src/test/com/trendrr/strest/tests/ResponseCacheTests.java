@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.server.StrestController;
+import com.trendrr.strest.server.StrestRouter;
+import com.trendrr.strest.server.filters.ResponseCacheFilter;
+import com.trendrr.strest.server.v2.models.StrestHeader;
+import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
+import com.trendrr.strest.server.v2.models.http.StrestHttpResponse;
+import com.trendrr.strest.server.v2.models.json.StrestJsonRequest;
+import com.trendrr.strest.tests.helper.RecordingConnection;
+
+
+public class ResponseCacheTests {
+
+	protected Log log = LogFactory.getLog(ResponseCacheTests.class);
+
+	public static class CachedController extends StrestController {
+		@Override
+		public void handleGET(DynMap params) throws Exception {
+			this.setResponseUTF8("text/plain", "cached");
+		}
+	}
+
+	/**
+	 * exposes the key
+	 */
+	static class TestCache extends ResponseCacheFilter {
+		public String key(StrestController controller) {
+			return super.key(controller);
+		}
+	}
+
+	private StrestRouter router = new StrestRouter();
+	{
+		this.router.addRoute("/cached", CachedController.class);
+	}
+
+	/**
+	 * a controller set up the way the router would, on a connection that takes encoded responses.
+	 * @param uri
+	 * @return
+	 */
+	private StrestController controller(String uri) throws Exception {
+		StrestHttpRequest request = RecordingConnection.request("GET", uri);
+		request.setConnectionChannel(new RecordingConnection() {
+			@Override
+			public boolean isEncodedSupported() {
+				return true;
+			}
+		});
+		StrestController controller = this.router.getRouteLookup().find(request);
+		controller.setRequest(request);
+		controller.setResponse(new StrestHttpResponse(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK)));
+		return controller;
+	}
+
+	@Test
+	public void testKey() throws Exception {
+		TestCache cache = new TestCache();
+		String ampersand = cache.key(this.controller("/cached?a=1%26b%3D2"));
+		String two = cache.key(this.controller("/cached?a=1&b=2"));
+		Assert.assertFalse(ampersand.equals(two));
+		//param order doesn't matter
+		Assert.assertEquals(two, cache.key(this.controller("/cached?b=2&a=1")));
+	}
+
+	@Test
+	public void testPacketParamsKey() throws Exception {
+		TestCache cache = new TestCache();
+		DynMap params = new DynMap();
+		params.put("a", "1");
+		String packet = cache.key(this.jsonController("/cached", params));
+		Assert.assertFalse(packet.equals(cache.key(this.jsonController("/cached", null))));
+		//packet params are keyed apart from query params
+		Assert.assertFalse(packet.equals(cache.key(this.jsonController("/cached?a=1", null))));
+		Assert.assertFalse(cache.key(this.jsonController("/cached?a=1", params)).equals(cache.key(this.jsonController("/cached?a=1", null))));
+	}
+
+	private StrestController jsonController(String uri, DynMap params) throws Exception {
+		StrestJsonRequest request = new StrestJsonRequest();
+		request.setMethod(StrestHeader.Method.GET);
+		request.setUri(uri);
+		if (params != null) {
+			request.setParams(params);
+		}
+		request.setConnectionChannel(new RecordingConnection());
+		StrestController controller = this.router.getRouteLookup().find(request);
+		controller.setRequest(request);
+		return controller;
+	}
+
+	@Test
+	public void testConcurrentMissesCollapse() throws Exception {
+		final TestCache cache = new TestCache();
+		StrestController loader = this.controller("/cached?a=1");
+		cache.before(loader);
+		Assert.assertFalse(loader.isSkipExecution());
+		Assert.assertEquals(1, cache.getMisses());
+
+		final StrestController waiter = this.controller("/cached?a=1");
+		final AtomicReference<Exception> failed = new AtomicReference<Exception>();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					cache.before(waiter);
+				} catch (Exception x) {
+					failed.set(x);
+				}
+			}
+		});
+		thread.start();
+		Thread.sleep(50);
+		Assert.assertTrue(thread.isAlive()); //waiting on the loader
+
+		loader.handleGET(loader.getParams());
+		cache.after(loader);
+		thread.join(2000);
+		Assert.assertNull(failed.get());
+		Assert.assertTrue(waiter.isSkipExecution());
+		Assert.assertNotNull(waiter.getEncodedResponse());
+		Assert.assertEquals(1, cache.getCollapsed());
+		Assert.assertEquals(1, cache.getMisses());
+
+		//and later requests are plain hits
+		StrestController hit = this.controller("/cached?a=1");
+		cache.before(hit);
+		Assert.assertTrue(hit.isSkipExecution());
+		Assert.assertEquals(2, cache.getHits());
+	}
+}
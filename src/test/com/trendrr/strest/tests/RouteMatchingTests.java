@@ -61,6 +61,28 @@ public class RouteMatchingTests {
 		Assert.assertTrue(params(tree, "/test/dustin", "id", "dustin"));
 	}
 	
+	@Test
+	public void testRouteRegions() {
+		RouteMatcher tree = new RouteMatcher();
+		tree.addMapping(new UriMapping("/test", HelloWorld.class));
+		tree.addMapping(new UriMapping("/test/*filenames", HelloWorld.class));
+		tree.addMapping(new UriMapping("/test/:name/:id", HelloWorld.class));
+		
+		Assert.assertTrue(match(tree, "/test.json", "test"));
+		Assert.assertTrue(params(tree, "/test.json", "return_type", "json"));
+		Assert.assertTrue(params(tree, "/test/dustin/1/", "name", "dustin"));
+		Assert.assertTrue(params(tree, "/test/dustin/1", "id", "1"));
+		Assert.assertTrue(params(tree, "/test/a/b/c/d", "filenames", "a/b/c/d"));
+		
+		//query string is skipped by passing the end offset
+		String uri = "/test/dustin/1?id=2";
+		MatchedRoute rt = tree.find(uri, 0, uri.indexOf('?'));
+		Assert.assertEquals("test/:name/:id", rt.getMapping().getRoute());
+		Assert.assertEquals("1", rt.getParams().get("id"));
+		
+		Assert.assertFalse(tree.find("/test").hasParams());
+	}
+	
 	protected boolean match(RouteMatcher tree, String route, String expected) {
 		MatchedRoute rt = tree.find(route);
 		if (rt == null && expected == null)
@@ -0,0 +1,286 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.trendrr.oss.DynMap;
+import com.trendrr.strest.StrestException;
+import com.trendrr.strest.annotations.Pooled;
+import com.trendrr.strest.annotations.Strest;
+import com.trendrr.strest.server.ControllerDescriptor;
+import com.trendrr.strest.server.ControllerFactory;
+import com.trendrr.strest.server.DefaultControllerFactory;
+import com.trendrr.strest.server.PooledControllerFactory;
+import com.trendrr.strest.server.StrestController;
+import com.trendrr.strest.server.StrestControllerFilter;
+import com.trendrr.strest.server.StrestRouter;
+import com.trendrr.strest.server.v2.models.StrestHeader;
+import com.trendrr.strest.server.v2.models.StrestResponse;
+import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
+import com.trendrr.strest.tests.helper.RecordingConnection;
+
+
+public class RouterTests {
+
+	protected Log log = LogFactory.getLog(RouterTests.class);
+
+	static final List<String> calls = new CopyOnWriteArrayList<String>();
+
+	public static class AnnotatedFilter implements StrestControllerFilter {
+		@Override
+		public void before(StrestController controller) throws StrestException {
+			calls.add("annotated.before");
+		}
+
+		@Override
+		public void after(StrestController controller) throws StrestException {
+			calls.add("annotated.after");
+		}
+
+		@Override
+		public void error(StrestController controller, StrestResponse response, Exception exception) {
+		}
+	}
+
+	public static class NamespaceFilter implements StrestControllerFilter {
+		@Override
+		public void before(StrestController controller) throws StrestException {
+			calls.add("namespace.before");
+		}
+
+		@Override
+		public void after(StrestController controller) throws StrestException {
+			calls.add("namespace.after");
+		}
+
+		@Override
+		public void error(StrestController controller, StrestResponse response, Exception exception) {
+		}
+	}
+
+	@Strest(route = "/filtered", filters = {AnnotatedFilter.class})
+	public static class FilteredController extends StrestController {
+		@Override
+		public void handleGET(DynMap params) throws Exception {
+			calls.add("handle");
+			this.setResponseUTF8("text/plain", "ok");
+		}
+	}
+
+	@Strest(route = "/budget", deadline = 50, requiredParams = {"id"})
+	public static class BudgetController extends StrestController {
+		@Override
+		public void handleGET(DynMap params) throws Exception {
+			calls.add("handle");
+			this.setResponseUTF8("text/plain", "ok");
+		}
+	}
+
+	@Strest(route = "/pooled")
+	@Pooled(max = 1)
+	public static class PooledController extends StrestController {
+	}
+
+	public static class BrokenController extends StrestController {
+		public BrokenController() {
+			throw new IllegalStateException("broken");
+		}
+	}
+
+	@Before
+	public void clear() {
+		calls.clear();
+	}
+
+	private static int status(StrestRouter router, StrestHttpRequest request) {
+		router.incoming(request);
+		return RecordingConnection.sent(request).get(0).getStatusCode();
+	}
+
+	@Test
+	public void testFilterChainOrder() throws Exception {
+		StrestRouter router = new StrestRouter();
+		router.addRoute("/filtered", FilteredController.class);
+		router.setFilters("default", Arrays.asList(NamespaceFilter.class.getName()));
+		Assert.assertEquals(200, status(router, RecordingConnection.request("GET", "/filtered")));
+		Assert.assertEquals(Arrays.asList("annotated.before", "namespace.before", "handle", "annotated.after", "namespace.after"), 
+				new ArrayList<String>(calls));
+
+		//the chains are rebuilt when the namespace filters change
+		calls.clear();
+		router.setFilters("default", new ArrayList<String>());
+		Assert.assertEquals(200, status(router, RecordingConnection.request("GET", "/filtered")));
+		Assert.assertEquals(Arrays.asList("annotated.before", "handle", "annotated.after"), new ArrayList<String>(calls));
+	}
+
+	@Test
+	public void testLiveRouteRegistration() throws Exception {
+		StrestRouter router = new StrestRouter();
+		Assert.assertEquals(404, status(router, RecordingConnection.request("GET", "/filtered")));
+		router.addRoute("/filtered", FilteredController.class);
+		Assert.assertEquals(200, status(router, RecordingConnection.request("GET", "/filtered")));
+	}
+
+	@Test
+	public void testLookupsDuringRegistration() throws Exception {
+		final StrestRouter router = new StrestRouter();
+		router.addRoute("/filtered", FilteredController.class);
+		router.addRoute("/item/:id", BudgetController.class);
+		router.addRoute("/files/*path", FilteredController.class);
+		final String[] uris = {"/filtered", "/item/abc", "/files/a/b/c"};
+		final Class<?>[] expected = {FilteredController.class, BudgetController.class, FilteredController.class};
+
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicInteger misses = new AtomicInteger(0);
+		final AtomicInteger lookups = new AtomicInteger(0);
+		final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						int i = 0;
+						while (!done.get() || i < 1000) {
+							int r = i++ % uris.length;
+							StrestController controller = router.getRouteLookup().find(uris[r]);
+							if (controller == null || controller.getClass() != expected[r]) {
+								misses.incrementAndGet();
+							}
+							lookups.incrementAndGet();
+						}
+					} catch (Throwable x) {
+						errors.add(x);
+					}
+				}
+			});
+			readers.add(reader);
+			reader.start();
+		}
+
+		//registers next to the routes being read, so the shared nodes change under the readers
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 500; i++) {
+						router.addRoute("/item/:id/" + i, FilteredController.class);
+						router.addRoute("/files/" + i, BudgetController.class);
+						router.addRoute("/added/" + i, FilteredController.class);
+						if (router.getRouteLookup().find("/added/" + i) == null) {
+							misses.incrementAndGet();
+						}
+					}
+				} catch (Throwable x) {
+					errors.add(x);
+				} finally {
+					done.set(true);
+				}
+			}
+		});
+		writer.start();
+		writer.join(30000);
+		for (Thread reader : readers) {
+			reader.join(30000);
+		}
+		Assert.assertTrue(errors.toString(), errors.isEmpty());
+		Assert.assertEquals(0, misses.get());
+		Assert.assertTrue(lookups.get() >= 4000);
+		Assert.assertNotNull(router.getRouteLookup().find("/item/abc/499"));
+	}
+
+	@Test
+	public void testDeadlineHeaderSheds() throws Exception {
+		StrestRouter router = new StrestRouter();
+		router.addRoute("/filtered", FilteredController.class);
+		StrestHttpRequest request = RecordingConnection.request("GET", "/filtered");
+		request.addHeader(StrestHeader.Name.DEADLINE, "50");
+		request.setArrivalTime(System.currentTimeMillis() - 100);
+		Assert.assertEquals(503, status(router, request));
+		Assert.assertTrue(calls.isEmpty());
+
+		request = RecordingConnection.request("GET", "/filtered");
+		request.addHeader(StrestHeader.Name.DEADLINE, "5000");
+		request.setArrivalTime(System.currentTimeMillis() - 100);
+		Assert.assertEquals(200, status(router, request));
+	}
+
+	@Test
+	public void testControllerDeadline() throws Exception {
+		StrestRouter router = new StrestRouter();
+		router.addRoute("/budget", BudgetController.class);
+		StrestHttpRequest request = RecordingConnection.request("GET", "/budget");
+		request.setArrivalTime(System.currentTimeMillis() - 100);
+		Assert.assertEquals(503, status(router, request));
+		Assert.assertTrue(calls.isEmpty());
+
+		Assert.assertEquals(200, status(router, RecordingConnection.request("GET", "/budget")));
+	}
+
+	@Test
+	public void testControllerFactories() throws Exception {
+		StrestRouter router = new StrestRouter();
+		router.addRoute("/filtered", FilteredController.class);
+		router.addRoute("/pooled", PooledController.class);
+
+		ControllerFactory factory = router.getRouteLookup().getControllerFactory(FilteredController.class);
+		Assert.assertNotSame(factory.newInstance(), factory.newInstance());
+
+		ControllerFactory pooled = router.getRouteLookup().getControllerFactory(PooledController.class);
+		Assert.assertTrue(pooled instanceof PooledControllerFactory);
+		StrestController a = pooled.newInstance();
+		StrestController b = pooled.newInstance();
+		pooled.release(a);
+		pooled.release(b); //over max, dropped
+		Assert.assertSame(a, pooled.newInstance());
+		Assert.assertNotSame(b, pooled.newInstance());
+
+		//the constructor's own exception comes through, not a reflection wrapper
+		try {
+			new DefaultControllerFactory(BrokenController.class).newInstance();
+			Assert.fail();
+		} catch (IllegalStateException x) {
+			Assert.assertEquals("broken", x.getMessage());
+		}
+
+		//an overridden factory is used from then on
+		final StrestController only = new FilteredController();
+		router.getRouteLookup().setControllerFactory(FilteredController.class, new ControllerFactory() {
+			@Override
+			public StrestController newInstance() throws Exception {
+				return only;
+			}
+		});
+		Assert.assertSame(only, router.getRouteLookup().find("/filtered"));
+	}
+
+	@Test
+	public void testDescriptor() throws Exception {
+		StrestRouter router = new StrestRouter();
+		router.addRoute("/budget", BudgetController.class);
+		router.addRoute("/filtered", FilteredController.class);
+		ControllerDescriptor budget = router.getRouteLookup().getDescriptor(BudgetController.class);
+		Assert.assertEquals(Arrays.asList("id"), Arrays.asList(budget.getRequiredParams()));
+		Assert.assertEquals(50, budget.getDeadline());
+		ControllerDescriptor filtered = router.getRouteLookup().getDescriptor(FilteredController.class);
+		Assert.assertEquals(0, filtered.getRequiredParams().length);
+		Assert.assertEquals(Arrays.asList(AnnotatedFilter.class), Arrays.asList(filtered.getFilters()));
+
+		//not enforced
+		Assert.assertEquals(200, status(router, RecordingConnection.request("GET", "/budget")));
+	}
+}
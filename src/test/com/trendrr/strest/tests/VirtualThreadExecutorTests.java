@@ -0,0 +1,62 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import com.trendrr.strest.server.VirtualThreadExecutor;
+
+
+public class VirtualThreadExecutorTests {
+
+	protected Log log = LogFactory.getLog(VirtualThreadExecutorTests.class);
+
+	@Test
+	public void testMaxConcurrency() throws Exception {
+		VirtualThreadExecutor executor = new VirtualThreadExecutor(2, 0, 0);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		for (int i = 0; i < 10; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					threads.add(Thread.currentThread());
+					int now = running.incrementAndGet();
+					synchronized(maxRunning) {
+						maxRunning.set(Math.max(maxRunning.get(), now));
+					}
+					try {
+						release.await();
+					} catch (InterruptedException x) {
+						Thread.currentThread().interrupt();
+					}
+					running.decrementAndGet();
+				}
+			});
+		}
+		Assert.assertEquals(10, executor.getActiveCount());
+		Thread.sleep(50);
+		release.countDown();
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		Assert.assertEquals(2, maxRunning.get());
+		if (!executor.isVirtual()) {
+			//a bounded pool, not a thread per task
+			Assert.assertEquals(2, threads.size());
+		}
+	}
+}
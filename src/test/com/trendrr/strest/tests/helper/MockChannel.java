@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests.helper;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jboss.netty.channel.AbstractChannel;
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelConfig;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+
+/**
+ * A channel that is never connected to anything, it records every message written
+ * to it and is writable or not as the test says.
+ *
+ */
+public class MockChannel extends AbstractChannel {
+
+	private final ChannelConfig config = new DefaultChannelConfig();
+	private volatile boolean writable = true;
+
+	public final List<Object> written = new CopyOnWriteArrayList<Object>();
+
+	public MockChannel() {
+		//something has to take the upstream events, or netty logs each one.
+		this(Channels.pipeline(new SimpleChannelUpstreamHandler()));
+	}
+
+	public MockChannel(ChannelPipeline pipeline) {
+		this(pipeline, new Sink());
+	}
+
+	private MockChannel(ChannelPipeline pipeline, Sink sink) {
+		super(null, null, pipeline, sink);
+	}
+
+	public void setWritable(boolean writable) {
+		this.writable = writable;
+	}
+
+	@Override
+	public boolean isWritable() {
+		return this.writable;
+	}
+
+	@Override
+	public ChannelConfig getConfig() {
+		return this.config;
+	}
+
+	@Override
+	public boolean isBound() {
+		return this.isOpen();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return this.isOpen();
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() {
+		return new InetSocketAddress("127.0.0.1", 8000);
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return new InetSocketAddress("127.0.0.1", 9000);
+	}
+
+	private static class Sink extends AbstractChannelSink {
+		@Override
+		public void eventSunk(ChannelPipeline pipeline, ChannelEvent e) throws Exception {
+			MockChannel channel = (MockChannel)e.getChannel();
+			if (e instanceof MessageEvent) {
+				channel.written.add(((MessageEvent)e).getMessage());
+				e.getFuture().setSuccess();
+			} else if (e instanceof ChannelStateEvent) {
+				ChannelStateEvent state = (ChannelStateEvent)e;
+				if (state.getState() == ChannelState.OPEN && Boolean.FALSE.equals(state.getValue())) {
+					if (channel.setClosed()) {
+						Channels.fireChannelClosed(channel);
+					}
+				} else if (state.getState() == ChannelState.INTEREST_OPS) {
+					//so isReadable follows setReadable
+					channel.setInterestOpsNow(((Integer)state.getValue()).intValue());
+				}
+				e.getFuture().setSuccess();
+			}
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package com.trendrr.strest.tests.helper;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import com.trendrr.strest.server.connections.StrestConnectionChannel;
+import com.trendrr.strest.server.v2.models.StrestResponse;
+import com.trendrr.strest.server.v2.models.http.StrestHttpRequest;
+import com.trendrr.strest.server.v2.models.http.StrestHttpResponse;
+
+
+/**
+ * A connection that keeps every response sent to it, for driving a router
+ * without a network.
+ *
+ */
+public class RecordingConnection extends StrestConnectionChannel {
+
+	public final List<StrestResponse> sent = new CopyOnWriteArrayList<StrestResponse>();
+	//only used by subclasses that return true from isEncodedSupported
+	public final List<ChannelBuffer> encoded = new CopyOnWriteArrayList<ChannelBuffer>();
+
+	/**
+	 * a plain http request on a new RecordingConnection.
+	 * @param method
+	 * @param uri
+	 * @return
+	 */
+	public static StrestHttpRequest request(String method, String uri) {
+		StrestHttpRequest request = new StrestHttpRequest(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.valueOf(method), uri));
+		request.setConnectionChannel(new RecordingConnection());
+		return request;
+	}
+
+	/**
+	 * the responses sent to the request's connection.
+	 * @param request
+	 * @return
+	 */
+	public static List<StrestResponse> sent(StrestHttpRequest request) {
+		return ((RecordingConnection)request.getConnectionChannel()).sent;
+	}
+
+	/**
+	 * waits up to millis for a response.
+	 * @param millis
+	 * @return the first response or null
+	 * @throws InterruptedException
+	 */
+	public StrestResponse await(long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		while (this.sent.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		return this.sent.isEmpty() ? null : this.sent.get(0);
+	}
+
+	/**
+	 * the content of an http response as a string
+	 * @param response
+	 * @return
+	 */
+	public static String content(StrestResponse response) {
+		return ((StrestHttpResponse)response).getResponse().getContent().toString(java.nio.charset.Charset.forName("utf8"));
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	protected Object doSendMessage(StrestResponse response) throws Exception {
+		this.sent.add(response);
+		return null;
+	}
+
+	@Override
+	protected Object doSendEncoded(ChannelBuffer buffer) throws Exception {
+		this.encoded.add(buffer);
+		return null;
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return "/127.0.0.1:9000";
+	}
+}